@@ -78,6 +78,22 @@ public interface RawDataFile {
     @Nonnull
     public int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange);
 
+    /**
+     * Returns sorted array of all scan numbers in given MS level, retention
+     * time range and precursor m/z range
+     * 
+     * @param msLevel
+     *            MS level
+     * @param rtRange
+     *            Retention time range
+     * @param precursorMZRange
+     *            Precursor m/z range
+     * @return Sorted array of scan numbers, never returns null
+     */
+    @Nonnull
+    public int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange,
+	    @Nonnull Range<Double> precursorMZRange);
+
     /**
      * 
      * @param scan
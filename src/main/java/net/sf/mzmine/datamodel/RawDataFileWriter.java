@@ -36,6 +36,24 @@ public interface RawDataFileWriter {
      */
     public void addScan(Scan newScan) throws IOException;
 
+    /**
+     * Adds a new scan to the file, taking its data points from the given
+     * arrays instead of newScan.getDataPoints(). This avoids creating one
+     * object per data point when importing large files. The arrays are not
+     * retained, so they may be reused after this call.
+     * 
+     * @param newScan
+     *            Scan to add, providing all values except the data points
+     * @param mzValues
+     *            m/z values of the data points
+     * @param intensityValues
+     *            intensity values of the data points
+     * @param numOfDataPoints
+     *            number of data points (the arrays may be longer)
+     */
+    public void addScan(Scan newScan, double mzValues[],
+	    double intensityValues[], int numOfDataPoints) throws IOException;
+
     /**
      * Finishes writing of the file
      * 
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+import com.google.common.collect.Range;
+
+/**
+ * Peak list for alignment results over many raw data files. The m/z, RT,
+ * height, area and status of the peaks of rows created by createRow() are
+ * kept in one column of primitive arrays per data file, which only has
+ * entries for the peaks that exist, so a sparse alignment takes memory in
+ * proportion to its number of peaks, not rows x files. Adding a peak to such
+ * a row takes constant time and the row averages are updated incrementally,
+ * so building rows over hundreds of data files does not become quadratic.
+ * Rows of other implementations can be added to this peak list as well, but
+ * they do not benefit from the columns.
+ */
+public class AlignedPeakList extends SimplePeakList {
+
+    private final Map<RawDataFile, Integer> columnIndexes;
+    private final PeakColumn columns[];
+
+    public AlignedPeakList(String name, RawDataFile[] dataFiles) {
+	super(name, dataFiles);
+	columnIndexes = new HashMap<RawDataFile, Integer>();
+	columns = new PeakColumn[dataFiles.length];
+	for (int i = 0; i < dataFiles.length; i++) {
+	    columnIndexes.put(dataFiles[i], i);
+	    columns[i] = new PeakColumn();
+	}
+    }
+
+    /**
+     * Creates a new row backed by the columns of this peak list. The row
+     * still has to be added to the peak list by addRow().
+     */
+    public AlignedPeakListRow createRow(int id) {
+	return new AlignedPeakListRow(this, columns, id);
+    }
+
+    /**
+     * Moves the peaks of a row created by createRow() out of the columns of
+     * this peak list, so their entries can be reused by other rows. The
+     * removed row keeps its peaks.
+     */
+    @Override
+    public void removeRow(PeakListRow row) {
+	super.removeRow(row);
+	if ((row instanceof AlignedPeakListRow)
+		&& (((AlignedPeakListRow) row).getPeakList() == this))
+	    ((AlignedPeakListRow) row).detach();
+    }
+
+    /**
+     * Tests the peaks of the rows backed by columns using the stored values,
+     * so the Feature objects are only touched for the peaks that are
+     * returned.
+     */
+    @Override
+    public Feature[] getPeaksInsideScanAndMZRange(RawDataFile file,
+	    Range<Double> rtRange, Range<Double> mzRange) {
+	List<Feature> peaksInside = new ArrayList<Feature>();
+	for (PeakListRow row : getRows()) {
+	    Feature p;
+	    if (row instanceof AlignedPeakListRow) {
+		p = ((AlignedPeakListRow) row).getPeakIfInside(file, rtRange,
+			mzRange);
+	    } else {
+		p = row.getPeak(file);
+		if ((p != null)
+			&& !(rtRange.contains(p.getRT()) && mzRange.contains(p
+				.getMZ())))
+		    p = null;
+	    }
+	    if (p != null)
+		peaksInside.add(p);
+	}
+	return peaksInside.toArray(new Feature[0]);
+    }
+
+    /**
+     * Returns the column of given data file, or -1 if the data file is not
+     * part of this peak list.
+     */
+    int getColumn(RawDataFile file) {
+	Integer column = columnIndexes.get(file);
+	if (column == null)
+	    return -1;
+	return column;
+    }
+
+    /**
+     * Peaks of one data file. The values of each peak are kept in one entry
+     * of the arrays. Entries of removed peaks are reused by the next added
+     * peak. Each column has its own lock, so tasks working on different data
+     * files do not wait for each other.
+     */
+    static class PeakColumn {
+
+	private static final FeatureStatus statusValues[] = FeatureStatus
+		.values();
+
+	private Feature peaks[] = new Feature[0];
+	private double mz[] = new double[0], rt[] = new double[0],
+		height[] = new double[0], area[] = new double[0];
+	private byte status[] = new byte[0];
+	private int numOfEntries = 0;
+
+	/**
+	 * Stack of the entries which are free for reuse
+	 */
+	private int freeEntries[] = new int[0];
+	private int numOfFreeEntries = 0;
+
+	/**
+	 * Stores the peak into a free entry and returns the entry
+	 */
+	synchronized int add(Feature peak) {
+	    int entry;
+	    if (numOfFreeEntries > 0) {
+		entry = freeEntries[--numOfFreeEntries];
+	    } else {
+		if (numOfEntries == peaks.length)
+		    grow();
+		entry = numOfEntries++;
+	    }
+	    set(entry, peak);
+	    return entry;
+	}
+
+	/**
+	 * Stores the peak into given entry, replacing the previous peak
+	 */
+	synchronized void set(int entry, Feature peak) {
+	    peaks[entry] = peak;
+	    mz[entry] = peak.getMZ();
+	    rt[entry] = peak.getRT();
+	    height[entry] = peak.getHeight();
+	    area[entry] = peak.getArea();
+	    status[entry] = (byte) peak.getFeatureStatus().ordinal();
+	}
+
+	/**
+	 * Frees given entry and returns its peak
+	 */
+	synchronized Feature remove(int entry) {
+	    Feature peak = peaks[entry];
+	    peaks[entry] = null;
+	    if (numOfFreeEntries == freeEntries.length) {
+		int newFreeEntries[] = new int[freeEntries.length * 2 + 4];
+		System.arraycopy(freeEntries, 0, newFreeEntries, 0,
+			numOfFreeEntries);
+		freeEntries = newFreeEntries;
+	    }
+	    freeEntries[numOfFreeEntries++] = entry;
+	    return peak;
+	}
+
+	private void grow() {
+	    int capacity = peaks.length + (peaks.length >> 1) + 4;
+	    Feature newPeaks[] = new Feature[capacity];
+	    System.arraycopy(peaks, 0, newPeaks, 0, numOfEntries);
+	    peaks = newPeaks;
+	    mz = copyOf(mz, capacity);
+	    rt = copyOf(rt, capacity);
+	    height = copyOf(height, capacity);
+	    area = copyOf(area, capacity);
+	    byte newStatus[] = new byte[capacity];
+	    System.arraycopy(status, 0, newStatus, 0, numOfEntries);
+	    status = newStatus;
+	}
+
+	private double[] copyOf(double values[], int capacity) {
+	    double newValues[] = new double[capacity];
+	    System.arraycopy(values, 0, newValues, 0, numOfEntries);
+	    return newValues;
+	}
+
+	synchronized Feature getPeak(int entry) {
+	    return peaks[entry];
+	}
+
+	synchronized double getMZ(int entry) {
+	    return mz[entry];
+	}
+
+	synchronized double getRT(int entry) {
+	    return rt[entry];
+	}
+
+	synchronized double getHeight(int entry) {
+	    return height[entry];
+	}
+
+	synchronized double getArea(int entry) {
+	    return area[entry];
+	}
+
+	synchronized FeatureStatus getStatus(int entry) {
+	    return statusValues[status[entry]];
+	}
+
+	/**
+	 * Returns the peak of given entry if it lies in the given ranges,
+	 * otherwise null
+	 */
+	synchronized Feature getPeakIfInside(int entry, Range<Double> rtRange,
+		Range<Double> mzRange) {
+	    if (rtRange.contains(rt[entry]) && mzRange.contains(mz[entry]))
+		return peaks[entry];
+	    return null;
+	}
+
+    }
+
+}
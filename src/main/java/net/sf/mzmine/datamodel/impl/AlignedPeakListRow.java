@@ -0,0 +1,600 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.text.Format;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.AlignedPeakList.PeakColumn;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.util.PeakSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import com.google.common.collect.Range;
+
+/**
+ * Row of an AlignedPeakList. The peaks are stored in the columns of the peak
+ * list; this object only keeps the column entries of its peaks, the running
+ * sums for the average values and the identities. Rows are created by
+ * AlignedPeakList.createRow(). The values of a peak are read when the peak is
+ * added, so a peak which is changed afterwards has to be added again.
+ */
+public class AlignedPeakListRow implements PeakListRow {
+
+    private final AlignedPeakList peakList;
+    private final int myID;
+    private List<PeakIdentity> identities;
+    private PeakIdentity preferredIdentity;
+    private String comment;
+    private double maxDataPointIntensity = 0;
+
+    /**
+     * Columns holding the peaks of this row. These are the columns of the
+     * peak list, until the row is removed from it.
+     */
+    private PeakColumn columns[];
+
+    /**
+     * Columns of the peaks of this row in ascending order, and the entries of
+     * the peaks in these columns
+     */
+    private int peakColumns[] = new int[0], peakEntries[] = new int[0];
+    private int numOfCells = 0;
+
+    /**
+     * Peaks of data files which are not part of the peak list
+     */
+    private Hashtable<RawDataFile, Feature> otherPeaks;
+
+    /**
+     * Running sums of the peak values, updated whenever a peak is added
+     */
+    private int numOfPeaks = 0;
+    private double rtSum, mzSum, heightSum, areaSum;
+    private double averageRT, averageMZ, averageHeight, averageArea;
+    private int rowCharge;
+    private boolean chargesDiffer;
+    private int modificationCount = 0;
+
+    AlignedPeakListRow(AlignedPeakList peakList, PeakColumn columns[],
+	    int myID) {
+	this.peakList = peakList;
+	this.columns = columns;
+	this.myID = myID;
+    }
+
+    AlignedPeakList getPeakList() {
+	return peakList;
+    }
+
+    /**
+     * Moves the peaks of this row into columns of its own, after the row was
+     * removed from its peak list
+     */
+    synchronized void detach() {
+	PeakColumn ownColumns[] = new PeakColumn[columns.length];
+	for (int i = 0; i < numOfCells; i++) {
+	    int column = peakColumns[i];
+	    Feature peak = columns[column].remove(peakEntries[i]);
+	    if (ownColumns[column] == null)
+		ownColumns[column] = new PeakColumn();
+	    peakEntries[i] = ownColumns[column].add(peak);
+	}
+	columns = ownColumns;
+    }
+
+    /**
+     * Returns the index of given column in peakColumns, or a negative number
+     * if this row has no peak in the column
+     */
+    private int findCell(int column) {
+	return Arrays.binarySearch(peakColumns, 0, numOfCells, column);
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#getID()
+     */
+    public int getID() {
+	return myID;
+    }
+
+    /**
+     * Return peaks assigned to this row, in the order of the data files of
+     * the peak list
+     */
+    public synchronized Feature[] getPeaks() {
+	List<Feature> peaks = new ArrayList<Feature>(numOfPeaks);
+	for (int i = 0; i < numOfCells; i++)
+	    peaks.add(columns[peakColumns[i]].getPeak(peakEntries[i]));
+	if (otherPeaks != null)
+	    peaks.addAll(otherPeaks.values());
+	return peaks.toArray(new Feature[0]);
+    }
+
+    /**
+     * Returns opened raw data files with a peak on this row
+     */
+    public synchronized RawDataFile[] getRawDataFiles() {
+	List<RawDataFile> files = new ArrayList<RawDataFile>(numOfPeaks);
+	for (int i = 0; i < numOfCells; i++)
+	    files.add(peakList.getRawDataFile(peakColumns[i]));
+	if (otherPeaks != null)
+	    files.addAll(otherPeaks.keySet());
+	return files.toArray(new RawDataFile[0]);
+    }
+
+    /**
+     * Returns peak for given raw data file
+     */
+    public synchronized Feature getPeak(RawDataFile rawData) {
+	int column = peakList.getColumn(rawData);
+	if (column < 0)
+	    return otherPeaks == null ? null : otherPeaks.get(rawData);
+	int cell = findCell(column);
+	if (cell < 0)
+	    return null;
+	return columns[column].getPeak(peakEntries[cell]);
+    }
+
+    public synchronized void addPeak(RawDataFile rawData, Feature peak) {
+	modificationCount++;
+
+	if (peak == null)
+	    throw new IllegalArgumentException(
+		    "Cannot add null peak to a peak list row");
+
+	int column = peakList.getColumn(rawData);
+	if (column < 0) {
+	    // Keep the peak like SimplePeakListRow does
+	    if (otherPeaks == null)
+		otherPeaks = new Hashtable<RawDataFile, Feature>();
+	    if (otherPeaks.put(rawData, peak) != null) {
+		calculateAverageValues();
+		return;
+	    }
+	} else {
+	    int cell = findCell(column);
+	    if (cell >= 0) {
+		// The sums cannot be corrected reliably by subtraction
+		columns[column].set(peakEntries[cell], peak);
+		calculateAverageValues();
+		return;
+	    }
+	    insertCell(-(cell + 1), column, columns[column].add(peak));
+	}
+
+	numOfPeaks++;
+	rtSum += peak.getRT();
+	mzSum += peak.getMZ();
+	heightSum += peak.getHeight();
+	areaSum += peak.getArea();
+	addCharge(peak.getCharge());
+	double peakMaxIntensity = peak.getRawDataPointsIntensityRange()
+		.upperEndpoint();
+	if (peakMaxIntensity > maxDataPointIntensity)
+	    maxDataPointIntensity = peakMaxIntensity;
+	updateAverageValues();
+    }
+
+    private void insertCell(int cell, int column, int entry) {
+	if (numOfCells == peakColumns.length) {
+	    int capacity = numOfCells + (numOfCells >> 1) + 2;
+	    peakColumns = Arrays.copyOf(peakColumns, capacity);
+	    peakEntries = Arrays.copyOf(peakEntries, capacity);
+	}
+	System.arraycopy(peakColumns, cell, peakColumns, cell + 1, numOfCells
+		- cell);
+	System.arraycopy(peakEntries, cell, peakEntries, cell + 1, numOfCells
+		- cell);
+	peakColumns[cell] = column;
+	peakEntries[cell] = entry;
+	numOfCells++;
+    }
+
+    public synchronized void removePeak(RawDataFile file) {
+	modificationCount++;
+	int column = peakList.getColumn(file);
+	if (column < 0) {
+	    if ((otherPeaks != null) && (otherPeaks.remove(file) != null))
+		calculateAverageValues();
+	    return;
+	}
+	int cell = findCell(column);
+	if (cell < 0)
+	    return;
+	columns[column].remove(peakEntries[cell]);
+	numOfCells--;
+	System.arraycopy(peakColumns, cell + 1, peakColumns, cell, numOfCells
+		- cell);
+	System.arraycopy(peakEntries, cell + 1, peakEntries, cell, numOfCells
+		- cell);
+	calculateAverageValues();
+    }
+
+    public double getAverageMZ() {
+	return averageMZ;
+    }
+
+    public double getAverageRT() {
+	return averageRT;
+    }
+
+    public double getAverageHeight() {
+	return averageHeight;
+    }
+
+    public double getAverageArea() {
+	return averageArea;
+    }
+
+    public int getRowCharge() {
+	return rowCharge;
+    }
+
+    /**
+     * Returns the m/z of the peak of given data file, or NaN if there is no
+     * such peak. Unlike getPeak(), this does not touch the Feature object.
+     */
+    public synchronized double getPeakMZ(RawDataFile rawData) {
+	int column = peakList.getColumn(rawData);
+	int cell = column < 0 ? -1 : findCell(column);
+	if (cell < 0) {
+	    Feature peak = getPeak(rawData);
+	    return peak == null ? Double.NaN : peak.getMZ();
+	}
+	return columns[column].getMZ(peakEntries[cell]);
+    }
+
+    /**
+     * Returns the RT of the peak of given data file, or NaN if there is no
+     * such peak.
+     */
+    public synchronized double getPeakRT(RawDataFile rawData) {
+	int column = peakList.getColumn(rawData);
+	int cell = column < 0 ? -1 : findCell(column);
+	if (cell < 0) {
+	    Feature peak = getPeak(rawData);
+	    return peak == null ? Double.NaN : peak.getRT();
+	}
+	return columns[column].getRT(peakEntries[cell]);
+    }
+
+    /**
+     * Returns the height of the peak of given data file, or NaN if there is
+     * no such peak.
+     */
+    public synchronized double getPeakHeight(RawDataFile rawData) {
+	int column = peakList.getColumn(rawData);
+	int cell = column < 0 ? -1 : findCell(column);
+	if (cell < 0) {
+	    Feature peak = getPeak(rawData);
+	    return peak == null ? Double.NaN : peak.getHeight();
+	}
+	return columns[column].getHeight(peakEntries[cell]);
+    }
+
+    /**
+     * Returns the area of the peak of given data file, or NaN if there is no
+     * such peak.
+     */
+    public synchronized double getPeakArea(RawDataFile rawData) {
+	int column = peakList.getColumn(rawData);
+	int cell = column < 0 ? -1 : findCell(column);
+	if (cell < 0) {
+	    Feature peak = getPeak(rawData);
+	    return peak == null ? Double.NaN : peak.getArea();
+	}
+	return columns[column].getArea(peakEntries[cell]);
+    }
+
+    /**
+     * Returns the status of the peak of given data file, or null if there is
+     * no such peak.
+     */
+    public synchronized FeatureStatus getPeakStatus(RawDataFile rawData) {
+	int column = peakList.getColumn(rawData);
+	int cell = column < 0 ? -1 : findCell(column);
+	if (cell < 0) {
+	    Feature peak = getPeak(rawData);
+	    return peak == null ? null : peak.getFeatureStatus();
+	}
+	return columns[column].getStatus(peakEntries[cell]);
+    }
+
+    /**
+     * Returns the peak of given data file if it lies in the given ranges,
+     * otherwise null
+     */
+    synchronized Feature getPeakIfInside(RawDataFile rawData,
+	    Range<Double> rtRange, Range<Double> mzRange) {
+	int column = peakList.getColumn(rawData);
+	int cell = column < 0 ? -1 : findCell(column);
+	if (cell < 0) {
+	    Feature peak = getPeak(rawData);
+	    if ((peak != null) && rtRange.contains(peak.getRT())
+		    && mzRange.contains(peak.getMZ()))
+		return peak;
+	    return null;
+	}
+	return columns[column].getPeakIfInside(peakEntries[cell], rtRange,
+		mzRange);
+    }
+
+    /**
+     * The row charge is the charge of its peaks, or 0 if the peaks have
+     * different charges
+     */
+    private void addCharge(int charge) {
+	if ((charge <= 0) || chargesDiffer)
+	    return;
+	if (rowCharge == 0) {
+	    rowCharge = charge;
+	} else if (charge != rowCharge) {
+	    chargesDiffer = true;
+	    rowCharge = 0;
+	}
+    }
+
+    private void updateAverageValues() {
+	averageRT = rtSum / numOfPeaks;
+	averageMZ = mzSum / numOfPeaks;
+	averageHeight = heightSum / numOfPeaks;
+	averageArea = areaSum / numOfPeaks;
+    }
+
+    /**
+     * Recalculates the sums from all peaks, after a peak was replaced or
+     * removed. The stored values of the peaks are read again as well.
+     */
+    private void calculateAverageValues() {
+	for (int i = 0; i < numOfCells; i++) {
+	    PeakColumn column = columns[peakColumns[i]];
+	    column.set(peakEntries[i], column.getPeak(peakEntries[i]));
+	}
+	numOfPeaks = 0;
+	rtSum = 0;
+	mzSum = 0;
+	heightSum = 0;
+	areaSum = 0;
+	rowCharge = 0;
+	chargesDiffer = false;
+	maxDataPointIntensity = 0;
+	for (Feature p : getPeaks()) {
+	    numOfPeaks++;
+	    rtSum += p.getRT();
+	    mzSum += p.getMZ();
+	    heightSum += p.getHeight();
+	    areaSum += p.getArea();
+	    addCharge(p.getCharge());
+	    double peakMaxIntensity = p.getRawDataPointsIntensityRange()
+		    .upperEndpoint();
+	    if (peakMaxIntensity > maxDataPointIntensity)
+		maxDataPointIntensity = peakMaxIntensity;
+	}
+	updateAverageValues();
+    }
+
+    /**
+     * Returns number of peaks assigned to this row
+     */
+    public int getNumberOfPeaks() {
+	return numOfPeaks;
+    }
+
+    public String toString() {
+	StringBuffer buf = new StringBuffer();
+	Format mzFormat = MZmineCore.getConfiguration().getMZFormat();
+	Format timeFormat = MZmineCore.getConfiguration().getRTFormat();
+	buf.append("#" + myID + " ");
+	buf.append(mzFormat.format(getAverageMZ()));
+	buf.append(" m/z @");
+	buf.append(timeFormat.format(getAverageRT()));
+	if (preferredIdentity != null)
+	    buf.append(" " + preferredIdentity.getName());
+	if ((comment != null) && (comment.length() > 0))
+	    buf.append(" (" + comment + ")");
+	return buf.toString();
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#getComment()
+     */
+    public String getComment() {
+	return comment;
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#setComment(java.lang.String)
+     */
+    public void setComment(String comment) {
+	modificationCount++;
+	this.comment = comment;
+    }
+
+    /**
+     * Overrides the average m/z until the next peak is added or removed
+     */
+    public void setAverageMZ(double mz) {
+	modificationCount++;
+	this.averageMZ = mz;
+    }
+
+    /**
+     * Overrides the average RT until the next peak is added or removed
+     */
+    public void setAverageRT(double rt) {
+	modificationCount++;
+	this.averageRT = rt;
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#addPeakIdentity(net.sf.mzmine.datamodel.PeakIdentity,
+     *      boolean)
+     */
+    public synchronized void addPeakIdentity(PeakIdentity identity,
+	    boolean preferred) {
+	modificationCount++;
+
+	if (identities == null)
+	    identities = new ArrayList<PeakIdentity>(1);
+
+	// Verify if exists already an identity with the same name
+	for (PeakIdentity testId : identities) {
+	    if (testId.getName().equals(identity.getName())) {
+		return;
+	    }
+	}
+
+	identities.add(identity);
+	if ((preferredIdentity == null) || (preferred)) {
+	    setPreferredPeakIdentity(identity);
+	}
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#removePeakIdentity(net.sf.mzmine.datamodel.PeakIdentity)
+     */
+    public synchronized void removePeakIdentity(PeakIdentity identity) {
+	modificationCount++;
+	if (identities == null)
+	    return;
+	identities.remove(identity);
+	if (preferredIdentity == identity) {
+	    if (identities.size() > 0)
+		setPreferredPeakIdentity(identities.get(0));
+	    else
+		preferredIdentity = null;
+	}
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#getPeakIdentities()
+     */
+    public synchronized PeakIdentity[] getPeakIdentities() {
+	if (identities == null)
+	    return new PeakIdentity[0];
+	return identities.toArray(new PeakIdentity[0]);
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#getPreferredPeakIdentity()
+     */
+    public PeakIdentity getPreferredPeakIdentity() {
+	return preferredIdentity;
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#setPreferredPeakIdentity(net.sf.mzmine.datamodel.PeakIdentity)
+     */
+    public synchronized void setPreferredPeakIdentity(PeakIdentity identity) {
+	modificationCount++;
+
+	if (identity == null)
+	    return;
+
+	preferredIdentity = identity;
+
+	if (identities == null)
+	    identities = new ArrayList<PeakIdentity>(1);
+	if (!identities.contains(identity)) {
+	    identities.add(identity);
+	}
+
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#getDataPointMaxIntensity()
+     */
+    public double getDataPointMaxIntensity() {
+	return maxDataPointIntensity;
+    }
+
+    public boolean hasPeak(Feature peak) {
+	return Arrays.asList(getPeaks()).contains(peak);
+    }
+
+    public synchronized boolean hasPeak(RawDataFile file) {
+	int column = peakList.getColumn(file);
+	if (column < 0)
+	    return (otherPeaks != null) && otherPeaks.containsKey(file);
+	return findCell(column) >= 0;
+    }
+
+    /**
+     * Returns the highest isotope pattern of a peak in this row
+     */
+    public IsotopePattern getBestIsotopePattern() {
+	Feature peaks[] = getPeaks();
+	Arrays.sort(peaks, new PeakSorter(SortingProperty.Height,
+		SortingDirection.Descending));
+
+	for (Feature peak : peaks) {
+	    IsotopePattern ip = peak.getIsotopePattern();
+	    if (ip != null)
+		return ip;
+	}
+
+	return null;
+    }
+
+    /**
+     * Returns the highest peak in this row
+     */
+    public synchronized Feature getBestPeak() {
+	Feature bestPeak = null;
+	double bestHeight = 0;
+	for (int i = 0; i < numOfCells; i++) {
+	    PeakColumn column = columns[peakColumns[i]];
+	    double height = column.getHeight(peakEntries[i]);
+	    if ((bestPeak == null) || (height > bestHeight)) {
+		bestPeak = column.getPeak(peakEntries[i]);
+		bestHeight = height;
+	    }
+	}
+	if (otherPeaks != null) {
+	    for (Feature peak : otherPeaks.values()) {
+		if ((bestPeak == null) || (peak.getHeight() > bestHeight)) {
+		    bestPeak = peak;
+		    bestHeight = peak.getHeight();
+		}
+	    }
+	}
+	return bestPeak;
+    }
+
+    /**
+     * Returns a number which changes every time this row is modified.
+     */
+    public int getModificationCount() {
+	return modificationCount;
+    }
+
+}
@@ -60,6 +60,7 @@ public class SimpleFeature implements Feature {
     // method.
     private IsotopePattern isotopePattern;
     private int charge = 0;
+    private int modificationCount = 0;
 
     /**
      * Initializes a new peak using given values
@@ -139,10 +140,12 @@ public class SimpleFeature implements Feature {
     }
 
     public void setMZ(double mz) {
+	modificationCount++;
 	this.mz = mz;
     }
 
     public void setRT(double rt) {
+	modificationCount++;
 	this.rt = rt;
     }
 
@@ -165,6 +168,7 @@ public class SimpleFeature implements Feature {
      *            The height to set.
      */
     public void setHeight(double height) {
+	modificationCount++;
 	this.height = height;
     }
 
@@ -180,6 +184,7 @@ public class SimpleFeature implements Feature {
      *            The area to set.
      */
     public void setArea(double area) {
+	modificationCount++;
 	this.area = area;
     }
 
@@ -212,6 +217,7 @@ public class SimpleFeature implements Feature {
      * @see net.sf.mzmine.datamodel.Feature#setDataFile()
      */
     public void setDataFile(RawDataFile dataFile) {
+	modificationCount++;
 	this.dataFile = dataFile;
     }
 
@@ -260,6 +266,7 @@ public class SimpleFeature implements Feature {
     }
 
     public void setIsotopePattern(@Nonnull IsotopePattern isotopePattern) {
+	modificationCount++;
 	this.isotopePattern = isotopePattern;
     }
 
@@ -268,7 +275,15 @@ public class SimpleFeature implements Feature {
     }
 
     public void setCharge(int charge) {
+	modificationCount++;
 	this.charge = charge;
     }
 
+    /**
+     * Returns a number which changes every time this peak is modified.
+     */
+    public int getModificationCount() {
+	return modificationCount;
+    }
+
 }
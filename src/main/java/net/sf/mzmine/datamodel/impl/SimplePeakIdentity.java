@@ -33,6 +33,7 @@ import net.sf.mzmine.datamodel.PeakIdentity;
 public class SimplePeakIdentity implements PeakIdentity {
 
     private Hashtable<String, String> properties;
+    private int modificationCount = 0;
 
     /**
      * This constructor is protected so only derived classes can use it. Other
@@ -137,6 +138,7 @@ public class SimplePeakIdentity implements PeakIdentity {
     }
 
     public void setPropertyValue(final String property, final String value) {
+	modificationCount++;
 
 	// Check name.
 	if (property.equals(PROPERTY_NAME) && value == null) {
@@ -159,4 +161,12 @@ public class SimplePeakIdentity implements PeakIdentity {
 	return new SimplePeakIdentity(
 		(Hashtable<String, String>) properties.clone());
     }
+
+    /**
+     * Returns a number which changes every time this identity is modified.
+     */
+    public int getModificationCount() {
+	return modificationCount;
+    }
+
 }
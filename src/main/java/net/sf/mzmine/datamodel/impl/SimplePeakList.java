@@ -49,6 +49,7 @@ public class SimplePeakList implements PeakList {
     private Vector<PeakListAppliedMethod> descriptionOfAppliedTasks;
     private String dateCreated;
     private Range<Double> mzRange, rtRange;
+    private int modificationCount = 0;
 
     public static DateFormat dateFormat = new SimpleDateFormat(
 	    "yyyy/MM/dd HH:mm:ss");
@@ -73,7 +74,10 @@ public class SimplePeakList implements PeakList {
 	peakListRows = new ArrayList<PeakListRow>();
 	descriptionOfAppliedTasks = new Vector<PeakListAppliedMethod>();
 
-	dateCreated = dateFormat.format(new Date());
+	// DateFormat is not thread-safe
+	synchronized (dateFormat) {
+	    dateCreated = dateFormat.format(new Date());
+	}
 
     }
 
@@ -173,6 +177,7 @@ public class SimplePeakList implements PeakList {
     }
 
     public void addRow(PeakListRow row) {
+	modificationCount++;
 	List<RawDataFile> myFiles = Arrays.asList(this.getRawDataFiles());
 	for (RawDataFile testFile : row.getRawDataFiles()) {
 	    if (!myFiles.contains(testFile))
@@ -239,6 +244,7 @@ public class SimplePeakList implements PeakList {
      * @see net.sf.mzmine.datamodel.PeakList#removeRow(net.sf.mzmine.datamodel.PeakListRow)
      */
     public void removeRow(PeakListRow row) {
+	modificationCount++;
 	peakListRows.remove(row);
 
 	// We have to update the project tree model
@@ -315,10 +321,12 @@ public class SimplePeakList implements PeakList {
     }
 
     public void setName(String name) {
+	modificationCount++;
 	this.name = name;
     }
 
     public void addDescriptionOfAppliedTask(PeakListAppliedMethod appliedMethod) {
+	modificationCount++;
 	descriptionOfAppliedTasks.add(appliedMethod);
     }
 
@@ -331,6 +339,7 @@ public class SimplePeakList implements PeakList {
     }
 
     public void setDateCreated(String date) {
+	modificationCount++;
 	this.dateCreated = date;
     }
 
@@ -344,4 +353,11 @@ public class SimplePeakList implements PeakList {
 	return rtRange;
     }
 
+    /**
+     * Returns a number which changes every time this peak list is modified.
+     */
+    public int getModificationCount() {
+	return modificationCount;
+    }
+
 }
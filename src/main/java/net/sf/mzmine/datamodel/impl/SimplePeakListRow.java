@@ -54,6 +54,7 @@ public class SimplePeakListRow implements PeakListRow {
      */
     private double averageRT, averageMZ, averageHeight, averageArea;
     private int rowCharge;
+    private int modificationCount = 0;
 
     public SimplePeakListRow(int myID) {
 	this.myID = myID;
@@ -76,6 +77,7 @@ public class SimplePeakListRow implements PeakListRow {
     }
 
     public void removePeak(RawDataFile file) {
+	modificationCount++;
 	this.peaks.remove(file);
 	calculateAverageValues();
     }
@@ -95,6 +97,7 @@ public class SimplePeakListRow implements PeakListRow {
     }
 
     public synchronized void addPeak(RawDataFile rawData, Feature peak) {
+	modificationCount++;
 
 	if (peak == null)
 	    throw new IllegalArgumentException(
@@ -184,6 +187,7 @@ public class SimplePeakListRow implements PeakListRow {
      * @see net.sf.mzmine.datamodel.PeakListRow#setComment(java.lang.String)
      */
     public void setComment(String comment) {
+	modificationCount++;
 	this.comment = comment;
     }
     
@@ -191,6 +195,7 @@ public class SimplePeakListRow implements PeakListRow {
      * @see net.sf.mzmine.datamodel.PeakListRow#setAverageMZ(java.lang.String)
      */
     public void setAverageMZ(double mz) {
+	modificationCount++;
 	this.averageMZ = mz;
     }
 
@@ -198,6 +203,7 @@ public class SimplePeakListRow implements PeakListRow {
      * @see net.sf.mzmine.datamodel.PeakListRow#setAverageRT(java.lang.String)
      */
     public void setAverageRT(double rt) {
+	modificationCount++;
 	this.averageRT = rt;
     }
 
@@ -206,6 +212,7 @@ public class SimplePeakListRow implements PeakListRow {
      */
     public synchronized void addPeakIdentity(PeakIdentity identity,
 	    boolean preferred) {
+	modificationCount++;
 
 	// Verify if exists already an identity with the same name
 	for (PeakIdentity testId : identities) {
@@ -224,6 +231,7 @@ public class SimplePeakListRow implements PeakListRow {
      * @see net.sf.mzmine.datamodel.PeakListRow#addCompoundIdentity(net.sf.mzmine.datamodel.PeakIdentity)
      */
     public synchronized void removePeakIdentity(PeakIdentity identity) {
+	modificationCount++;
 	identities.remove(identity);
 	if (preferredIdentity == identity) {
 	    if (identities.size() > 0) {
@@ -253,6 +261,7 @@ public class SimplePeakListRow implements PeakListRow {
      * @see net.sf.mzmine.datamodel.PeakListRow#setPreferredPeakIdentity(net.sf.mzmine.datamodel.PeakIdentity)
      */
     public void setPreferredPeakIdentity(PeakIdentity identity) {
+	modificationCount++;
 
 	if (identity == null)
 	    return;
@@ -309,4 +318,11 @@ public class SimplePeakListRow implements PeakListRow {
 	return peaks[0];
     }
 
+    /**
+     * Returns a number which changes every time this row is modified.
+     */
+    public int getModificationCount() {
+	return modificationCount;
+    }
+
 }
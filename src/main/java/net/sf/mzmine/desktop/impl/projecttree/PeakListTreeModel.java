@@ -19,10 +19,15 @@
 
 package net.sf.mzmine.desktop.impl.projecttree;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreePath;
@@ -35,7 +40,9 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 
 /**
- * Project tree model implementation
+ * Project tree model implementation. The row nodes of a peak list are only
+ * created while the peak list node is expanded, so large peak lists do not
+ * keep millions of tree nodes in memory.
  */
 public class PeakListTreeModel extends DefaultTreeModel {
 
@@ -46,16 +53,36 @@ public class PeakListTreeModel extends DefaultTreeModel {
 
     public static final String peakListsNodeName = "Peak lists";
 
+    /**
+     * Change notifications are collected for this time (ms) and then
+     * processed in one go, so that tasks notifying about each identified row
+     * update the tree at most once per frame
+     */
+    private static final int NOTIFICATION_DELAY = 20;
+
     private Hashtable<Object, DefaultMutableTreeNode> treeObjects = new Hashtable<Object, DefaultMutableTreeNode>();
 
     private DefaultMutableTreeNode rootNode;
 
+    /**
+     * Pending change notifications (object -> structure changed)
+     */
+    private final Map<Object, Boolean> pendingChanges = new IdentityHashMap<Object, Boolean>();
+    private final Timer notificationTimer;
+
     public PeakListTreeModel(MZmineProject project) {
 
 	super(new ProjectTreeNode(peakListsNodeName));
 
 	rootNode = (DefaultMutableTreeNode) super.getRoot();
 
+	notificationTimer = new Timer(NOTIFICATION_DELAY, new ActionListener() {
+	    public void actionPerformed(ActionEvent event) {
+		processPendingChanges();
+	    }
+	});
+	notificationTimer.setRepeats(false);
+
     }
 
     /**
@@ -70,26 +97,19 @@ public class PeakListTreeModel extends DefaultTreeModel {
 		    "This method must be called from Swing thread");
 	}
 
-	// Create new node
-	final DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(
-		object);
-
-	treeObjects.put(object, newNode);
-
 	if (object instanceof PeakList) {
+	    // Row nodes are created when the peak list node is expanded
+	    final PeakListNode newNode = new PeakListNode((PeakList) object);
+	    treeObjects.put(object, newNode);
 	    int childCount = getChildCount(rootNode);
 	    insertNodeInto(newNode, rootNode, childCount);
-	    final PeakList peakList = (PeakList) object;
-	    PeakListRow rows[] = peakList.getRows();
-	    for (int i = 0; i < rows.length; i++) {
-		DefaultMutableTreeNode rowNode = new DefaultMutableTreeNode(
-			rows[i]);
-		treeObjects.put(rows[i], rowNode);
-		insertNodeInto(rowNode, newNode, i);
-	    }
 	}
 
 	if (object instanceof MassList) {
+	    final DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(
+		    object);
+	    treeObjects.put(object, newNode);
+
 	    Scan scan = ((MassList) object).getScan();
 
 	    final DefaultMutableTreeNode scNode = treeObjects.get(scan);
@@ -113,7 +133,9 @@ public class PeakListTreeModel extends DefaultTreeModel {
 
 	final DefaultMutableTreeNode node = treeObjects.get(object);
 
-	assert node != null;
+	// Rows of collapsed peak lists have no node
+	if (node == null)
+	    return;
 
 	// Remove all children from treeObjects
 	Enumeration<?> e = node.depthFirstEnumeration();
@@ -133,6 +155,56 @@ public class PeakListTreeModel extends DefaultTreeModel {
 
     }
 
+    /**
+     * Creates the row nodes of a peak list node which is about to be
+     * expanded. This method must be called from Swing thread.
+     */
+    public void loadChildren(Object node) {
+	if (!(node instanceof PeakListNode))
+	    return;
+	PeakListNode peakListNode = (PeakListNode) node;
+	if (peakListNode.rowsLoaded)
+	    return;
+	createRowNodes(peakListNode);
+	nodeStructureChanged(peakListNode);
+    }
+
+    /**
+     * Releases the row nodes of a collapsed peak list node. This method must
+     * be called from Swing thread.
+     */
+    public void unloadChildren(Object node) {
+	if (!(node instanceof PeakListNode))
+	    return;
+	PeakListNode peakListNode = (PeakListNode) node;
+	if (!peakListNode.rowsLoaded)
+	    return;
+	removeRowNodes(peakListNode);
+	nodeStructureChanged(peakListNode);
+    }
+
+    private void createRowNodes(PeakListNode peakListNode) {
+	PeakList peakList = (PeakList) peakListNode.getUserObject();
+	PeakListRow rows[] = peakList.getRows();
+	for (int i = 0; i < rows.length; i++) {
+	    DefaultMutableTreeNode rowNode = new DefaultMutableTreeNode(
+		    rows[i]);
+	    treeObjects.put(rows[i], rowNode);
+	    peakListNode.add(rowNode);
+	}
+	peakListNode.rowsLoaded = true;
+    }
+
+    private void removeRowNodes(PeakListNode peakListNode) {
+	for (int i = 0; i < peakListNode.getChildCount(); i++) {
+	    DefaultMutableTreeNode rowNode = (DefaultMutableTreeNode) peakListNode
+		    .getChildAt(i);
+	    treeObjects.remove(rowNode.getUserObject());
+	}
+	peakListNode.removeAllChildren();
+	peakListNode.rowsLoaded = false;
+    }
+
     public synchronized PeakList[] getPeakLists() {
 	int childrenCount = getChildCount(rootNode);
 	PeakList result[] = new PeakList[childrenCount];
@@ -159,37 +231,52 @@ public class PeakListTreeModel extends DefaultTreeModel {
 	}
     }
 
+    /**
+     * May be called from any thread. The tree is updated later in the Swing
+     * thread, together with all other notifications received in the
+     * meantime.
+     */
     public void notifyObjectChanged(Object object, boolean structureChanged) {
-	if (rootNode.getUserObject() == object) {
-	    if (structureChanged)
-		nodeStructureChanged(rootNode);
-	    else
-		nodeChanged(rootNode);
+	if (object == null)
 	    return;
+	synchronized (pendingChanges) {
+	    Boolean pending = pendingChanges.get(object);
+	    if ((pending == null) || (!pending))
+		pendingChanges.put(object, structureChanged);
 	}
-	Enumeration<?> nodes = rootNode.breadthFirstEnumeration();
-	while (nodes.hasMoreElements()) {
-	    DefaultMutableTreeNode node = (DefaultMutableTreeNode) nodes
-		    .nextElement();
+	// Does nothing if the timer is already running
+	notificationTimer.start();
+    }
 
-	    if (node.getUserObject() == object) {
-		if (structureChanged) {
-		    if (object instanceof PeakList) {
-			node.removeAllChildren();
-			PeakList peakList = (PeakList) object;
-			PeakListRow rows[] = peakList.getRows();
-			for (int i = 0; i < rows.length; i++) {
-			    DefaultMutableTreeNode rowNode = new DefaultMutableTreeNode(
-				    rows[i]);
-			    treeObjects.put(rows[i], rowNode);
-			    insertNodeInto(rowNode, node, i);
-			}
-		    }
-		    nodeStructureChanged(node);
-		} else
-		    nodeChanged(node);
-		return;
-	    }
+    private void processPendingChanges() {
+
+	Map<Object, Boolean> changes;
+	synchronized (pendingChanges) {
+	    changes = new IdentityHashMap<Object, Boolean>(pendingChanges);
+	    pendingChanges.clear();
+	}
+
+	for (Map.Entry<Object, Boolean> change : changes.entrySet()) {
+	    Object object = change.getKey();
+	    DefaultMutableTreeNode node;
+	    if (rootNode.getUserObject() == object)
+		node = rootNode;
+	    else
+		node = treeObjects.get(object);
+
+	    // Rows of collapsed peak lists have no node to update
+	    if (node == null)
+		continue;
+
+	    if (change.getValue()) {
+		if ((node instanceof PeakListNode)
+			&& ((PeakListNode) node).rowsLoaded) {
+		    removeRowNodes((PeakListNode) node);
+		    createRowNodes((PeakListNode) node);
+		}
+		nodeStructureChanged(node);
+	    } else
+		nodeChanged(node);
 	}
 
     }
@@ -198,4 +285,26 @@ public class PeakListTreeModel extends DefaultTreeModel {
 	return rootNode;
     }
 
+    /**
+     * Node of a peak list, which can be expanded before its row nodes are
+     * created
+     */
+    private static class PeakListNode extends DefaultMutableTreeNode {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean rowsLoaded = false;
+
+	PeakListNode(PeakList peakList) {
+	    super(peakList);
+	}
+
+	public boolean isLeaf() {
+	    if (rowsLoaded)
+		return super.isLeaf();
+	    return ((PeakList) getUserObject()).getNumberOfRows() == 0;
+	}
+
+    }
+
 }
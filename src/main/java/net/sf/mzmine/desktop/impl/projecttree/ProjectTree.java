@@ -25,6 +25,9 @@ import java.util.Vector;
 
 import javax.swing.DropMode;
 import javax.swing.JTree;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeExpansionListener;
+import javax.swing.event.TreeWillExpandListener;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellEditor;
 import javax.swing.tree.TreePath;
@@ -68,6 +71,29 @@ public class ProjectTree extends JTree {
 	ProjectTreeMouseHandler popupHandler = new ProjectTreeMouseHandler(this);
 	addMouseListener(popupHandler);
 
+	// Peak list rows are only kept in the tree while their peak list is
+	// expanded
+	addTreeWillExpandListener(new TreeWillExpandListener() {
+	    public void treeWillExpand(TreeExpansionEvent event) {
+		if (getModel() instanceof PeakListTreeModel)
+		    ((PeakListTreeModel) getModel()).loadChildren(event
+			    .getPath().getLastPathComponent());
+	    }
+
+	    public void treeWillCollapse(TreeExpansionEvent event) {
+	    }
+	});
+	addTreeExpansionListener(new TreeExpansionListener() {
+	    public void treeExpanded(TreeExpansionEvent event) {
+	    }
+
+	    public void treeCollapsed(TreeExpansionEvent event) {
+		if (getModel() instanceof PeakListTreeModel)
+		    ((PeakListTreeModel) getModel()).unloadChildren(event
+			    .getPath().getLastPathComponent());
+	    }
+	});
+
     }
 
     @SuppressWarnings("unchecked")
@@ -178,18 +178,17 @@ public class RawDataTreeModel extends DefaultTreeModel {
 		nodeChanged(rootNode);
 	    return;
 	}
-	Enumeration<?> nodes = rootNode.breadthFirstEnumeration();
-	while (nodes.hasMoreElements()) {
-	    DefaultMutableTreeNode node = (DefaultMutableTreeNode) nodes
-		    .nextElement();
-	    if (node.getUserObject() == object) {
-		if (structureChanged)
-		    nodeStructureChanged(node);
-		else
-		    nodeChanged(node);
-		return;
-	    }
-	}
+	// Peak list rows and other objects which are not in this tree are
+	// ignored without walking through all the scan nodes
+	if (object == null)
+	    return;
+	DefaultMutableTreeNode node = treeObjects.get(object);
+	if ((node == null) || (node.getUserObject() != object))
+	    return;
+	if (structureChanged)
+	    nodeStructureChanged(node);
+	else
+	    nodeChanged(node);
 
     }
 
@@ -26,6 +26,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.OptionalModuleParameter;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.util.ExitCode;
@@ -48,6 +49,11 @@ public class MZminePreferences extends SimpleParameterSet {
 
     public static final NumOfThreadsParameter numOfThreads = new NumOfThreadsParameter();
 
+    public static final IntegerParameter numOfFileReaders = new IntegerParameter(
+	    "Concurrent file readers",
+	    "Maximum number of raw data files read from the disk at the same time",
+	    2, 1, null);
+
     public static final OptionalModuleParameter proxySettings = new OptionalModuleParameter(
 	    "Use proxy", "Use proxy for internet connection?",
 	    new ProxySettings());
@@ -56,7 +62,7 @@ public class MZminePreferences extends SimpleParameterSet {
 
     public MZminePreferences() {
 	super(new Parameter[] { mzFormat, rtFormat, intensityFormat,
-		numOfThreads, proxySettings, windowSetttings });
+		numOfThreads, numOfFileReaders, proxySettings, windowSetttings });
     }
 
     @Override
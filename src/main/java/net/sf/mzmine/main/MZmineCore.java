@@ -22,11 +22,17 @@ package net.sf.mzmine.main;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -43,6 +49,7 @@ import net.sf.mzmine.main.NewVersionCheck.CheckType;
 import net.sf.mzmine.main.impl.MZmineConfigurationImpl;
 import net.sf.mzmine.modules.MZmineModule;
 import net.sf.mzmine.modules.MZmineRunnableModule;
+import net.sf.mzmine.modules.batchmode.BatchCommandLine;
 import net.sf.mzmine.modules.batchmode.BatchModeModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
@@ -52,7 +59,6 @@ import net.sf.mzmine.project.impl.ProjectManagerImpl;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.taskcontrol.TaskController;
 import net.sf.mzmine.taskcontrol.impl.TaskControllerImpl;
-import net.sf.mzmine.util.ExitCode;
 
 /**
  * MZmine main class
@@ -67,13 +73,16 @@ public final class MZmineCore {
     private static ProjectManagerImpl projectManager;
 
     private static Map<Class<?>, MZmineModule> initializedModules = new Hashtable<Class<?>, MZmineModule>();
+    private static Set<Class<?>> failedModules = new HashSet<Class<?>>();
+    private static Map<Class<?>, Long> moduleLoadTimes = new Hashtable<Class<?>, Long>();
 
     /**
      * Main method
      */
-    @SuppressWarnings("unchecked")
     public static void main(String args[]) {
 
+	final long startTime = System.nanoTime();
+
 	// In the beginning, set the default locale to English, to avoid
 	// problems with conversion of numbers etc. (e.g. decimal separator may
 	// be . or , depending on the locale)
@@ -110,40 +119,10 @@ public final class MZmineCore {
 	projectManager.initModule();
 	taskController.initModule();
 
-	logger.fine("Loading modules");
-
-	for (Class<?> moduleClass : MZmineModulesList.MODULES) {
-
-	    try {
-
-		logger.finest("Loading module " + moduleClass.getName());
-
-		// Create instance and init module
-		MZmineModule moduleInstance = (MZmineModule) moduleClass
-			.newInstance();
-
-		// Add to the module list
-		initializedModules.put(moduleClass, moduleInstance);
-
-		// Create an instance of parameter set
-		Class<? extends ParameterSet> parameterSetClass = moduleInstance
-			.getParameterSetClass();
-		ParameterSet parameterSetInstance = parameterSetClass
-			.newInstance();
-
-		// Add the parameter set to the configuration
-		configuration
-			.setModuleParameters((Class<MZmineModule>) moduleClass,
-				parameterSetInstance);
-
-	    } catch (Throwable e) {
-		logger.log(Level.SEVERE,
-			"Could not load module " + moduleClass, e);
-		e.printStackTrace();
-		continue;
-	    }
-
-	}
+	// Modules and their parameter sets are not created here, but on their
+	// first use, see getModuleInstance() and
+	// MZmineConfiguration.getModuleParameters()
+	final long coreTime = System.nanoTime() - startTime;
 
 	// If we have no arguments, run in GUI mode, otherwise run in batch mode
 	if (args.length == 0) {
@@ -165,8 +144,7 @@ public final class MZmineCore {
 
 		    // add desktop menu icon
 		    for (Class<?> moduleClass : MZmineModulesList.MODULES) {
-			MZmineModule module = initializedModules
-				.get(moduleClass);
+			Object module = getModuleInstance(moduleClass);
 			if (module instanceof MZmineRunnableModule) {
 
 			    mainWindow.getMainMenu().addMenuItemForModule(
@@ -189,6 +167,8 @@ public final class MZmineCore {
 	    desktop = new HeadLessDesktop();
 	}
 
+	final long desktopTime = System.nanoTime() - startTime - coreTime;
+
 	// load configuration
 	if (MZmineConfiguration.CONFIG_FILE.exists()
 		&& MZmineConfiguration.CONFIG_FILE.canRead()) {
@@ -200,6 +180,9 @@ public final class MZmineCore {
 	    }
 	}
 
+	final long configurationTime = System.nanoTime() - startTime
+		- coreTime - desktopTime;
+
 	// if we have GUI, show it now
 	if (desktop.getMainWindow() != null) {
 
@@ -226,20 +209,29 @@ public final class MZmineCore {
 	    Runtime.getRuntime().addShutdownHook(shutDownHook);
 	}
 
+	logStartupTimes(System.nanoTime() - startTime, coreTime, desktopTime,
+		configurationTime);
+
 	// if arguments were specified (= running without GUI), run the batch
 	// mode
 	if (args.length > 0) {
-	    File batchFile = new File(args[0]);
+	    BatchCommandLine commandLine;
+	    try {
+		commandLine = BatchCommandLine.parse(args);
+	    } catch (IllegalArgumentException e) {
+		logger.severe(e.getMessage());
+		System.err.print(BatchCommandLine.USAGE);
+		System.exit(BatchCommandLine.EXIT_INVALID_ARGUMENTS);
+		return;
+	    }
+	    File batchFile = commandLine.getBatchFile();
 	    if ((!batchFile.exists()) || (!batchFile.canRead())) {
 		logger.severe("Cannot read batch file " + batchFile);
-		System.exit(1);
+		System.exit(BatchCommandLine.EXIT_INVALID_ARGUMENTS);
 	    }
-	    ExitCode exitCode = BatchModeModule.runBatch(
-		    projectManager.getCurrentProject(), batchFile);
-	    if (exitCode == ExitCode.OK)
-		System.exit(0);
-	    else
-		System.exit(1);
+	    int exitCode = BatchModeModule.runBatch(
+		    projectManager.getCurrentProject(), commandLine);
+	    System.exit(exitCode);
 	}
 
     }
@@ -265,16 +257,107 @@ public final class MZmineCore {
     }
 
     /**
-     * Returns the instance of a module of given class
+     * Returns the instance of a module of given class. The module is created
+     * when it is requested for the first time. Returns null if the class is
+     * not listed in MZmineModulesList or the module could not be created.
      */
     @SuppressWarnings("unchecked")
     public static <ModuleType> ModuleType getModuleInstance(
 	    Class<ModuleType> moduleClass) {
-	return (ModuleType) initializedModules.get(moduleClass);
+
+	synchronized (initializedModules) {
+
+	    MZmineModule moduleInstance = initializedModules.get(moduleClass);
+	    if ((moduleInstance != null) || failedModules.contains(moduleClass))
+		return (ModuleType) moduleInstance;
+
+	    if (!Arrays.asList(MZmineModulesList.MODULES).contains(moduleClass))
+		return null;
+
+	    logger.finest("Loading module " + moduleClass.getName());
+	    long loadStartTime = System.nanoTime();
+
+	    try {
+		moduleInstance = (MZmineModule) moduleClass.newInstance();
+	    } catch (Throwable e) {
+		logger.log(Level.SEVERE, "Could not load module " + moduleClass,
+			e);
+		failedModules.add(moduleClass);
+		return null;
+	    }
+
+	    initializedModules.put(moduleClass, moduleInstance);
+	    addModuleLoadTime(moduleClass, System.nanoTime() - loadStartTime);
+	    return (ModuleType) moduleInstance;
+	}
+
     }
 
+    /**
+     * Returns the instances of all modules. This creates all modules which
+     * have not been used yet, so it should only be called when all the modules
+     * are really needed, e.g. to offer them for selection.
+     */
     public static Collection<MZmineModule> getAllModules() {
-	return initializedModules.values();
+	ArrayList<MZmineModule> allModules = new ArrayList<MZmineModule>();
+	for (Class<?> moduleClass : MZmineModulesList.MODULES) {
+	    MZmineModule moduleInstance = (MZmineModule) getModuleInstance(moduleClass);
+	    if (moduleInstance != null)
+		allModules.add(moduleInstance);
+	}
+	return allModules;
+    }
+
+    /**
+     * Adds to the time spent loading the given module. The time of creating
+     * the module instance and its parameter set are both counted.
+     */
+    public static void addModuleLoadTime(Class<?> moduleClass, long nanoTime) {
+	synchronized (moduleLoadTimes) {
+	    Long previousTime = moduleLoadTimes.get(moduleClass);
+	    if (previousTime != null)
+		nanoTime += previousTime;
+	    moduleLoadTimes.put(moduleClass, nanoTime);
+	}
+    }
+
+    /**
+     * Logs the time spent in each phase of the startup and the time spent
+     * loading each module, slowest first.
+     */
+    private static void logStartupTimes(long totalTime, long coreTime,
+	    long desktopTime, long configurationTime) {
+
+	ArrayList<Map.Entry<Class<?>, Long>> loadTimes;
+	synchronized (moduleLoadTimes) {
+	    loadTimes = new ArrayList<Map.Entry<Class<?>, Long>>(
+		    moduleLoadTimes.entrySet());
+	}
+	Collections.sort(loadTimes, new Comparator<Map.Entry<Class<?>, Long>>() {
+	    public int compare(Map.Entry<Class<?>, Long> e1,
+		    Map.Entry<Class<?>, Long> e2) {
+		return e2.getValue().compareTo(e1.getValue());
+	    }
+	});
+	long modulesTime = 0;
+	for (Map.Entry<Class<?>, Long> entry : loadTimes)
+	    modulesTime += entry.getValue();
+
+	logger.info("Started in " + toMillis(totalTime) + " ms (core "
+		+ toMillis(coreTime) + " ms, desktop " + toMillis(desktopTime)
+		+ " ms, configuration " + toMillis(configurationTime)
+		+ " ms), loaded " + loadTimes.size() + " of "
+		+ MZmineModulesList.MODULES.length + " modules in "
+		+ toMillis(modulesTime) + " ms");
+
+	for (Map.Entry<Class<?>, Long> entry : loadTimes) {
+	    logger.fine("Module " + entry.getKey().getSimpleName()
+		    + " loaded in " + toMillis(entry.getValue()) + " ms");
+	}
+    }
+
+    private static long toMillis(long nanoTime) {
+	return nanoTime / 1000000;
     }
 
     public static RawDataFileWriter createNewFile(String name)
@@ -26,6 +26,7 @@ import net.sf.mzmine.modules.peaklistmethods.alignment.join.JoinAlignerModule;
 import net.sf.mzmine.modules.peaklistmethods.alignment.ransac.RansacAlignerModule;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.ClusteringModule;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps.HeatMapModule;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps.NativeHeatMapModule;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots.CDAPlotModule;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots.PCAPlotModule;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots.SammonsPlotModule;
@@ -172,6 +173,7 @@ public class MZmineModulesList {
 	    SammonsPlotModule.class,
 	    ClusteringModule.class,
 	    HeatMapModule.class,
+	    NativeHeatMapModule.class,
 
 	    // Identification
 	    CustomDBSearchModule.class, FormulaPredictionModule.class,
@@ -42,11 +42,13 @@ import javax.xml.xpath.XPathFactory;
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineConfiguration;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.main.MZmineModulesList;
 import net.sf.mzmine.modules.MZmineModule;
 import net.sf.mzmine.parameters.ParameterSet;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
@@ -60,19 +62,62 @@ public class MZmineConfigurationImpl implements MZmineConfiguration {
 
     private final Map<Class<? extends MZmineModule>, ParameterSet> moduleParameters;
 
+    /**
+     * Parameter values read from the configuration file for modules whose
+     * parameter set has not been created yet, by module class name
+     */
+    private final Map<String, Element> savedModuleParameters;
+
     public MZmineConfigurationImpl() {
 	moduleParameters = new Hashtable<Class<? extends MZmineModule>, ParameterSet>();
+	savedModuleParameters = new Hashtable<String, Element>();
 	preferences = new MZminePreferences();
     }
 
+    /**
+     * Returns the parameter set of the given module. The parameter set is
+     * created when it is requested for the first time, and the values saved
+     * in the configuration file are loaded into it.
+     */
     @Override
     public ParameterSet getModuleParameters(
 	    Class<? extends MZmineModule> moduleClass) {
-	ParameterSet parameters = moduleParameters.get(moduleClass);
-	if (parameters == null) {
+	synchronized (moduleParameters) {
+	    ParameterSet parameters = moduleParameters.get(moduleClass);
+	    if (parameters == null) {
+		parameters = createModuleParameters(moduleClass);
+		moduleParameters.put(moduleClass, parameters);
+	    }
+	    return parameters;
+	}
+    }
+
+    private ParameterSet createModuleParameters(
+	    Class<? extends MZmineModule> moduleClass) {
+
+	MZmineModule moduleInstance = MZmineCore.getModuleInstance(moduleClass);
+	if (moduleInstance == null) {
 	    throw new IllegalArgumentException("Module " + moduleClass
 		    + " does not have any parameter set instance");
 	}
+
+	long startTime = System.nanoTime();
+	ParameterSet parameters;
+	try {
+	    parameters = moduleInstance.getParameterSetClass().newInstance();
+	} catch (Exception e) {
+	    throw new IllegalArgumentException(
+		    "Could not create the parameter set of module "
+			    + moduleClass, e);
+	}
+
+	Element savedParameters = savedModuleParameters.remove(moduleClass
+		.getName());
+	if (savedParameters != null)
+	    parameters.loadValuesFromXML(savedParameters);
+
+	MZmineCore.addModuleLoadTime(moduleClass, System.nanoTime()
+		- startTime);
 	return parameters;
     }
 
@@ -90,7 +135,10 @@ public class MZmineConfigurationImpl implements MZmineConfiguration {
 			    + parameters.getClass() + " instead of "
 			    + parametersClass);
 	}
-	moduleParameters.put(moduleClass, parameters);
+	synchronized (moduleParameters) {
+	    moduleParameters.put(moduleClass, parameters);
+	    savedModuleParameters.remove(moduleClass.getName());
+	}
 
     }
 
@@ -136,21 +184,32 @@ public class MZmineConfigurationImpl implements MZmineConfiguration {
 
 	    logger.finest("Loading modules configuration");
 
-	    for (MZmineModule module : MZmineCore.getAllModules()) {
+	    // The values are loaded into the parameter sets which already
+	    // exist, the others keep them until they are created
+	    expr = xpath.compile("//configuration/modules/module");
+	    nodes = (NodeList) expr.evaluate(configuration,
+		    XPathConstants.NODESET);
+	    for (int i = 0; i < nodes.getLength(); i++) {
 
-		String className = module.getClass().getName();
-		expr = xpath.compile("//configuration/modules/module[@class='"
-			+ className + "']/parameters");
-		nodes = (NodeList) expr.evaluate(configuration,
-			XPathConstants.NODESET);
-		if (nodes.getLength() != 1)
+		Element moduleElement = (Element) nodes.item(i);
+		String className = moduleElement.getAttribute("class");
+		Element parametersElement = getChildElement(moduleElement,
+			"parameters");
+		if (parametersElement == null)
 		    continue;
 
-		Element moduleElement = (Element) nodes.item(0);
-
-		ParameterSet moduleParameters = getModuleParameters(module
-			.getClass());
-		moduleParameters.loadValuesFromXML(moduleElement);
+		synchronized (moduleParameters) {
+		    ParameterSet parameters = null;
+		    for (Map.Entry<Class<? extends MZmineModule>, ParameterSet> entry : moduleParameters
+			    .entrySet()) {
+			if (entry.getKey().getName().equals(className))
+			    parameters = entry.getValue();
+		    }
+		    if (parameters != null)
+			parameters.loadValuesFromXML(parametersElement);
+		    else
+			savedModuleParameters.put(className, parametersElement);
+		}
 	    }
 
 	    logger.info("Loaded configuration from file " + file);
@@ -177,23 +236,34 @@ public class MZmineConfigurationImpl implements MZmineConfiguration {
 	    Element modulesElement = configuration.createElement("modules");
 	    configRoot.appendChild(modulesElement);
 
-	    // traverse modules
-	    for (MZmineModule module : MZmineCore.getAllModules()) {
-
-		String className = module.getClass().getName();
+	    // traverse modules, without creating the modules which have not
+	    // been used
+	    for (Class<?> moduleClass : MZmineModulesList.MODULES) {
+
+		String className = moduleClass.getName();
+
+		Element paramElement;
+		synchronized (moduleParameters) {
+		    ParameterSet parameters = moduleParameters.get(moduleClass);
+		    Element savedParameters = savedModuleParameters
+			    .get(className);
+		    if (parameters != null) {
+			paramElement = configuration
+				.createElement("parameters");
+			parameters.saveValuesToXML(paramElement);
+		    } else if (savedParameters != null) {
+			paramElement = (Element) configuration.importNode(
+				savedParameters, true);
+		    } else {
+			continue;
+		    }
+		}
 
 		Element moduleElement = configuration.createElement("module");
 		moduleElement.setAttribute("class", className);
 		modulesElement.appendChild(moduleElement);
-
-		Element paramElement = configuration
-			.createElement("parameters");
 		moduleElement.appendChild(paramElement);
 
-		ParameterSet moduleParameters = getModuleParameters(module
-			.getClass());
-		moduleParameters.saveValuesToXML(paramElement);
-
 	    }
 
 	    TransformerFactory transfac = TransformerFactory.newInstance();
@@ -214,6 +284,16 @@ public class MZmineConfigurationImpl implements MZmineConfiguration {
 	}
     }
 
+    private static Element getChildElement(Element parent, String name) {
+	NodeList children = parent.getChildNodes();
+	for (int i = 0; i < children.getLength(); i++) {
+	    Node child = children.item(i);
+	    if ((child instanceof Element) && child.getNodeName().equals(name))
+		return (Element) child;
+	}
+	return null;
+    }
+
     @Override
     public MZminePreferences getPreferences() {
 	return preferences;
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.mzmine.modules.MZmineModuleCategory;
+import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectSaveAsModule;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectSaveModule;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportModule;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportParameters;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.FileNameParameter;
+
+/**
+ * Command line of a headless batch run. Besides the batch file, the command
+ * line may override the input files and output paths stored in the batch
+ * steps, so that one batch file can be used for many data sets.
+ */
+public class BatchCommandLine {
+
+    /**
+     * Process exit codes of a headless batch run
+     */
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_INVALID_ARGUMENTS = 2;
+    public static final int EXIT_CANCELED = 3;
+
+    public static final String USAGE = "Usage: MZmine BATCH_FILE [options]\n"
+	    + "  --input FILE         raw data file to import instead of the files\n"
+	    + "                       listed in the batch (may be repeated)\n"
+	    + "  --input-list FILE    text file listing raw data files to import,\n"
+	    + "                       one per line\n"
+	    + "  --output-dir DIR     write the results of all export and project\n"
+	    + "                       save steps into DIR\n"
+	    + "  --output STEP=FILE   write the result of batch step STEP\n"
+	    + "                       (numbered from 1) into FILE\n"
+	    + "  --progress FILE      write progress as JSON lines into FILE,\n"
+	    + "                       or to the standard output if FILE is -\n";
+
+    private final File batchFile;
+    private final List<File> inputFiles = new ArrayList<File>();
+    private File outputDir;
+    private final Map<Integer, File> stepOutputs = new TreeMap<Integer, File>();
+    private String progressFile;
+
+    private BatchCommandLine(File batchFile) {
+	this.batchFile = batchFile;
+    }
+
+    /**
+     * Parses the command line arguments.
+     * 
+     * @throws IllegalArgumentException
+     *             if the arguments are invalid
+     */
+    public static BatchCommandLine parse(String args[]) {
+
+	if ((args.length == 0) || args[0].startsWith("--"))
+	    throw new IllegalArgumentException("Batch file is not specified");
+
+	BatchCommandLine commandLine = new BatchCommandLine(new File(args[0]));
+
+	for (int i = 1; i < args.length; i++) {
+
+	    String option = args[i];
+	    if (i + 1 >= args.length)
+		throw new IllegalArgumentException("Missing value of option "
+			+ option);
+	    String value = args[++i];
+
+	    if (option.equals("--input")) {
+		commandLine.inputFiles.add(new File(value));
+	    } else if (option.equals("--input-list")) {
+		commandLine.inputFiles.addAll(readFileList(new File(value)));
+	    } else if (option.equals("--output-dir")) {
+		commandLine.outputDir = new File(value);
+	    } else if (option.equals("--output")) {
+		int separator = value.indexOf('=');
+		if (separator <= 0)
+		    throw new IllegalArgumentException("Invalid value " + value
+			    + " of option --output, expected STEP=FILE");
+		int step;
+		try {
+		    step = Integer.parseInt(value.substring(0, separator));
+		} catch (NumberFormatException e) {
+		    throw new IllegalArgumentException("Invalid step number in "
+			    + value);
+		}
+		commandLine.stepOutputs.put(step,
+			new File(value.substring(separator + 1)));
+	    } else if (option.equals("--progress")) {
+		commandLine.progressFile = value;
+	    } else {
+		throw new IllegalArgumentException("Unknown option " + option);
+	    }
+	}
+
+	return commandLine;
+    }
+
+    /**
+     * Reads a list of file names, one per line. Empty lines and lines starting
+     * with # are ignored.
+     */
+    private static List<File> readFileList(File listFile) {
+	List<File> files = new ArrayList<File>();
+	try {
+	    BufferedReader reader = new BufferedReader(new InputStreamReader(
+		    new FileInputStream(listFile), "UTF-8"));
+	    try {
+		String line;
+		while ((line = reader.readLine()) != null) {
+		    line = line.trim();
+		    if (line.isEmpty() || line.startsWith("#"))
+			continue;
+		    files.add(new File(line));
+		}
+	    } finally {
+		reader.close();
+	    }
+	} catch (IOException e) {
+	    throw new IllegalArgumentException("Cannot read input list "
+		    + listFile + ": " + e.getMessage());
+	}
+	return files;
+    }
+
+    public File getBatchFile() {
+	return batchFile;
+    }
+
+    /**
+     * @return file name of the progress output, "-" for the standard output
+     *         or null if no progress should be written
+     */
+    public String getProgressFile() {
+	return progressFile;
+    }
+
+    /**
+     * @return the input files given on the command line, or an empty list if
+     *         the input files of the batch should be used
+     */
+    public List<File> getInputFiles() {
+	return inputFiles;
+    }
+
+    /**
+     * Applies the overrides of this command line to the steps of the batch
+     * queue.
+     * 
+     * @throws IllegalArgumentException
+     *             if the overrides do not match the batch queue
+     */
+    public void applyTo(BatchQueue queue) {
+
+	if (!inputFiles.isEmpty()) {
+	    for (File inputFile : inputFiles) {
+		if (!inputFile.canRead())
+		    throw new IllegalArgumentException("Cannot read input file "
+			    + inputFile);
+	    }
+	    boolean importFound = false;
+	    for (MZmineProcessingStep<MZmineProcessingModule> step : queue) {
+		if (step.getModule() instanceof RawDataImportModule) {
+		    step.getParameterSet()
+			    .getParameter(RawDataImportParameters.fileNames)
+			    .setValue(inputFiles.toArray(new File[0]));
+		    importFound = true;
+		}
+	    }
+	    if (!importFound)
+		throw new IllegalArgumentException(
+			"The batch does not contain a raw data import step");
+	}
+
+	if (outputDir != null) {
+	    if (!outputDir.isDirectory() && !outputDir.mkdirs())
+		throw new IllegalArgumentException(
+			"Cannot create output directory " + outputDir);
+	    for (MZmineProcessingStep<MZmineProcessingModule> step : queue) {
+		if (!isOutputStep(step.getModule()))
+		    continue;
+		for (FileNameParameter parameter : getFileNameParameters(step
+			.getParameterSet())) {
+		    File value = parameter.getValue();
+		    if (value != null)
+			parameter.setValue(new File(outputDir, value.getName()));
+		}
+	    }
+	}
+
+	for (Map.Entry<Integer, File> entry : stepOutputs.entrySet()) {
+	    int stepNumber = entry.getKey();
+	    if ((stepNumber < 1) || (stepNumber > queue.size()))
+		throw new IllegalArgumentException("Batch has no step # "
+			+ stepNumber);
+	    MZmineProcessingStep<MZmineProcessingModule> step = queue
+		    .get(stepNumber - 1);
+	    List<FileNameParameter> parameters = getFileNameParameters(step
+		    .getParameterSet());
+	    if (parameters.size() != 1)
+		throw new IllegalArgumentException("Step # " + stepNumber
+			+ " (" + step.getModule().getName()
+			+ ") does not have a single output file parameter");
+	    parameters.get(0).setValue(entry.getValue());
+	}
+
+    }
+
+    /**
+     * Export and project save steps are the steps that write results
+     */
+    private static boolean isOutputStep(MZmineProcessingModule module) {
+	return (module instanceof ProjectSaveModule)
+		|| (module instanceof ProjectSaveAsModule)
+		|| (module.getModuleCategory() == MZmineModuleCategory.PEAKLISTEXPORT);
+    }
+
+    private static List<FileNameParameter> getFileNameParameters(
+	    ParameterSet parameters) {
+	List<FileNameParameter> fileParameters = new ArrayList<FileNameParameter>();
+	for (Parameter<?> parameter : parameters.getParameters()) {
+	    if (parameter instanceof FileNameParameter)
+		fileParameters.add((FileNameParameter) parameter);
+	}
+	return fileParameters;
+    }
+
+}
@@ -20,6 +20,7 @@
 package net.sf.mzmine.modules.batchmode;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -84,32 +85,83 @@ public class BatchModeModule implements MZmineProcessingModule {
 	return MZmineModuleCategory.PROJECT;
     }
 
-    public static ExitCode runBatch(@Nonnull MZmineProject project,
-	    File batchFile) {
-
+    /**
+     * Runs a batch without GUI, applying the input and output overrides of
+     * the command line and writing the progress to the file given on the
+     * command line.
+     * 
+     * @return process exit code, one of the BatchCommandLine.EXIT_* values
+     */
+    public static int runBatch(@Nonnull MZmineProject project,
+	    @Nonnull BatchCommandLine commandLine) {
+
+	File batchFile = commandLine.getBatchFile();
 	logger.info("Running batch from file " + batchFile);
 
+	BatchQueue newQueue;
 	try {
 	    DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance()
 		    .newDocumentBuilder();
 	    Document parsedBatchXML = docBuilder.parse(batchFile);
-	    BatchQueue newQueue = BatchQueue.loadFromXml(parsedBatchXML
+	    newQueue = BatchQueue.loadFromXml(parsedBatchXML
 		    .getDocumentElement());
-	    ParameterSet parameters = new BatchModeParameters();
-	    parameters.getParameter(BatchModeParameters.batchQueue).setValue(
-		    newQueue);
-	    Task batchTask = new BatchTask(project, parameters);
+	    commandLine.applyTo(newQueue);
+	} catch (IllegalArgumentException e) {
+	    logger.severe(e.getMessage());
+	    return BatchCommandLine.EXIT_INVALID_ARGUMENTS;
+	} catch (Exception e) {
+	    logger.log(Level.SEVERE, "Cannot read batch file " + batchFile, e);
+	    return BatchCommandLine.EXIT_INVALID_ARGUMENTS;
+	}
+
+	BatchProgressWriter progressWriter = null;
+	if (commandLine.getProgressFile() != null) {
+	    try {
+		progressWriter = new BatchProgressWriter(
+			commandLine.getProgressFile(), project);
+	    } catch (IOException e) {
+		logger.severe("Cannot write progress to "
+			+ commandLine.getProgressFile() + ": " + e);
+		return BatchCommandLine.EXIT_INVALID_ARGUMENTS;
+	    }
+	    progressWriter.batchStarted(batchFile.getPath(), newQueue.size());
+	}
+
+	ParameterSet parameters = new BatchModeParameters();
+	parameters.getParameter(BatchModeParameters.batchQueue).setValue(
+		newQueue);
+	BatchTask batchTask = new BatchTask(project, parameters);
+	batchTask.setProgressWriter(progressWriter);
+	try {
 	    batchTask.run();
-	    if (batchTask.getStatus() == TaskStatus.FINISHED)
-		return ExitCode.OK;
-	    else
-		return ExitCode.ERROR;
 	} catch (Throwable e) {
 	    logger.log(Level.SEVERE, "Error while running batch", e);
-	    e.printStackTrace();
-	    return ExitCode.ERROR;
+	    batchTask.setStatus(TaskStatus.ERROR);
+	    batchTask.setErrorMessage(e.toString());
 	}
 
+	int exitCode;
+	switch (batchTask.getStatus()) {
+	case FINISHED:
+	    exitCode = BatchCommandLine.EXIT_OK;
+	    break;
+	case CANCELED:
+	    exitCode = BatchCommandLine.EXIT_CANCELED;
+	    break;
+	default:
+	    exitCode = BatchCommandLine.EXIT_FAILED;
+	    if (batchTask.getErrorMessage() != null)
+		logger.severe("Batch failed: " + batchTask.getErrorMessage());
+	}
+
+	if (progressWriter != null) {
+	    progressWriter.batchFinished(batchTask.getStatus(),
+		    batchTask.getErrorMessage(), exitCode);
+	    progressWriter.close();
+	}
+
+	return exitCode;
+
     }
 
     @Override
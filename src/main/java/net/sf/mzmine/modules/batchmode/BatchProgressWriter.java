@@ -0,0 +1,329 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ParallelUtils;
+
+/**
+ * Writes the progress of a batch run as JSON lines, one event per line, so
+ * that headless runs can be monitored by other programs. Each event contains
+ * the "event" type and the "elapsed" time in seconds since the start of the
+ * batch. The events are batch_started, step_started, progress, task,
+ * step_finished and batch_finished.
+ */
+class BatchProgressWriter {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final Writer writer;
+    private final boolean closeWriter;
+    private final MZmineProject project;
+
+    private long batchStartTime, stepStartTime;
+    private long batchPeakHeap;
+    private int stepNumber, stepDataFiles, stepPeakLists;
+    private String stepModule;
+    private Collection<Task> stepTasks;
+    private final Set<Task> reportedTasks = new HashSet<Task>();
+    private String lastProgress;
+
+    /**
+     * @param fileName
+     *            output file name, "-" for the standard output
+     */
+    BatchProgressWriter(String fileName, MZmineProject project)
+	    throws IOException {
+	OutputStream output;
+	if (fileName.equals("-")) {
+	    output = System.out;
+	    closeWriter = false;
+	} else {
+	    output = new FileOutputStream(fileName);
+	    closeWriter = true;
+	}
+	this.writer = new OutputStreamWriter(output, "UTF-8");
+	this.project = project;
+    }
+
+    synchronized void batchStarted(String batchFile, int totalSteps) {
+	batchStartTime = System.currentTimeMillis();
+	resetPeakHeap();
+	JsonLine line = new JsonLine("batch_started");
+	line.add("batch_file", batchFile);
+	line.add("steps", totalSteps);
+	line.add("threads", ParallelUtils.getNumberOfThreads());
+	line.add("max_heap_mb", toMB(Runtime.getRuntime().maxMemory()));
+	write(line);
+    }
+
+    synchronized void stepStarted(int stepNumber, MZmineProcessingModule module) {
+	this.stepNumber = stepNumber;
+	this.stepModule = module.getName();
+	this.stepTasks = null;
+	this.lastProgress = null;
+	stepDataFiles = project.getDataFiles().length;
+	stepPeakLists = project.getPeakLists().length;
+	stepStartTime = System.currentTimeMillis();
+	resetPeakHeap();
+	JsonLine line = new JsonLine("step_started");
+	addStep(line);
+	write(line);
+    }
+
+    /**
+     * Reports the progress of the tasks of the current step. A progress event
+     * is only written when the progress has changed, and a task event is
+     * written once for every task which has ended.
+     */
+    synchronized void updateTasks(Collection<Task> tasks) {
+
+	stepTasks = tasks;
+
+	double finishedSum = 0;
+	int finishedTasks = 0;
+	for (Task task : tasks) {
+	    TaskStatus status = task.getStatus();
+	    if ((status == TaskStatus.FINISHED)
+		    || (status == TaskStatus.ERROR)
+		    || (status == TaskStatus.CANCELED)) {
+		finishedSum += 1;
+		finishedTasks++;
+		if (reportedTasks.add(task)) {
+		    JsonLine line = new JsonLine("task");
+		    addStep(line);
+		    line.add("description", task.getTaskDescription());
+		    line.add("status", status.toString());
+		    if (status == TaskStatus.ERROR)
+			line.add("error", task.getErrorMessage());
+		    write(line);
+		}
+	    } else {
+		double percentage = task.getFinishedPercentage();
+		if ((percentage > 0) && (percentage <= 1))
+		    finishedSum += percentage;
+	    }
+	}
+
+	if (tasks.isEmpty())
+	    return;
+	String progress = String.format(Locale.US, "%.3f", finishedSum
+		/ tasks.size());
+	if (progress.equals(lastProgress))
+	    return;
+	lastProgress = progress;
+
+	Runtime runtime = Runtime.getRuntime();
+	JsonLine line = new JsonLine("progress");
+	addStep(line);
+	line.addRaw("progress", progress);
+	line.add("tasks", tasks.size());
+	line.add("finished_tasks", finishedTasks);
+	line.add("heap_used_mb",
+		toMB(runtime.totalMemory() - runtime.freeMemory()));
+	write(line);
+    }
+
+    synchronized void stepFinished(TaskStatus status, String errorMessage) {
+
+	if (stepTasks != null)
+	    updateTasks(stepTasks);
+
+	double seconds = (System.currentTimeMillis() - stepStartTime) / 1000.0;
+	int tasks = (stepTasks == null) ? 0 : stepTasks.size();
+	int newDataFiles = project.getDataFiles().length - stepDataFiles;
+	int newPeakLists = project.getPeakLists().length - stepPeakLists;
+	long peakHeap = getPeakHeap();
+	batchPeakHeap = Math.max(batchPeakHeap, peakHeap);
+
+	JsonLine line = new JsonLine("step_finished");
+	addStep(line);
+	line.add("status", status.toString());
+	if (errorMessage != null)
+	    line.add("error", errorMessage);
+	line.add("duration_s", seconds);
+	line.add("tasks", tasks);
+	line.add("new_raw_data_files", newDataFiles);
+	line.add("new_peak_lists", newPeakLists);
+	if (seconds > 0) {
+	    line.add("tasks_per_s", tasks / seconds);
+	    line.add("outputs_per_s", (newDataFiles + newPeakLists) / seconds);
+	}
+	line.add("peak_heap_mb", toMB(peakHeap));
+	write(line);
+
+	reportedTasks.clear();
+    }
+
+    synchronized void batchFinished(TaskStatus status, String errorMessage,
+	    int exitCode) {
+	JsonLine line = new JsonLine("batch_finished");
+	line.add("status", status.toString());
+	if (errorMessage != null)
+	    line.add("error", errorMessage);
+	line.add("exit_code", exitCode);
+	line.add("duration_s",
+		(System.currentTimeMillis() - batchStartTime) / 1000.0);
+	line.add("peak_heap_mb", toMB(Math.max(batchPeakHeap, getPeakHeap())));
+	write(line);
+    }
+
+    synchronized void close() {
+	try {
+	    if (closeWriter)
+		writer.close();
+	    else
+		writer.flush();
+	} catch (IOException e) {
+	    logger.warning("Could not close the progress output: " + e);
+	}
+    }
+
+    private void addStep(JsonLine line) {
+	line.add("step", stepNumber);
+	line.add("module", stepModule);
+    }
+
+    private void write(JsonLine line) {
+	try {
+	    writer.write(line.toString());
+	    writer.write('\n');
+	    writer.flush();
+	} catch (IOException e) {
+	    logger.warning("Could not write the progress output: " + e);
+	}
+    }
+
+    private static double toMB(long bytes) {
+	return bytes / (1024.0 * 1024.0);
+    }
+
+    private static void resetPeakHeap() {
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP)
+		pool.resetPeakUsage();
+	}
+    }
+
+    /**
+     * Returns the sum of peak usages of all heap memory pools since the last
+     * reset. The pools do not reach their peaks at the same time, so this is
+     * an upper bound of the peak heap usage.
+     */
+    private static long getPeakHeap() {
+	long peak = 0;
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP)
+		peak += pool.getPeakUsage().getUsed();
+	}
+	return peak;
+    }
+
+    /**
+     * A single JSON object, written on one line
+     */
+    private class JsonLine {
+
+	private final StringBuilder json = new StringBuilder();
+
+	JsonLine(String event) {
+	    json.append('{');
+	    add("event", event);
+	    add("elapsed",
+		    (System.currentTimeMillis() - batchStartTime) / 1000.0);
+	}
+
+	void add(String key, String value) {
+	    if (value == null) {
+		addRaw(key, "null");
+		return;
+	    }
+	    StringBuilder quoted = new StringBuilder(value.length() + 2);
+	    quoted.append('"');
+	    for (int i = 0; i < value.length(); i++) {
+		char c = value.charAt(i);
+		switch (c) {
+		case '"':
+		    quoted.append("\\\"");
+		    break;
+		case '\\':
+		    quoted.append("\\\\");
+		    break;
+		case '\n':
+		    quoted.append("\\n");
+		    break;
+		case '\r':
+		    quoted.append("\\r");
+		    break;
+		case '\t':
+		    quoted.append("\\t");
+		    break;
+		default:
+		    if (c < 0x20)
+			quoted.append(String.format("\\u%04x", (int) c));
+		    else
+			quoted.append(c);
+		}
+	    }
+	    quoted.append('"');
+	    addRaw(key, quoted.toString());
+	}
+
+	void add(String key, long value) {
+	    addRaw(key, String.valueOf(value));
+	}
+
+	void add(String key, double value) {
+	    if (Double.isNaN(value) || Double.isInfinite(value))
+		addRaw(key, "null");
+	    else
+		addRaw(key, String.format(Locale.US, "%.3f", value));
+	}
+
+	void addRaw(String key, String value) {
+	    if (json.length() > 1)
+		json.append(',');
+	    json.append('"').append(key).append("\":").append(value);
+	}
+
+	public String toString() {
+	    return json.toString() + "}";
+	}
+
+    }
+
+}
@@ -19,11 +19,10 @@
 
 package net.sf.mzmine.modules.batchmode;
 
-import java.util.Collection;
 import java.util.Vector;
 
 import net.sf.mzmine.main.MZmineCore;
-import net.sf.mzmine.modules.MZmineModule;
+import net.sf.mzmine.main.MZmineModulesList;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.modules.impl.MZmineProcessingStepImpl;
@@ -82,9 +81,6 @@ public class BatchQueue extends
 	// Create an empty queue.
 	final BatchQueue queue = new BatchQueue();
 
-	// Get the loaded modules.
-	final Collection<MZmineModule> allModules = MZmineCore.getAllModules();
-
 	// Process the batch step elements.
 	final NodeList nodes = xmlElement
 		.getElementsByTagName(BATCH_STEP_ELEMENT);
@@ -94,23 +90,28 @@ public class BatchQueue extends
 	    final Element stepElement = (Element) nodes.item(i);
 	    final String methodName = stepElement.getAttribute(METHOD_ELEMENT);
 
-	    // Find a matching module.
-	    for (final MZmineModule module : allModules) {
+	    // Find a matching module. Only the modules used by the batch are
+	    // created.
+	    for (final Class<?> moduleClass : MZmineModulesList.MODULES) {
+
+		if (!moduleClass.getName().equals(methodName))
+		    continue;
 
-		if (module instanceof MZmineProcessingModule
-			&& module.getClass().getName().equals(methodName)) {
+		final Object module = MZmineCore.getModuleInstance(moduleClass);
+		if (module instanceof MZmineProcessingModule) {
 
 		    // Get parameters and add step to queue.
 		    final ParameterSet parameterSet = MZmineCore
 			    .getConfiguration().getModuleParameters(
-				    module.getClass());
+				    ((MZmineProcessingModule) module)
+					    .getClass());
 		    final ParameterSet methodParams = parameterSet
 			    .cloneParameterSet();
 		    methodParams.loadValuesFromXML(stepElement);
 		    queue.add(new MZmineProcessingStepImpl<MZmineProcessingModule>(
 			    (MZmineProcessingModule) module, methodParams));
-		    break;
 		}
+		break;
 	    }
 	}
 
@@ -44,6 +44,7 @@ public class BatchTask extends AbstractTask {
 
     private MZmineProject project;
     private BatchQueue queue;
+    private BatchProgressWriter progressWriter;
 
     BatchTask(MZmineProject project, ParameterSet parameters) {
 	this.project = project;
@@ -52,6 +53,13 @@ public class BatchTask extends AbstractTask {
 	totalSteps = queue.size();
     }
 
+    /**
+     * Sets the writer which receives the progress events of this batch
+     */
+    void setProgressWriter(BatchProgressWriter progressWriter) {
+	this.progressWriter = progressWriter;
+    }
+
     public void run() {
 
 	setStatus(TaskStatus.PROCESSING);
@@ -59,9 +67,22 @@ public class BatchTask extends AbstractTask {
 
 	for (int i = 0; i < totalSteps; i++) {
 
+	    if (progressWriter != null)
+		progressWriter.stepStarted(i + 1, queue.get(i).getModule());
+
 	    processQueueStep(i);
 	    processedSteps++;
 
+	    if (progressWriter != null) {
+		TaskStatus stepStatus = isCanceled() ? TaskStatus.CANCELED
+			: getStatus();
+		if (stepStatus == TaskStatus.PROCESSING)
+		    stepStatus = TaskStatus.FINISHED;
+		progressWriter.stepFinished(stepStatus,
+			(stepStatus == TaskStatus.ERROR) ? getErrorMessage()
+				: null);
+	    }
+
 	    // If we are canceled or ran into error, stop here
 	    if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
 		return;
@@ -92,6 +113,7 @@ public class BatchTask extends AbstractTask {
 	    setStatus(TaskStatus.ERROR);
 	    setErrorMessage("Invalid parameter settings for module " + method
 		    + ": " + Arrays.toString(messages.toArray()));
+	    return;
 	}
 
 	ArrayList<Task> currentStepTasks = new ArrayList<Task>();
@@ -116,6 +138,9 @@ public class BatchTask extends AbstractTask {
 
 	while (!allTasksFinished) {
 
+	    if (progressWriter != null)
+		progressWriter.updateTasks(currentStepTasks);
+
 	    // If we canceled the batch, cancel all running tasks
 	    if (isCanceled()) {
 		for (Task stepTask : currentStepTasks)
@@ -40,7 +40,7 @@ class PathAlignerTask extends AbstractTask {
     private PeakList peakLists[], alignedPeakList;
     private String peakListName;
     private ParameterSet parameters;
-    private Aligner aligner;
+    private volatile Aligner aligner;
 
     PathAlignerTask(MZmineProject project, ParameterSet parameters) {
 
@@ -72,6 +72,16 @@ class PathAlignerTask extends AbstractTask {
 	}
     }
 
+    /**
+     * @see net.sf.mzmine.taskcontrol.AbstractTask#cancel()
+     */
+    public void cancel() {
+	super.cancel();
+	Aligner currentAligner = aligner;
+	if (currentAligner != null)
+	    currentAligner.cancel();
+    }
+
     /**
      * @see Runnable#run()
      */
@@ -81,6 +91,11 @@ class PathAlignerTask extends AbstractTask {
 
 	aligner = (Aligner) new ScoreAligner(this.peakLists, parameters);
 	alignedPeakList = aligner.align();
+
+	// Check if we were canceled during the alignment
+	if (isCanceled())
+	    return;
+
 	// Add new aligned peak list to the project
 	project.addPeakList(alignedPeakList);
 
@@ -40,4 +40,9 @@ public interface Aligner {
      * @return Progress of the algorithm
      */
     public double getProgress();
+
+    /**
+     * Stops the alignment, align() will then return null
+     */
+    public void cancel();
 }
@@ -22,14 +22,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Vector;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.CyclicBarrier;
 
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -38,23 +32,38 @@ import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.modules.peaklistmethods.alignment.path.PathAlignerParameters;
 import net.sf.mzmine.modules.peaklistmethods.alignment.path.scorer.RTScore;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.MZTolerance;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+
+import com.google.common.collect.Range;
 
 public class ScoreAligner implements Aligner {
 
     public final static String name = "Aligner";
-    private int peaksTotal;
-    private int peaksDone;
-    private volatile boolean aligningDone;
-    private volatile Thread[] threads;
-    private volatile List<List<PeakListRow>> peakList;
+
+    private final static double GAP_PENALTY = 1.25;
+
+    /**
+     * Number of alignment paths generated by one thread in a single step
+     */
+    private final static int PATHS_PER_BLOCK = 64;
+
+    private volatile int peaksTotal;
+    private volatile int peaksDone;
+    private volatile boolean canceled;
+    private SampleIndex samples[];
     private final List<PeakList> originalPeakList;
     private ScoreCalculator calc;
     private PeakList alignment;
     private ParameterSet params;
+    private MZTolerance mzTolerance;
 
     public ScoreAligner(PeakList[] dataToAlign, ParameterSet params) {
 	this.params = params;
 	this.calc = new RTScore();
+	this.mzTolerance = params.getParameter(
+		PathAlignerParameters.MZTolerance).getValue();
 	originalPeakList = java.util.Collections.unmodifiableList(Arrays
 		.asList(dataToAlign));
 	copyAndSort(Arrays.asList(dataToAlign));
@@ -71,174 +80,146 @@ public class ScoreAligner implements Aligner {
 	if (dataToAlign != null) {
 	    List<PeakList> copyOfData = new ArrayList<PeakList>(dataToAlign);
 	    java.util.Collections.sort(copyOfData, c);
-	    peakList = new ArrayList<List<PeakListRow>>();
+	    samples = new SampleIndex[copyOfData.size()];
 	    for (int i = 0; i < copyOfData.size(); i++) {
-		PeakListRow[] peakData = copyOfData.get(i).getRows();
-		List<PeakListRow> peaksInOneFile = new LinkedList<PeakListRow>();
-		peaksInOneFile.addAll(Arrays.asList(peakData));
-		peakList.add(peaksInOneFile);
+		samples[i] = new SampleIndex(copyOfData.get(i).getRows());
 	    }
 	} else {
-	    peakList = null;
+	    samples = null;
 	}
     }
 
-    private List<AlignmentPath> generatePathsThreaded(final ScoreCalculator c,
-	    final List<List<PeakListRow>> peaksToUse)
-	    throws CancellationException {
-	final List<AlignmentPath> paths = Collections
-		.synchronizedList(new LinkedList<AlignmentPath>());
+    /**
+     * Generates the alignment paths in rounds. In each round, every remaining
+     * row of the first non-empty sample starts one path. The paths are
+     * generated in parallel on the shared thread pool, then the best
+     * non-overlapping paths are accepted and their rows are removed.
+     */
+    private List<AlignmentPath> generatePaths(final ScoreCalculator c) {
 	final List<AlignmentPath> completePaths = new ArrayList<AlignmentPath>();
-	final int numThreads = Runtime.getRuntime().availableProcessors();
-	final AlignerThread aligners[] = new AlignerThread[numThreads];
-
-	Runnable barrierTask = new Runnable() {
-
-	    public void run() {
-		Collections.sort(paths);
-		while (paths.size() > 0) {
-		    Iterator<AlignmentPath> iter = paths.iterator();
-		    AlignmentPath best = iter.next();
-		    iter.remove();
-		    while (iter.hasNext()) {
-			AlignmentPath cand = iter.next();
-			if (best.containsSame(cand)) {
-			    iter.remove();
-			}
-		    }
-		    completePaths.add(best);
-		    removePeaks(best, peaksToUse);
-		    peaksDone += best.nonEmptyPeaks();
-		}
 
-		// Empty the list for further use
-		paths.clear();
-		int currentCol = -1;
-		for (int i = 0; i < peaksToUse.size(); i++) {
-		    if (peaksToUse.get(i).size() > 0) {
-			currentCol = i;
-			break;
-		    }
-		}
-		if (currentCol == -1) {
-		    aligningDone = true;
-		    return;
-		}
-
-		ThreadInfo threadInfos[] = calculateIntervals(numThreads,
-			currentCol, peaksToUse);
-		for (int i = 0; i < numThreads; i++) {
-		    aligners[i].setThreadInfo(threadInfos[i]);
-		}
-	    }
-	};
+	int currentCol = findFirstNonEmptyColumn();
+	while ((currentCol != -1) && (!canceled)) {
+
+	    final int col = currentCol;
+	    final SampleIndex baseSample = samples[col];
+	    final int baseRows[] = baseSample.getRemainingRows();
+	    final AlignmentPath paths[] = new AlignmentPath[baseRows.length];
+
+	    ParallelUtils.processInParallel(baseRows.length, PATHS_PER_BLOCK,
+		    new IndexRangeProcessor() {
+			public void process(int startIndex, int endIndex) {
+			    for (int i = startIndex; i < endIndex; i++) {
+				if (canceled)
+				    return;
+				paths[i] = generatePath(col, c,
+					baseSample.getRow(baseRows[i]));
+			    }
+			}
+		    });
 
-	CyclicBarrier barrier = new CyclicBarrier(numThreads, barrierTask);
+	    if (canceled)
+		break;
 
-	// Preliminary setup of thread working
-	{
-	    int currentCol = 0;
-	    ThreadInfo threadInfos[] = calculateIntervals(numThreads,
-		    currentCol, peaksToUse);
-	    for (int i = 0; i < numThreads; i++) {
-		aligners[i] = new AlignerThread(threadInfos[i], barrier, paths,
-			c, peaksToUse);
+	    // Accept the best paths which do not share any row with an already
+	    // accepted path. The sort is stable, so equal scores keep the order
+	    // of the base rows.
+	    List<AlignmentPath> sortedPaths = Arrays.asList(paths);
+	    Collections.sort(sortedPaths);
+	    for (AlignmentPath path : sortedPaths) {
+		if (containsRemovedPeak(path))
+		    continue;
+		completePaths.add(path);
+		removePeaks(path);
+		peaksDone += path.nonEmptyPeaks();
 	    }
-	}
 
-	threads = new Thread[aligners.length];
-	for (int i = 0; i < aligners.length; i++) {
-	    threads[i] = (new Thread(aligners[i]));
-	    threads[i].start();
-	}
-	for (int i = 0; i < aligners.length; i++) {
-	    try {
-		threads[i].join();
-	    } catch (InterruptedException e) {
-		break;
-		// TODO Add perhaps more resilence to unforeseen turns of
-		// events.
-		// At least now there should not be any case when this main
-		// thread
-		// would be interrupted.
-	    }
+	    currentCol = findFirstNonEmptyColumn();
 	}
 	return completePaths;
     }
 
     private AlignmentPath generatePath(int col, ScoreCalculator c,
-	    PeakListRow base, List<List<PeakListRow>> listOfPeaksInFiles) {
-	int len = listOfPeaksInFiles.size();
+	    PeakListRow base) {
+	int len = samples.length;
 	AlignmentPath path = new AlignmentPath(len, base, col);
 	for (int i = (col + 1) % len; i != col; i = (i + 1) % len) {
 
-	    PeakListRow bestPeak = null;
+	    SampleIndex sample = samples[i];
+	    Range<Double> mzRange = mzTolerance.getToleranceRange(path.getMZ());
+
+	    // Only the rows inside the m/z tolerance window can match
+	    int bestIndex = -1;
 	    double bestPeakScore = c.getWorstScore();
-	    for (PeakListRow curPeak : listOfPeaksInFiles.get(i)) {
-		if (curPeak == null || !c.matches(path, curPeak, params)) {
-		    // Either there isn't any peak left or it doesn't fill
-		    // requirements of current score calculator (for example,
-		    // it doesn't have a name).
+	    int startIndex = sample.findStart(mzRange.lowerEndpoint());
+	    int endIndex = sample.findEnd(mzRange.upperEndpoint());
+	    for (int index = startIndex; index < endIndex; index++) {
+		if (sample.isRemoved(index))
+		    continue;
+		PeakListRow curPeak = sample.getRow(index);
+		if (!c.matches(path, curPeak, params)) {
+		    // Peak doesn't fill requirements of current score
+		    // calculator (for example, it doesn't have a name).
 		    continue;
 		}
 		double score = c.calculateScore(path, curPeak, params);
 
-		if (score < bestPeakScore) {
-		    bestPeak = curPeak;
+		// On equal scores, prefer the row that comes first in the
+		// original peak list
+		if ((score < bestPeakScore)
+			|| ((bestIndex != -1) && (score == bestPeakScore) && (sample
+				.getOriginalPosition(index) < sample
+				.getOriginalPosition(bestIndex)))) {
+		    bestIndex = index;
 		    bestPeakScore = score;
 		}
 
 	    }
 
-	    double gapPenalty = 1.25;
-
-	    if (bestPeak != null && bestPeakScore < gapPenalty) {
-		path.add(i, bestPeak, bestPeakScore);
+	    if (bestIndex != -1 && bestPeakScore < GAP_PENALTY) {
+		path.add(i, sample.getRow(bestIndex), bestPeakScore);
 	    } else {
-		path.addGap(i, gapPenalty);
+		path.addGap(i, GAP_PENALTY);
 	    }
 
 	}
 	return path;
     }
 
-    private void removePeaks(AlignmentPath p,
-	    List<List<PeakListRow>> listOfPeaks) {
+    private boolean containsRemovedPeak(AlignmentPath p) {
 	for (int i = 0; i < p.length(); i++) {
 	    PeakListRow d = p.getPeak(i);
-	    if (d != null) {
-		listOfPeaks.get(i).remove(d);
+	    if ((d != null) && samples[i].isRemoved(samples[i].indexOf(d))) {
+		return true;
 	    }
 	}
+	return false;
     }
 
-    private boolean aligningDone() {
-	return aligningDone;
+    private void removePeaks(AlignmentPath p) {
+	for (int i = 0; i < p.length(); i++) {
+	    PeakListRow d = p.getPeak(i);
+	    if (d != null) {
+		samples[i].remove(samples[i].indexOf(d));
+	    }
+	}
     }
 
-    private ThreadInfo[] calculateIntervals(int threads, int col,
-	    List<List<PeakListRow>> listOfPeaks) {
-	int diff = listOfPeaks.get(col).size() / threads;
-	ThreadInfo threadInfos[] = new ThreadInfo[threads];
-	for (int i = 0; i < threads; i++) {
-	    threadInfos[i] = new ThreadInfo(i * diff,
-		    ((i == threads - 1) ? listOfPeaks.get(col).size() : (i + 1)
-			    * diff), col);
+    private int findFirstNonEmptyColumn() {
+	for (int i = 0; i < samples.length; i++) {
+	    if (samples[i].getNumberOfRemainingRows() > 0) {
+		return i;
+	    }
 	}
-	return threadInfos;
+	return -1;
     }
 
     public double getProgress() {
+	if (peaksTotal == 0)
+	    return 0;
 	return ((double) this.peaksDone / (double) this.peaksTotal);
     }
 
-    private List<AlignmentPath> getAlignmentPaths()
-	    throws CancellationException {
-	List<AlignmentPath> paths = new ArrayList<AlignmentPath>();
-	paths = generatePathsThreaded(calc, peakList);
-	return paths;
-    }
-
     /*
      * (non-Javadoc)
      * 
@@ -254,15 +235,20 @@ public class ScoreAligner implements Aligner {
 		allDataFiles.addAll(Arrays.asList(list.getRawDataFiles()));
 	    }
 
-	    peaksTotal = 0;
-	    for (int i = 0; i < peakList.size(); i++) {
-		peaksTotal += peakList.get(i).size();
+	    int total = 0;
+	    for (int i = 0; i < samples.length; i++) {
+		total += samples[i].getNumberOfRemainingRows();
 	    }
+	    peaksTotal = total;
+
+	    List<AlignmentPath> addedPaths = generatePaths(calc);
+	    if (canceled)
+		return null;
+
 	    alignment = new SimplePeakList(params.getParameter(
 		    PathAlignerParameters.peakListName).getValue(),
 		    allDataFiles.toArray(new RawDataFile[0]));
 
-	    List<AlignmentPath> addedPaths = getAlignmentPaths();
 	    int ID = 1;
 	    for (AlignmentPath p : addedPaths) {
 		// Convert alignments to original order of files and add them to
@@ -278,6 +264,10 @@ public class ScoreAligner implements Aligner {
 	return curAlignment;
     }
 
+    public void cancel() {
+	canceled = true;
+    }
+
     public String toString() {
 	return getName();
     }
@@ -290,87 +280,120 @@ public class ScoreAligner implements Aligner {
 	return params;
     }
 
-    private class AlignerThread implements Runnable {
-
-	private ThreadInfo ti;
-	private CyclicBarrier barrier;
-	private List<AlignmentPath> readyPaths;
-	private ScoreCalculator calc;
-	private List<List<PeakListRow>> listOfAllPeaks;
+    /**
+     * Rows of one sample, sorted by m/z. Rows which have already been aligned
+     * are not removed from the arrays, they are only marked as removed.
+     */
+    private static class SampleIndex {
+
+	private final PeakListRow rows[];
+	private final double mzValues[];
+	private final int originalPositions[];
+	private final int sortedPositions[];
+	private final boolean removed[];
+	private int remainingRows;
+
+	SampleIndex(final PeakListRow originalRows[]) {
+	    final int numOfRows = originalRows.length;
+	    Integer order[] = new Integer[numOfRows];
+	    for (int i = 0; i < numOfRows; i++)
+		order[i] = i;
+	    Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer o1, Integer o2) {
+		    return Double.compare(originalRows[o1].getAverageMZ(),
+			    originalRows[o2].getAverageMZ());
+		}
+	    });
+
+	    rows = new PeakListRow[numOfRows];
+	    mzValues = new double[numOfRows];
+	    originalPositions = new int[numOfRows];
+	    sortedPositions = new int[numOfRows];
+	    removed = new boolean[numOfRows];
+	    for (int i = 0; i < numOfRows; i++) {
+		rows[i] = originalRows[order[i]];
+		mzValues[i] = rows[i].getAverageMZ();
+		originalPositions[i] = order[i];
+		sortedPositions[order[i]] = i;
+	    }
+	    remainingRows = numOfRows;
+	}
 
-	public void setThreadInfo(ThreadInfo ti) {
-	    this.ti = ti;
+	PeakListRow getRow(int index) {
+	    return rows[index];
 	}
 
-	public AlignerThread(ThreadInfo ti, CyclicBarrier barrier,
-		List<AlignmentPath> readyPaths, ScoreCalculator c,
-		List<List<PeakListRow>> peakList) {
-	    this.ti = ti;
-	    this.barrier = barrier;
-	    this.readyPaths = readyPaths;
-	    this.calc = c;
-	    this.listOfAllPeaks = peakList;
+	int getOriginalPosition(int index) {
+	    return originalPositions[index];
 	}
 
-	private void align() {
-	    List<PeakListRow> myList = listOfAllPeaks.get(ti.currentColumn())
-		    .subList(ti.startIx(), ti.endIx());
-	    Queue<AlignmentPath> myPaths = new LinkedList<AlignmentPath>();
-	    for (PeakListRow cur : myList) {
-		if (cur != null) {
-		    AlignmentPath p = generatePath(ti.currentColumn(), calc,
-			    cur, listOfAllPeaks);
-		    if (p != null) {
-			myPaths.offer(p);
-		    }
-		}
-	    }
-	    readyPaths.addAll(myPaths);
+	boolean isRemoved(int index) {
+	    return removed[index];
 	}
 
-	public void run() {
-	    while (!aligningDone()) {
-		align();
-		// Exceptions cause wrong results but do not report
-		// that in any way
-		try {
-		    barrier.await();
-		} catch (InterruptedException e) {
-		    return;
-		} catch (BrokenBarrierException e2) {
-		    return;
-		} catch (CancellationException e3) {
-		    return;
-		}
-	    }
+	void remove(int index) {
+	    if (removed[index])
+		return;
+	    removed[index] = true;
+	    remainingRows--;
 	}
-    }
 
-    private static class ThreadInfo {
+	int getNumberOfRemainingRows() {
+	    return remainingRows;
+	}
 
 	/**
-	 * Start index is inclusive, end index exclusive.
+	 * Returns the indexes of the remaining rows, in the original order of
+	 * the peak list.
 	 */
-	private int startIx;
-	private int endIx;
-	private int column;
-
-	public ThreadInfo(int startIx, int endIx, int col) {
-	    this.startIx = startIx;
-	    this.endIx = endIx;
-	    this.column = col;
+	int[] getRemainingRows() {
+	    int result[] = new int[remainingRows];
+	    int count = 0;
+	    for (int i = 0; i < sortedPositions.length; i++) {
+		int index = sortedPositions[i];
+		if (!removed[index])
+		    result[count++] = index;
+	    }
+	    return result;
 	}
 
-	public int currentColumn() {
-	    return column;
+	/**
+	 * Returns the index of the first row with m/z >= mz.
+	 */
+	int findStart(double mz) {
+	    int low = 0, high = mzValues.length;
+	    while (low < high) {
+		int mid = (low + high) >>> 1;
+		if (mzValues[mid] < mz)
+		    low = mid + 1;
+		else
+		    high = mid;
+	    }
+	    return low;
 	}
 
-	public int endIx() {
-	    return endIx;
+	/**
+	 * Returns the index following the last row with m/z <= mz.
+	 */
+	int findEnd(double mz) {
+	    int low = 0, high = mzValues.length;
+	    while (low < high) {
+		int mid = (low + high) >>> 1;
+		if (mzValues[mid] <= mz)
+		    low = mid + 1;
+		else
+		    high = mid;
+	    }
+	    return low;
 	}
 
-	public int startIx() {
-	    return startIx;
+	int indexOf(PeakListRow row) {
+	    for (int i = findStart(row.getAverageMZ()); i < rows.length; i++) {
+		if (rows[i] == row)
+		    return i;
+	    }
+	    throw new IllegalArgumentException("Row " + row
+		    + " does not belong to this sample");
 	}
 
     }
@@ -382,14 +405,8 @@ public class ScoreAligner implements Aligner {
     protected void resetThings() {
 	copyAndSort(originalPeakList);
 	alignment = null;
+	canceled = false;
+	peaksDone = 0;
     }
 
-    protected void doCancellingActions() {
-	for (Thread th : threads) {
-	    if (th != null) {
-		th.interrupt();
-	    }
-	}
-
-    }
 }
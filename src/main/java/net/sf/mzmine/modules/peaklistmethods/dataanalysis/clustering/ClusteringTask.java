@@ -19,6 +19,7 @@
 package net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering;
 
 import java.awt.BorderLayout;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.List;
 import java.util.logging.Logger;
@@ -27,20 +28,23 @@ import java.util.regex.Pattern;
 import javax.swing.JFrame;
 import javax.swing.JTextField;
 
-import jmprojection.PCA;
-import jmprojection.Preprocess;
-import jmprojection.ProjectionStatus;
-import jmprojection.Sammons;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.ClusteringTree;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.DistanceType;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.HierarClusterer;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.HierarClustererParameters;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.HierarchicalClustering;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.LinkType;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots.ProjectionPlotDataset;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots.ProjectionPlotParameters;
 import net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots.ProjectionPlotWindow;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots.RandomizedPCA;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots.SammonsMapping;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakMeasurementType;
@@ -62,6 +66,12 @@ public class ClusteringTask extends AbstractXYDataset implements
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of clusters shown by the hierarchical clustering, the default of
+     * Weka's HierarchicalClusterer
+     */
+    private static final int NUMBER_OF_HIERARCHICAL_CLUSTERS = 2;
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private double[] component1Coords;
@@ -77,11 +87,13 @@ public class ClusteringTask extends AbstractXYDataset implements
     private int yAxisDimension = 2;
     private TaskStatus status = TaskStatus.WAITING;
     private String errorMessage;
-    private ProjectionStatus projectionStatus;
+    private RandomizedPCA pca;
+    private SammonsMapping sammonsMapping;
     private MZmineProcessingStep<ClusteringAlgorithm> clusteringStep;
     private ClusteringDataType typeOfData;
     private Instances dataset;
     private int progress;
+    private HierarchicalClustering hierarchicalClustering;
 
     public ClusteringTask(ParameterSet parameters) {
 
@@ -184,19 +196,40 @@ public class ClusteringTask extends AbstractXYDataset implements
 
 	double[][] rawData;
 
-	// Creating weka dataset using samples or metabolites (variables)
-
 	if (typeOfData == ClusteringDataType.VARIABLES) {
 	    rawData = createMatrix(false);
-	    dataset = createVariableWekaDataset(rawData);
 	} else {
 	    rawData = createMatrix(true);
-	    dataset = createSampleWekaDataset(rawData);
 	}
 
-	// Run the clustering algorithm
 	ClusteringAlgorithm clusteringAlgorithm = clusteringStep.getModule();
 	ParameterSet clusteringParameters = clusteringStep.getParameterSet();
+
+	// Hierarchical clustering by the link types supported by the native
+	// implementation does not need the Weka data set
+	if (clusteringAlgorithm instanceof HierarClusterer) {
+	    LinkType linkType = clusteringParameters.getParameter(
+		    HierarClustererParameters.linkType).getValue();
+	    if (HierarchicalClustering.isSupported(linkType)) {
+		performHierarchicalClustering(rawData, clusteringParameters);
+		if ((status == TaskStatus.CANCELED)
+			|| (status == TaskStatus.ERROR)) {
+		    return;
+		}
+		status = TaskStatus.FINISHED;
+		logger.info("Finished computing Clustering visualization.");
+		return;
+	    }
+	}
+
+	// Creating weka dataset using samples or metabolites (variables)
+	if (typeOfData == ClusteringDataType.VARIABLES) {
+	    dataset = createVariableWekaDataset(rawData);
+	} else {
+	    dataset = createSampleWekaDataset(rawData);
+	}
+
+	// Run the clustering algorithm
 	ClusteringResult result = clusteringAlgorithm.performClustering(
 		dataset, clusteringParameters);
 
@@ -235,21 +268,7 @@ public class ClusteringTask extends AbstractXYDataset implements
 		} else {
 		    c = cluster;
 		}
-		JFrame visualizationWindow = new JFrame(clusterNumber);
-		visualizationWindow.setSize(600, 500);
-		visualizationWindow.setLayout(new BorderLayout());
-
-		HierarchyVisualizer visualizer = new HierarchyVisualizer(c);
-		visualizationWindow.add(visualizer, BorderLayout.CENTER);
-		visualizer.fitToScreen();
-
-		// Text field with the clustering result in Newick format
-		JTextField data = new JTextField(c);
-		visualizationWindow.add(data, BorderLayout.SOUTH);
-		visualizationWindow.setVisible(true);
-		visualizationWindow.pack();
-
-		visualizationWindow.setVisible(true);
+		showHierarchy(clusterNumber, c);
 	    }
 	    progress = 100;
 	} else {
@@ -317,13 +336,12 @@ public class ClusteringTask extends AbstractXYDataset implements
 
 	    if (result.getVisualizationType() == VisualizationType.PCA) {
 		// Scale data and do PCA
-		Preprocess.scaleToUnityVariance(rawData);
-		PCA pcaProj = new PCA(rawData, numComponents);
-		projectionStatus = pcaProj.getProjectionStatus();
+		pca = new RandomizedPCA(rawData, numComponents);
 
-		double[][] pcaResult = pcaProj.getState();
+		double[][] pcaResult = pca.compute();
 
-		if (status == TaskStatus.CANCELED) {
+		// The result is null if the PCA was canceled
+		if ((pcaResult == null) || (status == TaskStatus.CANCELED)) {
 		    return;
 		}
 
@@ -331,15 +349,12 @@ public class ClusteringTask extends AbstractXYDataset implements
 		component2Coords = pcaResult[yAxisDimension - 1];
 	    } else if (result.getVisualizationType() == VisualizationType.SAMMONS) {
 		// Scale data and do Sammon's mapping
-		Preprocess.scaleToUnityVariance(rawData);
-		Sammons sammonsProj = new Sammons(rawData);
-		projectionStatus = sammonsProj.getProjectionStatus();
-
-		sammonsProj.iterate(100);
+		sammonsMapping = new SammonsMapping(rawData, numComponents);
 
-		double[][] sammonsResult = sammonsProj.getState();
+		double[][] sammonsResult = sammonsMapping.compute(100);
 
-		if (status == TaskStatus.CANCELED) {
+		// The result is null if the mapping was canceled
+		if ((sammonsResult == null) || (status == TaskStatus.CANCELED)) {
 		    return;
 		}
 
@@ -355,6 +370,104 @@ public class ClusteringTask extends AbstractXYDataset implements
 	logger.info("Finished computing Clustering visualization.");
     }
 
+    /**
+     * Clusters the rows of the data matrix by the native nearest-neighbor
+     * chain implementation and shows the clusters in the same visualizer as
+     * the Weka based hierarchical clusterer
+     */
+    private void performHierarchicalClustering(double[][] rawData,
+	    ParameterSet clusteringParameters) {
+
+	LinkType linkType = clusteringParameters.getParameter(
+		HierarClustererParameters.linkType).getValue();
+	DistanceType distanceType = clusteringParameters.getParameter(
+		HierarClustererParameters.distanceType).getValue();
+
+	// Weka's distance functions normalize each attribute to the range
+	// 0..1, we do the same to get the same trees
+	double[][] normalizedData = new double[rawData.length][];
+	for (int i = 0; i < rawData.length; i++) {
+	    normalizedData[i] = rawData[i].clone();
+	}
+	int numOfAttributes = (rawData.length > 0) ? rawData[0].length : 0;
+	for (int j = 0; j < numOfAttributes; j++) {
+	    double min = Double.POSITIVE_INFINITY;
+	    double max = Double.NEGATIVE_INFINITY;
+	    for (int i = 0; i < rawData.length; i++) {
+		min = Math.min(min, rawData[i][j]);
+		max = Math.max(max, rawData[i][j]);
+	    }
+	    for (int i = 0; i < rawData.length; i++) {
+		normalizedData[i][j] = (max > min) ? (rawData[i][j] - min)
+			/ (max - min) : 0;
+	    }
+	}
+
+	String[] names = new String[rawData.length];
+	for (int i = 0; i < names.length; i++) {
+	    if (typeOfData == ClusteringDataType.VARIABLES) {
+		names[i] = getVariableName(selectedRows[i]);
+	    } else {
+		names[i] = selectedRawDataFiles[i].getName();
+	    }
+	}
+
+	hierarchicalClustering = new HierarchicalClustering(normalizedData,
+		linkType, distanceType);
+	ClusteringTree tree;
+	try {
+	    tree = hierarchicalClustering.cluster();
+	} catch (IOException e) {
+	    status = TaskStatus.ERROR;
+	    errorMessage = "Could not cluster " + rawData.length + " items: "
+		    + e.getMessage();
+	    return;
+	}
+	if (tree == null) {
+	    return;
+	}
+
+	String[] clusters = tree.getNewickTrees(names,
+		NUMBER_OF_HIERARCHICAL_CLUSTERS);
+	for (int i = 0; i < clusters.length; i++) {
+	    showHierarchy("Cluster " + i, clusters[i]);
+	}
+    }
+
+    /**
+     * Shows one cluster of the hierarchical clustering in a new window
+     * 
+     * @param newickTree
+     *            Cluster in the Newick format
+     */
+    private void showHierarchy(String title, String newickTree) {
+	JFrame visualizationWindow = new JFrame(title);
+	visualizationWindow.setSize(600, 500);
+	visualizationWindow.setLayout(new BorderLayout());
+
+	HierarchyVisualizer visualizer = new HierarchyVisualizer(newickTree);
+	visualizationWindow.add(visualizer, BorderLayout.CENTER);
+	visualizer.fitToScreen();
+
+	// Text field with the clustering result in Newick format
+	JTextField data = new JTextField(newickTree);
+	visualizationWindow.add(data, BorderLayout.SOUTH);
+	visualizationWindow.setVisible(true);
+	visualizationWindow.pack();
+
+	visualizationWindow.setVisible(true);
+    }
+
+    /**
+     * Name of a variable in the hierarchical clustering trees
+     */
+    private String getVariableName(PeakListRow row) {
+	DecimalFormat twoDForm = new DecimalFormat("#.##");
+	double MZ = Double.valueOf(twoDForm.format(row.getAverageMZ()));
+	double RT = Double.valueOf(twoDForm.format(row.getAverageRT()));
+	return "MZ->" + MZ + "/RT->" + RT;
+    }
+
     /**
      * Creates a matrix of heights of areas
      *
@@ -474,12 +587,7 @@ public class ClusteringTask extends AbstractXYDataset implements
 
 	    if (clusteringStep.getModule().getClass()
 		    .equals(HierarClusterer.class)) {
-		DecimalFormat twoDForm = new DecimalFormat("#.##");
-		double MZ = Double.valueOf(twoDForm.format(selectedRows[i]
-			.getAverageMZ()));
-		double RT = Double.valueOf(twoDForm.format(selectedRows[i]
-			.getAverageRT()));
-		String rowName = "MZ->" + MZ + "/RT->" + RT;
+		String rowName = getVariableName(selectedRows[i]);
 		values[data.numAttributes() - 1] = data.attribute("name")
 			.addStringValue(rowName);
 	    }
@@ -490,8 +598,14 @@ public class ClusteringTask extends AbstractXYDataset implements
     }
 
     public void cancel() {
-	if (projectionStatus != null) {
-	    projectionStatus.cancel();
+	if (pca != null) {
+	    pca.cancel();
+	}
+	if (sammonsMapping != null) {
+	    sammonsMapping.cancel();
+	}
+	if (hierarchicalClustering != null) {
+	    hierarchicalClustering.cancel();
 	}
 
 	status = TaskStatus.CANCELED;
@@ -527,11 +641,14 @@ public class ClusteringTask extends AbstractXYDataset implements
 
     @Override
     public double getFinishedPercentage() {
-	if (this.projectionStatus != null) {
-	    if (projectionStatus.getFinishedPercentage() > 1.0) {
-		return 1.0;
-	    }
-	    return projectionStatus.getFinishedPercentage();
+	if (hierarchicalClustering != null) {
+	    return hierarchicalClustering.getFinishedPercentage();
+	}
+	if (pca != null) {
+	    return pca.getFinishedPercentage();
+	}
+	if (sammonsMapping != null) {
+	    return sammonsMapping.getFinishedPercentage();
 	} else {
 	    if (progress > 100) {
 		return 1.0;
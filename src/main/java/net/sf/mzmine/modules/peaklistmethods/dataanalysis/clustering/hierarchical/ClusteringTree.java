@@ -0,0 +1,232 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical;
+
+/**
+ * Result of a hierarchical clustering, in the format used by R's hclust().
+ * Merge step i joins the two clusters given by getMerge()[i] at the height
+ * getHeights()[i]. Negative numbers -1..-n denote the original items, positive
+ * numbers 1..n-1 denote the clusters created by the earlier merge steps.
+ */
+public class ClusteringTree {
+
+    private final int numOfItems;
+    private final int merge[][];
+    private final double heights[];
+
+    ClusteringTree(int numOfItems, int merge[][], double heights[]) {
+	this.numOfItems = numOfItems;
+	this.merge = merge;
+	this.heights = heights;
+    }
+
+    public int getNumberOfItems() {
+	return numOfItems;
+    }
+
+    /**
+     * @return Array of numOfItems - 1 pairs of merged clusters
+     */
+    public int[][] getMerge() {
+	return merge;
+    }
+
+    /**
+     * @return Distances at which the clusters were merged, in increasing order
+     */
+    public double[] getHeights() {
+	return heights;
+    }
+
+    /**
+     * Returns the indexes of the items in the order of the leaves of the
+     * dendrogram. At each merge, the branch with the lower average weight of
+     * its items is placed first, like R's reorder() of a dendrogram does. If
+     * weights is null, the branches are kept in the merge order.
+     */
+    public int[] getLeafOrder(double weights[]) {
+
+	final int numOfMerges = merge.length;
+	int order[] = new int[numOfItems];
+	if (numOfMerges == 0) {
+	    for (int i = 0; i < numOfItems; i++)
+		order[i] = i;
+	    return order;
+	}
+
+	// Average weight of each cluster
+	double clusterWeights[] = new double[numOfMerges];
+	int clusterSizes[] = new int[numOfMerges];
+	for (int i = 0; i < numOfMerges; i++) {
+	    double weightSum = 0;
+	    int size = 0;
+	    for (int node : merge[i]) {
+		if (node < 0) {
+		    weightSum += (weights == null) ? 0 : weights[-node - 1];
+		    size++;
+		} else {
+		    weightSum += clusterWeights[node - 1]
+			    * clusterSizes[node - 1];
+		    size += clusterSizes[node - 1];
+		}
+	    }
+	    clusterWeights[i] = weightSum / size;
+	    clusterSizes[i] = size;
+	}
+
+	// Depth first walk from the root, without recursion because the tree
+	// may be as deep as the number of items
+	int stack[] = new int[numOfItems];
+	int stackSize = 0, orderSize = 0;
+	stack[stackSize++] = numOfMerges;
+	while (stackSize > 0) {
+	    int node = stack[--stackSize];
+	    if (node < 0) {
+		order[orderSize++] = -node - 1;
+		continue;
+	    }
+	    int first = merge[node - 1][0], second = merge[node - 1][1];
+	    if (getWeight(second, weights, clusterWeights) < getWeight(first,
+		    weights, clusterWeights)) {
+		int swap = first;
+		first = second;
+		second = swap;
+	    }
+	    stack[stackSize++] = second;
+	    stack[stackSize++] = first;
+	}
+
+	return order;
+    }
+
+    /**
+     * Cuts the tree into the given number of clusters, by leaving out the last
+     * merges, and returns each cluster as a tree in the Newick format, like
+     * Weka's HierarchicalClusterer prints it. Branch lengths are the
+     * differences of the merge heights.
+     * 
+     * @param names
+     *            Names of the items
+     */
+    public String[] getNewickTrees(String names[], int numOfClusters) {
+
+	numOfClusters = Math.max(1, Math.min(numOfClusters, numOfItems));
+	final int numOfMerges = merge.length;
+	final int numOfKeptMerges = numOfMerges - (numOfClusters - 1);
+
+	// Roots of the clusters: items and merges which are joined by the
+	// left out merges only
+	int roots[] = new int[numOfClusters];
+	int numOfRoots = 0;
+	if (numOfClusters == 1) {
+	    roots[numOfRoots++] = (numOfMerges == 0) ? -1 : numOfMerges;
+	} else {
+	    for (int i = numOfMerges - 1; i >= numOfKeptMerges; i--) {
+		for (int node : merge[i]) {
+		    if (node <= numOfKeptMerges)
+			roots[numOfRoots++] = node;
+		}
+	    }
+	}
+
+	String trees[] = new String[numOfRoots];
+	for (int i = 0; i < numOfRoots; i++) {
+	    StringBuilder tree = new StringBuilder();
+	    appendNewick(tree, roots[i], names);
+	    trees[i] = tree.toString();
+	}
+	return trees;
+    }
+
+    private static final int VISIT = 0, COMMA = 1, CLOSE = 2;
+
+    /**
+     * Writes the subtree in the Newick format, using a stack instead of
+     * recursion because the tree may be as deep as the number of items
+     */
+    private void appendNewick(StringBuilder output, int root, String names[]) {
+
+	int stackSize = 0, capacity = 3 * numOfItems + 4;
+	int actions[] = new int[capacity], nodes[] = new int[capacity];
+	double parentHeights[] = new double[capacity];
+
+	actions[stackSize] = VISIT;
+	nodes[stackSize] = root;
+	parentHeights[stackSize++] = Double.NaN;
+
+	while (stackSize > 0) {
+	    stackSize--;
+	    int action = actions[stackSize], node = nodes[stackSize];
+	    double parentHeight = parentHeights[stackSize];
+	    double height = (node > 0) ? heights[node - 1] : 0;
+	    switch (action) {
+	    case VISIT:
+		if (node < 0) {
+		    output.append(getNewickName(names[-node - 1]));
+		    appendBranchLength(output, parentHeight, height);
+		    break;
+		}
+		output.append('(');
+		actions[stackSize] = CLOSE;
+		nodes[stackSize] = node;
+		parentHeights[stackSize++] = parentHeight;
+		actions[stackSize] = VISIT;
+		nodes[stackSize] = merge[node - 1][1];
+		parentHeights[stackSize++] = height;
+		actions[stackSize] = COMMA;
+		nodes[stackSize++] = 0;
+		actions[stackSize] = VISIT;
+		nodes[stackSize] = merge[node - 1][0];
+		parentHeights[stackSize++] = height;
+		break;
+	    case COMMA:
+		output.append(',');
+		break;
+	    case CLOSE:
+		output.append(')');
+		appendBranchLength(output, parentHeight, height);
+		break;
+	    }
+	}
+    }
+
+    private static void appendBranchLength(StringBuilder output,
+	    double parentHeight, double height) {
+	if (!Double.isNaN(parentHeight))
+	    output.append(':').append(parentHeight - height);
+    }
+
+    /**
+     * Replaces the characters which have a special meaning in the Newick
+     * format
+     */
+    private static String getNewickName(String name) {
+	return name.replaceAll("[\\s(),:;\\[\\]]", "_");
+    }
+
+    private double getWeight(int node, double weights[],
+	    double clusterWeights[]) {
+	if (node > 0)
+	    return clusterWeights[node - 1];
+	return (weights == null) ? 0 : weights[-node - 1];
+    }
+
+}
@@ -0,0 +1,797 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+
+/**
+ * Agglomerative hierarchical clustering of the rows of a data matrix, using
+ * the nearest-neighbor chain algorithm. Single, complete, average and Ward's
+ * linkage are supported. The data may contain missing values (NaN). Like R's
+ * dist(), the distance of two rows is then calculated from the columns present
+ * in both rows and scaled up to the full number of columns.
+ * 
+ * The condensed distance matrix is filled in parallel and the clusters are
+ * merged using the Lance-Williams updates of the matrix. If the matrix does
+ * not fit into a quarter of the heap, it is kept in a memory-mapped temporary
+ * file instead, so the result never depends on the heap size. Data without
+ * missing values are clustered without any distance matrix in two cases,
+ * because the trees are the same: single linkage as a minimum spanning tree,
+ * and Ward's linkage of Euclidean distances on the cluster centroids.
+ */
+public class HierarchicalClustering {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    /**
+     * Maximum share of the heap which may be used for the distance matrix
+     */
+    private static final int HEAP_FRACTION = 4;
+
+    /**
+     * Minimum number of values to compare before the nearest neighbor search
+     * is split over several threads
+     */
+    private static final int PARALLEL_SEARCH_SIZE = 1 << 16;
+
+    private final double data[][];
+    private final int numOfRows, numOfColumns;
+    private final LinkType linkType;
+    private final DistanceType distanceType;
+
+    private volatile boolean canceled = false;
+    private volatile int processedSteps = 0;
+    private int totalSteps;
+
+    /**
+     * Complete linkage of Euclidean distances, like R's hclust() defaults
+     * 
+     * @param data
+     *            Data matrix, with the clustered items in rows
+     */
+    public HierarchicalClustering(double data[][]) {
+	this(data, LinkType.COMPLETE, DistanceType.EUCLIDIAN);
+    }
+
+    /**
+     * @param data
+     *            Data matrix, with the clustered items in rows
+     * @param linkType
+     *            One of the link types accepted by isSupported()
+     * @param distanceType
+     *            Distance of the rows. Minkowski distance is calculated with
+     *            the order 2, the default of Weka.
+     */
+    public HierarchicalClustering(double data[][], LinkType linkType,
+	    DistanceType distanceType) {
+	if (!isSupported(linkType))
+	    throw new IllegalArgumentException("Unsupported link type "
+		    + linkType);
+	this.data = data;
+	this.numOfRows = data.length;
+	this.numOfColumns = (numOfRows == 0) ? 0 : data[0].length;
+	this.linkType = linkType;
+	this.distanceType = distanceType;
+	this.totalSteps = Math.max(numOfRows - 1, 1);
+    }
+
+    /**
+     * Returns true for the link types which can be clustered by the
+     * nearest-neighbor chain algorithm
+     */
+    public static boolean isSupported(LinkType linkType) {
+	switch (linkType) {
+	case SINGLE:
+	case COMPLETE:
+	case AVERAGE:
+	case WARD:
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    /**
+     * Returns true if the distance matrix of the given number of items fits
+     * into the heap
+     */
+    private static boolean fitsIntoHeap(long numOfDistances) {
+	long maxBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+	return (numOfDistances <= Integer.MAX_VALUE - 8)
+		&& (numOfDistances * 4 <= maxBytes);
+    }
+
+    /**
+     * Clusters the rows of the data matrix. Returns null if the clustering was
+     * canceled.
+     * 
+     * @throws IOException
+     *             if the distance matrix does not fit into the heap and could
+     *             not be stored in a temporary file either
+     */
+    public ClusteringTree cluster() throws IOException {
+	if (numOfRows < 2)
+	    return new ClusteringTree(numOfRows, new int[0][],
+		    new double[0]);
+
+	long numOfDistances = (long) numOfRows * (numOfRows - 1) / 2;
+	if (fitsIntoHeap(numOfDistances))
+	    return clusterMatrix(new HeapDistanceMatrix(numOfDistances));
+
+	if (!hasMissingValues()) {
+	    if (linkType == LinkType.SINGLE) {
+		logger.info("The distance matrix of " + numOfRows
+			+ " items does not fit into the heap, clustering by"
+			+ " minimum spanning tree");
+		return clusterSingleStreaming();
+	    }
+	    if ((linkType == LinkType.WARD)
+		    && (distanceType == DistanceType.EUCLIDIAN)) {
+		logger.info("The distance matrix of " + numOfRows
+			+ " items does not fit into the heap, clustering by"
+			+ " the centroids");
+		return clusterWardStreaming();
+	    }
+	}
+
+	logger.info("The distance matrix of " + numOfRows
+		+ " items does not fit into the heap, storing it in a"
+		+ " temporary file");
+	return clusterMatrix(new MappedDistanceMatrix(numOfDistances));
+    }
+
+    public void cancel() {
+	canceled = true;
+    }
+
+    public double getFinishedPercentage() {
+	return Math.min(1.0, (double) processedSteps / totalSteps);
+    }
+
+    /**
+     * Nearest-neighbor chain on the condensed distance matrix. The matrix is
+     * closed when done.
+     */
+    private ClusteringTree clusterMatrix(DistanceMatrix distances) {
+	try {
+	    return clusterMatrixNNChain(distances);
+	} finally {
+	    distances.close();
+	}
+    }
+
+    private ClusteringTree clusterMatrixNNChain(
+	    final DistanceMatrix distances) {
+
+	final int n = numOfRows;
+
+	// Distance matrix and the merges are counted as one step per row
+	totalSteps = 2 * (n - 1);
+
+	final float maxDistance[] = { 0f };
+	final boolean undefined[] = { false };
+	ParallelUtils.processInParallel(n - 1, 16, new IndexRangeProcessor() {
+	    public void process(int startIndex, int endIndex) {
+		float blockMax = 0f;
+		boolean blockUndefined = false;
+		for (int i = startIndex; i < endIndex; i++) {
+		    if (canceled)
+			return;
+		    long index = getIndex(n, i, i + 1);
+		    for (int j = i + 1; j < n; j++) {
+			float distance = (float) getDistance(data[i], data[j]);
+			distances.set(index++, distance);
+			if (Float.isNaN(distance))
+			    blockUndefined = true;
+			else if (distance > blockMax)
+			    blockMax = distance;
+		    }
+		}
+		synchronized (maxDistance) {
+		    maxDistance[0] = Math.max(maxDistance[0], blockMax);
+		    undefined[0] |= blockUndefined;
+		    processedSteps += endIndex - startIndex;
+		}
+	    }
+	});
+	if (canceled)
+	    return null;
+
+	// Rows which have no common values are placed as far as possible
+	if (undefined[0]) {
+	    for (long i = 0; i < distances.size(); i++) {
+		if (Float.isNaN(distances.get(i)))
+		    distances.set(i, maxDistance[0]);
+	    }
+	}
+
+	final int mergedA[] = new int[n - 1], mergedB[] = new int[n - 1];
+	final double mergeHeights[] = new double[n - 1];
+	boolean active[] = new boolean[n];
+	Arrays.fill(active, true);
+	int sizes[] = new int[n];
+	Arrays.fill(sizes, 1);
+	int chain[] = new int[n];
+	int chainLength = 0, firstActive = 0;
+
+	for (int step = 0; step < n - 1; step++) {
+
+	    if (canceled)
+		return null;
+
+	    if (chainLength == 0) {
+		while (!active[firstActive])
+		    firstActive++;
+		chain[chainLength++] = firstActive;
+	    }
+
+	    // Grow the chain until we find a reciprocal nearest neighbor
+	    int a, b;
+	    float bestDistance;
+	    while (true) {
+		a = chain[chainLength - 1];
+		b = (chainLength > 1) ? chain[chainLength - 2] : -1;
+		bestDistance = (b >= 0) ? distances.get(getIndex(n, a, b))
+			: Float.POSITIVE_INFINITY;
+		for (int k = 0; k < n; k++) {
+		    if ((k == a) || !active[k])
+			continue;
+		    float distance = distances.get(getIndex(n, a, k));
+		    if (distance < bestDistance) {
+			bestDistance = distance;
+			b = k;
+		    }
+		}
+		if ((chainLength > 1) && (b == chain[chainLength - 2]))
+		    break;
+		chain[chainLength++] = b;
+	    }
+	    chainLength -= 2;
+
+	    mergedA[step] = a;
+	    mergedB[step] = b;
+	    mergeHeights[step] = bestDistance;
+
+	    // The merged cluster takes the place of a
+	    active[b] = false;
+	    for (int k = 0; k < n; k++) {
+		if ((k == a) || !active[k])
+		    continue;
+		long indexA = getIndex(n, a, k);
+		distances.set(indexA, getMergedDistance(distances.get(indexA),
+			distances.get(getIndex(n, b, k)), bestDistance,
+			sizes[a], sizes[b], sizes[k]));
+	    }
+	    sizes[a] += sizes[b];
+
+	    processedSteps++;
+	}
+
+	return createTree(mergedA, mergedB, mergeHeights);
+    }
+
+    /**
+     * Lance-Williams update of the distance between cluster k and the cluster
+     * created by merging clusters a and b
+     */
+    private float getMergedDistance(float distanceA, float distanceB,
+	    float distanceAB, int sizeA, int sizeB, int sizeK) {
+	switch (linkType) {
+	case SINGLE:
+	    return Math.min(distanceA, distanceB);
+	case COMPLETE:
+	    return Math.max(distanceA, distanceB);
+	case AVERAGE:
+	    return (sizeA * distanceA + sizeB * distanceB) / (sizeA + sizeB);
+	default:
+	    // Ward's method, with the distances as heights like R's ward.D2
+	    double sum = (double) (sizeA + sizeK) * distanceA * distanceA
+		    + (double) (sizeB + sizeK) * distanceB * distanceB
+		    - (double) sizeK * distanceAB * distanceAB;
+	    return (float) Math.sqrt(Math.max(0, sum)
+		    / (sizeA + sizeB + sizeK));
+	}
+    }
+
+    /**
+     * Single linkage as the minimum spanning tree of the rows, built by Prim's
+     * algorithm. Each step calculates the distances of one row to the rows
+     * outside of the tree, in parallel for large inputs.
+     */
+    private ClusteringTree clusterSingleStreaming() {
+
+	final int n = numOfRows;
+	final double rows[][] = data;
+	final double minDistances[] = new double[n];
+	Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+	final int parents[] = new int[n];
+	final boolean inTree[] = new boolean[n];
+
+	final int mergedA[] = new int[n - 1], mergedB[] = new int[n - 1];
+	final double mergeHeights[] = new double[n - 1];
+
+	int current = 0;
+	inTree[current] = true;
+	for (int step = 0; step < n - 1; step++) {
+
+	    if (canceled)
+		return null;
+
+	    final double currentRow[] = rows[current];
+	    final int currentIndex = current;
+	    final NearestNeighbor nearest = new NearestNeighbor();
+	    IndexRangeProcessor update = new IndexRangeProcessor() {
+		public void process(int startIndex, int endIndex) {
+		    int bestIndex = -1;
+		    double bestDistance = Double.POSITIVE_INFINITY;
+		    for (int k = startIndex; k < endIndex; k++) {
+			if (inTree[k])
+			    continue;
+			double distance = getDistance(currentRow, rows[k]);
+			if (distance < minDistances[k]) {
+			    minDistances[k] = distance;
+			    parents[k] = currentIndex;
+			}
+			if ((bestIndex < 0)
+				|| (minDistances[k] < bestDistance)) {
+			    bestIndex = k;
+			    bestDistance = minDistances[k];
+			}
+		    }
+		    if (bestIndex >= 0)
+			nearest.offer(bestIndex, bestDistance);
+		}
+	    };
+	    search(update, (long) (n - step) * numOfColumns);
+	    if (canceled)
+		return null;
+
+	    current = nearest.index;
+	    inTree[current] = true;
+	    mergedA[step] = parents[current];
+	    mergedB[step] = current;
+	    mergeHeights[step] = nearest.cost;
+
+	    processedSteps++;
+	}
+
+	// Sorting the edges of the tree gives the single linkage merges
+	return createTree(mergedA, mergedB, mergeHeights);
+    }
+
+    /**
+     * Ward's method on the cluster centroids, without a distance matrix
+     */
+    private ClusteringTree clusterWardStreaming() {
+
+	final int n = numOfRows;
+	final double centroids[][] = new double[n][];
+	for (int i = 0; i < n; i++)
+	    centroids[i] = data[i].clone();
+	final int sizes[] = new int[n];
+	Arrays.fill(sizes, 1);
+
+	final int mergedA[] = new int[n - 1], mergedB[] = new int[n - 1];
+	final double mergeHeights[] = new double[n - 1];
+	final boolean active[] = new boolean[n];
+	Arrays.fill(active, true);
+	int chain[] = new int[n];
+	int chainLength = 0, firstActive = 0, numOfActive = n;
+
+	for (int step = 0; step < n - 1; step++) {
+
+	    if (canceled)
+		return null;
+
+	    if (chainLength == 0) {
+		while (!active[firstActive])
+		    firstActive++;
+		chain[chainLength++] = firstActive;
+	    }
+
+	    int a, b;
+	    double bestCost;
+	    while (true) {
+		a = chain[chainLength - 1];
+		int previous = (chainLength > 1) ? chain[chainLength - 2] : -1;
+		NearestNeighbor nearest = findNearestWard(a, centroids, sizes,
+			active, (long) numOfActive * numOfColumns);
+		if (canceled)
+		    return null;
+		b = nearest.index;
+		bestCost = nearest.cost;
+		// Prefer the previous chain element in case of a tie, so that
+		// the chain cannot cycle
+		if (previous >= 0) {
+		    double previousCost = getWardCost(centroids[a], sizes[a],
+			    centroids[previous], sizes[previous]);
+		    if (previousCost <= bestCost) {
+			b = previous;
+			bestCost = previousCost;
+			break;
+		    }
+		}
+		chain[chainLength++] = b;
+	    }
+	    chainLength -= 2;
+
+	    mergedA[step] = a;
+	    mergedB[step] = b;
+	    mergeHeights[step] = Math.sqrt(2 * bestCost);
+
+	    // The merged cluster takes the place of a
+	    int newSize = sizes[a] + sizes[b];
+	    for (int j = 0; j < numOfColumns; j++) {
+		centroids[a][j] = (centroids[a][j] * sizes[a] + centroids[b][j]
+			* sizes[b])
+			/ newSize;
+	    }
+	    sizes[a] = newSize;
+	    active[b] = false;
+	    centroids[b] = null;
+	    numOfActive--;
+
+	    processedSteps++;
+	}
+
+	return createTree(mergedA, mergedB, mergeHeights);
+    }
+
+    private static class NearestNeighbor {
+	int index = -1;
+	double cost = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Keeps the lower cost, or the lower index in case of a tie
+	 */
+	synchronized void offer(int otherIndex, double otherCost) {
+	    if ((index < 0) || (otherCost < cost)
+		    || ((otherCost == cost) && (otherIndex < index))) {
+		index = otherIndex;
+		cost = otherCost;
+	    }
+	}
+    }
+
+    private NearestNeighbor findNearestWard(final int a,
+	    final double centroids[][], final int sizes[],
+	    final boolean active[], long searchSize) {
+	final NearestNeighbor nearest = new NearestNeighbor();
+	IndexRangeProcessor search = new IndexRangeProcessor() {
+	    public void process(int startIndex, int endIndex) {
+		int bestIndex = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int k = startIndex; k < endIndex; k++) {
+		    if ((k == a) || !active[k])
+			continue;
+		    double cost = getWardCost(centroids[a], sizes[a],
+			    centroids[k], sizes[k]);
+		    if ((bestIndex < 0) || (cost < bestCost)) {
+			bestIndex = k;
+			bestCost = cost;
+		    }
+		}
+		if (bestIndex >= 0)
+		    nearest.offer(bestIndex, bestCost);
+	    }
+	};
+	search(search, searchSize);
+	return nearest;
+    }
+
+    /**
+     * Runs the search over all rows, split over several threads if it
+     * compares enough values
+     */
+    private void search(IndexRangeProcessor search, long searchSize) {
+	if (searchSize >= PARALLEL_SEARCH_SIZE) {
+	    int blockSize = Math.max(1024, numOfRows
+		    / (4 * ParallelUtils.getNumberOfThreads()));
+	    ParallelUtils.processInParallel(numOfRows, blockSize, search);
+	} else {
+	    search.process(0, numOfRows);
+	}
+    }
+
+    /**
+     * Increase of the within-cluster sum of squares caused by merging the
+     * two clusters
+     */
+    private double getWardCost(double centroidA[], int sizeA,
+	    double centroidB[], int sizeB) {
+	double sum = 0;
+	for (int j = 0; j < numOfColumns; j++) {
+	    double difference = centroidA[j] - centroidB[j];
+	    sum += difference * difference;
+	}
+	return sum * sizeA * sizeB / (sizeA + sizeB);
+    }
+
+    private boolean hasMissingValues() {
+	for (double row[] : data) {
+	    for (double value : row) {
+		if (Double.isNaN(value))
+		    return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Distance of two rows, ignoring the missing values like R's dist().
+     * Returns NaN if the rows have no common values.
+     */
+    private double getDistance(double rowA[], double rowB[]) {
+	double sum = 0;
+	int count = 0;
+	for (int j = 0; j < numOfColumns; j++) {
+	    double difference = Math.abs(rowA[j] - rowB[j]);
+	    if (Double.isNaN(difference))
+		continue;
+	    switch (distanceType) {
+	    case MANHATTAN:
+		sum += difference;
+		break;
+	    case CHEBYSHEV:
+		sum = Math.max(sum, difference);
+		break;
+	    default:
+		sum += difference * difference;
+		break;
+	    }
+	    count++;
+	}
+	if (count == 0)
+	    return Double.NaN;
+	if ((count < numOfColumns) && (distanceType != DistanceType.CHEBYSHEV))
+	    sum *= (double) numOfColumns / count;
+	switch (distanceType) {
+	case MANHATTAN:
+	case CHEBYSHEV:
+	    return sum;
+	default:
+	    return Math.sqrt(sum);
+	}
+    }
+
+    /**
+     * Position of the distance of rows i and j in the condensed distance
+     * matrix
+     */
+    private static long getIndex(int n, int i, int j) {
+	if (i > j) {
+	    int swap = i;
+	    i = j;
+	    j = swap;
+	}
+	return (long) n * i - (long) i * (i + 1) / 2 + j - i - 1;
+    }
+
+    /**
+     * Condensed distance matrix
+     */
+    private static abstract class DistanceMatrix {
+
+	abstract long size();
+
+	abstract float get(long index);
+
+	abstract void set(long index, float value);
+
+	/**
+	 * Releases the storage of the matrix
+	 */
+	void close() {
+	}
+
+    }
+
+    private static class HeapDistanceMatrix extends DistanceMatrix {
+
+	private final float distances[];
+
+	HeapDistanceMatrix(long size) {
+	    distances = new float[(int) size];
+	}
+
+	long size() {
+	    return distances.length;
+	}
+
+	float get(long index) {
+	    return distances[(int) index];
+	}
+
+	void set(long index, float value) {
+	    distances[(int) index] = value;
+	}
+
+    }
+
+    /**
+     * Distance matrix in a temporary file, mapped into the memory in segments
+     * of 1 GB. The operating system keeps as much of it in the memory as it
+     * can.
+     */
+    private static class MappedDistanceMatrix extends DistanceMatrix {
+
+	private static final int SEGMENT_SHIFT = 28;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	private final Logger logger = Logger.getLogger(this.getClass()
+		.getName());
+
+	private final long size;
+	private final File file;
+	private final MappedByteBuffer buffers[];
+	private final FloatBuffer segments[];
+
+	MappedDistanceMatrix(long size) throws IOException {
+	    this.size = size;
+	    file = File.createTempFile("mzmine", ".distances");
+	    file.deleteOnExit();
+	    int numOfSegments = (int) ((size - 1) >>> SEGMENT_SHIFT) + 1;
+	    buffers = new MappedByteBuffer[numOfSegments];
+	    segments = new FloatBuffer[numOfSegments];
+	    try {
+		// Writing to a mapped file which can't grow crashes the JVM
+		long freeSpace = file.getUsableSpace();
+		if (freeSpace < size * 4) {
+		    throw new IOException("The distance matrix needs "
+			    + (size * 4 >> 20) + " MB of disk space, but only "
+			    + (freeSpace >> 20) + " MB are free in "
+			    + file.getParent());
+		}
+		RandomAccessFile matrixFile = new RandomAccessFile(file, "rw");
+		try {
+		    matrixFile.setLength(size * 4);
+		    FileChannel channel = matrixFile.getChannel();
+		    for (int i = 0; i < numOfSegments; i++) {
+			long start = (long) i << SEGMENT_SHIFT;
+			long length = Math.min(1L << SEGMENT_SHIFT, size
+				- start);
+			buffers[i] = channel.map(MapMode.READ_WRITE,
+				start * 4, length * 4);
+			buffers[i].order(ByteOrder.nativeOrder());
+			segments[i] = buffers[i].asFloatBuffer();
+		    }
+		} finally {
+		    matrixFile.close();
+		}
+	    } catch (IOException e) {
+		close();
+		throw e;
+	    }
+	}
+
+	long size() {
+	    return size;
+	}
+
+	float get(long index) {
+	    return segments[(int) (index >>> SEGMENT_SHIFT)]
+		    .get((int) (index & SEGMENT_MASK));
+	}
+
+	void set(long index, float value) {
+	    segments[(int) (index >>> SEGMENT_SHIFT)].put(
+		    (int) (index & SEGMENT_MASK), value);
+	}
+
+	void close() {
+	    // The file can't be deleted on some platforms while it is mapped
+	    for (int i = 0; i < buffers.length; i++) {
+		if (buffers[i] == null)
+		    continue;
+		try {
+		    RawDataFileImpl.unmap(buffers[i]);
+		} catch (Exception e) {
+		    logger.fine("Could not unmap the distance matrix: " + e);
+		}
+		buffers[i] = null;
+		segments[i] = null;
+	    }
+	    if (!file.delete())
+		logger.fine("Could not delete " + file);
+	}
+
+    }
+
+    /**
+     * Sorts the merges found by the nearest-neighbor chain by their heights and
+     * converts them to the hclust() format
+     */
+    private ClusteringTree createTree(final int mergedA[],
+	    final int mergedB[], final double mergeHeights[]) {
+
+	final int numOfMerges = mergedA.length;
+	Integer steps[] = new Integer[numOfMerges];
+	for (int i = 0; i < numOfMerges; i++)
+	    steps[i] = i;
+	Arrays.sort(steps, new Comparator<Integer>() {
+	    public int compare(Integer step1, Integer step2) {
+		return Double.compare(mergeHeights[step1], mergeHeights[step2]);
+	    }
+	});
+
+	// Union-find over the items, each root knows its current cluster
+	int parents[] = new int[numOfRows];
+	int labels[] = new int[numOfRows];
+	for (int i = 0; i < numOfRows; i++) {
+	    parents[i] = i;
+	    labels[i] = -(i + 1);
+	}
+
+	int merge[][] = new int[numOfMerges][];
+	double heights[] = new double[numOfMerges];
+	for (int i = 0; i < numOfMerges; i++) {
+	    int step = steps[i];
+	    int rootA = findRoot(parents, mergedA[step]);
+	    int rootB = findRoot(parents, mergedB[step]);
+	    int labelA = labels[rootA], labelB = labels[rootB];
+
+	    // Same order as hclust(): single items first, then lower numbers
+	    boolean swap;
+	    if ((labelA < 0) && (labelB < 0))
+		swap = labelB > labelA;
+	    else if ((labelA < 0) || (labelB < 0))
+		swap = labelB < 0;
+	    else
+		swap = labelB < labelA;
+	    merge[i] = swap ? new int[] { labelB, labelA } : new int[] {
+		    labelA, labelB };
+	    heights[i] = mergeHeights[step];
+
+	    parents[rootB] = rootA;
+	    labels[rootA] = i + 1;
+	}
+
+	return new ClusteringTree(numOfRows, merge, heights);
+    }
+
+    private static int findRoot(int parents[], int item) {
+	int root = item;
+	while (parents[root] != root)
+	    root = parents[root];
+	// Path compression
+	while (parents[item] != root) {
+	    int next = parents[item];
+	    parents[item] = root;
+	    item = next;
+	}
+	return root;
+    }
+
+}
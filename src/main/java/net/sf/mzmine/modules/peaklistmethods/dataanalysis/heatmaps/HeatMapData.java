@@ -0,0 +1,466 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.UserParameter;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
+import org.apache.commons.math.stat.inference.TTestImpl;
+
+/**
+ * Data matrix of a heat map, shared by the R and Java based heat map tasks.
+ * The matrix is indexed [column][row]: columns are the samples (or the sample
+ * groups) and rows are the peak list rows.
+ */
+class HeatMapData {
+
+    private final MZmineProject project;
+    private final PeakList peakList;
+    private final boolean log, rcontrol, scale, plegend, area,
+	    onlyIdentified;
+    private final UserParameter<?, ?> selectedParameter;
+    private final Object referenceGroup;
+
+    private double[][] dataMatrix;
+    private String[] rowNames, colNames;
+    private String[][] pValueMatrix;
+
+    HeatMapData(MZmineProject project, PeakList peakList,
+	    ParameterSet parameters) {
+
+	this.project = project;
+	this.peakList = peakList;
+
+	selectedParameter = parameters.getParameter(
+		HeatMapParameters.selectionData).getValue();
+	referenceGroup = parameters.getParameter(
+		HeatMapParameters.referenceGroup).getValue();
+	area = parameters.getParameter(HeatMapParameters.usePeakArea)
+		.getValue();
+	onlyIdentified = parameters.getParameter(
+		HeatMapParameters.useIdenfiedRows).getValue();
+
+	log = parameters.getParameter(HeatMapParameters.log).getValue();
+	scale = parameters.getParameter(HeatMapParameters.scale).getValue();
+	rcontrol = parameters
+		.getParameter(HeatMapParameters.showControlSamples).getValue();
+	plegend = parameters.getParameter(HeatMapParameters.plegend).getValue();
+
+	if (plegend) {
+	    dataMatrix = groupingDataset(selectedParameter,
+		    referenceGroup.toString());
+	} else {
+	    dataMatrix = modifySimpleDataset(selectedParameter,
+		    referenceGroup.toString());
+	}
+
+    }
+
+    double[][] getDataMatrix() {
+	return dataMatrix;
+    }
+
+    String[] getRowNames() {
+	return rowNames;
+    }
+
+    String[] getColumnNames() {
+	return colNames;
+    }
+
+    /**
+     * @return Significance stars of each cell, or null if the p-values are not
+     *         shown
+     */
+    String[][] getPValueMatrix() {
+	return pValueMatrix;
+    }
+
+    private double[][] modifySimpleDataset(
+	    UserParameter<?, ?> selectedParameter, String referenceGroup) {
+
+	// Collect all data files
+	Vector<RawDataFile> allDataFiles = new Vector<RawDataFile>();
+	allDataFiles.addAll(Arrays.asList(peakList.getRawDataFiles()));
+
+	// Determine the reference group and non reference group (the rest of
+	// the samples) for raw data files
+	List<RawDataFile> referenceDataFiles = new ArrayList<RawDataFile>();
+	List<RawDataFile> nonReferenceDataFiles = new ArrayList<RawDataFile>();
+
+	for (RawDataFile rawDataFile : allDataFiles) {
+
+	    Object paramValue = project.getParameterValue(selectedParameter,
+		    rawDataFile);
+
+	    if (paramValue.equals(referenceGroup)) {
+
+		referenceDataFiles.add(rawDataFile);
+	    } else {
+
+		nonReferenceDataFiles.add(rawDataFile);
+	    }
+	}
+
+	int numRows = 0;
+	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
+
+	    if (!onlyIdentified
+		    || (onlyIdentified && peakList.getRow(row)
+			    .getPeakIdentities().length > 0)) {
+		numRows++;
+	    }
+	}
+
+	// Create a new aligned peak list with all the samples if the reference
+	// group has to be shown or with only
+	// the non reference group if not.
+	double[][] dataMatrix;
+	if (rcontrol) {
+	    dataMatrix = new double[allDataFiles.size()][numRows];
+	} else {
+	    dataMatrix = new double[nonReferenceDataFiles.size()][numRows];
+	}
+
+	// Data files that should be in the heat map
+	List<RawDataFile> shownDataFiles = null;
+	if (rcontrol) {
+	    shownDataFiles = allDataFiles;
+	} else {
+	    shownDataFiles = nonReferenceDataFiles;
+	}
+
+	for (int row = 0, rowIndex = 0; row < peakList.getNumberOfRows(); row++) {
+	    PeakListRow rowPeak = peakList.getRow(row);
+	    if (!onlyIdentified
+		    || (onlyIdentified && rowPeak.getPeakIdentities().length > 0)) {
+
+		// Average area or height of the reference group
+		double referenceAverage = 0;
+		int referencePeakCount = 0;
+		for (int column = 0; column < referenceDataFiles.size(); column++) {
+
+		    if (rowPeak.getPeak(referenceDataFiles.get(column)) != null) {
+
+			if (area) {
+
+			    referenceAverage += rowPeak.getPeak(
+				    referenceDataFiles.get(column)).getArea();
+			} else {
+
+			    referenceAverage += rowPeak.getPeak(
+				    referenceDataFiles.get(column)).getHeight();
+			}
+			referencePeakCount++;
+		    }
+		}
+		if (referencePeakCount > 0) {
+
+		    referenceAverage /= referencePeakCount;
+		}
+
+		// Divide the area or height of each peak by the average of the
+		// area or height of the reference peaks in each row
+		for (int column = 0; column < shownDataFiles.size(); column++) {
+		    double value = Double.NaN;
+		    if (rowPeak.getPeak(shownDataFiles.get(column)) != null) {
+
+			Feature peak = rowPeak.getPeak(shownDataFiles
+				.get(column));
+			if (area) {
+
+			    value = peak.getArea() / referenceAverage;
+			} else {
+
+			    value = peak.getHeight() / referenceAverage;
+			}
+			if (log) {
+
+			    value = Math.log(value);
+			}
+		    }
+
+		    dataMatrix[column][rowIndex] = value;
+		}
+		rowIndex++;
+	    }
+	}
+
+	// Scale the data dividing the peak area/height by the standard
+	// deviation of each column
+	if (scale) {
+	    scale(dataMatrix);
+	}
+
+	// Create two arrays: row and column names
+	rowNames = new String[dataMatrix[0].length];
+	colNames = new String[shownDataFiles.size()];
+
+	for (int column = 0; column < shownDataFiles.size(); column++) {
+
+	    colNames[column] = shownDataFiles.get(column).getName();
+	}
+	for (int row = 0, rowIndex = 0; row < peakList.getNumberOfRows(); row++) {
+	    if (!onlyIdentified
+		    || (onlyIdentified && peakList.getRow(row)
+			    .getPeakIdentities().length > 0)) {
+		if (peakList.getRow(row).getPeakIdentities() != null
+			&& peakList.getRow(row).getPeakIdentities().length > 0) {
+
+		    rowNames[rowIndex++] = peakList.getRow(row)
+			    .getPreferredPeakIdentity().getName();
+		} else {
+
+		    rowNames[rowIndex++] = "Unknown";
+		}
+	    }
+	}
+
+	return dataMatrix;
+    }
+
+    private void scale(double[][] peakList) {
+	DescriptiveStatistics stdDevStats = new DescriptiveStatistics();
+
+	for (int columns = 0; columns < peakList.length; columns++) {
+	    stdDevStats.clear();
+	    for (int row = 0; row < peakList[columns].length; row++) {
+		if (!Double.isInfinite(peakList[columns][row])
+			&& !Double.isNaN(peakList[columns][row])) {
+		    stdDevStats.addValue(peakList[columns][row]);
+		}
+	    }
+
+	    double stdDev = stdDevStats.getStandardDeviation();
+
+	    for (int row = 0; row < peakList[columns].length; row++) {
+		if (stdDev != 0) {
+		    peakList[columns][row] = peakList[columns][row] / stdDev;
+		}
+	    }
+	}
+    }
+
+    private double[][] groupingDataset(UserParameter<?, ?> selectedParameter,
+	    String referenceGroup) {
+	// Collect all data files
+	Vector<RawDataFile> allDataFiles = new Vector<RawDataFile>();
+	DescriptiveStatistics meanControlStats = new DescriptiveStatistics();
+	DescriptiveStatistics meanGroupStats = new DescriptiveStatistics();
+	allDataFiles.addAll(Arrays.asList(peakList.getRawDataFiles()));
+
+	// Determine the reference group and non reference group (the rest of
+	// the samples) for raw data files
+	List<RawDataFile> referenceDataFiles = new ArrayList<RawDataFile>();
+	List<RawDataFile> nonReferenceDataFiles = new ArrayList<RawDataFile>();
+
+	List<String> groups = new ArrayList<String>();
+
+	for (RawDataFile rawDataFile : allDataFiles) {
+
+	    Object paramValue = project.getParameterValue(selectedParameter,
+		    rawDataFile);
+	    if (!groups.contains(String.valueOf(paramValue))) {
+		groups.add(String.valueOf(paramValue));
+	    }
+	    if (String.valueOf(paramValue).equals(referenceGroup)) {
+
+		referenceDataFiles.add(rawDataFile);
+	    } else {
+
+		nonReferenceDataFiles.add(rawDataFile);
+	    }
+	}
+
+	int numRows = 0;
+	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
+
+	    if (!onlyIdentified
+		    || (onlyIdentified && peakList.getRow(row)
+			    .getPeakIdentities().length > 0)) {
+		numRows++;
+	    }
+	}
+
+	// Create a new aligned peak list with all the samples if the reference
+	// group has to be shown or with only
+	// the non reference group if not.
+	double[][] dataMatrix = new double[groups.size() - 1][numRows];
+	pValueMatrix = new String[groups.size() - 1][numRows];
+
+	// data files that should be in the heat map
+	List<RawDataFile> shownDataFiles = nonReferenceDataFiles;
+
+	for (int row = 0, rowIndex = 0; row < peakList.getNumberOfRows(); row++) {
+	    PeakListRow rowPeak = peakList.getRow(row);
+	    if (!onlyIdentified
+		    || (onlyIdentified && rowPeak.getPeakIdentities().length > 0)) {
+		// Average area or height of the reference group
+		meanControlStats.clear();
+		for (int column = 0; column < referenceDataFiles.size(); column++) {
+
+		    if (rowPeak.getPeak(referenceDataFiles.get(column)) != null) {
+
+			if (area) {
+
+			    meanControlStats.addValue(rowPeak.getPeak(
+				    referenceDataFiles.get(column)).getArea());
+			} else {
+
+			    meanControlStats
+				    .addValue(rowPeak.getPeak(
+					    referenceDataFiles.get(column))
+					    .getHeight());
+			}
+
+		    }
+		}
+
+		// Divide the area or height of each peak by the average of the
+		// area or height of the reference peaks in each row
+		int columnIndex = 0;
+		for (int column = 0; column < groups.size(); column++) {
+		    String group = groups.get(column);
+		    meanGroupStats.clear();
+		    if (!group.equals(referenceGroup)) {
+
+			for (int dataColumn = 0; dataColumn < shownDataFiles
+				.size(); dataColumn++) {
+
+			    Object paramValue = project.getParameterValue(
+				    selectedParameter,
+				    shownDataFiles.get(dataColumn));
+			    if (rowPeak.getPeak(shownDataFiles.get(dataColumn)) != null
+				    && String.valueOf(paramValue).equals(group)) {
+
+				Feature peak = rowPeak.getPeak(shownDataFiles
+					.get(dataColumn));
+
+				if (!Double.isInfinite(peak.getArea())
+					&& !Double.isNaN(peak.getArea())) {
+
+				    if (area) {
+
+					meanGroupStats.addValue(peak.getArea());
+				    } else {
+
+					meanGroupStats.addValue(peak
+						.getHeight());
+				    }
+				}
+
+			    }
+			}
+
+			double value = meanGroupStats.getMean()
+				/ meanControlStats.getMean();
+			if (meanGroupStats.getN() > 1
+				&& meanControlStats.getN() > 1) {
+			    pValueMatrix[columnIndex][rowIndex] = this
+				    .getPvalue(meanGroupStats, meanControlStats);
+			} else {
+			    pValueMatrix[columnIndex][rowIndex] = "";
+			}
+
+			if (log) {
+
+			    value = Math.log(value);
+			}
+			dataMatrix[columnIndex++][rowIndex] = value;
+		    }
+		}
+		rowIndex++;
+	    }
+	}
+
+	// Scale the data dividing the peak area/height by the standard
+	// deviation of each column
+	if (scale) {
+	    scale(dataMatrix);
+	}
+
+	// Create two arrays: row and column names
+	rowNames = new String[dataMatrix[0].length];
+	colNames = new String[groups.size() - 1];
+
+	int columnIndex = 0;
+	for (String group : groups) {
+
+	    if (!group.equals(referenceGroup)) {
+
+		colNames[columnIndex++] = group;
+	    }
+	}
+	for (int row = 0, rowIndex = 0; row < peakList.getNumberOfRows(); row++) {
+	    if (!onlyIdentified
+		    || (onlyIdentified && peakList.getRow(row)
+			    .getPeakIdentities().length > 0)) {
+		if (peakList.getRow(row).getPeakIdentities() != null
+			&& peakList.getRow(row).getPeakIdentities().length > 0) {
+
+		    rowNames[rowIndex++] = peakList.getRow(row)
+			    .getPreferredPeakIdentity().getName();
+		} else {
+
+		    rowNames[rowIndex++] = "Unknown";
+		}
+	    }
+	}
+
+	return dataMatrix;
+    }
+
+    private String getPvalue(DescriptiveStatistics group1,
+	    DescriptiveStatistics group2) {
+	TTestImpl ttest = new TTestImpl();
+	String sig = "";
+	try {
+	    double pValue = ttest.tTest(group1, group2);
+	    if (pValue < 0.05) {
+		sig = "*";
+	    }
+	    if (pValue < 0.01) {
+		sig = "**";
+	    }
+	    if (pValue < 0.001) {
+		sig = "***";
+	    }
+
+	} catch (IllegalArgumentException ex) {
+	    sig = "-";
+
+	} catch (MathException ex) {
+	    sig = "-";
+	}
+	return sig;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Output device of the heat map renderer. Coordinates start at the top left
+ * corner and grow to the right and down. The unit is a pixel for raster
+ * outputs and a point (1/72 inch) for vector outputs.
+ */
+abstract class HeatMapGraphics {
+
+    protected final double width, height;
+
+    HeatMapGraphics(double width, double height) {
+	this.width = width;
+	this.height = height;
+    }
+
+    double getWidth() {
+	return width;
+    }
+
+    double getHeight() {
+	return height;
+    }
+
+    /**
+     * @return Number of image pixels per unit which are worth drawing
+     */
+    abstract double getImageResolution();
+
+    abstract void fillRect(double x, double y, double w, double h,
+	    Color color) throws IOException;
+
+    abstract void drawLine(double x1, double y1, double x2, double y2,
+	    Color color) throws IOException;
+
+    /**
+     * Draws the image stretched to the given rectangle, without smoothing the
+     * pixels.
+     */
+    abstract void drawImage(BufferedImage image, double x, double y,
+	    double w, double h) throws IOException;
+
+    /**
+     * Draws the text starting at the given point of its baseline. Vertical
+     * text runs downwards.
+     */
+    abstract void drawString(String text, double x, double y,
+	    double fontSize, Color color, boolean vertical) throws IOException;
+
+    /**
+     * Writes the output file.
+     */
+    abstract void finish() throws IOException;
+
+    /**
+     * Formats the number with up to two decimal places and without an
+     * exponent, as required by the PDF and SVG formats.
+     */
+    static String formatNumber(double value) {
+	long scaled = Math.round(value * 100);
+	StringBuilder result = new StringBuilder();
+	if (scaled < 0) {
+	    result.append('-');
+	    scaled = -scaled;
+	}
+	result.append(scaled / 100);
+	int fraction = (int) (scaled % 100);
+	if (fraction != 0) {
+	    result.append('.');
+	    result.append(fraction / 10);
+	    if (fraction % 10 != 0)
+		result.append(fraction % 10);
+	}
+	return result.toString();
+    }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.ClusteringTree;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+
+/**
+ * Draws a clustered heat map with the same layout as the heatmap.2() function
+ * of the gplots R package: color key at the top left, column dendrogram at the
+ * top, row dendrogram at the left and the matrix at the bottom right, with the
+ * first row of the dendrogram order at the bottom. The matrix is drawn as one
+ * raster image, binned down to the resolution of the output if there are more
+ * rows or columns than pixels.
+ */
+class HeatMapRenderer {
+
+    /**
+     * Height of one line of text, in units of the output (R's default for a 12
+     * point font at 72 dpi)
+     */
+    private static final double LINE_HEIGHT = 14.4;
+
+    private static final double BASE_FONT_SIZE = 12;
+
+    /**
+     * Relative sizes of the dendrogram and matrix panels, as in heatmap.2()
+     */
+    private static final double DENDROGRAM_SHARE = 1.5, MATRIX_SHARE = 4;
+
+    /**
+     * Text smaller than this is not drawn
+     */
+    private static final double MIN_FONT_SIZE = 2;
+
+    private static final Color NA_COLOR = new Color(190, 190, 190);
+
+    private static final Font MEASURE_FONT = new Font("SansSerif",
+	    Font.PLAIN, 100);
+    private static final FontRenderContext MEASURE_CONTEXT = new FontRenderContext(
+	    null, true, true);
+
+    private final double data[][];
+    private final String rowNames[], columnNames[];
+    private final String stars[][];
+    private final ClusteringTree rowTree, columnTree;
+    private final int rowOrder[], columnOrder[];
+    private final int columnMargin, rowMargin;
+    private final double starSize;
+    private final int numOfRows, numOfColumns;
+
+    private double minValue = 0, maxValue = 0;
+
+    /**
+     * @param data
+     *            Values indexed [row][column], NaN for missing values
+     * @param stars
+     *            Significance stars indexed [row][column], or null
+     * @param columnMargin
+     *            Space for the column names, in lines of text
+     * @param rowMargin
+     *            Space for the row names, in lines of text
+     * @param starSize
+     *            Size of the stars relative to the base font size
+     */
+    HeatMapRenderer(double data[][], String rowNames[],
+	    String columnNames[], String stars[][], ClusteringTree rowTree,
+	    int rowOrder[], ClusteringTree columnTree, int columnOrder[],
+	    int columnMargin, int rowMargin, double starSize) {
+	this.data = data;
+	this.rowNames = rowNames;
+	this.columnNames = columnNames;
+	this.stars = stars;
+	this.rowTree = rowTree;
+	this.rowOrder = rowOrder;
+	this.columnTree = columnTree;
+	this.columnOrder = columnOrder;
+	this.columnMargin = columnMargin;
+	this.rowMargin = rowMargin;
+	this.starSize = starSize;
+	this.numOfRows = data.length;
+	this.numOfColumns = columnNames.length;
+
+	for (double row[] : data) {
+	    for (double value : row) {
+		if (value < minValue)
+		    minValue = value;
+		if (value > maxValue)
+		    maxValue = value;
+	    }
+	}
+    }
+
+    void render(HeatMapGraphics g) throws IOException {
+
+	final double width = g.getWidth(), height = g.getHeight();
+	final double leftWidth = width * DENDROGRAM_SHARE
+		/ (DENDROGRAM_SHARE + MATRIX_SHARE);
+	final double topHeight = height * DENDROGRAM_SHARE
+		/ (DENDROGRAM_SHARE + MATRIX_SHARE);
+
+	// Matrix panel, leaving the margins for the names
+	double matrixX = leftWidth, matrixY = topHeight;
+	double matrixWidth = Math.max(1, width - leftWidth - rowMargin
+		* LINE_HEIGHT);
+	double matrixHeight = Math.max(1, height - topHeight - columnMargin
+		* LINE_HEIGHT);
+	double cellWidth = matrixWidth / numOfColumns;
+	double cellHeight = matrixHeight / numOfRows;
+
+	drawMatrix(g, matrixX, matrixY, matrixWidth, matrixHeight);
+
+	// Significance stars in the middle of the cells
+	if (stars != null) {
+	    double fontSize = Math.min(starSize * BASE_FONT_SIZE, cellHeight);
+	    if (fontSize >= MIN_FONT_SIZE) {
+		for (int position = 0; position < numOfRows; position++) {
+		    int row = rowOrder[position];
+		    double y = matrixY + matrixHeight - (position + 0.5)
+			    * cellHeight + 0.35 * fontSize;
+		    for (int i = 0; i < numOfColumns; i++) {
+			String text = stars[row][columnOrder[i]];
+			if ((text == null) || (text.length() == 0))
+			    continue;
+			double x = matrixX + (i + 0.5) * cellWidth
+				- getStringWidth(text, fontSize) / 2;
+			g.drawString(text, x, y, fontSize, Color.black, false);
+		    }
+		}
+	    }
+	}
+
+	// Row names at the right side, as in heatmap.2() the font size is
+	// 0.2 + 1 / log10(n) times the base size
+	double rowFontSize = Math.min(getLabelSize(numOfRows), cellHeight);
+	if (rowFontSize >= MIN_FONT_SIZE) {
+	    for (int position = 0; position < numOfRows; position++) {
+		double y = matrixY + matrixHeight - (position + 0.5)
+			* cellHeight + 0.35 * rowFontSize;
+		g.drawString(rowNames[rowOrder[position]], matrixX
+			+ matrixWidth + 0.5 * rowFontSize, y, rowFontSize,
+			Color.black, false);
+	    }
+	}
+
+	// Column names below the matrix
+	double columnFontSize = Math.min(getLabelSize(numOfColumns), cellWidth);
+	if (columnFontSize >= MIN_FONT_SIZE) {
+	    for (int i = 0; i < numOfColumns; i++) {
+		double x = matrixX + (i + 0.5) * cellWidth - 0.35
+			* columnFontSize;
+		g.drawString(columnNames[columnOrder[i]], x, matrixY
+			+ matrixHeight + 0.5 * columnFontSize, columnFontSize,
+			Color.black, true);
+	    }
+	}
+
+	// Row dendrogram at the left of the matrix, column dendrogram above
+	double gap = 0.05 * Math.min(leftWidth, topHeight);
+	if (rowTree != null)
+	    drawDendrogram(g, rowTree, rowOrder, matrixY + matrixHeight,
+		    -cellHeight, matrixX - gap, -(leftWidth - 2 * gap), true);
+	if (columnTree != null)
+	    drawDendrogram(g, columnTree, columnOrder, matrixX, cellWidth,
+		    matrixY - gap, -(topHeight - 2 * gap), false);
+
+	drawColorKey(g, leftWidth, topHeight);
+
+	g.finish();
+    }
+
+    /**
+     * Draws the matrix as an image, averaging the values of the rows and
+     * columns which fall into the same image pixel
+     */
+    private void drawMatrix(HeatMapGraphics g, double x, double y,
+	    double w, double h) throws IOException {
+
+	final int imageWidth = (int) Math.max(1, Math.min(numOfColumns,
+		Math.ceil(w * g.getImageResolution())));
+	final int imageHeight = (int) Math.max(1, Math.min(numOfRows,
+		Math.ceil(h * g.getImageResolution())));
+	final BufferedImage image = new BufferedImage(imageWidth,
+		imageHeight, BufferedImage.TYPE_INT_RGB);
+
+	ParallelUtils.processInParallel(imageHeight, 64,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+			int pixels[] = new int[imageWidth];
+			for (int i = startIndex; i < endIndex; i++) {
+			    getImageRow(i, imageWidth, imageHeight, pixels);
+			    image.setRGB(0, i, imageWidth, 1, pixels, 0,
+				    imageWidth);
+			}
+		    }
+		});
+
+	g.drawImage(image, x, y, w, h);
+    }
+
+    /**
+     * Calculates the colors of one row of the matrix image. The image starts
+     * with the last row of the order.
+     */
+    private void getImageRow(int pixelY, int imageWidth, int imageHeight,
+	    int pixels[]) {
+	int firstRow = (int) ((long) pixelY * numOfRows / imageHeight);
+	int lastRow = (int) ((long) (pixelY + 1) * numOfRows / imageHeight);
+	for (int pixelX = 0; pixelX < imageWidth; pixelX++) {
+	    int firstColumn = (int) ((long) pixelX * numOfColumns / imageWidth);
+	    int lastColumn = (int) ((long) (pixelX + 1) * numOfColumns
+		    / imageWidth);
+	    double sum = 0;
+	    int count = 0;
+	    for (int i = firstRow; i < lastRow; i++) {
+		double row[] = data[rowOrder[numOfRows - 1 - i]];
+		for (int j = firstColumn; j < lastColumn; j++) {
+		    double value = row[columnOrder[j]];
+		    if (!Double.isNaN(value)) {
+			sum += value;
+			count++;
+		    }
+		}
+	    }
+	    Color color = (count == 0) ? NA_COLOR : getColor(sum / count);
+	    pixels[pixelX] = color.getRGB();
+	}
+    }
+
+    /**
+     * Draws the dendrogram in rectangular style. The leaves are placed along
+     * the leaf axis starting at leafStart with leafStep per leaf, the heights
+     * along the height axis starting at heightStart, with the root at
+     * heightStart + heightLength.
+     */
+    private void drawDendrogram(HeatMapGraphics g, ClusteringTree tree,
+	    int order[], double leafStart, double leafStep,
+	    double heightStart, double heightLength, boolean horizontal)
+	    throws IOException {
+
+	int merge[][] = tree.getMerge();
+	double heights[] = tree.getHeights();
+	if (merge.length == 0)
+	    return;
+	double maxHeight = heights[heights.length - 1];
+	if (!(maxHeight > 0))
+	    maxHeight = 1;
+
+	double leafPositions[] = new double[order.length];
+	for (int i = 0; i < order.length; i++)
+	    leafPositions[order[i]] = leafStart + (i + 0.5) * leafStep;
+	double nodePositions[] = new double[merge.length];
+
+	for (int i = 0; i < merge.length; i++) {
+	    double nodeHeight = heightStart + heights[i] / maxHeight
+		    * heightLength;
+	    double childPositions[] = new double[2];
+	    for (int k = 0; k < 2; k++) {
+		int child = merge[i][k];
+		double childPosition, childHeight;
+		if (child < 0) {
+		    childPosition = leafPositions[-child - 1];
+		    childHeight = heightStart;
+		} else {
+		    childPosition = nodePositions[child - 1];
+		    childHeight = heightStart + heights[child - 1] / maxHeight
+			    * heightLength;
+		}
+		childPositions[k] = childPosition;
+		drawTreeLine(g, childPosition, childHeight, childPosition,
+			nodeHeight, horizontal);
+	    }
+	    drawTreeLine(g, childPositions[0], nodeHeight, childPositions[1],
+		    nodeHeight, horizontal);
+	    nodePositions[i] = (childPositions[0] + childPositions[1]) / 2;
+	}
+    }
+
+    private void drawTreeLine(HeatMapGraphics g, double position1,
+	    double height1, double position2, double height2,
+	    boolean horizontal) throws IOException {
+	if (horizontal)
+	    g.drawLine(height1, position1, height2, position2, Color.black);
+	else
+	    g.drawLine(position1, height1, position2, height2, Color.black);
+    }
+
+    /**
+     * Draws the color key with its scale into the top left panel
+     */
+    private void drawColorKey(HeatMapGraphics g, double panelWidth,
+	    double panelHeight) throws IOException {
+
+	double keyX = LINE_HEIGHT, keyWidth = panelWidth - 2 * LINE_HEIGHT;
+	double keyY = 1.5 * LINE_HEIGHT;
+	double keyHeight = Math.max(LINE_HEIGHT / 2, panelHeight - 4
+		* LINE_HEIGHT);
+	if (keyWidth <= 0)
+	    return;
+
+	double fontSize = 0.8 * BASE_FONT_SIZE;
+	g.drawString("Color Key", keyX, LINE_HEIGHT, fontSize, Color.black,
+		false);
+
+	int keyPixels = 256;
+	BufferedImage key = new BufferedImage(keyPixels, 1,
+		BufferedImage.TYPE_INT_RGB);
+	for (int i = 0; i < keyPixels; i++) {
+	    double value = minValue + (maxValue - minValue) * (i + 0.5)
+		    / keyPixels;
+	    key.setRGB(i, 0, getColor(value).getRGB());
+	}
+	g.drawImage(key, keyX, keyY, keyWidth, keyHeight);
+
+	// Scale at the minimum, zero and maximum
+	double scaleY = keyY + keyHeight;
+	double values[] = { minValue, 0, maxValue };
+	for (double value : values) {
+	    if ((value == 0) && ((minValue == 0) || (maxValue == 0)))
+		continue;
+	    double range = maxValue - minValue;
+	    double x = keyX
+		    + ((range > 0) ? (value - minValue) / range * keyWidth : 0);
+	    g.drawLine(x, scaleY, x, scaleY + 0.25 * LINE_HEIGHT, Color.black);
+	    String label = formatKeyValue(value);
+	    g.drawString(label, x - getStringWidth(label, fontSize) / 2,
+		    scaleY + 0.25 * LINE_HEIGHT + fontSize, fontSize,
+		    Color.black, false);
+	}
+	g.drawString("Value", keyX + keyWidth / 2
+		- getStringWidth("Value", fontSize) / 2, scaleY + 2.25
+		* LINE_HEIGHT, fontSize, Color.black, false);
+    }
+
+    /**
+     * Blue-white-red palette with white at zero, as bluered() with the breaks
+     * used by the R heat map
+     */
+    private Color getColor(double value) {
+	if (value < 0) {
+	    float ratio = (float) Math.max(0, 1 - value / minValue);
+	    return new Color(ratio, ratio, 1f);
+	} else {
+	    float ratio = (maxValue > 0) ? (float) Math.max(0, 1 - value
+		    / maxValue) : 1f;
+	    return new Color(1f, ratio, ratio);
+	}
+    }
+
+    private static double getLabelSize(int count) {
+	double cex = (count > 1) ? 0.2 + 1 / Math.log10(count) : 1;
+	return cex * BASE_FONT_SIZE;
+    }
+
+    private static String formatKeyValue(double value) {
+	if ((Math.abs(value) >= 100) || (value == 0))
+	    return String.valueOf(Math.round(value));
+	return String.format("%.2g", value);
+    }
+
+    private static double getStringWidth(String text, double fontSize) {
+	return MEASURE_FONT.getStringBounds(text, MEASURE_CONTEXT).getWidth()
+		* fontSize / MEASURE_FONT.getSize2D();
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.ClusteringTree;
+import net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical.HierarchicalClustering;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Heat map plot drawn in Java, without R. The data, the scaling and the
+ * significance stars are the same as in the R based heat map. Rows and columns
+ * are clustered by HierarchicalClustering, which uses complete linkage like
+ * R's hclust(). A distance matrix of the rows which does not fit into the
+ * heap is kept in a temporary file.
+ */
+public class NativeHeatMapTask extends AbstractTask {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final MZmineProject project;
+    private final PeakList peakList;
+    private final ParameterSet parameters;
+    private String outputType;
+    private int height, width, columnMargin, rowMargin, starSize;
+    private File outputFile;
+
+    private double finishedPercentage = 0.0;
+
+    /**
+     * Clustering in progress, and the part of the progress it covers
+     */
+    private volatile HierarchicalClustering clustering;
+    private double clusteringStart, clusteringShare;
+
+    public NativeHeatMapTask(MZmineProject project, PeakList peakList,
+	    ParameterSet parameters) {
+
+	this.project = project;
+	this.peakList = peakList;
+	this.parameters = parameters;
+
+	outputFile = parameters.getParameter(HeatMapParameters.fileName)
+		.getValue();
+	outputType = parameters.getParameter(
+		HeatMapParameters.fileTypeSelection).getValue();
+	height = parameters.getParameter(HeatMapParameters.height).getValue();
+	width = parameters.getParameter(HeatMapParameters.width).getValue();
+	columnMargin = parameters.getParameter(HeatMapParameters.columnMargin)
+		.getValue();
+	rowMargin = parameters.getParameter(HeatMapParameters.rowMargin)
+		.getValue();
+	starSize = parameters.getParameter(HeatMapParameters.star).getValue();
+
+    }
+
+    public String getTaskDescription() {
+	return "Heat map of " + peakList;
+    }
+
+    public double getFinishedPercentage() {
+	HierarchicalClustering currentClustering = clustering;
+	if (currentClustering != null)
+	    return clusteringStart + clusteringShare
+		    * currentClustering.getFinishedPercentage();
+	return finishedPercentage;
+    }
+
+    public void cancel() {
+	super.cancel();
+	HierarchicalClustering currentClustering = clustering;
+	if (currentClustering != null)
+	    currentClustering.cancel();
+    }
+
+    public void run() {
+
+	setStatus(TaskStatus.PROCESSING);
+
+	logger.info("Heat map plot of " + peakList);
+
+	if (outputType.contains("fig")) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage("The fig output is only supported by the R based heat map plot.");
+	    return;
+	}
+	if (outputType.contains("png") && (height < 500 || width < 500)) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage("Figure height or width is too small. Minimun height and width is 500.");
+	    return;
+	}
+
+	HeatMapData heatMapData = new HeatMapData(project, peakList,
+		parameters);
+	double dataMatrix[][] = heatMapData.getDataMatrix();
+	if (dataMatrix.length == 0 || dataMatrix[0].length == 0) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage("The data for heat map is empty.");
+	    return;
+	}
+
+	// Transpose to [row][column], leaving out the rows without any value,
+	// because their distances can't be calculated
+	final int numOfColumns = dataMatrix.length;
+	String allRowNames[] = heatMapData.getRowNames();
+	String pValueMatrix[][] = heatMapData.getPValueMatrix();
+	int numOfRows = 0;
+	double rows[][] = new double[allRowNames.length][];
+	String rowNames[] = new String[allRowNames.length];
+	String stars[][] = (pValueMatrix == null) ? null
+		: new String[allRowNames.length][];
+	for (int row = 0; row < allRowNames.length; row++) {
+	    double values[] = new double[numOfColumns];
+	    boolean hasValue = false;
+	    for (int column = 0; column < numOfColumns; column++) {
+		double value = dataMatrix[column][row];
+		if (Double.isInfinite(value))
+		    value = Double.NaN;
+		values[column] = value;
+		if (!Double.isNaN(value))
+		    hasValue = true;
+	    }
+	    if (!hasValue)
+		continue;
+	    if (stars != null) {
+		stars[numOfRows] = new String[numOfColumns];
+		for (int column = 0; column < numOfColumns; column++)
+		    stars[numOfRows][column] = pValueMatrix[column][row];
+	    }
+	    rowNames[numOfRows] = allRowNames[row];
+	    rows[numOfRows++] = values;
+	}
+	if (numOfRows == 0) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage("The data for heat map is empty.");
+	    return;
+	}
+	if (numOfRows < rows.length) {
+	    rows = Arrays.copyOf(rows, numOfRows);
+	    rowNames = Arrays.copyOf(rowNames, numOfRows);
+	    if (stars != null)
+		stars = Arrays.copyOf(stars, numOfRows);
+	}
+	finishedPercentage = 0.1;
+
+	// Cluster the rows and the columns, ordering the branches by the mean
+	// values like heatmap.2() does
+	double columns[][] = new double[numOfColumns][numOfRows];
+	for (int row = 0; row < numOfRows; row++) {
+	    for (int column = 0; column < numOfColumns; column++)
+		columns[column][row] = rows[row][column];
+	}
+	ClusteringTree rowTree, columnTree;
+	try {
+	    rowTree = cluster(rows, 0.1, 0.6);
+	    if (isCanceled())
+		return;
+	    columnTree = cluster(columns, 0.7, 0.1);
+	    if (isCanceled())
+		return;
+	} catch (IOException e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage("Could not cluster the heat map: "
+		    + e.getMessage());
+	    return;
+	}
+	finishedPercentage = 0.8;
+
+	int rowOrder[] = rowTree.getLeafOrder(getMeans(rows));
+	int columnOrder[] = columnTree.getLeafOrder(getMeans(columns));
+
+	HeatMapRenderer renderer = new HeatMapRenderer(rows, rowNames,
+		heatMapData.getColumnNames(), stars, rowTree, rowOrder,
+		columnTree, columnOrder, columnMargin, rowMargin, starSize);
+
+	try {
+	    HeatMapGraphics graphics;
+	    if (outputType.contains("png")) {
+		graphics = new PngHeatMapGraphics(outputFile, width, height);
+	    } else if (outputType.contains("svg")) {
+		graphics = new SvgHeatMapGraphics(outputFile, width * 72,
+			height * 72);
+	    } else {
+		graphics = new PdfHeatMapGraphics(outputFile, width * 72,
+			height * 72);
+	    }
+	    renderer.render(graphics);
+	} catch (Throwable t) {
+	    logger.log(Level.SEVERE, "Could not write the heat map", t);
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage("Could not write the heat map to " + outputFile
+		    + " (" + t.getMessage() + ")");
+	    return;
+	}
+
+	finishedPercentage = 1.0;
+	logger.info("Finished heat map plot of " + peakList + " with "
+		+ numOfRows + " rows");
+	setStatus(TaskStatus.FINISHED);
+
+    }
+
+    /**
+     * Clusters the rows of given data, reporting the progress in the given
+     * part of the task progress. Returns null if the task was canceled.
+     */
+    private ClusteringTree cluster(double data[][], double progressStart,
+	    double progressShare) throws IOException {
+	clusteringStart = progressStart;
+	clusteringShare = progressShare;
+	clustering = new HierarchicalClustering(data);
+	// A cancel() called before the field was set is caught here
+	if (isCanceled())
+	    clustering.cancel();
+	try {
+	    return clustering.cluster();
+	} finally {
+	    clustering = null;
+	    finishedPercentage = progressStart + progressShare;
+	}
+    }
+
+    /**
+     * Mean of each row, ignoring missing values
+     */
+    private static double[] getMeans(double data[][]) {
+	double means[] = new double[data.length];
+	for (int i = 0; i < data.length; i++) {
+	    double sum = 0;
+	    int count = 0;
+	    for (double value : data[i]) {
+		if (!Double.isNaN(value)) {
+		    sum += value;
+		    count++;
+		}
+	    }
+	    means[i] = (count > 0) ? sum / count : Double.NaN;
+	}
+	return means;
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Heat map output to a single page PDF file, sized in points. The file
+ * contains one compressed content stream, the standard Helvetica font and an
+ * image object for each raster image.
+ */
+class PdfHeatMapGraphics extends HeatMapGraphics {
+
+    /**
+     * Raster images are worth up to 4 pixels per point
+     */
+    private static final double IMAGE_RESOLUTION = 4;
+
+    private final File outputFile;
+    private final ByteArrayOutputStream contentData = new ByteArrayOutputStream();
+    private final OutputStream content = new DeflaterOutputStream(
+	    contentData);
+    private final List<byte[]> images = new ArrayList<byte[]>();
+    private final List<String> imageHeaders = new ArrayList<String>();
+    private Color fillColor, strokeColor;
+
+    PdfHeatMapGraphics(File outputFile, double width, double height)
+	    throws IOException {
+	super(width, height);
+	this.outputFile = outputFile;
+
+	// Flip the y axis so that the origin is at the top left corner
+	write("1 0 0 -1 0 " + formatNumber(height) + " cm 0.75 w\n");
+    }
+
+    double getImageResolution() {
+	return IMAGE_RESOLUTION;
+    }
+
+    void fillRect(double x, double y, double w, double h, Color color)
+	    throws IOException {
+	if (!color.equals(fillColor)) {
+	    write(formatColor(color) + " rg\n");
+	    fillColor = color;
+	}
+	write(formatNumber(x) + " " + formatNumber(y) + " " + formatNumber(w)
+		+ " " + formatNumber(h) + " re f\n");
+    }
+
+    void drawLine(double x1, double y1, double x2, double y2, Color color)
+	    throws IOException {
+	if (!color.equals(strokeColor)) {
+	    write(formatColor(color) + " RG\n");
+	    strokeColor = color;
+	}
+	write(formatNumber(x1) + " " + formatNumber(y1) + " m "
+		+ formatNumber(x2) + " " + formatNumber(y2) + " l S\n");
+    }
+
+    void drawImage(BufferedImage image, double x, double y, double w,
+	    double h) throws IOException {
+	int imageWidth = image.getWidth(), imageHeight = image.getHeight();
+	ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+	DeflaterOutputStream deflater = new DeflaterOutputStream(imageData);
+	byte rowData[] = new byte[imageWidth * 3];
+	for (int row = 0; row < imageHeight; row++) {
+	    for (int column = 0; column < imageWidth; column++) {
+		int rgb = image.getRGB(column, row);
+		rowData[column * 3] = (byte) (rgb >> 16);
+		rowData[column * 3 + 1] = (byte) (rgb >> 8);
+		rowData[column * 3 + 2] = (byte) rgb;
+	    }
+	    deflater.write(rowData);
+	}
+	deflater.close();
+	images.add(imageData.toByteArray());
+	imageHeaders.add("/Type /XObject /Subtype /Image /Width " + imageWidth
+		+ " /Height " + imageHeight
+		+ " /ColorSpace /DeviceRGB /BitsPerComponent 8"
+		+ " /Interpolate false /Filter /FlateDecode");
+
+	// The image space is flipped, too
+	write("q " + formatNumber(w) + " 0 0 " + formatNumber(-h) + " "
+		+ formatNumber(x) + " " + formatNumber(y + h) + " cm /Im"
+		+ images.size() + " Do Q\n");
+    }
+
+    void drawString(String text, double x, double y, double fontSize,
+	    Color color, boolean vertical) throws IOException {
+	if (!color.equals(fillColor)) {
+	    write(formatColor(color) + " rg\n");
+	    fillColor = color;
+	}
+	String matrix = vertical ? "0 1 1 0 " : "1 0 0 -1 ";
+	write("BT /F1 " + formatNumber(fontSize) + " Tf " + matrix
+		+ formatNumber(x) + " " + formatNumber(y) + " Tm (");
+	content.write(encodeText(text));
+	write(") Tj ET\n");
+    }
+
+    void finish() throws IOException {
+
+	content.close();
+
+	OutputStream output = new BufferedOutputStream(new FileOutputStream(
+		outputFile));
+	try {
+	    List<Long> offsets = new ArrayList<Long>();
+	    long position = 0;
+
+	    position += write(output, "%PDF-1.4\n");
+
+	    String imageNames = "";
+	    for (int i = 1; i <= images.size(); i++)
+		imageNames += " /Im" + i + " " + (5 + i) + " 0 R";
+
+	    offsets.add(position);
+	    position += write(output,
+		    "1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+	    offsets.add(position);
+	    position += write(output,
+		    "2 0 obj\n<< /Type /Pages /Kids [3 0 R] /Count 1 >>\n"
+			    + "endobj\n");
+	    offsets.add(position);
+	    position += write(output, "3 0 obj\n<< /Type /Page /Parent 2 0 R"
+		    + " /MediaBox [0 0 " + formatNumber(width) + " "
+		    + formatNumber(height) + "] /Contents 4 0 R"
+		    + " /Resources << /Font << /F1 5 0 R >> /XObject <<"
+		    + imageNames + " >> >> >>\nendobj\n");
+	    offsets.add(position);
+	    position += writeStream(output, 4, "/Filter /FlateDecode",
+		    contentData.toByteArray());
+	    offsets.add(position);
+	    position += write(output, "5 0 obj\n<< /Type /Font /Subtype /Type1"
+		    + " /BaseFont /Helvetica /Encoding /WinAnsiEncoding >>\n"
+		    + "endobj\n");
+	    for (int i = 0; i < images.size(); i++) {
+		offsets.add(position);
+		position += writeStream(output, 6 + i, imageHeaders.get(i),
+			images.get(i));
+	    }
+
+	    // Cross-reference table, with 20 bytes per entry
+	    StringBuilder xref = new StringBuilder();
+	    xref.append("xref\n0 " + (offsets.size() + 1) + "\n");
+	    xref.append("0000000000 65535 f \n");
+	    for (long offset : offsets)
+		xref.append(String.format("%010d 00000 n \n", offset));
+	    xref.append("trailer\n<< /Size " + (offsets.size() + 1)
+		    + " /Root 1 0 R >>\nstartxref\n" + position + "\n%%EOF\n");
+	    write(output, xref.toString());
+	} finally {
+	    output.close();
+	}
+    }
+
+    private void write(String text) throws IOException {
+	content.write(text.getBytes("US-ASCII"));
+    }
+
+    private static int write(OutputStream output, String text)
+	    throws IOException {
+	byte bytes[] = text.getBytes("US-ASCII");
+	output.write(bytes);
+	return bytes.length;
+    }
+
+    private static int writeStream(OutputStream output, int objectNumber,
+	    String dictionary, byte data[]) throws IOException {
+	int length = write(output, objectNumber + " 0 obj\n<< " + dictionary
+		+ " /Length " + data.length + " >>\nstream\n");
+	output.write(data);
+	length += data.length;
+	length += write(output, "\nendstream\nendobj\n");
+	return length;
+    }
+
+    private static String formatColor(Color color) {
+	return formatNumber(color.getRed() / 255.0) + " "
+		+ formatNumber(color.getGreen() / 255.0) + " "
+		+ formatNumber(color.getBlue() / 255.0);
+    }
+
+    /**
+     * Encodes the text as a PDF string in the WinAnsi encoding, which matches
+     * ISO-8859-1 for the printable characters. Other characters are replaced
+     * by a question mark.
+     */
+    private static byte[] encodeText(String text) {
+	ByteArrayOutputStream result = new ByteArrayOutputStream();
+	for (int i = 0; i < text.length(); i++) {
+	    char c = text.charAt(i);
+	    if ((c < 32) || ((c >= 127) && (c < 160)) || (c > 255))
+		c = '?';
+	    if ((c == '(') || (c == ')') || (c == '\\'))
+		result.write('\\');
+	    result.write(c);
+	}
+	return result.toByteArray();
+    }
+
+}
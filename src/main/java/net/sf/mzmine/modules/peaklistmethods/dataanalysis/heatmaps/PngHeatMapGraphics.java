@@ -0,0 +1,101 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Heat map output to a PNG file, sized in pixels.
+ */
+class PngHeatMapGraphics extends HeatMapGraphics {
+
+    private final File outputFile;
+    private final BufferedImage image;
+    private final Graphics2D g2;
+    private final Font font = new Font("SansSerif", Font.PLAIN, 12);
+
+    PngHeatMapGraphics(File outputFile, int width, int height) {
+	super(width, height);
+	this.outputFile = outputFile;
+	image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	g2 = image.createGraphics();
+	g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+		RenderingHints.VALUE_ANTIALIAS_ON);
+	g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+		RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+	g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+		RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+	g2.setStroke(new BasicStroke(1f));
+	g2.setColor(Color.white);
+	g2.fillRect(0, 0, width, height);
+    }
+
+    double getImageResolution() {
+	return 1;
+    }
+
+    void fillRect(double x, double y, double w, double h, Color color) {
+	g2.setColor(color);
+	g2.fill(new Rectangle2D.Double(x, y, w, h));
+    }
+
+    void drawLine(double x1, double y1, double x2, double y2, Color color) {
+	g2.setColor(color);
+	g2.draw(new Line2D.Double(x1, y1, x2, y2));
+    }
+
+    void drawImage(BufferedImage image, double x, double y, double w,
+	    double h) {
+	AffineTransform transform = new AffineTransform(w / image.getWidth(),
+		0, 0, h / image.getHeight(), x, y);
+	g2.drawImage(image, transform, null);
+    }
+
+    void drawString(String text, double x, double y, double fontSize,
+	    Color color, boolean vertical) {
+	AffineTransform oldTransform = g2.getTransform();
+	g2.setColor(color);
+	g2.setFont(font.deriveFont((float) fontSize));
+	g2.translate(x, y);
+	if (vertical)
+	    g2.rotate(Math.PI / 2);
+	g2.drawString(text, 0f, 0f);
+	g2.setTransform(oldTransform);
+    }
+
+    void finish() throws IOException {
+	g2.dispose();
+	ImageIO.write(image, "png", outputFile);
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.heatmaps;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.imageio.ImageIO;
+
+import com.Ostermiller.util.Base64;
+
+/**
+ * Heat map output to an SVG file, sized in points. Raster images are embedded
+ * as PNG data.
+ */
+class SvgHeatMapGraphics extends HeatMapGraphics {
+
+    /**
+     * Raster images are worth up to 4 pixels per point
+     */
+    private static final double IMAGE_RESOLUTION = 4;
+
+    private static final int MAX_PATH_LENGTH = 1 << 16;
+
+    private final Writer writer;
+
+    /**
+     * Consecutive lines of the same color are written as one path
+     */
+    private final StringBuilder path = new StringBuilder();
+    private Color pathColor;
+
+    SvgHeatMapGraphics(File outputFile, double width, double height)
+	    throws IOException {
+	super(width, height);
+	writer = new BufferedWriter(new OutputStreamWriter(
+		new FileOutputStream(outputFile), "UTF-8"));
+	writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+	writer.write("<svg xmlns=\"http://www.w3.org/2000/svg\" "
+		+ "xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\""
+		+ formatNumber(width) + "pt\" height=\"" + formatNumber(height)
+		+ "pt\" viewBox=\"0 0 " + formatNumber(width) + " "
+		+ formatNumber(height) + "\">\n");
+	fillRect(0, 0, width, height, Color.white);
+    }
+
+    double getImageResolution() {
+	return IMAGE_RESOLUTION;
+    }
+
+    void fillRect(double x, double y, double w, double h, Color color)
+	    throws IOException {
+	write("<rect x=\"" + formatNumber(x) + "\" y=\"" + formatNumber(y)
+		+ "\" width=\"" + formatNumber(w) + "\" height=\""
+		+ formatNumber(h) + "\" fill=\"" + formatColor(color)
+		+ "\"/>\n");
+    }
+
+    void drawLine(double x1, double y1, double x2, double y2, Color color)
+	    throws IOException {
+	if (!color.equals(pathColor) || (path.length() > MAX_PATH_LENGTH))
+	    flushPath();
+	pathColor = color;
+	path.append('M').append(formatNumber(x1)).append(' ')
+		.append(formatNumber(y1)).append('L')
+		.append(formatNumber(x2)).append(' ')
+		.append(formatNumber(y2));
+    }
+
+    void drawImage(BufferedImage image, double x, double y, double w,
+	    double h) throws IOException {
+	ByteArrayOutputStream pngData = new ByteArrayOutputStream();
+	ImageIO.write(image, "png", pngData);
+	String encodedData = new String(Base64.encode(pngData.toByteArray()),
+		"US-ASCII");
+	write("<image x=\"" + formatNumber(x) + "\" y=\"" + formatNumber(y)
+		+ "\" width=\"" + formatNumber(w) + "\" height=\""
+		+ formatNumber(h) + "\" preserveAspectRatio=\"none\" "
+		+ "style=\"image-rendering:optimizeSpeed;"
+		+ "image-rendering:pixelated\" "
+		+ "xlink:href=\"data:image/png;base64," + encodedData
+		+ "\"/>\n");
+    }
+
+    void drawString(String text, double x, double y, double fontSize,
+	    Color color, boolean vertical) throws IOException {
+	String position = formatNumber(x) + " " + formatNumber(y);
+	write("<text x=\"" + formatNumber(x) + "\" y=\"" + formatNumber(y)
+		+ "\" font-family=\"Helvetica, Arial, sans-serif\" "
+		+ "font-size=\"" + formatNumber(fontSize) + "\" fill=\""
+		+ formatColor(color) + "\""
+		+ (vertical ? " transform=\"rotate(90 " + position + ")\"" : "")
+		+ ">" + escape(text) + "</text>\n");
+    }
+
+    void finish() throws IOException {
+	flushPath();
+	writer.write("</svg>\n");
+	writer.close();
+    }
+
+    /**
+     * Writes the element, after any pending lines
+     */
+    private void write(String element) throws IOException {
+	flushPath();
+	writer.write(element);
+    }
+
+    private void flushPath() throws IOException {
+	if (path.length() == 0)
+	    return;
+	String element = "<path d=\"" + path + "\" fill=\"none\" stroke=\""
+		+ formatColor(pathColor) + "\" stroke-width=\"0.75\"/>\n";
+	path.setLength(0);
+	write(element);
+    }
+
+    private static String formatColor(Color color) {
+	return String.format("#%02x%02x%02x", color.getRed(),
+		color.getGreen(), color.getBlue());
+    }
+
+    private static String escape(String text) {
+	return text.replace("&", "&amp;").replace("<", "&lt;")
+		.replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+}
@@ -22,9 +22,6 @@ package net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots;
 import java.util.Vector;
 import java.util.logging.Logger;
 
-import jmprojection.PCA;
-import jmprojection.Preprocess;
-import jmprojection.ProjectionStatus;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
@@ -69,7 +66,7 @@ public class PCADataset extends AbstractXYDataset implements
     private TaskStatus status = TaskStatus.WAITING;
     private String errorMessage;
 
-    private ProjectionStatus projectionStatus;
+    private RandomizedPCA pca;
 
     public PCADataset(MZmineProject project, ParameterSet parameters) {
 
@@ -233,13 +230,12 @@ public class PCADataset extends AbstractXYDataset implements
 	    numComponents = yAxisPC;
 
 	// Scale data and do PCA
-	Preprocess.scaleToUnityVariance(rawData);
-	PCA pcaProj = new PCA(rawData, numComponents);
-	projectionStatus = pcaProj.getProjectionStatus();
+	pca = new RandomizedPCA(rawData, numComponents);
 
-	double[][] result = pcaProj.getState();
+	double[][] result = pca.compute();
 
-	if (status == TaskStatus.CANCELED)
+	// The result is null if the PCA was canceled
+	if ((result == null) || (status == TaskStatus.CANCELED))
 	    return;
 
 	component1Coords = result[xAxisPC - 1];
@@ -255,8 +251,8 @@ public class PCADataset extends AbstractXYDataset implements
     }
 
     public void cancel() {
-	if (projectionStatus != null)
-	    projectionStatus.cancel();
+	if (pca != null)
+	    pca.cancel();
 	status = TaskStatus.CANCELED;
     }
 
@@ -273,9 +269,9 @@ public class PCADataset extends AbstractXYDataset implements
     }
 
     public double getFinishedPercentage() {
-	if (projectionStatus == null)
+	if (pca == null)
 	    return 0;
-	return projectionStatus.getFinishedPercentage();
+	return pca.getFinishedPercentage();
     }
 
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots;
+
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+
+/**
+ * Data matrix of a projection, with the projected items in rows. The columns
+ * are centered and scaled to unit variance. The values are stored in blocks of
+ * columns, so that the products with other matrices can be computed in
+ * parallel, either by ranges of rows or by blocks of columns.
+ */
+class ProjectionMatrix {
+
+    private static final int BLOCK_WIDTH = 256;
+
+    private final int numOfRows, numOfColumns;
+
+    /**
+     * Each block contains the values of up to BLOCK_WIDTH columns, row by row
+     */
+    private final double blocks[][];
+
+    ProjectionMatrix(double data[][]) {
+
+	numOfRows = data.length;
+	numOfColumns = (numOfRows == 0) ? 0 : data[0].length;
+	int numOfBlocks = (numOfColumns + BLOCK_WIDTH - 1) / BLOCK_WIDTH;
+	blocks = new double[numOfBlocks][];
+
+	for (int b = 0; b < numOfBlocks; b++) {
+	    int firstColumn = b * BLOCK_WIDTH;
+	    int width = getBlockWidth(b);
+	    double block[] = new double[numOfRows * width];
+	    for (int c = 0; c < width; c++) {
+		int column = firstColumn + c;
+		double sum = 0, sumOfSquares = 0;
+		for (int i = 0; i < numOfRows; i++) {
+		    sum += data[i][column];
+		    sumOfSquares += data[i][column] * data[i][column];
+		}
+		double mean = sum / numOfRows;
+		double variance = (numOfRows > 1) ? (sumOfSquares - sum * mean)
+			/ (numOfRows - 1) : 0;
+		double scale = (variance > 0) ? 1 / Math.sqrt(variance) : 0;
+		for (int i = 0; i < numOfRows; i++)
+		    block[i * width + c] = (data[i][column] - mean) * scale;
+	    }
+	    blocks[b] = block;
+	}
+    }
+
+    int getNumberOfRows() {
+	return numOfRows;
+    }
+
+    int getNumberOfColumns() {
+	return numOfColumns;
+    }
+
+    /**
+     * Copies the values of one row into the given array
+     */
+    void getRow(int row, double values[]) {
+	for (int b = 0; b < blocks.length; b++) {
+	    int width = getBlockWidth(b);
+	    System.arraycopy(blocks[b], row * width, values, b * BLOCK_WIDTH,
+		    width);
+	}
+    }
+
+    /**
+     * Returns this matrix multiplied by the given numOfColumns x k matrix,
+     * calculated in parallel by ranges of rows
+     */
+    double[][] multiply(final double right[][]) {
+	final int k = right[0].length;
+	final double result[][] = new double[numOfRows][k];
+	ParallelUtils.processInParallel(numOfRows, 256,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+			for (int b = 0; b < blocks.length; b++)
+			    multiplyBlock(b, right, result, startIndex,
+				    endIndex);
+		    }
+		});
+	return result;
+    }
+
+    private void multiplyBlock(int b, double right[][], double result[][],
+	    int startRow, int endRow) {
+	final double block[] = blocks[b];
+	final int width = getBlockWidth(b), firstColumn = b * BLOCK_WIDTH;
+	final int k = result[0].length;
+	for (int i = startRow; i < endRow; i++) {
+	    double resultRow[] = result[i];
+	    for (int c = 0; c < width; c++) {
+		double value = block[i * width + c];
+		if (value == 0)
+		    continue;
+		double rightRow[] = right[firstColumn + c];
+		for (int j = 0; j < k; j++)
+		    resultRow[j] += value * rightRow[j];
+	    }
+	}
+    }
+
+    /**
+     * Returns the transpose of this matrix multiplied by the given numOfRows x
+     * k matrix, calculated in parallel by blocks of columns
+     */
+    double[][] multiplyTransposed(final double left[][]) {
+	final int k = left[0].length;
+	final double result[][] = new double[numOfColumns][k];
+	ParallelUtils.processInParallel(blocks.length, 1,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+			for (int b = startIndex; b < endIndex; b++) {
+			    double block[] = blocks[b];
+			    int width = getBlockWidth(b);
+			    int firstColumn = b * BLOCK_WIDTH;
+			    for (int i = 0; i < numOfRows; i++) {
+				double leftRow[] = left[i];
+				for (int c = 0; c < width; c++) {
+				    double value = block[i * width + c];
+				    if (value == 0)
+					continue;
+				    double resultRow[] = result[firstColumn
+					    + c];
+				    for (int j = 0; j < k; j++)
+					resultRow[j] += value * leftRow[j];
+				}
+			    }
+			}
+		    }
+		});
+	return result;
+    }
+
+    private int getBlockWidth(int b) {
+	return Math.min(BLOCK_WIDTH, numOfColumns - b * BLOCK_WIDTH);
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots;
+
+import java.util.Random;
+
+/**
+ * Principal component analysis by randomized truncated singular value
+ * decomposition (Halko, Martinsson and Tropp, 2011). The range of the data
+ * matrix is sampled by a few more random vectors than the number of requested
+ * components and refined by power iterations. Only the small projected matrix
+ * is decomposed exactly, so the cost grows linearly with the size of the data.
+ * The products with the data matrix are calculated in parallel.
+ */
+public class RandomizedPCA {
+
+    /**
+     * Number of random vectors in addition to the requested components
+     */
+    private static final int OVERSAMPLING = 10;
+
+    private static final int POWER_ITERATIONS = 2;
+
+    /**
+     * Fixed seed, so that the same data always give the same plot
+     */
+    private static final long RANDOM_SEED = 1;
+
+    private final ProjectionMatrix matrix;
+    private final int numOfComponents;
+
+    private volatile boolean canceled = false;
+    private volatile int processedSteps = 0;
+    private final int totalSteps = 2 * POWER_ITERATIONS + 3;
+
+    /**
+     * @param data
+     *            Data matrix, with the projected items in rows. The columns
+     *            are scaled to unit variance.
+     * @param numOfComponents
+     *            Number of principal components to calculate
+     */
+    public RandomizedPCA(double data[][], int numOfComponents) {
+	this(new ProjectionMatrix(data), numOfComponents);
+    }
+
+    RandomizedPCA(ProjectionMatrix matrix, int numOfComponents) {
+	this.matrix = matrix;
+	this.numOfComponents = numOfComponents;
+    }
+
+    /**
+     * Returns the scores of the items, indexed [component][item]. Components
+     * beyond the rank of the data have zero scores. Returns null if the
+     * calculation was canceled.
+     */
+    public double[][] compute() {
+
+	final int n = matrix.getNumberOfRows(), p = matrix.getNumberOfColumns();
+	double scores[][] = new double[numOfComponents][n];
+	int l = Math.min(numOfComponents + OVERSAMPLING, Math.min(n, p));
+	if (l == 0)
+	    return scores;
+
+	// Sample the range of the matrix by random vectors
+	Random random = new Random(RANDOM_SEED);
+	double omega[][] = new double[p][l];
+	for (int c = 0; c < p; c++) {
+	    for (int j = 0; j < l; j++)
+		omega[c][j] = random.nextGaussian();
+	}
+	double q[][] = matrix.multiply(omega);
+	orthonormalize(q);
+	processedSteps++;
+
+	// Power iterations sharpen the decay of the singular values
+	double z[][] = null;
+	for (int iteration = 0; iteration <= POWER_ITERATIONS; iteration++) {
+	    if (canceled)
+		return null;
+	    z = matrix.multiplyTransposed(q);
+	    processedSteps++;
+	    if (iteration == POWER_ITERATIONS)
+		break;
+	    orthonormalize(z);
+	    q = matrix.multiply(z);
+	    orthonormalize(q);
+	    processedSteps++;
+	}
+
+	// Now Z = X' Q, so the eigenvectors W of Z' Z give the left singular
+	// vectors Q W of X and the eigenvalues are the squared singular values
+	double gram[][] = new double[l][l];
+	for (int c = 0; c < p; c++) {
+	    for (int a = 0; a < l; a++) {
+		double value = z[c][a];
+		if (value == 0)
+		    continue;
+		for (int b = a; b < l; b++)
+		    gram[a][b] += value * z[c][b];
+	    }
+	}
+	for (int a = 0; a < l; a++) {
+	    for (int b = 0; b < a; b++)
+		gram[a][b] = gram[b][a];
+	}
+	double eigenvectors[][] = new double[l][l];
+	double eigenvalues[] = decomposeSymmetric(gram, eigenvectors);
+
+	// Scores are the left singular vectors times the singular values
+	int numOfScores = Math.min(numOfComponents, l);
+	for (int component = 0; component < numOfScores; component++) {
+	    double singularValue = Math.sqrt(Math.max(0,
+		    eigenvalues[component]));
+	    for (int i = 0; i < n; i++) {
+		double sum = 0;
+		for (int a = 0; a < l; a++)
+		    sum += q[i][a] * eigenvectors[a][component];
+		scores[component][i] = sum * singularValue;
+	    }
+	}
+	processedSteps = totalSteps;
+
+	return scores;
+    }
+
+    public void cancel() {
+	canceled = true;
+    }
+
+    public double getFinishedPercentage() {
+	return Math.min(1.0, (double) processedSteps / totalSteps);
+    }
+
+    /**
+     * Orthonormalizes the columns of the matrix by the modified Gram-Schmidt
+     * process, repeated once for numerical stability. Columns which are linear
+     * combinations of the previous ones are set to zero.
+     */
+    static void orthonormalize(double matrix[][]) {
+	final int rows = matrix.length, columns = matrix[0].length;
+	for (int pass = 0; pass < 2; pass++) {
+	    for (int j = 0; j < columns; j++) {
+		for (int k = 0; k < j; k++) {
+		    double dot = 0;
+		    for (int i = 0; i < rows; i++)
+			dot += matrix[i][j] * matrix[i][k];
+		    for (int i = 0; i < rows; i++)
+			matrix[i][j] -= dot * matrix[i][k];
+		}
+		double norm = 0;
+		for (int i = 0; i < rows; i++)
+		    norm += matrix[i][j] * matrix[i][j];
+		norm = Math.sqrt(norm);
+		double scale = (norm > 1e-10) ? 1 / norm : 0;
+		for (int i = 0; i < rows; i++)
+		    matrix[i][j] *= scale;
+	    }
+	}
+    }
+
+    /**
+     * Eigen decomposition of a small symmetric matrix by the cyclic Jacobi
+     * method. The matrix is destroyed. Returns the eigenvalues in decreasing
+     * order, the eigenvectors are stored in the columns of eigenvectors.
+     */
+    static double[] decomposeSymmetric(double a[][], double eigenvectors[][]) {
+	final int size = a.length;
+	for (int i = 0; i < size; i++) {
+	    for (int j = 0; j < size; j++)
+		eigenvectors[i][j] = (i == j) ? 1 : 0;
+	}
+
+	for (int sweep = 0; sweep < 100; sweep++) {
+	    double offDiagonal = 0, diagonal = 0;
+	    for (int i = 0; i < size; i++) {
+		diagonal += a[i][i] * a[i][i];
+		for (int j = i + 1; j < size; j++)
+		    offDiagonal += a[i][j] * a[i][j];
+	    }
+	    if (offDiagonal <= 1e-30 * diagonal)
+		break;
+
+	    for (int p = 0; p < size - 1; p++) {
+		for (int q = p + 1; q < size; q++) {
+		    if (a[p][q] == 0)
+			continue;
+		    double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+		    double t = Math.signum(theta)
+			    / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+		    if (theta == 0)
+			t = 1;
+		    double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+		    for (int k = 0; k < size; k++) {
+			double akp = a[k][p], akq = a[k][q];
+			a[k][p] = c * akp - s * akq;
+			a[k][q] = s * akp + c * akq;
+		    }
+		    for (int k = 0; k < size; k++) {
+			double apk = a[p][k], aqk = a[q][k];
+			a[p][k] = c * apk - s * aqk;
+			a[q][k] = s * apk + c * aqk;
+		    }
+		    for (int k = 0; k < size; k++) {
+			double vp = eigenvectors[k][p], vq = eigenvectors[k][q];
+			eigenvectors[k][p] = c * vp - s * vq;
+			eigenvectors[k][q] = s * vp + c * vq;
+		    }
+		}
+	    }
+	}
+
+	// Sort by decreasing eigenvalues
+	double eigenvalues[] = new double[size];
+	for (int i = 0; i < size; i++)
+	    eigenvalues[i] = a[i][i];
+	for (int i = 0; i < size - 1; i++) {
+	    int max = i;
+	    for (int j = i + 1; j < size; j++) {
+		if (eigenvalues[j] > eigenvalues[max])
+		    max = j;
+	    }
+	    if (max == i)
+		continue;
+	    double swap = eigenvalues[i];
+	    eigenvalues[i] = eigenvalues[max];
+	    eigenvalues[max] = swap;
+	    for (int k = 0; k < size; k++) {
+		swap = eigenvectors[k][i];
+		eigenvectors[k][i] = eigenvectors[k][max];
+		eigenvectors[k][max] = swap;
+	    }
+	}
+	return eigenvalues;
+    }
+
+}
@@ -22,9 +22,6 @@ package net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots;
 import java.util.Vector;
 import java.util.logging.Logger;
 
-import jmprojection.Preprocess;
-import jmprojection.ProjectionStatus;
-import jmprojection.Sammons;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
@@ -69,7 +66,7 @@ public class SammonsDataset extends AbstractXYDataset implements
     private TaskStatus status = TaskStatus.WAITING;
     private String errorMessage;
 
-    private ProjectionStatus projectionStatus;
+    private SammonsMapping sammonsMapping;
 
     public SammonsDataset(MZmineProject project, ParameterSet parameters) {
 
@@ -233,19 +230,12 @@ public class SammonsDataset extends AbstractXYDataset implements
 	    numComponents = yAxisDimension;
 
 	// Scale data and do Sammon's mapping
-	Preprocess.scaleToUnityVariance(rawData);
-	Sammons sammonsProj = new Sammons(rawData);
+	sammonsMapping = new SammonsMapping(rawData, numComponents);
 
-	projectionStatus = sammonsProj.getProjectionStatus();
+	double[][] result = sammonsMapping.compute(100);
 
-	sammonsProj.iterate(100);
-
-	if (status == TaskStatus.CANCELED)
-	    return;
-
-	double[][] result = sammonsProj.getState();
-
-	if (status == TaskStatus.CANCELED)
+	// The result is null if the mapping was canceled
+	if ((result == null) || (status == TaskStatus.CANCELED))
 	    return;
 
 	component1Coords = result[xAxisDimension - 1];
@@ -262,8 +252,8 @@ public class SammonsDataset extends AbstractXYDataset implements
 
     @Override
     public void cancel() {
-	if (projectionStatus != null)
-	    projectionStatus.cancel();
+	if (sammonsMapping != null)
+	    sammonsMapping.cancel();
 	setStatus(TaskStatus.CANCELED);
     }
 
@@ -284,9 +274,9 @@ public class SammonsDataset extends AbstractXYDataset implements
 
     @Override
     public double getFinishedPercentage() {
-	if (projectionStatus == null)
+	if (sammonsMapping == null)
 	    return 0;
-	return projectionStatus.getFinishedPercentage();
+	return sammonsMapping.getFinishedPercentage();
     }
 
     /**
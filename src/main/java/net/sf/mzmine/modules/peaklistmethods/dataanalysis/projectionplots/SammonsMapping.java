@@ -0,0 +1,470 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots;
+
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+
+/**
+ * Sammon's non-linear mapping. The data are first reduced to their leading
+ * principal components, which also give the initial layout. The layout is then
+ * improved by pseudo-Newton steps, moving all items at once in each iteration.
+ * The steps are calculated in parallel. For two-dimensional layouts of many
+ * items, the pairwise terms of distant groups of items are approximated by a
+ * Barnes-Hut quadtree, so that an iteration takes O(n log n) time instead of
+ * O(n^2).
+ */
+public class SammonsMapping {
+
+    /**
+     * Maximum number of principal components used to calculate the original
+     * distances
+     */
+    private static final int MAX_REDUCED_DIMENSIONS = 50;
+
+    /**
+     * Up to this number of items, all pairs are calculated exactly and the
+     * original distances are kept in memory
+     */
+    private static final int EXACT_LIMIT = 2000;
+
+    /**
+     * Initial scale of the Newton steps, the "magic factor" of Sammon
+     */
+    private static final double INITIAL_STEP_SIZE = 0.3;
+
+    /**
+     * Opening angle of the Barnes-Hut approximation
+     */
+    private static final double THETA = 0.5;
+
+    private static final double EPSILON = 1e-12;
+
+    private final double data[][];
+    private final int numOfDimensions;
+
+    private int numOfItems, numOfReducedDimensions;
+    private double reduced[][], layout[][];
+    private float distances[][];
+
+    private RandomizedPCA pca;
+    private volatile boolean canceled = false;
+    private volatile double finishedPercentage = 0;
+
+    /**
+     * @param data
+     *            Data matrix, with the projected items in rows. The columns
+     *            are scaled to unit variance.
+     * @param numOfDimensions
+     *            Number of dimensions of the layout
+     */
+    public SammonsMapping(double data[][], int numOfDimensions) {
+	this.data = data;
+	this.numOfDimensions = numOfDimensions;
+    }
+
+    /**
+     * Returns the coordinates of the items after the given number of
+     * iterations, indexed [dimension][item]. Returns null if the calculation
+     * was canceled.
+     */
+    public double[][] compute(int numOfIterations) {
+
+	if (!initialize())
+	    return null;
+
+	final boolean approximate = (numOfItems > EXACT_LIMIT)
+		&& (numOfDimensions == 2);
+	if (numOfItems <= EXACT_LIMIT)
+	    calculateDistances();
+
+	// The Newton steps are scaled by the step size, which is halved
+	// whenever the stress grows and increased again after a success
+	double steps[][] = new double[numOfItems][numOfDimensions];
+	double newSteps[][] = new double[numOfItems][numOfDimensions];
+	double acceptedLayout[][] = new double[numOfDimensions][numOfItems];
+	double acceptedStress = Double.MAX_VALUE, stepSize = INITIAL_STEP_SIZE;
+
+	for (int iteration = 0; iteration < numOfIterations; iteration++) {
+
+	    if (canceled)
+		return null;
+
+	    double stress = calculateSteps(approximate, newSteps);
+
+	    if (stress > acceptedStress) {
+		stepSize /= 2;
+	    } else {
+		acceptedStress = stress;
+		for (int k = 0; k < numOfDimensions; k++)
+		    System.arraycopy(layout[k], 0, acceptedLayout[k], 0,
+			    numOfItems);
+		double swap[][] = steps;
+		steps = newSteps;
+		newSteps = swap;
+		stepSize = Math.min(1, stepSize * 2);
+	    }
+
+	    for (int i = 0; i < numOfItems; i++) {
+		for (int k = 0; k < numOfDimensions; k++)
+		    layout[k][i] = acceptedLayout[k][i] + stepSize
+			    * steps[i][k];
+	    }
+
+	    finishedPercentage = 0.1 + 0.9 * (iteration + 1) / numOfIterations;
+	}
+
+	// The last step has not been checked
+	if ((numOfIterations > 0)
+		&& (calculateSteps(approximate, newSteps) > acceptedStress))
+	    return acceptedLayout;
+	return layout;
+    }
+
+    public void cancel() {
+	canceled = true;
+	RandomizedPCA currentPCA = pca;
+	if (currentPCA != null)
+	    currentPCA.cancel();
+    }
+
+    public double getFinishedPercentage() {
+	RandomizedPCA currentPCA = pca;
+	if ((finishedPercentage == 0) && (currentPCA != null))
+	    return 0.1 * currentPCA.getFinishedPercentage();
+	return finishedPercentage;
+    }
+
+    /**
+     * Reduces the data to the leading principal components and takes the
+     * first components as the initial layout
+     */
+    private boolean initialize() {
+
+	ProjectionMatrix matrix = new ProjectionMatrix(data);
+	numOfItems = matrix.getNumberOfRows();
+	int numOfColumns = matrix.getNumberOfColumns();
+
+	if (numOfColumns <= MAX_REDUCED_DIMENSIONS) {
+	    numOfReducedDimensions = numOfColumns;
+	    reduced = new double[numOfItems][numOfColumns];
+	    for (int i = 0; i < numOfItems; i++)
+		matrix.getRow(i, reduced[i]);
+	    pca = new RandomizedPCA(matrix, numOfDimensions);
+	    layout = pca.compute();
+	    return layout != null;
+	}
+
+	numOfReducedDimensions = MAX_REDUCED_DIMENSIONS;
+	pca = new RandomizedPCA(matrix, numOfReducedDimensions);
+	double scores[][] = pca.compute();
+	if (scores == null)
+	    return false;
+	reduced = new double[numOfItems][numOfReducedDimensions];
+	for (int i = 0; i < numOfItems; i++) {
+	    for (int k = 0; k < numOfReducedDimensions; k++)
+		reduced[i][k] = scores[k][i];
+	}
+	layout = new double[numOfDimensions][];
+	for (int k = 0; k < numOfDimensions; k++) {
+	    layout[k] = (k < numOfReducedDimensions) ? scores[k].clone()
+		    : new double[numOfItems];
+	}
+	return true;
+    }
+
+    /**
+     * Calculates the original distances of all pairs of items
+     */
+    private void calculateDistances() {
+	distances = new float[numOfItems][numOfItems];
+	ParallelUtils.processInParallel(numOfItems, 16,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+			for (int i = startIndex; i < endIndex; i++) {
+			    for (int j = 0; j < numOfItems; j++)
+				distances[i][j] = (float) getReducedDistance(
+					reduced[i], reduced[j]);
+			}
+		    }
+		});
+    }
+
+    private double getReducedDistance(double x[], double y[]) {
+	double sum = 0;
+	for (int k = 0; k < numOfReducedDimensions; k++) {
+	    double diff = x[k] - y[k];
+	    sum += diff * diff;
+	}
+	return Math.sqrt(sum);
+    }
+
+    /**
+     * Calculates the pseudo-Newton steps of all items and returns the stress
+     * of the current layout, without the normalization factor. The stress is
+     * approximated in the same way as the steps.
+     */
+    private double calculateSteps(boolean approximate, final double steps[][]) {
+
+	final QuadTreeNode root = approximate ? buildQuadTree() : null;
+	final double itemStress[] = new double[numOfItems];
+	ParallelUtils.processInParallel(numOfItems, 64,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+			double diff[] = new double[numOfDimensions];
+			double gradient[] = new double[numOfDimensions];
+			double curvature[] = new double[numOfDimensions];
+			for (int i = startIndex; i < endIndex; i++) {
+			    itemStress[i] = calculateStep(i, root, diff,
+				    gradient, curvature, steps[i]);
+			}
+		    }
+		});
+
+	double stress = 0;
+	for (int i = 0; i < numOfItems; i++)
+	    stress += itemStress[i];
+	return stress / 2;
+    }
+
+    /**
+     * Calculates the pseudo-Newton step of one item and returns the stress of
+     * its pairs. Without the tree, all
+     * other items are added exactly. The other arrays are work space.
+     */
+    private double calculateStep(int i, QuadTreeNode root, double diff[],
+	    double gradient[], double curvature[], double step[]) {
+
+	for (int k = 0; k < numOfDimensions; k++) {
+	    gradient[k] = 0;
+	    curvature[k] = 0;
+	}
+
+	double stress = 0;
+	if (root != null) {
+	    stress = addNode(i, root, diff, gradient, curvature);
+	} else {
+	    for (int j = 0; j < numOfItems; j++) {
+		if (j == i)
+		    continue;
+		double distance = (distances != null) ? distances[i][j]
+			: getReducedDistance(reduced[i], reduced[j]);
+		for (int k = 0; k < numOfDimensions; k++)
+		    diff[k] = layout[k][i] - layout[k][j];
+		stress += addTerm(diff, distance, 1, gradient, curvature);
+	    }
+	}
+
+	for (int k = 0; k < numOfDimensions; k++) {
+	    double absCurvature = Math.abs(curvature[k]);
+	    step[k] = (absCurvature > EPSILON) ? gradient[k] / absCurvature
+		    : 0;
+	}
+	return stress;
+    }
+
+    /**
+     * Adds the first and second derivatives of the stress of one pair of
+     * items, multiplied by weight. The derivatives are taken with respect to
+     * the layout coordinates of the first item and their common factor -2 is
+     * left out. diff contains the layout coordinates of the first item minus
+     * those of the second one. Returns the weighted stress of the pair.
+     */
+    private double addTerm(double diff[], double originalDistance,
+	    double weight, double gradient[], double curvature[]) {
+
+	if (originalDistance < EPSILON)
+	    return 0;
+
+	double layoutDistance = 0;
+	for (int k = 0; k < numOfDimensions; k++)
+	    layoutDistance += diff[k] * diff[k];
+	layoutDistance = Math.max(Math.sqrt(layoutDistance), EPSILON);
+
+	double difference = originalDistance - layoutDistance;
+	double factor = weight / (originalDistance * layoutDistance);
+	for (int k = 0; k < numOfDimensions; k++) {
+	    gradient[k] += factor * difference * diff[k];
+	    curvature[k] += factor
+		    * (difference - diff[k] * diff[k] / layoutDistance
+			    * (1 + difference / layoutDistance));
+	}
+	return weight * difference * difference / originalDistance;
+    }
+
+    /**
+     * Adds the terms of all items in the given node, approximating the node
+     * by its centroid if it is far enough from item i. Returns the stress of
+     * the added pairs.
+     */
+    private double addNode(int i, QuadTreeNode node, double diff[],
+	    double gradient[], double curvature[]) {
+
+	double stress = 0;
+	if (node.items != null) {
+	    for (int n = 0; n < node.numOfItems; n++) {
+		int j = node.items[n];
+		if (j == i)
+		    continue;
+		diff[0] = layout[0][i] - layout[0][j];
+		diff[1] = layout[1][i] - layout[1][j];
+		stress += addTerm(diff,
+			getReducedDistance(reduced[i], reduced[j]), 1, gradient,
+			curvature);
+	    }
+	    return stress;
+	}
+
+	diff[0] = layout[0][i] - node.center[0];
+	diff[1] = layout[1][i] - node.center[1];
+	double distance = Math.sqrt(diff[0] * diff[0] + diff[1] * diff[1]);
+	if (node.size < THETA * distance) {
+	    // Mean squared original distance to the items of the node
+	    double squaredDistance = node.spread;
+	    for (int k = 0; k < numOfReducedDimensions; k++) {
+		double reducedDiff = reduced[i][k] - node.reducedCenter[k];
+		squaredDistance += reducedDiff * reducedDiff;
+	    }
+	    return addTerm(diff, Math.sqrt(squaredDistance), node.numOfItems,
+		    gradient, curvature);
+	}
+
+	for (QuadTreeNode child : node.children) {
+	    if (child != null)
+		stress += addNode(i, child, diff, gradient, curvature);
+	}
+	return stress;
+    }
+
+    private QuadTreeNode buildQuadTree() {
+	double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+	double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+	int items[] = new int[numOfItems];
+	for (int i = 0; i < numOfItems; i++) {
+	    items[i] = i;
+	    minX = Math.min(minX, layout[0][i]);
+	    maxX = Math.max(maxX, layout[0][i]);
+	    minY = Math.min(minY, layout[1][i]);
+	    maxY = Math.max(maxY, layout[1][i]);
+	}
+	double size = Math.max(maxX - minX, maxY - minY);
+	return new QuadTreeNode(items, 0, numOfItems, minX, minY, size, 0);
+    }
+
+    /**
+     * Node of the Barnes-Hut quadtree over the two-dimensional layout. Besides
+     * the layout centroid, each node keeps the centroid of its items in the
+     * reduced original space and their mean squared distance from it, which
+     * give the mean squared original distance of any item to the node.
+     */
+    private class QuadTreeNode {
+
+	private static final int MAX_LEAF_ITEMS = 8;
+	private static final int MAX_DEPTH = 24;
+
+	final int numOfItems;
+	final double size;
+	final double center[] = new double[2];
+	final double reducedCenter[] = new double[numOfReducedDimensions];
+	double spread;
+
+	final QuadTreeNode children[];
+	final int items[];
+
+	/**
+	 * Creates a node for items[start..end), which are reordered by
+	 * quadrants
+	 */
+	QuadTreeNode(int allItems[], int start, int end, double minX,
+		double minY, double size, int depth) {
+
+	    this.numOfItems = end - start;
+	    this.size = size;
+
+	    double sumOfSquares = 0;
+	    for (int n = start; n < end; n++) {
+		int i = allItems[n];
+		center[0] += layout[0][i];
+		center[1] += layout[1][i];
+		for (int k = 0; k < numOfReducedDimensions; k++) {
+		    reducedCenter[k] += reduced[i][k];
+		    sumOfSquares += reduced[i][k] * reduced[i][k];
+		}
+	    }
+	    center[0] /= numOfItems;
+	    center[1] /= numOfItems;
+	    double centerSquares = 0;
+	    for (int k = 0; k < numOfReducedDimensions; k++) {
+		reducedCenter[k] /= numOfItems;
+		centerSquares += reducedCenter[k] * reducedCenter[k];
+	    }
+	    spread = Math.max(0, sumOfSquares / numOfItems - centerSquares);
+
+	    if ((numOfItems <= MAX_LEAF_ITEMS) || (depth >= MAX_DEPTH)) {
+		children = null;
+		items = new int[numOfItems];
+		System.arraycopy(allItems, start, items, 0, numOfItems);
+		return;
+	    }
+
+	    // Partition the items by quadrants
+	    double half = size / 2;
+	    double midX = minX + half, midY = minY + half;
+	    int bounds[] = new int[5];
+	    bounds[0] = start;
+	    int next = start;
+	    for (int quadrant = 0; quadrant < 4; quadrant++) {
+		for (int n = next; n < end; n++) {
+		    int i = allItems[n];
+		    if (getQuadrant(i, midX, midY) == quadrant) {
+			allItems[n] = allItems[next];
+			allItems[next] = i;
+			next++;
+		    }
+		}
+		bounds[quadrant + 1] = next;
+	    }
+
+	    children = new QuadTreeNode[4];
+	    items = null;
+	    for (int quadrant = 0; quadrant < 4; quadrant++) {
+		if (bounds[quadrant + 1] == bounds[quadrant])
+		    continue;
+		double childX = ((quadrant & 1) == 0) ? minX : midX;
+		double childY = ((quadrant & 2) == 0) ? minY : midY;
+		children[quadrant] = new QuadTreeNode(allItems,
+			bounds[quadrant], bounds[quadrant + 1], childX,
+			childY, half, depth + 1);
+	    }
+	}
+
+	private int getQuadrant(int i, double midX, double midY) {
+	    int quadrant = 0;
+	    if (layout[0][i] >= midX)
+		quadrant |= 1;
+	    if (layout[1][i] >= midY)
+		quadrant |= 2;
+	    return quadrant;
+	}
+
+    }
+
+}
@@ -26,7 +26,6 @@ import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleFeature;
 import net.sf.mzmine.util.RangeUtils;
@@ -66,28 +65,43 @@ class Gap {
 
     }
 
-    void offerNextScan(Scan scan) {
+    Range<Double> getMZRange() {
+	return mzRange;
+    }
+
+    Range<Double> getRTRange() {
+	return rtRange;
+    }
+
+    /**
+     * Returns true if this gap does not need any more scans, once the scans
+     * have reached given RT.
+     */
+    boolean isFinished(double scanRT) {
+	return (scanRT > rtRange.upperEndpoint())
+		&& (currentPeakDataPoints == null);
+    }
 
-	double scanRT = scan.getRetentionTime();
+    /**
+     * Offers the next MS1 scan, represented by the highest data point within
+     * the m/z range of this gap (null if there is no such data point).
+     */
+    void offerNextScan(int scanNumber, double scanRT, DataPoint basePeak) {
 
 	// If not yet inside the RT range
 	if (scanRT < rtRange.lowerEndpoint())
 	    return;
 
 	// If we have passed the RT range and finished processing last peak
-	if ((scanRT > rtRange.upperEndpoint())
-		&& (currentPeakDataPoints == null))
+	if (isFinished(scanRT))
 	    return;
 
-	// Find top m/z peak in our range
-	DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
-
 	GapDataPoint currentDataPoint;
 	if (basePeak != null) {
-	    currentDataPoint = new GapDataPoint(scan.getScanNumber(),
-		    basePeak.getMZ(), scanRT, basePeak.getIntensity());
+	    currentDataPoint = new GapDataPoint(scanNumber, basePeak.getMZ(),
+		    scanRT, basePeak.getIntensity());
 	} else {
-	    currentDataPoint = new GapDataPoint(scan.getScanNumber(),
+	    currentDataPoint = new GapDataPoint(scanNumber,
 		    RangeUtils.rangeCenter(mzRange), scanRT, 0);
 	}
 
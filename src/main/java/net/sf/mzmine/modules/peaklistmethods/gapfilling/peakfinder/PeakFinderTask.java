@@ -19,9 +19,17 @@
 
 package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakIdentity;
@@ -29,14 +37,15 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
-import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.AlignedPeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
-import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
 
 import com.google.common.collect.Range;
 
@@ -45,14 +54,16 @@ class PeakFinderTask extends AbstractTask {
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private final MZmineProject project;
-    private PeakList peakList, processedPeakList;
+    private PeakList peakList;
+    private AlignedPeakList processedPeakList;
     private String suffix;
     private double intTolerance;
     private MZTolerance mzTolerance;
     private RTTolerance rtTolerance;
     private boolean rtCorrection;
     private ParameterSet parameters;
-    private int processedScans, totalScans;
+    private final AtomicInteger processedScans = new AtomicInteger();
+    private int totalScans;
     private boolean MASTERLIST = true, removeOriginal;
     private int masterSample = 0;
 
@@ -88,13 +99,14 @@ class PeakFinderTask extends AbstractTask {
 	}
 
 	// Create new peak list
-	processedPeakList = new SimplePeakList(peakList + " " + suffix,
+	processedPeakList = new AlignedPeakList(peakList + " " + suffix,
 		peakList.getRawDataFiles());
 
 	// Fill new peak list with empty rows
 	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
 	    PeakListRow sourceRow = peakList.getRow(row);
-	    PeakListRow newRow = new SimplePeakListRow(sourceRow.getID());
+	    PeakListRow newRow = processedPeakList.createRow(sourceRow
+		    .getID());
 	    newRow.setComment(sourceRow.getComment());
 	    for (PeakIdentity ident : sourceRow.getPeakIdentities()) {
 		newRow.addPeakIdentity(ident, false);
@@ -106,6 +118,9 @@ class PeakFinderTask extends AbstractTask {
 	    processedPeakList.addRow(newRow);
 	}
 
+	// The raw data files are processed in parallel, each file filling
+	// its own column of the new peak list (except the master pass of the
+	// RT correction, see fillList())
 	if (rtCorrection) {
 	    totalScans *= 2;
 	    // Fill the gaps of a random sample using all the other samples and
@@ -121,222 +136,290 @@ class PeakFinderTask extends AbstractTask {
 	} else {
 
 	    // Process all raw data files
-	    for (RawDataFile dataFile : peakList.getRawDataFiles()) {
+	    ParallelUtils.processInParallel(
+		    peakList.getNumberOfRawDataFiles(), 1,
+		    new IndexRangeProcessor() {
+			public void process(int startIndex, int endIndex) {
+			    for (int i = startIndex; i < endIndex; i++)
+				fillFile(peakList.getRawDataFile(i));
+			}
+		    });
 
-		// Canceled?
-		if (isCanceled()) {
-		    return;
-		}
+	}
 
-		Vector<Gap> gaps = new Vector<Gap>();
+	// Canceled?
+	if (isCanceled()) {
+	    return;
+	}
 
-		// Fill each row of this raw data file column, create new empty
-		// gaps
-		// if necessary
-		for (int row = 0; row < peakList.getNumberOfRows(); row++) {
-		    PeakListRow sourceRow = peakList.getRow(row);
-		    PeakListRow newRow = processedPeakList.getRow(row);
+	// Append processed peak list to the project
+	project.addPeakList(processedPeakList);
 
-		    Feature sourcePeak = sourceRow.getPeak(dataFile);
+	// Add task description to peakList
+	processedPeakList
+		.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
+			"Gap filling ", parameters));
 
-		    if (sourcePeak == null) {
+	// Remove the original peaklist if requested
+	if (removeOriginal)
+	    project.removePeakList(peakList);
 
-			// Create a new gap
+	logger.info("Finished gap-filling on " + peakList);
+	setStatus(TaskStatus.FINISHED);
 
-			Range<Double> mzRange = mzTolerance
-				.getToleranceRange(sourceRow.getAverageMZ());
-			Range<Double> rtRange = rtTolerance
-				.getToleranceRange(sourceRow.getAverageRT());
+    }
 
-			Gap newGap = new Gap(newRow, dataFile, mzRange,
-				rtRange, intTolerance);
+    private void fillFile(RawDataFile dataFile) {
 
-			gaps.add(newGap);
+	// Canceled?
+	if (isCanceled()) {
+	    return;
+	}
 
-		    } else {
-			newRow.addPeak(dataFile, sourcePeak);
-		    }
+	Vector<Gap> gaps = new Vector<Gap>();
 
-		}
+	// Fill each row of this raw data file column, create new empty gaps
+	// if necessary
+	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
+	    PeakListRow sourceRow = peakList.getRow(row);
+	    PeakListRow newRow = processedPeakList.getRow(row);
 
-		// Stop processing this file if there are no gaps
-		if (gaps.size() == 0) {
-		    processedScans += dataFile.getNumOfScans();
-		    continue;
-		}
+	    Feature sourcePeak = sourceRow.getPeak(dataFile);
 
-		// Get all scans of this data file
-		int scanNumbers[] = dataFile.getScanNumbers(1);
+	    if (sourcePeak == null) {
 
-		// Process each scan
-		for (int scanNumber : scanNumbers) {
+		// Create a new gap
 
-		    // Canceled?
-		    if (isCanceled()) {
-			return;
-		    }
+		Range<Double> mzRange = mzTolerance.getToleranceRange(sourceRow
+			.getAverageMZ());
+		Range<Double> rtRange = rtTolerance.getToleranceRange(sourceRow
+			.getAverageRT());
+
+		Gap newGap = new Gap(newRow, dataFile, mzRange, rtRange,
+			intTolerance);
+
+		gaps.add(newGap);
+
+	    } else {
+		newRow.addPeak(dataFile, sourcePeak);
+	    }
+
+	}
+
+	fillGaps(dataFile, gaps);
+
+    }
 
-		    // Get the scan
-		    Scan scan = dataFile.getScan(scanNumber);
+    public void fillList(final boolean masterList) {
 
-		    // Feed this scan to all gaps
-		    for (Gap gap : gaps) {
-			gap.offerNextScan(scan);
+	// All files of the master pass fill the column of the master sample,
+	// where the last file wins, so this pass runs in the file order
+	if (masterList) {
+	    for (int i = 0; i < peakList.getNumberOfRawDataFiles(); i++) {
+		if (i != masterSample)
+		    fillFile(i, masterList);
+	    }
+	    return;
+	}
+
+	ParallelUtils.processInParallel(peakList.getNumberOfRawDataFiles(), 1,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+			for (int i = startIndex; i < endIndex; i++) {
+			    if (i != masterSample)
+				fillFile(i, masterList);
+			}
 		    }
+		});
+    }
 
-		    processedScans++;
-		}
+    private void fillFile(int i, boolean masterList) {
 
-		// Finalize gaps
-		for (Gap gap : gaps) {
-		    gap.noMoreOffers();
-		}
+	RawDataFile datafile1;
+	RawDataFile datafile2;
 
+	if (masterList) {
+	    datafile1 = peakList.getRawDataFile(masterSample);
+	    datafile2 = peakList.getRawDataFile(i);
+	} else {
+	    datafile1 = peakList.getRawDataFile(i);
+	    datafile2 = peakList.getRawDataFile(masterSample);
+	}
+	RegressionInfo info = new RegressionInfo();
+
+	for (PeakListRow row : peakList.getRows()) {
+	    Feature peaki = row.getPeak(datafile1);
+	    Feature peake = row.getPeak(datafile2);
+	    if (peaki != null && peake != null) {
+		info.addData(peake.getRT(), peaki.getRT());
 	    }
 	}
 
-	// Append processed peak list to the project
-	project.addPeakList(processedPeakList);
+	info.setFunction();
 
-	// Add task description to peakList
-	processedPeakList
-		.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
-			"Gap filling ", parameters));
+	// Canceled?
+	if (isCanceled()) {
+	    return;
+	}
 
-	// Remove the original peaklist if requested
-	if (removeOriginal)
-	    project.removePeakList(peakList);
+	Vector<Gap> gaps = new Vector<Gap>();
 
-	logger.info("Finished gap-filling on " + peakList);
-	setStatus(TaskStatus.FINISHED);
+	// Fill each row of this raw data file column, create new empty gaps
+	// if necessary
+	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
+	    PeakListRow sourceRow = peakList.getRow(row);
+	    PeakListRow newRow = processedPeakList.getRow(row);
 
-    }
+	    Feature sourcePeak = sourceRow.getPeak(datafile1);
 
-    public void fillList(boolean masterList) {
-	for (int i = 0; i < peakList.getNumberOfRawDataFiles(); i++) {
-	    if (i != masterSample) {
+	    if (sourcePeak == null) {
 
-		RawDataFile datafile1;
-		RawDataFile datafile2;
+		// Create a new gap
 
-		if (masterList) {
-		    datafile1 = peakList.getRawDataFile(masterSample);
-		    datafile2 = peakList.getRawDataFile(i);
+		double mz = sourceRow.getAverageMZ();
+		double rt2 = -1;
+		if (!masterList) {
+		    Feature peak2 = newRow.getPeak(datafile2);
+		    if (peak2 != null) {
+			rt2 = peak2.getRT();
+		    }
 		} else {
-		    datafile1 = peakList.getRawDataFile(i);
-		    datafile2 = peakList.getRawDataFile(masterSample);
-		}
-		RegressionInfo info = new RegressionInfo();
-
-		for (PeakListRow row : peakList.getRows()) {
-		    Feature peaki = row.getPeak(datafile1);
-		    Feature peake = row.getPeak(datafile2);
-		    if (peaki != null && peake != null) {
-			info.addData(peake.getRT(), peaki.getRT());
+		    if (peakList.getRow(row).getPeak(datafile2) != null) {
+			rt2 = peakList.getRow(row).getPeak(datafile2).getRT();
 		    }
 		}
 
-		info.setFunction();
+		if (rt2 > -1) {
 
-		// Canceled?
-		if (isCanceled()) {
-		    return;
-		}
+		    double rt = info.predict(rt2);
 
-		Vector<Gap> gaps = new Vector<Gap>();
-
-		// Fill each row of this raw data file column, create new empty
-		// gaps
-		// if necessary
-		for (int row = 0; row < peakList.getNumberOfRows(); row++) {
-		    PeakListRow sourceRow = peakList.getRow(row);
-		    PeakListRow newRow = processedPeakList.getRow(row);
-
-		    Feature sourcePeak = sourceRow.getPeak(datafile1);
-
-		    if (sourcePeak == null) {
-
-			// Create a new gap
-
-			double mz = sourceRow.getAverageMZ();
-			double rt2 = -1;
-			if (!masterList) {
-			    if (processedPeakList.getRow(row)
-				    .getPeak(datafile2) != null) {
-				rt2 = processedPeakList.getRow(row)
-					.getPeak(datafile2).getRT();
-			    }
-			} else {
-			    if (peakList.getRow(row).getPeak(datafile2) != null) {
-				rt2 = peakList.getRow(row).getPeak(datafile2)
-					.getRT();
-			    }
-			}
+		    if (rt != -1) {
 
-			if (rt2 > -1) {
+			Range<Double> mzRange = mzTolerance
+				.getToleranceRange(mz);
+			Range<Double> rtRange = rtTolerance
+				.getToleranceRange(rt);
 
-			    double rt = info.predict(rt2);
+			Gap newGap = new Gap(newRow, datafile1, mzRange,
+				rtRange, intTolerance);
 
-			    if (rt != -1) {
+			gaps.add(newGap);
+		    }
+		}
 
-				Range<Double> mzRange = mzTolerance
-					.getToleranceRange(mz);
-				Range<Double> rtRange = rtTolerance
-					.getToleranceRange(rt);
+	    } else {
+		newRow.addPeak(datafile1, sourcePeak);
+	    }
 
-				Gap newGap = new Gap(newRow, datafile1,
-					mzRange, rtRange, intTolerance);
+	}
 
-				gaps.add(newGap);
-			    }
-			}
+	fillGaps(datafile1, gaps);
 
-		    } else {
-			newRow.addPeak(datafile1, sourcePeak);
-		    }
+    }
 
-		}
+    /**
+     * Feeds the MS1 scans of given raw data file to the gaps. The gaps are
+     * activated in the order of their RT ranges, so each scan is only offered
+     * to the gaps whose RT range has been reached and which have not finished
+     * yet. The data points of each scan are read only once, and the base
+     * peaks of all these gaps are found in one pass over the data points.
+     */
+    private void fillGaps(RawDataFile dataFile, List<Gap> gaps) {
+
+	int scanNumbers[] = dataFile.getScanNumbers(1);
+
+	// Stop processing this file if there are no gaps
+	if (gaps.size() == 0) {
+	    processedScans.addAndGet(scanNumbers.length);
+	    return;
+	}
 
-		// Stop processing this file if there are no gaps
-		if (gaps.size() == 0) {
-		    processedScans += datafile1.getNumOfScans();
-		    continue;
-		}
+	Gap gapsByRT[] = gaps.toArray(new Gap[0]);
+	Arrays.sort(gapsByRT, new Comparator<Gap>() {
+	    public int compare(Gap gap1, Gap gap2) {
+		return Double.compare(gap1.getRTRange().lowerEndpoint(), gap2
+			.getRTRange().lowerEndpoint());
+	    }
+	});
+	Comparator<Gap> mzComparator = new Comparator<Gap>() {
+	    public int compare(Gap gap1, Gap gap2) {
+		return Double.compare(gap1.getMZRange().lowerEndpoint(), gap2
+			.getMZRange().lowerEndpoint());
+	    }
+	};
 
-		// Get all scans of this data file
-		int scanNumbers[] = datafile1.getScanNumbers(1);
+	List<Gap> activeGaps = new ArrayList<Gap>();
+	int nextGap = 0;
 
-		// Process each scan
-		for (int scanNumber : scanNumbers) {
+	// Process each scan
+	for (int scanNumber : scanNumbers) {
 
-		    // Canceled?
-		    if (isCanceled()) {
-			return;
-		    }
+	    // Canceled?
+	    if (isCanceled()) {
+		return;
+	    }
 
-		    // Get the scan
-		    Scan scan = datafile1.getScan(scanNumber);
+	    processedScans.incrementAndGet();
 
-		    // Feed this scan to all gaps
-		    for (Gap gap : gaps) {
-			gap.offerNextScan(scan);
-		    }
-		    processedScans++;
-		}
+	    // Get the scan
+	    Scan scan = dataFile.getScan(scanNumber);
+	    double scanRT = scan.getRetentionTime();
 
-		// Finalize gaps
-		for (Gap gap : gaps) {
-		    gap.noMoreOffers();
+	    // Activate the gaps whose RT range starts before this scan
+	    while ((nextGap < gapsByRT.length)
+		    && (gapsByRT[nextGap].getRTRange().lowerEndpoint()
+			    <= scanRT)) {
+		activeGaps.add(gapsByRT[nextGap]);
+		nextGap++;
+	    }
+
+	    // Drop the gaps which do not need any more scans
+	    Iterator<Gap> gapIterator = activeGaps.iterator();
+	    while (gapIterator.hasNext()) {
+		if (gapIterator.next().isFinished(scanRT))
+		    gapIterator.remove();
+	    }
+
+	    if (activeGaps.isEmpty())
+		continue;
+
+	    // Find the base peaks of all active gaps, sorted by their m/z
+	    // ranges, in one pass over the m/z sorted data points
+	    Collections.sort(activeGaps, mzComparator);
+	    DataPoint dataPoints[] = scan.getDataPoints();
+	    int startIndex = 0;
+	    for (Gap gap : activeGaps) {
+		Range<Double> mzRange = gap.getMZRange();
+		while ((startIndex < dataPoints.length)
+			&& (dataPoints[startIndex].getMZ() < mzRange
+				.lowerEndpoint()))
+		    startIndex++;
+		DataPoint basePeak = null;
+		for (int i = startIndex; i < dataPoints.length; i++) {
+		    if (dataPoints[i].getMZ() > mzRange.upperEndpoint())
+			break;
+		    if ((basePeak == null)
+			    || (dataPoints[i].getIntensity() > basePeak
+				    .getIntensity()))
+			basePeak = dataPoints[i];
 		}
+		gap.offerNextScan(scanNumber, scanRT, basePeak);
 	    }
+
 	}
+
+	// Finalize gaps
+	for (Gap gap : gaps) {
+	    gap.noMoreOffers();
+	}
+
     }
 
     public double getFinishedPercentage() {
 	if (totalScans == 0) {
 	    return 0;
 	}
-	return (double) processedScans / (double) totalScans;
+	return (double) processedScans.get() / (double) totalScans;
 
     }
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.gapfilling.samerange;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.RangeUtils;
+
+import com.google.common.collect.Range;
+
+/**
+ * A missing peak of one peak list row in one raw data file. The gap collects
+ * the base peaks of the scans within the RT range of the row, and adds the
+ * resulting peak to the row when no more scans are offered.
+ */
+class SameRangeGap {
+
+    private final PeakListRow peakListRow;
+    private final RawDataFile dataFile;
+    private final Range<Double> mzRange, rtRange;
+
+    // Created with the first offered scan
+    private SameRangePeak newPeak;
+    private boolean dataPointFound = false;
+
+    SameRangeGap(PeakListRow peakListRow, RawDataFile dataFile,
+	    Range<Double> mzRange, Range<Double> rtRange) {
+	this.peakListRow = peakListRow;
+	this.dataFile = dataFile;
+	this.mzRange = mzRange;
+	this.rtRange = rtRange;
+    }
+
+    Range<Double> getMZRange() {
+	return mzRange;
+    }
+
+    Range<Double> getRTRange() {
+	return rtRange;
+    }
+
+    /**
+     * Offers the next MS1 scan within the RT range, represented by the
+     * highest data point within the m/z range of this gap (null if there is
+     * no such data point).
+     */
+    void offerNextScan(int scanNumber, DataPoint basePeak) {
+
+	if (newPeak == null)
+	    newPeak = new SameRangePeak(dataFile);
+
+	if (basePeak != null) {
+	    if (basePeak.getIntensity() > 0)
+		dataPointFound = true;
+	    newPeak.addDatapoint(scanNumber, basePeak);
+	} else {
+	    DataPoint fakeDataPoint = new SimpleDataPoint(
+		    RangeUtils.rangeCenter(mzRange), 0);
+	    newPeak.addDatapoint(scanNumber, fakeDataPoint);
+	}
+
+    }
+
+    /**
+     * Adds the collected peak to the peak list row, if any data point was
+     * found.
+     */
+    void noMoreOffers() {
+
+	if (!dataPointFound)
+	    return;
+
+	newPeak.finalizePeak();
+	if (newPeak.getArea() == 0)
+	    return;
+
+	peakListRow.addPeak(dataFile, newPeak);
+
+    }
+
+}
@@ -19,6 +19,13 @@
 
 package net.sf.mzmine.modules.peaklistmethods.gapfilling.samerange;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -29,16 +36,14 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
-import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.AlignedPeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
-import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.MZTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.RangeUtils;
-import net.sf.mzmine.util.ScanUtils;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
 
 import com.google.common.collect.Range;
 
@@ -47,13 +52,18 @@ class SameRangeTask extends AbstractTask {
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private final MZmineProject project;
-    private PeakList peakList, processedPeakList;
+    private PeakList peakList;
+    private AlignedPeakList processedPeakList;
 
     private String suffix;
     private MZTolerance mzTolerance;
     private boolean removeOriginal;
 
-    private int processedRows, totalRows;
+    // Gaps (missing row/file cells) of each raw data file
+    private List<List<SameRangeGap>> gapsByFile;
+    private final AtomicInteger processedCells = new AtomicInteger();
+    private int totalCells;
+    private volatile long fillingStartTime;
 
     private ParameterSet parameters;
 
@@ -80,15 +90,20 @@ class SameRangeTask extends AbstractTask {
 	setStatus(TaskStatus.PROCESSING);
 
 	// Get total number of rows
-	totalRows = peakList.getNumberOfRows();
+	int totalRows = peakList.getNumberOfRows();
 
 	// Get peak list columns
-	RawDataFile columns[] = peakList.getRawDataFiles();
+	final RawDataFile columns[] = peakList.getRawDataFiles();
 
 	// Create new peak list
-	processedPeakList = new SimplePeakList(peakList + " " + suffix, columns);
+	processedPeakList = new AlignedPeakList(peakList + " " + suffix,
+		columns);
 
-	// Fill gaps in given column
+	gapsByFile = new ArrayList<List<SameRangeGap>>();
+	for (int i = 0; i < columns.length; i++)
+	    gapsByFile.add(new ArrayList<SameRangeGap>());
+
+	// Copy the rows and collect their gaps
 	for (int row = 0; row < totalRows; row++) {
 
 	    // Canceled?
@@ -96,7 +111,7 @@ class SameRangeTask extends AbstractTask {
 		return;
 
 	    PeakListRow sourceRow = peakList.getRow(row);
-	    PeakListRow newRow = new SimplePeakListRow(sourceRow.getID());
+	    PeakListRow newRow = processedPeakList.createRow(sourceRow.getID());
 
 	    // Copy comment
 	    newRow.setComment(sourceRow.getComment());
@@ -108,32 +123,51 @@ class SameRangeTask extends AbstractTask {
 		newRow.setPreferredPeakIdentity(sourceRow
 			.getPreferredPeakIdentity());
 
-	    // Copy each peaks and fill gaps
-	    for (RawDataFile column : columns) {
-
-		// Canceled?
-		if (isCanceled())
-		    return;
+	    // Copy each peaks and create the gaps
+	    Range<Double> mzRange = null, rtRange = null;
+	    for (int i = 0; i < columns.length; i++) {
 
 		// Get current peak
-		Feature currentPeak = sourceRow.getPeak(column);
-
-		// If there is a gap, try to fill it
-		if (currentPeak == null)
-		    currentPeak = fillGap(sourceRow, column);
-
-		// If a peak was found or created, add it
-		if (currentPeak != null)
-		    newRow.addPeak(column, currentPeak);
+		Feature currentPeak = sourceRow.getPeak(columns[i]);
+
+		if (currentPeak == null) {
+		    if (mzRange == null) {
+			mzRange = getRowMZRange(sourceRow);
+			rtRange = getRowRTRange(sourceRow);
+		    }
+		    if (mzRange == null)
+			continue;
+		    Range<Double> mzRangeWithTol = mzTolerance
+			    .getToleranceRange(mzRange);
+		    gapsByFile.get(i).add(
+			    new SameRangeGap(newRow, columns[i],
+				    mzRangeWithTol, rtRange));
+		    totalCells++;
+		} else {
+		    newRow.addPeak(columns[i], currentPeak);
+		}
 
 	    }
 
 	    processedPeakList.addRow(newRow);
 
-	    processedRows++;
-
 	}
 
+	// Fill the gaps of each raw data file in parallel
+	fillingStartTime = System.currentTimeMillis();
+	ParallelUtils.processInParallel(columns.length, 1,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+			for (int i = startIndex; i < endIndex; i++)
+			    fillGaps(columns[i], gapsByFile.get(i));
+		    }
+		});
+	gapsByFile = null;
+
+	// Canceled?
+	if (isCanceled())
+	    return;
+
 	// Append processed peak list to the project
 	project.addPeakList(processedPeakList);
 
@@ -148,82 +182,152 @@ class SameRangeTask extends AbstractTask {
 
 	setStatus(TaskStatus.FINISHED);
 
-	logger.info("Finished gap-filling " + peakList);
+	logger.info("Finished gap-filling " + peakList + ", "
+		+ getCellsPerSecond() + " cells/s");
 
     }
 
-    private Feature fillGap(PeakListRow row, RawDataFile column) {
-
-	SameRangePeak newPeak = new SameRangePeak(column);
-
-	Range<Double> mzRange = null, rtRange = null;
-
-	// Check the peaks for selected data files
-	for (RawDataFile dataFile : row.getRawDataFiles()) {
-	    Feature peak = row.getPeak(dataFile);
-	    if (peak == null)
-		continue;
-	    if ((mzRange == null) || (rtRange == null)) {
+    private Range<Double> getRowMZRange(PeakListRow row) {
+	Range<Double> mzRange = null;
+	for (Feature peak : row.getPeaks()) {
+	    if (mzRange == null)
 		mzRange = peak.getRawDataPointsMZRange();
-		rtRange = peak.getRawDataPointsRTRange();
-	    } else {
+	    else
 		mzRange = mzRange.span(peak.getRawDataPointsMZRange());
-		rtRange = rtRange.span(peak.getRawDataPointsRTRange());
-	    }
 	}
+	return mzRange;
+    }
 
-	assert mzRange != null;
-	assert rtRange != null;
-
-	Range<Double> mzRangeWithTol = mzTolerance.getToleranceRange(mzRange);
+    private Range<Double> getRowRTRange(PeakListRow row) {
+	Range<Double> rtRange = null;
+	for (Feature peak : row.getPeaks()) {
+	    if (rtRange == null)
+		rtRange = peak.getRawDataPointsRTRange();
+	    else
+		rtRange = rtRange.span(peak.getRawDataPointsRTRange());
+	}
+	return rtRange;
+    }
 
-	// Get scan numbers
-	int[] scanNumbers = column.getScanNumbers(1, rtRange);
+    /**
+     * Feeds the MS1 scans of given raw data file to its gaps. Each scan is
+     * read once and only offered to the gaps whose RT range contains it. The
+     * base peaks of all these gaps are found in one pass over the m/z sorted
+     * data points of the scan.
+     */
+    private void fillGaps(RawDataFile dataFile, List<SameRangeGap> gaps) {
+
+	if (isCanceled() || gaps.isEmpty())
+	    return;
+
+	SameRangeGap gapsByRT[] = gaps.toArray(new SameRangeGap[0]);
+	Arrays.sort(gapsByRT, new Comparator<SameRangeGap>() {
+	    public int compare(SameRangeGap gap1, SameRangeGap gap2) {
+		return Double.compare(gap1.getRTRange().lowerEndpoint(), gap2
+			.getRTRange().lowerEndpoint());
+	    }
+	});
+	Comparator<SameRangeGap> mzComparator = new Comparator<SameRangeGap>() {
+	    public int compare(SameRangeGap gap1, SameRangeGap gap2) {
+		return Double.compare(gap1.getMZRange().lowerEndpoint(), gap2
+			.getMZRange().lowerEndpoint());
+	    }
+	};
 
-	boolean dataPointFound = false;
+	List<SameRangeGap> activeGaps = new ArrayList<SameRangeGap>();
+	int nextGap = 0;
 
-	for (int scanNumber : scanNumbers) {
+	for (int scanNumber : dataFile.getScanNumbers(1)) {
 
 	    if (isCanceled())
-		return null;
+		return;
 
 	    // Get next scan
-	    Scan scan = column.getScan(scanNumber);
-
-	    // Find most intense m/z peak
-	    DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRangeWithTol);
-
-	    if (basePeak != null) {
-		if (basePeak.getIntensity() > 0)
-		    dataPointFound = true;
-		newPeak.addDatapoint(scan.getScanNumber(), basePeak);
-	    } else {
-		DataPoint fakeDataPoint = new SimpleDataPoint(
-			RangeUtils.rangeCenter(mzRangeWithTol), 0);
-		newPeak.addDatapoint(scan.getScanNumber(), fakeDataPoint);
+	    Scan scan = dataFile.getScan(scanNumber);
+	    double scanRT = scan.getRetentionTime();
+
+	    // Activate the gaps whose RT range starts before this scan
+	    while ((nextGap < gapsByRT.length)
+		    && (gapsByRT[nextGap].getRTRange().lowerEndpoint()
+			    <= scanRT)) {
+		activeGaps.add(gapsByRT[nextGap]);
+		nextGap++;
 	    }
 
-	}
+	    // Finish the gaps whose RT range ends before this scan
+	    Iterator<SameRangeGap> gapIterator = activeGaps.iterator();
+	    while (gapIterator.hasNext()) {
+		SameRangeGap gap = gapIterator.next();
+		if (gap.getRTRange().upperEndpoint() < scanRT) {
+		    gapIterator.remove();
+		    gap.noMoreOffers();
+		    processedCells.incrementAndGet();
+		}
+	    }
+
+	    if (activeGaps.isEmpty()) {
+		// Nothing left to do in this file
+		if (nextGap == gapsByRT.length)
+		    break;
+		continue;
+	    }
+
+	    // Find most intense m/z peaks of all active gaps, sorted by their
+	    // m/z ranges, in one pass over the m/z sorted data points
+	    Collections.sort(activeGaps, mzComparator);
+	    DataPoint dataPoints[] = scan.getDataPoints();
+	    int startIndex = 0;
+	    for (SameRangeGap gap : activeGaps) {
+		Range<Double> mzRange = gap.getMZRange();
+		while ((startIndex < dataPoints.length)
+			&& (dataPoints[startIndex].getMZ() < mzRange
+				.lowerEndpoint()))
+		    startIndex++;
+		if (!gap.getRTRange().contains(scanRT))
+		    continue;
+		DataPoint basePeak = null;
+		for (int i = startIndex; i < dataPoints.length; i++) {
+		    if (dataPoints[i].getMZ() > mzRange.upperEndpoint())
+			break;
+		    if ((basePeak == null)
+			    || (dataPoints[i].getIntensity() > basePeak
+				    .getIntensity()))
+			basePeak = dataPoints[i];
+		}
+		gap.offerNextScan(scanNumber, basePeak);
+	    }
 
-	if (dataPointFound) {
-	    newPeak.finalizePeak();
-	    if (newPeak.getArea() == 0)
-		return null;
-	    return newPeak;
 	}
 
-	return null;
+	// Finish the remaining gaps. Gaps which were never activated have no
+	// scans in their RT range.
+	for (SameRangeGap gap : activeGaps)
+	    gap.noMoreOffers();
+	processedCells.addAndGet(activeGaps.size() + gapsByRT.length
+		- nextGap);
+
+    }
+
+    private long getCellsPerSecond() {
+	long elapsed = System.currentTimeMillis() - fillingStartTime;
+	if ((fillingStartTime == 0) || (elapsed <= 0))
+	    return 0;
+	return processedCells.get() * 1000L / elapsed;
     }
 
     public double getFinishedPercentage() {
-	if (totalRows == 0)
+	if (totalCells == 0)
 	    return 0;
-	return (double) processedRows / (double) totalRows;
+	return (double) processedCells.get() / (double) totalCells;
 
     }
 
     public String getTaskDescription() {
-	return "Gap filling " + peakList + " using RT and m/z range";
+	String description = "Gap filling " + peakList
+		+ " using RT and m/z range";
+	if (fillingStartTime != 0)
+	    description += " (" + getCellsPerSecond() + " cells/s)";
+	return description;
     }
 
 }
@@ -21,6 +21,7 @@ package net.sf.mzmine.modules.peaklistmethods.io.csvexport;
 
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.FileNameParameter;
 import net.sf.mzmine.parameters.parametertypes.MultiChoiceParameter;
 import net.sf.mzmine.parameters.parametertypes.PeakListsParameter;
@@ -51,9 +52,13 @@ public class CSVExportParameters extends SimpleParameterSet {
 	    "Selection of peak's elements to export",
 	    ExportRowDataFileElement.values());
 
+    public static final BooleanParameter compression = new BooleanParameter(
+	    "Compressed file", "Generates a gzip compressed file");
+
     public CSVExportParameters() {
 	super(new Parameter[] { peakList, filename, fieldSeparator,
-		exportCommonItems, exportIdentityItems, exportDataFileItems });
+		exportCommonItems, exportIdentityItems, exportDataFileItems,
+		compression });
     }
 
 }
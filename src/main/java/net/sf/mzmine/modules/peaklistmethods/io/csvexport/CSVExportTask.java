@@ -19,8 +19,20 @@
 
 package net.sf.mzmine.modules.peaklistmethods.io.csvexport;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
 
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.Feature.FeatureStatus;
@@ -31,12 +43,22 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.ParallelUtils;
 import net.sf.mzmine.util.RangeUtils;
 
 class CSVExportTask extends AbstractTask {
 
+    /**
+     * Rows are formatted in chunks of roughly this many fields. Chunks are
+     * formatted in parallel and written to the file in order.
+     */
+    private static final int FIELDS_PER_CHUNK = 200000;
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
     private PeakList peakList;
-    private int processedRows = 0, totalRows = 0;
+    private volatile int processedRows = 0, totalRows = 0;
 
     // parameter values
     private File fileName;
@@ -44,6 +66,10 @@ class CSVExportTask extends AbstractTask {
     private ExportRowCommonElement[] commonElements;
     private String[] identityElements;
     private ExportRowDataFileElement[] dataFileElements;
+    private boolean compression;
+
+    // Same encoding as the FileWriter we used to write with
+    private final Charset charset = Charset.defaultCharset();
 
     CSVExportTask(ParameterSet parameters) {
 
@@ -63,6 +89,9 @@ class CSVExportTask extends AbstractTask {
 	dataFileElements = parameters.getParameter(
 		CSVExportParameters.exportDataFileItems).getValue();
 
+	compression = parameters.getParameter(CSVExportParameters.compression)
+		.getValue();
+
     }
 
     public double getFinishedPercentage() {
@@ -81,26 +110,41 @@ class CSVExportTask extends AbstractTask {
 	setStatus(TaskStatus.PROCESSING);
 
 	// Open file
-	FileWriter writer;
+	OutputStream outputStream;
 	try {
-	    writer = new FileWriter(fileName);
+	    outputStream = new BufferedOutputStream(new FileOutputStream(
+		    fileName), OUTPUT_BUFFER_SIZE);
+	    if (compression)
+		outputStream = new GZIPOutputStream(outputStream, 1 << 16);
 	} catch (Exception e) {
 	    setStatus(TaskStatus.ERROR);
-	    setErrorMessage("Could not open file " + fileName + " for writing.");
+	    setErrorMessage("Could not open file " + fileName + " for writing: "
+		    + ExceptionUtils.exceptionToString(e));
 	    return;
 	}
 
 	// Get number of rows
 	totalRows = peakList.getNumberOfRows();
 
-	exportPeakList(peakList, writer);
+	try {
+	    exportPeakList(peakList, outputStream);
+	} catch (Throwable e) {
+	    if (e instanceof ExecutionException)
+		e = e.getCause();
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage("Could not write to file " + fileName + ": "
+		    + ExceptionUtils.exceptionToString(e));
+	}
 
 	// Close file
 	try {
-	    writer.close();
+	    outputStream.close();
 	} catch (Exception e) {
+	    if (getStatus() == TaskStatus.ERROR)
+		return;
 	    setStatus(TaskStatus.ERROR);
-	    setErrorMessage("Could not close file " + fileName);
+	    setErrorMessage("Could not close file " + fileName + ": "
+		    + ExceptionUtils.exceptionToString(e));
 	    return;
 	}
 
@@ -109,12 +153,13 @@ class CSVExportTask extends AbstractTask {
 
     }
 
-    private void exportPeakList(PeakList peakList, FileWriter writer) {
+    private void exportPeakList(PeakList peakList, OutputStream outputStream)
+	    throws IOException, ExecutionException {
 
-	RawDataFile rawDataFiles[] = peakList.getRawDataFiles();
+	final RawDataFile rawDataFiles[] = peakList.getRawDataFiles();
 
 	// Buffer for writing
-	StringBuffer line = new StringBuffer();
+	StringBuilder line = new StringBuilder();
 
 	// Write column headers
 	// Common elements
@@ -123,15 +168,15 @@ class CSVExportTask extends AbstractTask {
 	for (int i = 0; i < length; i++) {
 	    name = commonElements[i].toString();
 	    name = name.replace("Export ", "");
-	    name = escapeStringForCSV(name);
-	    line.append(name + fieldSeparator);
+	    appendEscaped(line, name);
+	    line.append(fieldSeparator);
 	}
 
 	// Peak identity elements
 	length = identityElements.length;
 	for (int i = 0; i < length; i++) {
-	    name = escapeStringForCSV(identityElements[i]);
-	    line.append(name + fieldSeparator);
+	    appendEscaped(line, identityElements[i]);
+	    line.append(fieldSeparator);
 	}
 
 	// Data file elements
@@ -140,49 +185,107 @@ class CSVExportTask extends AbstractTask {
 	    for (int i = 0; i < length; i++) {
 		name = dataFileElements[i].toString();
 		name = name.replace("Export", rawDataFiles[df].getName());
-		name = escapeStringForCSV(name);
-		line.append(name + fieldSeparator);
+		appendEscaped(line, name);
+		line.append(fieldSeparator);
 	    }
 	}
 
 	line.append("\n");
 
+	outputStream.write(line.toString().getBytes(charset));
+
+	// Column of each raw data file, so we can place the peaks of a row
+	// without looking up every data file in the row
+	final Map<RawDataFile, Integer> columns = new HashMap<RawDataFile, Integer>();
+	for (int df = 0; df < rawDataFiles.length; df++)
+	    columns.put(rawDataFiles[df], df);
+
+	// Write data rows. Chunks of rows are formatted in parallel, while
+	// this thread writes the finished chunks in order. The number of
+	// chunks in progress is limited, to keep the memory use low.
+	final PeakListRow rows[] = peakList.getRows();
+	int fieldsPerRow = commonElements.length + identityElements.length
+		+ dataFileElements.length * rawDataFiles.length;
+	final int rowsPerChunk = Math.max(1,
+		FIELDS_PER_CHUNK / Math.max(1, fieldsPerRow));
+	int maxPendingChunks = 2 * ParallelUtils.getNumberOfThreads();
+
+	LinkedList<FutureTask<byte[]>> pendingChunks = new LinkedList<FutureTask<byte[]>>();
 	try {
-	    writer.write(line.toString());
-	} catch (Exception e) {
-	    setStatus(TaskStatus.ERROR);
-	    setErrorMessage("Could not write to file " + fileName);
-	    return;
+	    int nextRow = 0;
+	    while ((nextRow < rows.length) || (!pendingChunks.isEmpty())) {
+
+		// Cancel?
+		if (isCanceled()) {
+		    return;
+		}
+
+		while ((nextRow < rows.length)
+			&& (pendingChunks.size() < maxPendingChunks)) {
+		    final int startRow = nextRow;
+		    final int endRow = Math.min(rows.length, startRow
+			    + rowsPerChunk);
+		    pendingChunks.add(ParallelUtils
+			    .submit(new Callable<byte[]>() {
+				public byte[] call() {
+				    return formatRows(rows, startRow, endRow,
+					    rawDataFiles, columns);
+				}
+			    }));
+		    nextRow = endRow;
+		}
+
+		byte chunk[] = ParallelUtils.getResult(pendingChunks
+			.removeFirst());
+		if (chunk == null)
+		    return;
+		outputStream.write(chunk);
+		processedRows = Math.min(totalRows, processedRows
+			+ rowsPerChunk);
+	    }
+	} finally {
+	    // After an error or cancel, the chunks which did not start yet
+	    // are not needed anymore
+	    for (FutureTask<byte[]> chunk : pendingChunks)
+		chunk.cancel(false);
 	}
+    }
+
+    /**
+     * Formats the given rows and returns them encoded, ready to be written to
+     * the file. Returns null if the task was canceled.
+     */
+    private byte[] formatRows(PeakListRow rows[], int startRow, int endRow,
+	    RawDataFile rawDataFiles[], Map<RawDataFile, Integer> columns) {
+
+	StringBuilder line = new StringBuilder();
+	Feature rowPeaks[] = new Feature[rawDataFiles.length];
+	int length;
 
-	// Write data rows
-	for (PeakListRow peakListRow : peakList.getRows()) {
+	for (int r = startRow; r < endRow; r++) {
 
 	    // Cancel?
 	    if (isCanceled()) {
-		return;
+		return null;
 	    }
 
-	    // Reset the buffer
-	    line.setLength(0);
+	    PeakListRow peakListRow = rows[r];
 
 	    // Common elements
 	    length = commonElements.length;
 	    for (int i = 0; i < length; i++) {
 		switch (commonElements[i]) {
 		case ROW_ID:
-		    line.append(peakListRow.getID() + fieldSeparator);
+		    line.append(peakListRow.getID());
 		    break;
 		case ROW_MZ:
-		    line.append(peakListRow.getAverageMZ() + fieldSeparator);
+		    line.append(peakListRow.getAverageMZ());
 		    break;
 		case ROW_RT:
-		    line.append(peakListRow.getAverageRT() + fieldSeparator);
+		    line.append(peakListRow.getAverageRT());
 		    break;
 		case ROW_COMMENT:
-		    String comment = escapeStringForCSV(peakListRow
-			    .getComment());
-		    line.append(comment + fieldSeparator);
+		    appendEscaped(line, peakListRow.getComment());
 		    break;
 		case ROW_PEAK_NUMBER:
 		    int numDetected = 0;
@@ -191,9 +294,10 @@ class CSVExportTask extends AbstractTask {
 			    numDetected++;
 			}
 		    }
-		    line.append(numDetected + fieldSeparator);
+		    line.append(numDetected);
 		    break;
 		}
+		line.append(fieldSeparator);
 	    }
 
 	    // Identity elements
@@ -201,9 +305,9 @@ class CSVExportTask extends AbstractTask {
 	    PeakIdentity peakIdentity = peakListRow.getPreferredPeakIdentity();
 	    if (peakIdentity != null) {
 		for (int i = 0; i < length; i++) {
-		    String propertyValue = escapeStringForCSV(peakIdentity
-			    .getPropertyValue(identityElements[i]));
-		    line.append(propertyValue + fieldSeparator);
+		    appendEscaped(line,
+			    peakIdentity.getPropertyValue(identityElements[i]));
+		    line.append(fieldSeparator);
 		}
 	    } else {
 		for (int i = 0; i < length; i++) {
@@ -211,80 +315,92 @@ class CSVExportTask extends AbstractTask {
 		}
 	    }
 
+	    // Place the peaks of the row into the columns of their data files
+	    Arrays.fill(rowPeaks, null);
+	    for (Feature peak : peakListRow.getPeaks()) {
+		Integer column = columns.get(peak.getDataFile());
+		if (column != null)
+		    rowPeaks[column] = peak;
+	    }
+
 	    // Data file elements
 	    length = dataFileElements.length;
-	    for (RawDataFile dataFile : rawDataFiles) {
+	    for (int df = 0; df < rawDataFiles.length; df++) {
+		Feature peak = rowPeaks[df];
 		for (int i = 0; i < length; i++) {
-		    Feature peak = peakListRow.getPeak(dataFile);
 		    if (peak != null) {
 			switch (dataFileElements[i]) {
 			case PEAK_STATUS:
-			    line.append(peak.getFeatureStatus()
-				    + fieldSeparator);
+			    line.append(peak.getFeatureStatus());
 			    break;
 			case PEAK_MZ:
-			    line.append(peak.getMZ() + fieldSeparator);
+			    line.append(peak.getMZ());
 			    break;
 			case PEAK_RT:
-			    line.append(peak.getRT() + fieldSeparator);
+			    line.append(peak.getRT());
 			    break;
 			case PEAK_HEIGHT:
-			    line.append(peak.getHeight() + fieldSeparator);
+			    line.append(peak.getHeight());
 			    break;
 			case PEAK_AREA:
-			    line.append(peak.getArea() + fieldSeparator);
+			    line.append(peak.getArea());
 			    break;
 			case PEAK_CHARGE:
-			    line.append(peak.getCharge() + fieldSeparator);
+			    line.append(peak.getCharge());
 			    break;
 			case PEAK_DURATION:
 			    line.append(RangeUtils.rangeLength(peak
-				    .getRawDataPointsRTRange())
-				    + fieldSeparator);
+				    .getRawDataPointsRTRange()));
 			    break;
 			}
 		    } else {
 			switch (dataFileElements[i]) {
 			case PEAK_STATUS:
-			    line.append(FeatureStatus.UNKNOWN + fieldSeparator);
+			    line.append(FeatureStatus.UNKNOWN);
 			    break;
 			default:
-			    line.append("0" + fieldSeparator);
+			    line.append('0');
 			    break;
 			}
 		    }
+		    line.append(fieldSeparator);
 		}
 	    }
 
-	    line.append("\n");
-
-	    try {
-		writer.write(line.toString());
-	    } catch (Exception e) {
-		setStatus(TaskStatus.ERROR);
-		setErrorMessage("Could not write to file " + fileName);
-		return;
-	    }
-
-	    processedRows++;
+	    line.append('\n');
 	}
+
+	return line.toString().getBytes(charset);
     }
 
-    private String escapeStringForCSV(final String inputString) {
+    /**
+     * Appends the string to the line, escaped for CSV.
+     */
+    private void appendEscaped(StringBuilder line, final String inputString) {
 
 	if (inputString == null)
-	    return "";
+	    return;
 
 	// Remove all special characters (particularly \n would mess up our CSV
-	// format).
-	String result = inputString.replaceAll("[\\p{Cntrl}]", " ");
+	// format). This is the same as replacing [\p{Cntrl}], but avoids the
+	// regular expression in the common case of no special characters.
+	String result = inputString;
+	for (int i = 0; i < result.length(); i++) {
+	    char c = result.charAt(i);
+	    if ((c < 0x20) || (c == 0x7F)) {
+		result = result.replaceAll("[\\p{Cntrl}]", " ");
+		break;
+	    }
+	}
 
 	// If the text contains fieldSeparator, we will add
 	// parenthesis
 	if (result.contains(fieldSeparator)) {
-	    result = "\"" + result.replaceAll("\"", "'") + "\"";
+	    line.append('"');
+	    line.append(result.replace('"', '\''));
+	    line.append('"');
+	} else {
+	    line.append(result);
 	}
-
-	return result;
     }
 }
@@ -21,6 +21,7 @@ package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
 
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.PeakListsParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
 
@@ -41,9 +42,14 @@ public class SQLExportParameters extends SimpleParameterSet {
 
     public static final SQLColumnSettingsParameter exportColumns = new SQLColumnSettingsParameter();
 
+    public static final IntegerParameter batchSize = new IntegerParameter(
+	    "Batch size",
+	    "Number of records sent to the database at once",
+	    1000, 1, null);
+
     public SQLExportParameters() {
 	super(new Parameter[] { peakList, connectionString, tableName,
-		exportColumns });
+		exportColumns, batchSize });
     }
 
 }
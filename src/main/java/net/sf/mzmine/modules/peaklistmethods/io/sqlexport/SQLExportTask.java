@@ -20,11 +20,14 @@
 package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
@@ -41,28 +44,45 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.RangeUtils;
 import net.sf.mzmine.util.ScanUtils;
 
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
 class SQLExportTask extends AbstractTask {
 
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
     private final PeakList peakList;
     private final String connectionString;
     private final String tableName;
     private final SQLColumnSettings exportColumns;
+    private final int batchSize;
 
-    private int processedRows = 0, totalRows = 0;
+    private volatile int processedRows = 0, totalRows = 0;
+    private long startTime;
 
     private Connection dbConnection;
 
     SQLExportTask(ParameterSet parameters) {
+	this(parameters.getParameter(SQLExportParameters.peakList)
+		.getMatchingPeakLists()[0],
+		parameters.getParameter(SQLExportParameters.connectionString)
+			.getValue(),
+		parameters.getParameter(SQLExportParameters.tableName)
+			.getValue(),
+		parameters.getParameter(SQLExportParameters.exportColumns)
+			.getValue(),
+		parameters.getParameter(SQLExportParameters.batchSize)
+			.getValue());
+    }
 
-	this.peakList = parameters.getParameter(SQLExportParameters.peakList)
-		.getMatchingPeakLists()[0];
-	this.connectionString = parameters.getParameter(
-		SQLExportParameters.connectionString).getValue();
+    SQLExportTask(PeakList peakList, String connectionString,
+	    String tableName, SQLColumnSettings exportColumns, int batchSize) {
 
-	this.tableName = parameters.getParameter(SQLExportParameters.tableName)
-		.getValue();
-	this.exportColumns = parameters.getParameter(
-		SQLExportParameters.exportColumns).getValue();
+	this.peakList = peakList;
+	this.connectionString = connectionString;
+	this.tableName = tableName;
+	this.exportColumns = exportColumns;
+	this.batchSize = batchSize;
 
     }
 
@@ -74,8 +94,14 @@ class SQLExportTask extends AbstractTask {
     }
 
     public String getTaskDescription() {
-	return "Exporting peak list \"" + peakList + "\" to SQL table "
-		+ tableName;
+	String description = "Exporting peak list \"" + peakList
+		+ "\" to SQL table " + tableName;
+	long elapsedTime = System.currentTimeMillis() - startTime;
+	if ((startTime > 0) && (elapsedTime > 0) && (processedRows > 0)) {
+	    long rowsPerSecond = processedRows * 1000L / elapsedTime;
+	    description += " (" + rowsPerSecond + " rows/s)";
+	}
+	return description;
     }
 
     public void run() {
@@ -94,18 +120,49 @@ class SQLExportTask extends AbstractTask {
 	}
 
 	PeakListRow rows[] = peakList.getRows();
+	startTime = System.currentTimeMillis();
 
 	try {
 	    dbConnection.setAutoCommit(false);
+
+	    // PostgreSQL can load the records much faster using COPY
+	    RecordWriter writer;
+	    if (isPostgreSQLConnection()) {
+		logger.info("Exporting to PostgreSQL using COPY");
+		writer = new CopyRecordWriter(dbConnection.unwrap(
+			PGConnection.class).getCopyAPI());
+	    } else {
+		writer = new BatchRecordWriter();
+	    }
+
 	    for (PeakListRow row : rows) {
 		if (getStatus() != TaskStatus.PROCESSING)
 		    break;
-		exportPeakListRow(row);
+		exportPeakListRow(row, writer);
 		processedRows++;
 	    }
-	    dbConnection.commit();
+
+	    if (getStatus() == TaskStatus.PROCESSING) {
+		writer.flush();
+		dbConnection.commit();
+	    } else {
+		dbConnection.rollback();
+	    }
+	    writer.close();
 	    dbConnection.close();
-	} catch (SQLException e) {
+
+	    long elapsedTime = Math.max(1,
+		    System.currentTimeMillis() - startTime);
+	    logger.info("Exported " + processedRows + " rows in "
+		    + elapsedTime + " ms (" + (processedRows * 1000L / elapsedTime)
+		    + " rows/s)");
+	} catch (Exception e) {
+	    try {
+		dbConnection.rollback();
+		dbConnection.close();
+	    } catch (SQLException e2) {
+		// Ignore, we report the original error
+	    }
 	    setStatus(TaskStatus.ERROR);
 	    setErrorMessage("Error running SQL query: " + e.toString());
 	    return;
@@ -116,7 +173,8 @@ class SQLExportTask extends AbstractTask {
 
     }
 
-    private void exportPeakListRow(PeakListRow row) throws SQLException {
+    private void exportPeakListRow(PeakListRow row, RecordWriter writer)
+	    throws SQLException, IOException {
 
 	// Cancel?
 	if (isCanceled()) {
@@ -126,26 +184,6 @@ class SQLExportTask extends AbstractTask {
 	// Value for looping through raw data files
 	boolean loopDataFiles = false;
 
-	StringBuilder sql = new StringBuilder();
-	sql.append("INSERT INTO ");
-	sql.append(tableName);
-	sql.append(" (");
-	for (int i = 0; i < exportColumns.getRowCount(); i++) {
-	    sql.append(exportColumns.getValueAt(i, 0));
-	    if (i < exportColumns.getRowCount() - 1)
-		sql.append(",");
-	}
-	sql.append(" ) VALUES (");
-	for (int i = 0; i < exportColumns.getRowCount(); i++) {
-	    sql.append("?");
-	    if (i < exportColumns.getRowCount() - 1)
-		sql.append(",");
-	}
-	sql.append(")");
-
-	PreparedStatement statement = dbConnection.prepareStatement(sql
-		.toString());
-
 	for (RawDataFile rawDataFile : row.getRawDataFiles()) {
 	    Feature peak = row.getPeak(rawDataFile);
 
@@ -155,85 +193,84 @@ class SQLExportTask extends AbstractTask {
 		String dataValue = (String) exportColumns.getValueAt(i, 2);
 		switch (dataType) {
 		case CONSTANT:
-		    statement.setString(i + 1, dataValue);
+		    writer.setString(i + 1, dataValue);
 		    break;
 		case MZ:
-		    statement.setDouble(i + 1, row.getAverageMZ());
+		    writer.setDouble(i + 1, row.getAverageMZ());
 		    break;
 		case RT:
-		    statement.setDouble(i + 1, row.getAverageRT());
+		    writer.setDouble(i + 1, row.getAverageRT());
 		    break;
 		case ID:
-		    statement.setInt(i + 1, row.getID());
+		    writer.setInt(i + 1, row.getID());
 		    break;
 		case PEAKCHARGE:
-		    statement.setDouble(i + 1, peak.getCharge());
+		    writer.setDouble(i + 1, peak.getCharge());
 		    loopDataFiles = true;
 		    break;
 		case PEAKDURATION:
-		    statement.setDouble(i + 1, RangeUtils.rangeLength(peak
+		    writer.setDouble(i + 1, RangeUtils.rangeLength(peak
 			    .getRawDataPointsRTRange()));
 		    loopDataFiles = true;
 		    break;
 		case PEAKSTATUS:
-		    statement.setString(i + 1, peak.getFeatureStatus().name());
+		    writer.setString(i + 1, peak.getFeatureStatus().name());
 		    loopDataFiles = true;
 		    break;
 		case PEAKMZ:
-		    statement.setDouble(i + 1, peak.getMZ());
+		    writer.setDouble(i + 1, peak.getMZ());
 		    loopDataFiles = true;
 		    break;
 		case PEAKRT:
-		    statement.setDouble(i + 1, peak.getRT());
+		    writer.setDouble(i + 1, peak.getRT());
 		    loopDataFiles = true;
 		    break;
 		case PEAKHEIGHT:
-		    statement.setDouble(i + 1, peak.getHeight());
+		    writer.setDouble(i + 1, peak.getHeight());
 		    loopDataFiles = true;
 		    break;
 		case PEAKAREA:
-		    statement.setDouble(i + 1, peak.getArea());
+		    writer.setDouble(i + 1, peak.getArea());
 		    loopDataFiles = true;
 		    break;
 		case RAWFILE:
-		    statement.setString(i + 1, rawDataFile.getName());
+		    writer.setString(i + 1, rawDataFile.getName());
 		    loopDataFiles = true;
 		    break;
 		case HEIGHT:
-		    statement.setDouble(i + 1, row.getAverageHeight());
+		    writer.setDouble(i + 1, row.getAverageHeight());
 		    break;
 		case AREA:
-		    statement.setDouble(i + 1, row.getAverageArea());
+		    writer.setDouble(i + 1, row.getAverageArea());
 		    break;
 		case COMMENT:
-		    statement.setString(i + 1, row.getComment());
+		    writer.setString(i + 1, row.getComment());
 		    break;
 		case IDENTITY:
 		    PeakIdentity id = row.getPreferredPeakIdentity();
 		    if (id != null) {
-			statement.setString(i + 1, id.getName());
+			writer.setString(i + 1, id.getName());
 		    } else {
-			statement.setNull(i + 1, Types.VARCHAR);
+			writer.setNull(i + 1, Types.VARCHAR);
 		    }
 		    break;
 		case ISOTOPEPATTERN:
 		    IsotopePattern isotopes = row.getBestIsotopePattern();
 		    if (isotopes == null) {
-			statement.setNull(i + 1, Types.BLOB);
+			writer.setNull(i + 1, Types.BLOB);
 			break;
 		    }
 		    DataPoint dataPoints[] = isotopes.getDataPoints();
 		    byte bytes[] = ScanUtils
 			    .encodeDataPointsToBytes(dataPoints);
-		    ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-		    statement.setBlob(i + 1, is);
+		    writer.setBlob(i + 1, bytes);
 		    break;
 		case MSMS:
 		    int msmsScanNum = row.getBestPeak()
 			    .getMostIntenseFragmentScanNumber();
 		    // Check if there is any MS/MS scan
 		    if (msmsScanNum <= 0) {
-			statement.setNull(i + 1, Types.BLOB);
+			writer.setNull(i + 1, Types.BLOB);
 			break;
 		    }
 		    RawDataFile dataFile = row.getBestPeak().getDataFile();
@@ -241,19 +278,18 @@ class SQLExportTask extends AbstractTask {
 		    MassList msmsMassList = msmsScan.getMassList(dataValue);
 		    // Check if there is a masslist for the scan
 		    if (msmsMassList == null) {
-			statement.setNull(i + 1, Types.BLOB);
+			writer.setNull(i + 1, Types.BLOB);
 			break;
 		    }
 		    dataPoints = msmsMassList.getDataPoints();
 		    bytes = ScanUtils.encodeDataPointsToBytes(dataPoints);
-		    is = new ByteArrayInputStream(bytes);
-		    statement.setBlob(i + 1, is);
+		    writer.setBlob(i + 1, bytes);
 		    break;
 		default:
 		    break;
 		}
 	    }
-	    statement.executeUpdate();
+	    writer.endRecord();
 
 	    // If no data file elements are selected then don't loop through all
 	    // data files in peak list
@@ -262,4 +298,231 @@ class SQLExportTask extends AbstractTask {
 	    }
 	}
     }
+
+    /**
+     * Returns true if the connection is a PostgreSQL connection. Some JDBC
+     * drivers do not implement isWrapperFor(), so errors are taken as false.
+     */
+    private boolean isPostgreSQLConnection() {
+	try {
+	    return dbConnection.isWrapperFor(PGConnection.class);
+	} catch (SQLException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Returns the comma-separated list of the table columns.
+     */
+    private String getColumnList() {
+	StringBuilder columns = new StringBuilder();
+	for (int i = 0; i < exportColumns.getRowCount(); i++) {
+	    columns.append(exportColumns.getValueAt(i, 0));
+	    if (i < exportColumns.getRowCount() - 1)
+		columns.append(",");
+	}
+	return columns.toString();
+    }
+
+    /**
+     * Sends the exported records to the database. The records are sent in
+     * batches of batchSize records, but all of them are committed in a single
+     * transaction at the end of the export, so a failed or canceled export
+     * leaves the table unchanged.
+     */
+    private abstract class RecordWriter {
+
+	private int recordsInBatch = 0;
+
+	abstract void setString(int column, String value) throws SQLException;
+
+	abstract void setDouble(int column, double value) throws SQLException;
+
+	abstract void setInt(int column, int value) throws SQLException;
+
+	abstract void setNull(int column, int sqlType) throws SQLException;
+
+	abstract void setBlob(int column, byte value[]) throws SQLException;
+
+	/**
+	 * Adds the record whose values were set to the current batch.
+	 */
+	abstract void addRecord() throws SQLException;
+
+	/**
+	 * Sends the current batch to the database.
+	 */
+	abstract void sendBatch() throws SQLException, IOException;
+
+	void endRecord() throws SQLException, IOException {
+	    addRecord();
+	    recordsInBatch++;
+	    if (recordsInBatch >= batchSize)
+		flush();
+	}
+
+	void flush() throws SQLException, IOException {
+	    if (recordsInBatch == 0)
+		return;
+	    sendBatch();
+	    recordsInBatch = 0;
+	}
+
+	void close() throws SQLException {
+	}
+
+    }
+
+    /**
+     * Inserts the records using JDBC batches of a prepared INSERT statement.
+     * For MySQL, adding rewriteBatchedStatements=true to the connection
+     * string turns each batch into a single multi-row INSERT.
+     */
+    private class BatchRecordWriter extends RecordWriter {
+
+	private final PreparedStatement statement;
+
+	BatchRecordWriter() throws SQLException {
+	    StringBuilder sql = new StringBuilder();
+	    sql.append("INSERT INTO ");
+	    sql.append(tableName);
+	    sql.append(" (");
+	    sql.append(getColumnList());
+	    sql.append(" ) VALUES (");
+	    for (int i = 0; i < exportColumns.getRowCount(); i++) {
+		sql.append("?");
+		if (i < exportColumns.getRowCount() - 1)
+		    sql.append(",");
+	    }
+	    sql.append(")");
+
+	    statement = dbConnection.prepareStatement(sql.toString());
+	}
+
+	void setString(int column, String value) throws SQLException {
+	    statement.setString(column, value);
+	}
+
+	void setDouble(int column, double value) throws SQLException {
+	    statement.setDouble(column, value);
+	}
+
+	void setInt(int column, int value) throws SQLException {
+	    statement.setInt(column, value);
+	}
+
+	void setNull(int column, int sqlType) throws SQLException {
+	    statement.setNull(column, sqlType);
+	}
+
+	void setBlob(int column, byte value[]) throws SQLException {
+	    statement.setBlob(column, new ByteArrayInputStream(value));
+	}
+
+	void addRecord() throws SQLException {
+	    statement.addBatch();
+	}
+
+	void sendBatch() throws SQLException {
+	    statement.executeBatch();
+	}
+
+	void close() throws SQLException {
+	    statement.close();
+	}
+
+    }
+
+    /**
+     * Loads the records into a PostgreSQL table using COPY ... FROM STDIN in
+     * the text format. BLOB columns are expected to be of the bytea type.
+     */
+    private class CopyRecordWriter extends RecordWriter {
+
+	private final CopyManager copyManager;
+	private final String sql;
+	private final String values[];
+	private final StringBuilder batch = new StringBuilder();
+
+	CopyRecordWriter(CopyManager copyManager) {
+	    this.copyManager = copyManager;
+	    this.sql = "COPY " + tableName + " (" + getColumnList()
+		    + ") FROM STDIN";
+	    this.values = new String[exportColumns.getRowCount()];
+	}
+
+	void setString(int column, String value) {
+	    if (value == null) {
+		values[column - 1] = null;
+		return;
+	    }
+	    // Escape the characters which have a special meaning in the text
+	    // format of COPY
+	    StringBuilder escaped = new StringBuilder(value.length());
+	    for (int i = 0; i < value.length(); i++) {
+		char c = value.charAt(i);
+		switch (c) {
+		case '\\':
+		    escaped.append("\\\\");
+		    break;
+		case '\t':
+		    escaped.append("\\t");
+		    break;
+		case '\n':
+		    escaped.append("\\n");
+		    break;
+		case '\r':
+		    escaped.append("\\r");
+		    break;
+		default:
+		    escaped.append(c);
+		}
+	    }
+	    values[column - 1] = escaped.toString();
+	}
+
+	void setDouble(int column, double value) {
+	    values[column - 1] = String.valueOf(value);
+	}
+
+	void setInt(int column, int value) {
+	    values[column - 1] = String.valueOf(value);
+	}
+
+	void setNull(int column, int sqlType) {
+	    values[column - 1] = null;
+	}
+
+	void setBlob(int column, byte value[]) {
+	    // Hex format of bytea, with the backslash escaped for COPY
+	    final char hexDigits[] = "0123456789abcdef".toCharArray();
+	    StringBuilder hex = new StringBuilder(3 + value.length * 2);
+	    hex.append("\\\\x");
+	    for (byte b : value) {
+		hex.append(hexDigits[(b >> 4) & 0xF]);
+		hex.append(hexDigits[b & 0xF]);
+	    }
+	    values[column - 1] = hex.toString();
+	}
+
+	void addRecord() {
+	    for (int i = 0; i < values.length; i++) {
+		if (i > 0)
+		    batch.append('\t');
+		if (values[i] == null)
+		    batch.append("\\N");
+		else
+		    batch.append(values[i]);
+		values[i] = null;
+	    }
+	    batch.append('\n');
+	}
+
+	void sendBatch() throws SQLException, IOException {
+	    copyManager.copyIn(sql, new StringReader(batch.toString()));
+	    batch.setLength(0);
+	}
+
+    }
+
 }
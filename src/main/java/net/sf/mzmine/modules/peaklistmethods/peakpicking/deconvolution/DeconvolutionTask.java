@@ -23,6 +23,9 @@ import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.De
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.PEAK_RESOLVER;
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.SUFFIX;
 
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +43,10 @@ import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+
+import com.google.common.collect.Range;
 
 public class DeconvolutionTask extends AbstractTask {
 
@@ -52,8 +59,11 @@ public class DeconvolutionTask extends AbstractTask {
     private final PeakList originalPeakList;
     private PeakList newPeakList;
 
+    // Number of chromatograms resolved by one thread at a time.
+    private static final int BLOCK_SIZE = 32;
+
     // Counters.
-    private int processedRows;
+    private final AtomicInteger processedRows = new AtomicInteger();
     private int totalRows;
 
     // User parameters
@@ -75,7 +85,6 @@ public class DeconvolutionTask extends AbstractTask {
 	parameters = parameterSet;
 	originalPeakList = list;
 	newPeakList = null;
-	processedRows = 0;
 	totalRows = 0;
     }
 
@@ -88,7 +97,7 @@ public class DeconvolutionTask extends AbstractTask {
     @Override
     public double getFinishedPercentage() {
 
-	return totalRows == 0 ? 0.0 : (double) processedRows
+	return totalRows == 0 ? 0.0 : (double) processedRows.get()
 		/ (double) totalRows;
     }
 
@@ -180,42 +189,162 @@ public class DeconvolutionTask extends AbstractTask {
 				.getParameterSet()));
 
 	// Initialise counters.
-	processedRows = 0;
+	processedRows.set(0);
 	totalRows = peakList.getNumberOfRows();
-	int peakId = 1;
 
-	// Process each chromatogram.
+	// Resolve the chromatograms in parallel. Each block of chromatograms
+	// takes a set of buffers from the pool and returns it when done.
 	final Feature[] chromatograms = peakList.getPeaks(dataFile);
 	final int chromatogramCount = chromatograms.length;
-	for (int index = 0; !isCanceled() && index < chromatogramCount; index++) {
-
-	    final Feature chromatogram = chromatograms[index];
+	final Feature[][] resolvedChromatograms = new Feature[chromatogramCount][];
+	final boolean sortedByRT = isSorted(retentionTimes);
+	final ConcurrentLinkedQueue<ResolverBuffers> bufferPool = new ConcurrentLinkedQueue<ResolverBuffers>();
+
+	ParallelUtils.processInParallel(chromatogramCount, BLOCK_SIZE,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+
+			ResolverBuffers buffers = bufferPool.poll();
+			if (buffers == null)
+			    buffers = new ResolverBuffers(scanNumbers,
+				    retentionTimes);
+
+			for (int index = startIndex; !isCanceled()
+				&& index < endIndex; index++) {
+			    resolvedChromatograms[index] = resolveChromatogram(
+				    chromatograms[index], resolver, buffers,
+				    sortedByRT);
+			    processedRows.incrementAndGet();
+			}
 
-	    // Load the intensities into array.
-	    final double[] intensities = new double[scanCount];
-	    for (int i = 0; i < scanCount; i++) {
+			bufferPool.offer(buffers);
+		    }
+		});
 
-		final DataPoint dp = chromatogram.getDataPoint(scanNumbers[i]);
-		intensities[i] = dp != null ? dp.getIntensity() : 0.0;
-	    }
+	if (isCanceled())
+	    return resolvedPeaks;
 
-	    // Resolve peaks.
-	    final PeakResolver resolverModule = resolver.getModule();
-	    final ParameterSet resolverParams = resolver.getParameterSet();
-	    final Feature[] peaks = resolverModule.resolvePeaks(chromatogram,
-		    scanNumbers, retentionTimes, intensities, resolverParams);
+	// Add peaks to the new peak list, in the order of the chromatograms, so
+	// that the row IDs do not depend on the order of processing.
+	int peakId = 1;
+	for (final Feature[] peaks : resolvedChromatograms) {
 
-	    // Add peaks to the new peak list.
 	    for (final Feature peak : peaks) {
 
 		final PeakListRow newRow = new SimplePeakListRow(peakId++);
 		newRow.addPeak(dataFile, peak);
 		resolvedPeaks.addRow(newRow);
 	    }
-
-	    processedRows++;
 	}
 
 	return resolvedPeaks;
     }
+
+    /**
+     * Resolves the peaks of one chromatogram. The intensities of the
+     * chromatogram are only loaded for the scans within its retention time
+     * range, the rest of the intensity buffer is zero.
+     */
+    private static Feature[] resolveChromatogram(final Feature chromatogram,
+	    final MZmineProcessingStep<PeakResolver> resolver,
+	    final ResolverBuffers buffers, final boolean sortedByRT) {
+
+	final int[] scanNumbers = buffers.scanNumbers;
+	final double[] retentionTimes = buffers.retentionTimes;
+	final double[] intensities = buffers.intensities;
+
+	// Find the scan span of the chromatogram.
+	int spanStart = 0;
+	int spanEnd = scanNumbers.length - 1;
+	final Range<Double> rtRange = chromatogram.getRawDataPointsRTRange();
+	if (sortedByRT && rtRange != null) {
+	    spanStart = lowerIndex(retentionTimes, rtRange.lowerEndpoint());
+	    spanEnd = upperIndex(retentionTimes, rtRange.upperEndpoint());
+	}
+
+	// Load the intensities into array.
+	for (int i = spanStart; i <= spanEnd; i++) {
+
+	    final DataPoint dp = chromatogram.getDataPoint(scanNumbers[i]);
+	    intensities[i] = dp != null ? dp.getIntensity() : 0.0;
+	}
+
+	// Resolve peaks.
+	final Feature[] peaks;
+	try {
+	    peaks = resolver.getModule().resolvePeaks(chromatogram,
+		    scanNumbers, retentionTimes, intensities,
+		    resolver.getParameterSet());
+	} finally {
+	    // Clear the span for the next chromatogram.
+	    if (spanStart <= spanEnd)
+		Arrays.fill(intensities, spanStart, spanEnd + 1, 0.0);
+	}
+
+	return peaks;
+    }
+
+    private static boolean isSorted(final double[] values) {
+
+	for (int i = 1; i < values.length; i++) {
+
+	    if (values[i] < values[i - 1])
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Returns the index of the first value which is not lower than the given
+     * value.
+     */
+    private static int lowerIndex(final double[] values, final double value) {
+
+	int low = 0, high = values.length;
+	while (low < high) {
+
+	    final int mid = (low + high) >>> 1;
+	    if (values[mid] < value)
+		low = mid + 1;
+	    else
+		high = mid;
+	}
+	return low;
+    }
+
+    /**
+     * Returns the index of the last value which is not higher than the given
+     * value.
+     */
+    private static int upperIndex(final double[] values, final double value) {
+
+	int low = 0, high = values.length;
+	while (low < high) {
+
+	    final int mid = (low + high) >>> 1;
+	    if (values[mid] <= value)
+		low = mid + 1;
+	    else
+		high = mid;
+	}
+	return low - 1;
+    }
+
+    /**
+     * Arrays passed to the peak resolver. Each thread works with its own
+     * copies, because the resolvers may modify them.
+     */
+    private static class ResolverBuffers {
+
+	private final int[] scanNumbers;
+	private final double[] retentionTimes;
+	private final double[] intensities;
+
+	ResolverBuffers(final int[] scanNumbers, final double[] retentionTimes) {
+
+	    this.scanNumbers = scanNumbers.clone();
+	    this.retentionTimes = retentionTimes.clone();
+	    this.intensities = new double[scanNumbers.length];
+	}
+    }
 }
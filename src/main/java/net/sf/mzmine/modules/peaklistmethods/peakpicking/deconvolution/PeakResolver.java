@@ -31,6 +31,10 @@ public interface PeakResolver extends MZmineModule {
      * although the contents of these arrays can also be obtained from the
      * chromatogram itself. The size of these arrays must be same, and must be
      * equal to the number of scans covered by given chromatogram.
+     * 
+     * This method may be called from several threads at the same time, each
+     * with its own arrays. The resolver may set intensities to zero, but must
+     * not modify the arrays otherwise.
      */
     public Feature[] resolvePeaks(Feature chromatogram, int scanNumbers[],
 	    double retentionTimes[], double intensities[],
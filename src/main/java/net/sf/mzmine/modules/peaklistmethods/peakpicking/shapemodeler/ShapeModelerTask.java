@@ -20,6 +20,8 @@
 package net.sf.mzmine.modules.peaklistmethods.peakpicking.shapemodeler;
 
 import java.lang.reflect.Constructor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -32,10 +34,12 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
-import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+import net.sf.mzmine.util.RetentionTimeTable;
 
 class ShapeModelerTask extends AbstractTask {
 
@@ -44,8 +48,12 @@ class ShapeModelerTask extends AbstractTask {
     private final MZmineProject project;
     private final PeakList originalPeakList;
 
-    // scan counter
-    private int processedRows = 0, totalRows;
+    // Number of features modeled by one thread at a time
+    private static final int BLOCK_SIZE = 16;
+
+    // row counter
+    private final AtomicInteger processedRows = new AtomicInteger();
+    private int totalRows;
     private int newPeakID = 1;
 
     // User parameters
@@ -91,7 +99,7 @@ class ShapeModelerTask extends AbstractTask {
 	if (totalRows == 0)
 	    return 0;
 	else
-	    return (double) processedRows / totalRows;
+	    return (double) processedRows.get() / totalRows;
     }
 
     public void run() {
@@ -99,8 +107,8 @@ class ShapeModelerTask extends AbstractTask {
 	setStatus(TaskStatus.PROCESSING);
 
 	Class<?> shapeModelClass = shapeModelerType.getModelClass();
-	Constructor<?> shapeModelConstruct;
-	shapeModelConstruct = shapeModelClass.getConstructors()[0];
+	final Constructor<?> shapeModelConstruct = shapeModelClass
+		.getConstructors()[0];
 
 	// Get data file information
 	RawDataFile dataFile = originalPeakList.getRawDataFile(0);
@@ -109,57 +117,53 @@ class ShapeModelerTask extends AbstractTask {
 	newPeakList = new SimplePeakList(originalPeakList + " " + suffix,
 		dataFile);
 
-	totalRows = originalPeakList.getNumberOfRows();
-	int[] scanNumbers;
-	double[] retentionTimes, intensities;
-	SimplePeakListRow newRow;
-
-	for (PeakListRow row : originalPeakList.getRows()) {
-
-	    if (isCanceled())
-		return;
-
-	    newRow = new SimplePeakListRow(newPeakID);
-
-	    try {
-		for (Feature peak : row.getPeaks()) {
-
-		    // Load the intensities into array
-		    dataFile = peak.getDataFile();
-		    scanNumbers = peak.getScanNumbers();
-		    retentionTimes = new double[scanNumbers.length];
-		    for (int i = 0; i < scanNumbers.length; i++)
-			retentionTimes[i] = dataFile.getScan(scanNumbers[i])
-				.getRetentionTime();
+	// Model the features in parallel, split across rows and files
+	final PeakListRow[] rows = originalPeakList.getRows();
+	final RawDataFile[] dataFiles = originalPeakList.getRawDataFiles();
+	final int numFiles = dataFiles.length;
+	final Feature[] shapePeaks = new Feature[rows.length * numFiles];
+	totalRows = rows.length;
+
+	try {
+	    ParallelUtils.processInParallel(shapePeaks.length, BLOCK_SIZE,
+		    new IndexRangeProcessor() {
+			public void process(int startIndex, int endIndex) {
+			    for (int index = startIndex; !isCanceled()
+				    && index < endIndex; index++) {
+				Feature peak = rows[index / numFiles]
+					.getPeak(dataFiles[index % numFiles]);
+				if (peak != null)
+				    shapePeaks[index] = createShapePeak(
+					    shapeModelConstruct, peak);
+				if (index % numFiles == numFiles - 1)
+				    processedRows.incrementAndGet();
+			    }
+			}
+		    });
+	} catch (Exception e) {
+	    String message = "Error trying to make an instance of shape model class "
+		    + shapeModelClass;
+	    logger.log(Level.SEVERE, message, e);
+	    setErrorMessage(message);
+	    setStatus(TaskStatus.ERROR);
+	    return;
+	}
 
-		    intensities = new double[scanNumbers.length];
-		    for (int i = 0; i < scanNumbers.length; i++) {
-			DataPoint dp = peak.getDataPoint(scanNumbers[i]);
-			if (dp != null)
-			    intensities[i] = dp.getIntensity();
-			else
-			    intensities[i] = 0;
-		    }
+	if (isCanceled())
+	    return;
 
-		    Feature shapePeak = (Feature) shapeModelConstruct
-			    .newInstance(peak, scanNumbers, intensities,
-				    retentionTimes, resolution);
+	// Create the rows in the original order
+	for (int rowIndex = 0; rowIndex < rows.length; rowIndex++) {
 
+	    SimplePeakListRow newRow = new SimplePeakListRow(newPeakID);
+	    for (int fileIndex = 0; fileIndex < numFiles; fileIndex++) {
+		Feature shapePeak = shapePeaks[rowIndex * numFiles + fileIndex];
+		if (shapePeak != null)
 		    newRow.addPeak(shapePeak.getDataFile(), shapePeak);
-		}
-
-	    } catch (Exception e) {
-		String message = "Error trying to make an instance of shape model class "
-			+ shapeModelClass;
-		MZmineCore.getDesktop().displayErrorMessage(
-			MZmineCore.getDesktop().getMainWindow(), message);
-		logger.severe(message);
-		return;
 	    }
 
 	    newPeakList.addRow(newRow);
 	    newPeakID++;
-	    processedRows++;
 	}
 
 	// Add new peaklist to the project
@@ -180,11 +184,43 @@ class ShapeModelerTask extends AbstractTask {
 			"Peaks shaped by " + shapeModelerType + " function",
 			parameters));
 
-	logger.finest("Finished peak shape modeler " + processedRows
+	logger.finest("Finished peak shape modeler " + processedRows.get()
 		+ " rows processed");
 
 	setStatus(TaskStatus.FINISHED);
 
     }
 
+    /**
+     * Creates the shape model of one feature. The retention times are taken
+     * from the shared table of the feature's raw data file.
+     */
+    private Feature createShapePeak(Constructor<?> shapeModelConstruct,
+	    Feature peak) {
+
+	// Load the intensities into array
+	RawDataFile dataFile = peak.getDataFile();
+	RetentionTimeTable retentionTimeTable = RetentionTimeTable
+		.getTable(dataFile);
+	int[] scanNumbers = peak.getScanNumbers();
+	double[] retentionTimes = new double[scanNumbers.length];
+	double[] intensities = new double[scanNumbers.length];
+	for (int i = 0; i < scanNumbers.length; i++) {
+	    retentionTimes[i] = retentionTimeTable
+		    .getRetentionTime(scanNumbers[i]);
+	    DataPoint dp = peak.getDataPoint(scanNumbers[i]);
+	    if (dp != null)
+		intensities[i] = dp.getIntensity();
+	    else
+		intensities[i] = 0;
+	}
+
+	try {
+	    return (Feature) shapeModelConstruct.newInstance(peak, scanNumbers,
+		    intensities, retentionTimes, resolution);
+	} catch (Exception e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
 }
@@ -33,6 +33,7 @@ import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.savitzkygolay.SGDerivative;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.RangeUtils;
+import net.sf.mzmine.util.RetentionTimeTable;
 
 import com.google.common.collect.Range;
 
@@ -85,11 +86,10 @@ public class EMGPeakModel implements Feature {
 	// Calculate intensity of each point in the shape.
 	double shapeHeight, currentRT, previousRT, previousHeight;
 
-	int allScanNumbers[] = rawDataFile.getScanNumbers(1);
-	double allRetentionTimes[] = new double[allScanNumbers.length];
-	for (int i = 0; i < allScanNumbers.length; i++)
-	    allRetentionTimes[i] = rawDataFile.getScan(allScanNumbers[i])
-		    .getRetentionTime();
+	RetentionTimeTable retentionTimeTable = RetentionTimeTable
+		.getTable(rawDataFile);
+	int allScanNumbers[] = retentionTimeTable.getMS1ScanNumbers();
+	double allRetentionTimes[] = retentionTimeTable.getMS1RetentionTimes();
 
 	previousHeight = calculateEMGIntensity(H, M, Dp, Ap, C,
 		allRetentionTimes[0]);
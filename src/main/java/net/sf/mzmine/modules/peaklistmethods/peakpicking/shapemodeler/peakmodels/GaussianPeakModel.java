@@ -31,6 +31,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.RangeUtils;
+import net.sf.mzmine.util.RetentionTimeTable;
 
 import com.google.common.collect.Range;
 
@@ -81,11 +82,10 @@ public class GaussianPeakModel implements Feature {
 	// Calculate intensity of each point in the shape.
 	double shapeHeight, currentRT, previousRT, previousHeight;
 
-	int allScanNumbers[] = rawDataFile.getScanNumbers(1);
-	double allRetentionTimes[] = new double[allScanNumbers.length];
-	for (int i = 0; i < allScanNumbers.length; i++)
-	    allRetentionTimes[i] = rawDataFile.getScan(allScanNumbers[i])
-		    .getRetentionTime();
+	RetentionTimeTable retentionTimeTable = RetentionTimeTable
+		.getTable(rawDataFile);
+	int allScanNumbers[] = retentionTimeTable.getMS1ScanNumbers();
+	double allRetentionTimes[] = retentionTimeTable.getMS1RetentionTimes();
 
 	previousHeight = calculateIntensity(allRetentionTimes[0]);
 	previousRT = allRetentionTimes[0] * 60d;
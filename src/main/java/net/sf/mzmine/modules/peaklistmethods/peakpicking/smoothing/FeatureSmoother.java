@@ -0,0 +1,181 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.smoothing;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.util.RetentionTimeTable;
+
+import com.google.common.collect.Range;
+
+/**
+ * Smooths features with given filter weights. The intermediate values are
+ * kept in primitive buffers which are reused for all features smoothed by
+ * this instance, so one instance must only be used by one thread at a time.
+ */
+class FeatureSmoother {
+
+    private final double[] filterWeights;
+
+    // Buffers, grown as needed
+    private double[] mzValues = new double[0];
+    private double[] intensities = new double[0];
+    private double[] smoothed = new double[0];
+
+    FeatureSmoother(final double[] filterWeights) {
+	this.filterWeights = filterWeights;
+    }
+
+    /**
+     * Smooths the given feature.
+     *
+     * @param peak
+     *            the feature to smooth.
+     * @param retentionTimes
+     *            retention times of the feature's raw data file.
+     * @return the smoothed feature, or null if no data point remains.
+     */
+    Feature smooth(final Feature peak,
+	    final RetentionTimeTable retentionTimes) {
+
+	final int[] scanNumbers = peak.getScanNumbers();
+	final int numScans = scanNumbers.length;
+	ensureCapacity(numScans);
+
+	// Copy original peak intensities, missing data points have NaN m/z.
+	for (int i = 0; i < numScans; i++) {
+
+	    final DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
+	    if (dataPoint == null) {
+		mzValues[i] = Double.NaN;
+		intensities[i] = 0.0;
+	    } else {
+		mzValues[i] = dataPoint.getMZ();
+		intensities[i] = dataPoint.getIntensity();
+	    }
+	}
+
+	// Smooth peak.
+	convolve(intensities, smoothed, numScans, filterWeights);
+
+	// Measure peak (max, ranges, area etc.)
+	final RawDataFile dataFile = peak.getDataFile();
+	final DataPoint[] newDataPoints = new DataPoint[numScans];
+	double maxIntensity = 0.0;
+	int maxScanNumber = -1;
+	DataPoint maxDataPoint = null;
+	double minIntensity = Double.MAX_VALUE;
+	double area = 0.0;
+	double lastRT = 0.0;
+	for (int i = 0; i < numScans; i++) {
+
+	    final int scanNumber = scanNumbers[i];
+	    final double rt = retentionTimes.getRetentionTime(scanNumber);
+	    final double intensity = smoothed[i];
+	    if (!Double.isNaN(mzValues[i]) && intensity > 0.0) {
+
+		// Create a new data point.
+		final DataPoint newDataPoint = new SimpleDataPoint(mzValues[i],
+			intensity);
+		newDataPoints[i] = newDataPoint;
+
+		// Track maximum intensity data point.
+		if (intensity > maxIntensity) {
+
+		    maxIntensity = intensity;
+		    maxScanNumber = scanNumber;
+		    maxDataPoint = newDataPoint;
+		}
+
+		// Update range.
+		minIntensity = Math.min(minIntensity, intensity);
+
+		// Accumulate peak area.
+		if (i != 0) {
+
+		    final DataPoint lastDP = newDataPoints[i - 1];
+		    final double lastIntensity = lastDP == null ? 0.0 : lastDP
+			    .getIntensity();
+		    area += (rt - lastRT) * (intensity + lastIntensity) / 2.0;
+		}
+	    }
+	    lastRT = rt;
+	}
+
+	if (maxScanNumber < 0)
+	    return null;
+
+	return new SimpleFeature(dataFile, maxDataPoint.getMZ(), peak.getRT(),
+		maxIntensity, area, scanNumbers, newDataPoints,
+		peak.getFeatureStatus(), maxScanNumber,
+		peak.getMostIntenseFragmentScanNumber(),
+		peak.getRawDataPointsRTRange(), peak.getRawDataPointsMZRange(),
+		Range.closed(minIntensity, maxIntensity));
+    }
+
+    private void ensureCapacity(final int size) {
+
+	if (intensities.length >= size)
+	    return;
+	final int newSize = Math.max(size, intensities.length * 2);
+	mzValues = new double[newSize];
+	intensities = new double[newSize];
+	smoothed = new double[newSize];
+    }
+
+    /**
+     * Convolve a set of weights with a set of intensities.
+     *
+     * @param intensities
+     *            the intensities.
+     * @param convolved
+     *            array for the convolution results.
+     * @param numPoints
+     *            number of intensities.
+     * @param weights
+     *            the filter weights.
+     */
+    private static void convolve(final double[] intensities,
+	    final double[] convolved, final int numPoints,
+	    final double[] weights) {
+
+	// Initialise.
+	final int fullWidth = weights.length;
+	final int halfWidth = (fullWidth - 1) / 2;
+
+	// Convolve.
+	for (int i = 0; i < numPoints; i++) {
+
+	    double sum = 0.0;
+	    final int k = i - halfWidth;
+	    for (int j = Math.max(0, -k); j < Math
+		    .min(fullWidth, numPoints - k); j++) {
+
+		sum += intensities[k + j] * weights[j];
+	    }
+
+	    // Set the result.
+	    convolved[i] = sum;
+	}
+    }
+}
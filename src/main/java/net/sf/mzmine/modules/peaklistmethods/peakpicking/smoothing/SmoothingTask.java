@@ -23,26 +23,26 @@
 
 package net.sf.mzmine.modules.peaklistmethods.peakpicking.smoothing;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
-import net.sf.mzmine.datamodel.impl.SimpleFeature;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-
-import com.google.common.collect.Range;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+import net.sf.mzmine.util.RetentionTimeTable;
 
 /**
  * Performs chromatographic smoothing of a peak-list.
@@ -65,7 +65,10 @@ public class SmoothingTask extends AbstractTask {
     private final boolean removeOriginal;
     private final int filterWidth;
 
-    private int progress;
+    // Number of features smoothed by one thread at a time.
+    private static final int BLOCK_SIZE = 64;
+
+    private final AtomicInteger progress = new AtomicInteger();
     private final int progressMax;
 
     /**
@@ -82,8 +85,8 @@ public class SmoothingTask extends AbstractTask {
 	// Initialize.
 	this.project = project;
 	origPeakList = peakList;
-	progress = 0;
-	progressMax = peakList.getNumberOfRows();
+	progressMax = peakList.getNumberOfRows()
+		* peakList.getNumberOfRawDataFiles();
 
 	// Parameters.
 	parameters = smoothingParameters;
@@ -101,7 +104,7 @@ public class SmoothingTask extends AbstractTask {
 
     @Override
     public double getFinishedPercentage() {
-	return progressMax == 0 ? 0.0 : (double) progress
+	return progressMax == 0 ? 0.0 : (double) progress.get()
 		/ (double) progressMax;
     }
 
@@ -118,122 +121,59 @@ public class SmoothingTask extends AbstractTask {
 	    // Create new peak list
 	    newPeakList = new SimplePeakList(origPeakList + " " + suffix,
 		    origPeakList.getRawDataFiles());
-	    int peakID = 1;
-
-	    // Process each row.
-	    for (final PeakListRow row : origPeakList.getRows()) {
-
-		if (!isCanceled()) {
-
-		    // Create a new peak-list row.
-		    final PeakListRow newRow = new SimplePeakListRow(peakID++);
-
-		    // Process each peak.
-		    for (final Feature peak : row.getPeaks()) {
-
-			if (!isCanceled()) {
 
-			    // Copy original peak intensities.
-			    final int[] scanNumbers = peak.getScanNumbers();
-			    final int numScans = scanNumbers.length;
-			    final double[] intensities = new double[numScans];
-			    for (int i = 0; i < numScans; i++) {
-
-				final DataPoint dataPoint = peak
-					.getDataPoint(scanNumbers[i]);
-				intensities[i] = dataPoint == null ? 0.0
-					: dataPoint.getIntensity();
-			    }
-
-			    // Smooth peak.
-			    final double[] smoothed = convolve(intensities,
-				    filterWeights);
-
-			    // Measure peak (max, ranges, area etc.)
-			    final RawDataFile dataFile = peak.getDataFile();
-			    final DataPoint[] newDataPoints = new DataPoint[numScans];
-			    double maxIntensity = 0.0;
-			    int maxScanNumber = -1;
-			    DataPoint maxDataPoint = null;
-			    Range<Double> intensityRange = null;
-			    double area = 0.0;
-			    for (int i = 0; i < numScans; i++) {
-
-				final int scanNumber = scanNumbers[i];
-				final DataPoint dataPoint = peak
-					.getDataPoint(scanNumber);
-				final double intensity = smoothed[i];
-				if (dataPoint != null && intensity > 0.0) {
-
-				    // Create a new data point.
-				    final double mz = dataPoint.getMZ();
-				    final double rt = dataFile.getScan(
-					    scanNumber).getRetentionTime();
-				    final DataPoint newDataPoint = new SimpleDataPoint(
-					    mz, intensity);
-				    newDataPoints[i] = newDataPoint;
-
-				    // Track maximum intensity data point.
-				    if (intensity > maxIntensity) {
-
-					maxIntensity = intensity;
-					maxScanNumber = scanNumber;
-					maxDataPoint = newDataPoint;
-				    }
-
-				    // Update ranges.
-				    if (intensityRange == null) {
-					intensityRange = Range
-						.singleton(intensity);
-				    } else {
-					intensityRange = intensityRange
-						.span(Range
-							.singleton(intensity));
-				    }
-
-				    // Accumulate peak area.
-				    if (i != 0) {
-
-					final DataPoint lastDP = newDataPoints[i - 1];
-					final double lastIntensity = lastDP == null ? 0.0
-						: lastDP.getIntensity();
-					final double lastRT = dataFile.getScan(
-						scanNumbers[i - 1])
-						.getRetentionTime();
-					area += (rt - lastRT)
-						* (intensity + lastIntensity)
-						/ 2.0;
-				    }
+	    // Smooth the features in parallel, split across rows and files.
+	    // Each block of features takes a smoother with its buffers from
+	    // the pool and returns it when done.
+	    final PeakListRow[] rows = origPeakList.getRows();
+	    final RawDataFile[] dataFiles = origPeakList.getRawDataFiles();
+	    final int numFiles = dataFiles.length;
+	    final RetentionTimeTable[] retentionTimes = new RetentionTimeTable[numFiles];
+	    for (int i = 0; i < numFiles; i++)
+		retentionTimes[i] = RetentionTimeTable.getTable(dataFiles[i]);
+	    final Feature[] smoothedPeaks = new Feature[rows.length * numFiles];
+	    final ConcurrentLinkedQueue<FeatureSmoother> smootherPool = new ConcurrentLinkedQueue<FeatureSmoother>();
+
+	    ParallelUtils.processInParallel(smoothedPeaks.length, BLOCK_SIZE,
+		    new IndexRangeProcessor() {
+			public void process(int startIndex, int endIndex) {
+
+			    FeatureSmoother smoother = smootherPool.poll();
+			    if (smoother == null)
+				smoother = new FeatureSmoother(filterWeights);
+
+			    for (int index = startIndex; !isCanceled()
+				    && index < endIndex; index++) {
+
+				final int fileIndex = index % numFiles;
+				final Feature peak = rows[index / numFiles]
+					.getPeak(dataFiles[fileIndex]);
+				if (peak != null) {
+				    smoothedPeaks[index] = smoother.smooth(peak,
+					    retentionTimes[fileIndex]);
 				}
+				progress.incrementAndGet();
 			    }
 
-			    assert maxDataPoint != null;
-
-			    if (!isCanceled() && maxScanNumber >= 0) {
-
-				// Create a new peak.
-				newRow.addPeak(
-					dataFile,
-					new SimpleFeature(
-						dataFile,
-						maxDataPoint.getMZ(),
-						peak.getRT(),
-						maxIntensity,
-						area,
-						scanNumbers,
-						newDataPoints,
-						peak.getFeatureStatus(),
-						maxScanNumber,
-						peak.getMostIntenseFragmentScanNumber(),
-						peak.getRawDataPointsRTRange(),
-						peak.getRawDataPointsMZRange(),
-						intensityRange));
-			    }
+			    smootherPool.offer(smoother);
 			}
-		    }
-		    newPeakList.addRow(newRow);
-		    progress++;
+		    });
+
+	    // Create the rows in the original order.
+	    int peakID = 1;
+	    for (int rowIndex = 0; !isCanceled() && rowIndex < rows.length;
+		    rowIndex++) {
+
+		final PeakListRow newRow = new SimplePeakListRow(peakID++);
+		for (int fileIndex = 0; fileIndex < numFiles; fileIndex++) {
+
+		    final Feature smoothedPeak = smoothedPeaks[rowIndex
+			    * numFiles + fileIndex];
+		    if (smoothedPeak != null)
+			newRow.addPeak(smoothedPeak.getDataFile(),
+				smoothedPeak);
 		}
+		newPeakList.addRow(newRow);
 	    }
 
 	    // Finish up.
@@ -260,8 +200,8 @@ public class SmoothingTask extends AbstractTask {
 				"Peaks smoothed by Savitzky-Golay filter",
 				parameters));
 
-		LOG.finest("Finished peak smoothing: " + progress
-			+ " rows processed");
+		LOG.finest("Finished peak smoothing: "
+			+ origPeakList.getNumberOfRows() + " rows processed");
 
 		setStatus(TaskStatus.FINISHED);
 	    }
@@ -272,40 +212,4 @@ public class SmoothingTask extends AbstractTask {
 	    setStatus(TaskStatus.ERROR);
 	}
     }
-
-    /**
-     * Convolve a set of weights with a set of intensities.
-     *
-     * @param intensities
-     *            the intensities.
-     * @param weights
-     *            the filter weights.
-     * @return the convolution results.
-     */
-    private static double[] convolve(final double[] intensities,
-	    final double[] weights) {
-
-	// Initialise.
-	final int fullWidth = weights.length;
-	final int halfWidth = (fullWidth - 1) / 2;
-	final int numPoints = intensities.length;
-
-	// Convolve.
-	final double[] convolved = new double[numPoints];
-	for (int i = 0; i < numPoints; i++) {
-
-	    double sum = 0.0;
-	    final int k = i - halfWidth;
-	    for (int j = Math.max(0, -k); j < Math
-		    .min(fullWidth, numPoints - k); j++) {
-
-		sum += intensities[k + j] * weights[j];
-	    }
-
-	    // Set the result.
-	    convolved[i] = sum;
-	}
-
-	return convolved;
-    }
 }
\ No newline at end of file
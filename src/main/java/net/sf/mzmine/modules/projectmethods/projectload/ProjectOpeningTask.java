@@ -25,8 +25,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -50,10 +56,12 @@ import net.sf.mzmine.modules.projectmethods.projectsave.ProjectSavingTask;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.project.ProjectManager;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.SavedProjectState;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.GUIUtils;
+import net.sf.mzmine.util.ParallelUtils;
 import net.sf.mzmine.util.StreamCopy;
 
 import org.xml.sax.SAXException;
@@ -65,10 +73,19 @@ public class ProjectOpeningTask extends AbstractTask {
     private File openFile;
     private MZmineProjectImpl newProject;
 
-    private RawDataFileOpenHandler rawDataFileOpenHandler;
-    private PeakListOpenHandler peakListOpenHandler;
+    // Raw data files and peak lists are loaded in parallel, each by its own
+    // handler
+    private final List<RawDataFileOpenHandler> rawDataFileOpenHandlers = new Vector<RawDataFileOpenHandler>();
+    private final List<PeakListOpenHandler> peakListOpenHandlers = new Vector<PeakListOpenHandler>();
     private UserParameterOpenHandler userParameterOpenHandler;
 
+    // Version of the project file format
+    private int projectMajorVersion, projectMinorVersion;
+
+    // Contents of the project file, if the project can be saved back to it
+    // incrementally
+    private SavedProjectState savedState;
+
     private int currentStage;
     private String currentLoadedObjectName;
 
@@ -97,13 +114,23 @@ public class ProjectOpeningTask extends AbstractTask {
     public double getFinishedPercentage() {
 	switch (currentStage) {
 	case 2:
-	    if (rawDataFileOpenHandler == null)
+	    RawDataFileOpenHandler rawDataHandlers[] = rawDataFileOpenHandlers
+		    .toArray(new RawDataFileOpenHandler[0]);
+	    if (rawDataHandlers.length == 0)
 		return 0;
-	    return rawDataFileOpenHandler.getProgress();
+	    double rawDataProgress = 0;
+	    for (RawDataFileOpenHandler handler : rawDataHandlers)
+		rawDataProgress += handler.getProgress();
+	    return rawDataProgress / rawDataHandlers.length;
 	case 3:
-	    if (peakListOpenHandler == null)
+	    PeakListOpenHandler peakListHandlers[] = peakListOpenHandlers
+		    .toArray(new PeakListOpenHandler[0]);
+	    if (peakListHandlers.length == 0)
 		return 0;
-	    return peakListOpenHandler.getProgress();
+	    double peakListProgress = 0;
+	    for (PeakListOpenHandler handler : peakListHandlers)
+		peakListProgress += handler.getProgress();
+	    return peakListProgress / peakListHandlers.length;
 	case 4:
 	    if (userParameterOpenHandler == null)
 		return 0;
@@ -169,6 +196,10 @@ public class ProjectOpeningTask extends AbstractTask {
 	    currentStage++;
 	    zipFile.close();
 
+	    // Saving the project to the same file can keep the objects which
+	    // are not modified
+	    newProject.setSavedState(savedState);
+
 	    // Final check for cancel
 	    if (isCanceled())
 		return;
@@ -191,6 +222,9 @@ public class ProjectOpeningTask extends AbstractTask {
 	    if (isCanceled())
 		return;
 
+	    if (e instanceof ExecutionException)
+		e = e.getCause();
+
 	    setStatus(TaskStatus.ERROR);
 	    e.printStackTrace();
 	    setErrorMessage("Failed opening project: "
@@ -207,11 +241,13 @@ public class ProjectOpeningTask extends AbstractTask {
 
 	setStatus(TaskStatus.CANCELED);
 
-	if (rawDataFileOpenHandler != null)
-	    rawDataFileOpenHandler.cancel();
+	for (RawDataFileOpenHandler handler : rawDataFileOpenHandlers
+		.toArray(new RawDataFileOpenHandler[0]))
+	    handler.cancel();
 
-	if (peakListOpenHandler != null)
-	    peakListOpenHandler.cancel();
+	for (PeakListOpenHandler handler : peakListOpenHandlers
+		.toArray(new PeakListOpenHandler[0]))
+	    handler.cancel();
 
     }
 
@@ -254,8 +290,8 @@ public class ProjectOpeningTask extends AbstractTask {
 	    throw new IOException("Invalid project version "
 		    + projectVersionString);
 	}
-	int projectMajorVersion = Integer.valueOf(m.group(1));
-	int projectMinorVersion = Integer.valueOf(m.group(2));
+	projectMajorVersion = Integer.valueOf(m.group(1));
+	projectMinorVersion = Integer.valueOf(m.group(2));
 
 	// Check if project was saved with an old version
 	if (projectMajorVersion == 1) {
@@ -268,15 +304,11 @@ public class ProjectOpeningTask extends AbstractTask {
 
 	// Check if the project version is 2.0 to 2.2
 	if ((projectMajorVersion == 2) && (projectMinorVersion <= 2)) {
-	    rawDataFileOpenHandler = new RawDataFileOpenHandler_2_0();
-	    peakListOpenHandler = new PeakListOpenHandler_2_0(dataFilesIDMap);
 	    return;
 	}
 
 	// Check if the project version is 2.3 to 2.4
 	if ((projectMajorVersion == 2) && (projectMinorVersion <= 4)) {
-	    rawDataFileOpenHandler = new RawDataFileOpenHandler_2_3();
-	    peakListOpenHandler = new PeakListOpenHandler_2_3(dataFilesIDMap);
 	    userParameterOpenHandler = new UserParameterOpenHandler_2_3(
 		    newProject, dataFilesIDMap);
 	    return;
@@ -292,16 +324,34 @@ public class ProjectOpeningTask extends AbstractTask {
 		    + " may result in errors or loss of information.";
 	    MZmineCore.getDesktop().displayMessage(
 		    MZmineCore.getDesktop().getMainWindow(), warning);
+	} else {
+	    // The project file is in the current format, so it can be saved
+	    // incrementally
+	    savedState = new SavedProjectState(openFile);
 	}
 
 	// Default opening handler for MZmine 2.5 and higher
-	rawDataFileOpenHandler = new RawDataFileOpenHandler_2_5();
-	peakListOpenHandler = new PeakListOpenHandler_2_5(dataFilesIDMap);
 	userParameterOpenHandler = new UserParameterOpenHandler_2_5(newProject,
 		dataFilesIDMap);
 
     }
 
+    private RawDataFileOpenHandler createRawDataFileOpenHandler() {
+	if ((projectMajorVersion == 2) && (projectMinorVersion <= 2))
+	    return new RawDataFileOpenHandler_2_0();
+	if ((projectMajorVersion == 2) && (projectMinorVersion <= 4))
+	    return new RawDataFileOpenHandler_2_3();
+	return new RawDataFileOpenHandler_2_5();
+    }
+
+    private PeakListOpenHandler createPeakListOpenHandler() {
+	if ((projectMajorVersion == 2) && (projectMinorVersion <= 2))
+	    return new PeakListOpenHandler_2_0(dataFilesIDMap);
+	if ((projectMajorVersion == 2) && (projectMinorVersion <= 4))
+	    return new PeakListOpenHandler_2_3(dataFilesIDMap);
+	return new PeakListOpenHandler_2_5(dataFilesIDMap);
+    }
+
     /**
      * Load the configuration file from the project zip file
      */
@@ -334,76 +384,128 @@ public class ProjectOpeningTask extends AbstractTask {
 	tempConfigFile.delete();
     }
 
-    private void loadRawDataFiles(ZipFile zipFile) throws IOException,
-	    ParserConfigurationException, SAXException, InstantiationException,
-	    IllegalAccessException {
+    private void loadRawDataFiles(final ZipFile zipFile) throws IOException,
+	    ExecutionException {
 
 	logger.info("Loading raw data files");
 
 	Pattern filePattern = Pattern
 		.compile("Raw data file #([\\d]+) (.*)\\.xml$");
 
+	// Start loading all raw data files in parallel
+	List<FutureTask<RawDataFile>> loadedFiles = new ArrayList<FutureTask<RawDataFile>>();
+	List<Matcher> fileMatchers = new ArrayList<Matcher>();
 	Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
 	while (zipEntries.hasMoreElements()) {
 
-	    // Canceled
-	    if (isCanceled())
-		return;
-
-	    ZipEntry entry = zipEntries.nextElement();
+	    final ZipEntry entry = zipEntries.nextElement();
 	    String entryName = entry.getName();
 	    Matcher fileMatcher = filePattern.matcher(entryName);
 
 	    if (fileMatcher.matches()) {
-		String fileID = fileMatcher.group(1);
-		currentLoadedObjectName = fileMatcher.group(2);
-
 		String scansFileName = entryName.replaceFirst("\\.xml$",
 			".scans");
-		ZipEntry scansEntry = zipFile.getEntry(scansFileName);
-		RawDataFile newFile = rawDataFileOpenHandler.readRawDataFile(
-			zipFile, scansEntry, entry);
-		newProject.addFile(newFile);
-		dataFilesIDMap.put(fileID, newFile);
+		final ZipEntry scansEntry = zipFile.getEntry(scansFileName);
+		final RawDataFileOpenHandler handler = createRawDataFileOpenHandler();
+		rawDataFileOpenHandlers.add(handler);
+		loadedFiles.add(ParallelUtils.submit(new Callable<RawDataFile>() {
+		    public RawDataFile call() throws Exception {
+			return handler.readRawDataFile(zipFile, scansEntry,
+				entry);
+		    }
+		}));
+		fileMatchers.add(fileMatcher);
 	    }
 
 	}
 
+	// Add the files to the project in the order of the project file
+	for (int i = 0; i < loadedFiles.size(); i++) {
+
+	    // Canceled
+	    if (isCanceled())
+		return;
+
+	    Matcher fileMatcher = fileMatchers.get(i);
+	    String fileID = fileMatcher.group(1);
+	    currentLoadedObjectName = fileMatcher.group(2);
+
+	    RawDataFile newFile = ParallelUtils.getResult(loadedFiles.get(i));
+	    newProject.addFile(newFile);
+	    dataFilesIDMap.put(fileID, newFile);
+
+	    if (savedState != null) {
+		String xmlEntryName = fileMatcher.group();
+		String scansEntryName = xmlEntryName.replaceFirst("\\.xml$",
+			".scans");
+		savedState.addObject(newFile, Integer.parseInt(fileID),
+			SavedProjectState.getFingerprint(newFile),
+			scansEntryName, xmlEntryName);
+	    }
+	}
+
     }
 
-    private void loadPeakLists(ZipFile zipFile) throws IOException,
-	    ParserConfigurationException, SAXException, InstantiationException,
-	    IllegalAccessException {
+    private void loadPeakLists(final ZipFile zipFile) throws IOException,
+	    ExecutionException {
 
 	logger.info("Loading peak lists");
 
 	Pattern filePattern = Pattern
 		.compile("Peak list #([\\d]+) (.*)\\.xml$");
 
+	// Start loading all peak lists in parallel
+	List<FutureTask<PeakList>> loadedPeakLists = new ArrayList<FutureTask<PeakList>>();
+	List<Matcher> fileMatchers = new ArrayList<Matcher>();
 	Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
 	while (zipEntries.hasMoreElements()) {
 
-	    // Canceled
-	    if (isCanceled())
-		return;
-
-	    ZipEntry entry = zipEntries.nextElement();
+	    final ZipEntry entry = zipEntries.nextElement();
 	    String entryName = entry.getName();
 
 	    Matcher fileMatcher = filePattern.matcher(entryName);
 
 	    if (fileMatcher.matches()) {
+		final PeakListOpenHandler handler = createPeakListOpenHandler();
+		peakListOpenHandlers.add(handler);
+		loadedPeakLists.add(ParallelUtils
+			.submit(new Callable<PeakList>() {
+			    public PeakList call() throws Exception {
+				InputStream peakListStream = zipFile
+					.getInputStream(entry);
+				try {
+				    return handler.readPeakList(peakListStream);
+				} finally {
+				    peakListStream.close();
+				}
+			    }
+			}));
+		fileMatchers.add(fileMatcher);
+	    }
+
+	}
+
+	// Add the peak lists to the project in the order of the project file
+	for (int i = 0; i < loadedPeakLists.size(); i++) {
 
-		currentLoadedObjectName = fileMatcher.group(2);
+	    // Canceled
+	    if (isCanceled())
+		return;
 
-		InputStream peakListStream = zipFile.getInputStream(entry);
+	    Matcher fileMatcher = fileMatchers.get(i);
+	    currentLoadedObjectName = fileMatcher.group(2);
 
-		PeakList newPeakList = peakListOpenHandler
-			.readPeakList(peakListStream);
+	    PeakList newPeakList = ParallelUtils.getResult(loadedPeakLists
+		    .get(i));
 
-		newProject.addPeakList(newPeakList);
-	    }
+	    newProject.addPeakList(newPeakList);
 
+	    if (savedState != null) {
+		savedState.addObject(newPeakList,
+			Integer.parseInt(fileMatcher.group(1)),
+			SavedProjectState.getFingerprint(newPeakList),
+			fileMatcher.group());
+	    }
 	}
 
     }
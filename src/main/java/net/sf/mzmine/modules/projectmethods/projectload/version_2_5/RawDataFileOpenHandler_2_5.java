@@ -41,6 +41,7 @@ import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.project.impl.StorableScan;
 import net.sf.mzmine.util.StreamCopy;
+import net.sf.mzmine.util.ZipUtils;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -81,9 +82,10 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements
     private boolean canceled = false;
 
     /**
-     * Extract the scan file and copies it into the temporary folder. Create a
-     * new raw data file using the information from the XML raw data description
-     * file
+     * Create a new raw data file using the information from the XML raw data
+     * description file. If the scan file is stored uncompressed in the project,
+     * its data points are memory-mapped directly from the project file.
+     * Otherwise, the scan file is extracted into the temporary folder.
      * 
      * @param Name
      *            raw data file name
@@ -101,25 +103,32 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements
 	charBuffer = new StringBuffer();
 	massLists = new ArrayList<StorableMassList>();
 
-	// Writes the scan file into a temporary file
-	logger.info("Moving scan file : " + scansEntry.getName()
-		+ " to the temporary folder");
-
 	newRawDataFile = (RawDataFileImpl) MZmineCore.createNewFile(null);
 	dataPointsOffsets = newRawDataFile.getDataPointsOffsets();
 	dataPointsLengths = newRawDataFile.getDataPointsLengths();
 
-	File tempFile = RawDataFileImpl.createNewDataPointsFile();
-
-	InputStream scanInputStream = zipFile.getInputStream(scansEntry);
-	FileOutputStream fileStream = new FileOutputStream(tempFile);
-
-	// Extracts the scan file from the zip project file to the temporary
-	// folder
 	copyMachine = new StreamCopy();
 	stepNumber++;
-	copyMachine.copy(scanInputStream, fileStream, scansEntry.getSize());
-	fileStream.close();
+
+	// Find where the data points start within the project file, if they
+	// can be mapped
+	File projectFile = new File(zipFile.getName());
+	long mappedDataOffset = -1;
+	if (scansEntry.getMethod() == ZipEntry.STORED) {
+	    try {
+		mappedDataOffset = ZipUtils.getEntryDataOffset(projectFile,
+			scansEntry.getName());
+	    } catch (IOException e) {
+		logger.warning("Could not locate " + scansEntry.getName()
+			+ " in the project file, the scan file will be extracted: "
+			+ e);
+	    }
+	}
+
+	File tempFile = null;
+	if (mappedDataOffset < 0) {
+	    tempFile = extractScanFile(zipFile, scansEntry);
+	}
 
 	stepNumber++;
 
@@ -129,13 +138,49 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements
 	SAXParser saxParser = factory.newSAXParser();
 	saxParser.parse(xmlInputStream, this);
 
+	if (tempFile == null) {
+	    try {
+		logger.info("Mapping scan file " + scansEntry.getName()
+			+ " from the project file");
+		newRawDataFile.openMappedDataPoints(projectFile,
+			mappedDataOffset, scansEntry.getSize());
+	    } catch (IOException e) {
+		logger.warning("Could not map " + scansEntry.getName()
+			+ ", the scan file will be extracted: " + e);
+		tempFile = extractScanFile(zipFile, scansEntry);
+	    }
+	}
+
 	// Adds the raw data file to MZmine
-	newRawDataFile.openDataPointsFile(tempFile);
+	if (tempFile != null)
+	    newRawDataFile.openDataPointsFile(tempFile);
 	RawDataFile rawDataFile = newRawDataFile.finishWriting();
 	return rawDataFile;
 
     }
 
+    /**
+     * Extracts the scan file from the zip project file to the temporary
+     * folder
+     */
+    private File extractScanFile(ZipFile zipFile, ZipEntry scansEntry)
+	    throws IOException {
+
+	logger.info("Moving scan file : " + scansEntry.getName()
+		+ " to the temporary folder");
+
+	File tempFile = RawDataFileImpl.createNewDataPointsFile();
+
+	InputStream scanInputStream = zipFile.getInputStream(scansEntry);
+	FileOutputStream fileStream = new FileOutputStream(tempFile);
+
+	copyMachine.copy(scanInputStream, fileStream, scansEntry.getSize());
+	fileStream.close();
+
+	return tempFile;
+
+    }
+
     /**
      * @return the progress of these functions loading the raw data from the zip
      *         file
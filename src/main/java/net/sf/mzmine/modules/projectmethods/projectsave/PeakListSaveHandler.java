@@ -60,7 +60,7 @@ public class PeakListSaveHandler {
     private Hashtable<RawDataFile, String> dataFilesIDMap;
 
     private int numberOfRows, finishedRows;
-    private boolean canceled = false;
+    private volatile boolean canceled = false;
 
     private OutputStream finalStream;
 
@@ -117,7 +117,11 @@ public class PeakListSaveHandler {
 	    dateText = ((SimplePeakList) peakList).getDateCreated();
 	} else {
 	    Date date = new Date();
-	    dateText = dateFormat.format(date);
+	    // Peak lists may be saved in parallel, and DateFormat is not
+	    // thread-safe
+	    synchronized (dateFormat) {
+		dateText = dateFormat.format(date);
+	    }
 	}
 	hd.startElement("", "",
 		PeakListElementName.PEAKLIST_DATE.getElementName(), atts);
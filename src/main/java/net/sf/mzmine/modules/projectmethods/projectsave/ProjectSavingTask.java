@@ -19,16 +19,16 @@
 
 package net.sf.mzmine.modules.projectmethods.projectsave;
 
+
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
-import javax.xml.transform.TransformerConfigurationException;
 
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
@@ -39,31 +39,67 @@ import net.sf.mzmine.modules.projectmethods.projectload.ProjectLoaderParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.project.impl.SavedProjectState;
+import net.sf.mzmine.project.impl.VirtualRawDataFile;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.StreamCopy;
-
-import org.xml.sax.SAXException;
+import net.sf.mzmine.util.ZipFileWriter;
+import net.sf.mzmine.util.ZipUtils;
+import net.sf.mzmine.util.ZipUtils.ZipEntryInfo;
 
 /**
+ * Saves the project into a ZIP file.
+ * 
+ * The data points of the raw data files are stored uncompressed, while the
+ * descriptions of the raw data files and the peak lists are compressed
+ * directly into the project file.
  * 
+ * If the project is saved to the same file it was last saved to (or loaded
+ * from), the raw data files and peak lists which were not modified since are
+ * kept in the file as they are, and only the modified ones are appended to
+ * the end of the file, followed by a new central directory. When the obsolete
+ * entries would take too much space, the whole file is rewritten instead
+ * (still copying the unmodified entries without serializing them again). The
+ * new file is written next to the old one, and replaces it when complete.
+ * 
+ * After saving, the data points of the raw data files are memory-mapped from
+ * the saved project file, instead of the file they were read from so far.
  */
 public class ProjectSavingTask extends AbstractTask {
 
     public static final String VERSION_FILENAME = "MZMINE_VERSION";
     public static final String CONFIG_FILENAME = "configuration.xml";
+    public static final String USER_PARAMETERS_FILENAME = "User parameters.xml";
+
+    /**
+     * Alignment of the data points within the project file, so that they can
+     * be memory-mapped
+     */
+    private static final int DATA_POINTS_ALIGNMENT = 8;
+
+    /**
+     * The project file is rewritten completely instead of appending to it,
+     * when obsolete entries would take more than this fraction of it
+     */
+    private static final double MAX_OBSOLETE_FRACTION = 0.5;
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private File saveFile;
     private MZmineProjectImpl savedProject;
 
-    private RawDataFileSaveHandler rawDataFileSaveHandler;
-    private PeakListSaveHandler peakListSaveHandler;
+    private RawDataFileSaveHandler rawDataFileSaveHandlers[];
+    private PeakListSaveHandler peakListSaveHandlers[];
     private UserParameterSaveHandler userParameterSaveHandler;
 
-    private int currentStage;
+    // Raw data files kept from the previous save
+    private boolean keepRawDataFile[];
+
+    // Number of raw data files and peak lists kept from the previous save
+    private int keptObjects;
+
     private String currentSavedObjectName;
 
     // This hashtable maps raw data files to their ID within the saved project
@@ -90,25 +126,24 @@ public class ProjectSavingTask extends AbstractTask {
      */
     public double getFinishedPercentage() {
 
-	switch (currentStage) {
-
-	case 2:
-	    if (rawDataFileSaveHandler == null)
-		return 0;
-	    return rawDataFileSaveHandler.getProgress();
-	case 3:
-	    if (peakListSaveHandler == null)
-		return 0;
-	    return peakListSaveHandler.getProgress();
-	case 4:
-	    if (userParameterSaveHandler == null)
-		return 0;
-	    return userParameterSaveHandler.getProgress();
-	case 5:
-	    return 1;
-	default:
+	if ((rawDataFileSaveHandlers == null) || (peakListSaveHandlers == null))
 	    return 0;
+
+	int totalObjects = rawDataFileSaveHandlers.length
+		+ peakListSaveHandlers.length + 1;
+	double finishedObjects = keptObjects;
+	for (int i = 0; i < rawDataFileSaveHandlers.length; i++) {
+	    if ((rawDataFileSaveHandlers[i] != null) && !keepRawDataFile[i])
+		finishedObjects += rawDataFileSaveHandlers[i].getProgress();
 	}
+	for (PeakListSaveHandler handler : peakListSaveHandlers) {
+	    if (handler != null)
+		finishedObjects += handler.getProgress();
+	}
+	if (userParameterSaveHandler != null)
+	    finishedObjects += userParameterSaveHandler.getProgress();
+
+	return finishedObjects / totalObjects;
     }
 
     /**
@@ -120,11 +155,19 @@ public class ProjectSavingTask extends AbstractTask {
 
 	setStatus(TaskStatus.CANCELED);
 
-	if (rawDataFileSaveHandler != null)
-	    rawDataFileSaveHandler.cancel();
+	if (rawDataFileSaveHandlers != null) {
+	    for (RawDataFileSaveHandler handler : rawDataFileSaveHandlers) {
+		if (handler != null)
+		    handler.cancel();
+	    }
+	}
 
-	if (peakListSaveHandler != null)
-	    peakListSaveHandler.cancel();
+	if (peakListSaveHandlers != null) {
+	    for (PeakListSaveHandler handler : peakListSaveHandlers) {
+		if (handler != null)
+		    handler.cancel();
+	    }
+	}
 
 	if (userParameterSaveHandler != null)
 	    userParameterSaveHandler.cancel();
@@ -136,83 +179,217 @@ public class ProjectSavingTask extends AbstractTask {
      */
     public void run() {
 
+	ZipFileWriter zipWriter = null;
+	File tempFile = null;
+
 	try {
 
 	    logger.info("Saving project to " + saveFile);
 	    setStatus(TaskStatus.PROCESSING);
 
-	    // Prepare a temporary ZIP file. We create this file in the same
-	    // directory as the final saveFile to avoid moving between
-	    // filesystems in the last stage (renameTo)
-	    File tempFile = File.createTempFile(saveFile.getName(), ".tmp",
-		    saveFile.getParentFile());
-	    tempFile.deleteOnExit();
-
-	    // Create a ZIP stream writing to the temporary file
-	    FileOutputStream tempStream = new FileOutputStream(tempFile);
-	    ZipOutputStream zipStream = new ZipOutputStream(tempStream);
-
-	    // Stage 1 - save version and configuration
-	    currentStage++;
-	    saveVersion(zipStream);
-	    saveConfiguration(zipStream);
-	    if (isCanceled()) {
-		zipStream.close();
-		tempFile.delete();
-		return;
+	    RawDataFile rawDataFiles[] = savedProject.getDataFiles();
+	    PeakList peakLists[] = savedProject.getPeakLists();
+
+	    // Find out what the project file already contains
+	    SavedProjectState oldState = savedProject.getSavedState();
+	    Map<String, ZipEntryInfo> oldEntries = readOldEntries(oldState);
+	    if (oldEntries == null)
+		oldState = null;
+
+	    // Scans of virtual raw data files are saved as regular data
+	    for (RawDataFile rawDataFile : rawDataFiles) {
+		if (rawDataFile instanceof VirtualRawDataFile)
+		    ((VirtualRawDataFile) rawDataFile).materialize();
 	    }
 
-	    // Stage 2 - save RawDataFile objects
-	    currentStage++;
-	    saveRawDataFiles(zipStream);
-	    if (isCanceled()) {
-		zipStream.close();
-		tempFile.delete();
-		return;
+	    // Remember the state of the objects before saving, so that changes
+	    // made during saving will be saved next time
+	    long rawDataFingerprints[] = new long[rawDataFiles.length];
+	    for (int i = 0; i < rawDataFiles.length; i++)
+		rawDataFingerprints[i] = SavedProjectState
+			.getFingerprint(rawDataFiles[i]);
+	    long peakListFingerprints[] = new long[peakLists.length];
+	    for (int i = 0; i < peakLists.length; i++)
+		peakListFingerprints[i] = SavedProjectState
+			.getFingerprint(peakLists[i]);
+
+	    // The handlers remember the layout of the data points at this
+	    // point. Raw data files which are kept below were not modified
+	    // since, so the layout also describes their kept data points.
+	    RawDataFileSaveHandler handlers[] = new RawDataFileSaveHandler[rawDataFiles.length];
+	    for (int i = 0; i < rawDataFiles.length; i++)
+		handlers[i] = new RawDataFileSaveHandler(
+			(RawDataFileImpl) rawDataFiles[i]);
+
+	    // Objects which were saved before keep their IDs
+	    int rawDataIDs[] = assignIDs(rawDataFiles, oldState);
+	    int peakListIDs[] = assignIDs(peakLists, oldState);
+	    for (int i = 0; i < rawDataFiles.length; i++)
+		dataFilesIDMap.put(rawDataFiles[i],
+			String.valueOf(rawDataIDs[i]));
+
+	    // Find the objects which can be kept from the previous save
+	    keepRawDataFile = new boolean[rawDataFiles.length];
+	    boolean keepPeakList[] = new boolean[peakLists.length];
+	    long keptBytes = 0;
+	    for (int i = 0; i < rawDataFiles.length; i++) {
+		keepRawDataFile[i] = canKeep(rawDataFiles[i], oldState,
+			oldEntries);
+		if (keepRawDataFile[i])
+		    keptBytes += getSavedSize(rawDataFiles[i], oldState,
+			    oldEntries);
+	    }
+	    for (int i = 0; i < peakLists.length; i++) {
+		keepPeakList[i] = canKeep(peakLists[i], oldState, oldEntries);
+		if (keepPeakList[i])
+		    keptBytes += getSavedSize(peakLists[i], oldState, oldEntries);
 	    }
 
-	    // Stage 3 - save PeakList objects
-	    currentStage++;
-	    savePeakLists(zipStream);
-	    if (isCanceled()) {
-		zipStream.close();
-		tempFile.delete();
-		return;
+	    // Prepare the handlers of the objects which have to be saved
+	    rawDataFileSaveHandlers = handlers;
+	    for (int i = 0; i < rawDataFiles.length; i++) {
+		if (keepRawDataFile[i])
+		    keptObjects++;
+	    }
+	    peakListSaveHandlers = new PeakListSaveHandler[peakLists.length];
+	    for (int i = 0; i < peakLists.length; i++) {
+		if (keepPeakList[i])
+		    keptObjects++;
 	    }
 
-	    // Stage 4 - save user parameters
-	    currentStage++;
-	    saveUserParameters(zipStream);
-	    if (isCanceled()) {
-		zipStream.close();
-		tempFile.delete();
+	    // Append to the existing file, or write a temporary file which
+	    // will replace the existing file
+	    boolean append = false;
+	    if ((oldState != null) && saveFile.equals(oldState.getProjectFile())) {
+		long obsoleteBytes = saveFile.length() - keptBytes;
+		append = obsoleteBytes <= MAX_OBSOLETE_FRACTION
+			* saveFile.length();
+	    }
+	    if (append) {
+		logger.info("Appending modified objects to " + saveFile);
+		zipWriter = new ZipFileWriter(saveFile, true);
+	    } else {
+		// We create the temporary file in the same directory as the
+		// final saveFile to avoid moving between filesystems in the
+		// last stage (renameTo)
+		tempFile = File.createTempFile(saveFile.getName(), ".tmp",
+			saveFile.getParentFile());
+		tempFile.deleteOnExit();
+		zipWriter = new ZipFileWriter(tempFile);
+	    }
+	    SavedProjectState newState = new SavedProjectState(saveFile);
+	    String scansEntryNames[] = new String[rawDataFiles.length];
+
+	    // Save version and configuration
+	    saveVersion(zipWriter);
+	    saveConfiguration(zipWriter);
+	    if (isCanceled())
 		return;
+
+	    // Save raw data files
+	    for (int i = 0; i < rawDataFiles.length; i++) {
+
+		if (isCanceled())
+		    return;
+
+		currentSavedObjectName = rawDataFiles[i].getName();
+		String savedName = "Raw data file #" + rawDataIDs[i] + " "
+			+ rawDataFiles[i].getName();
+		String scansEntryName = savedName + ".scans";
+		String xmlEntryName = savedName + ".xml";
+
+		if (keepRawDataFile[i]) {
+		    String oldEntryNames[] = oldState
+			    .getEntryNames(rawDataFiles[i]);
+		    scansEntryName = oldEntryNames[0];
+		    xmlEntryName = oldEntryNames[1];
+		    keepEntry(zipWriter, append, oldState, oldEntries,
+			    scansEntryName, DATA_POINTS_ALIGNMENT);
+		    keepEntry(zipWriter, append, oldState, oldEntries,
+			    xmlEntryName, 1);
+		} else {
+		    OutputStream scansStream = zipWriter.putStoredEntry(
+			    scansEntryName, DATA_POINTS_ALIGNMENT);
+		    rawDataFileSaveHandlers[i].writeDataPoints(scansStream);
+		    scansStream.close();
+		    OutputStream xmlStream = zipWriter
+			    .putDeflatedEntry(xmlEntryName);
+		    rawDataFileSaveHandlers[i].writeDescription(xmlStream);
+		    xmlStream.close();
+		}
+
+		scansEntryNames[i] = scansEntryName;
+		newState.addObject(rawDataFiles[i], rawDataIDs[i],
+			rawDataFingerprints[i], scansEntryName, xmlEntryName);
 	    }
 
-	    // Stage 5 - finish and close the temporary ZIP file
-	    currentStage++;
+	    // Save peak lists
+	    for (int i = 0; i < peakLists.length; i++) {
+
+		if (isCanceled())
+		    return;
+
+		currentSavedObjectName = peakLists[i].getName();
+		String entryName = "Peak list #" + peakListIDs[i] + " "
+			+ peakLists[i].getName() + ".xml";
+
+		if (keepPeakList[i]) {
+		    entryName = oldState.getEntryNames(peakLists[i])[0];
+		    keepEntry(zipWriter, append, oldState, oldEntries,
+			    entryName, 1);
+		} else {
+		    logger.info("Saving peak list: " + peakLists[i].getName());
+		    OutputStream stream = zipWriter.putDeflatedEntry(entryName);
+		    peakListSaveHandlers[i] = new PeakListSaveHandler(stream,
+			    dataFilesIDMap);
+		    peakListSaveHandlers[i].savePeakList(peakLists[i]);
+		    stream.close();
+		}
+
+		newState.addObject(peakLists[i], peakListIDs[i],
+			peakListFingerprints[i], entryName);
+	    }
+
+	    // Save user parameters
+	    saveUserParameters(zipWriter);
+	    if (isCanceled())
+		return;
+
+	    // Finish the ZIP file
 	    currentSavedObjectName = null;
-	    zipStream.close();
+	    zipWriter.finish();
+	    zipWriter = null;
 
 	    // Final check for cancel
-	    if (isCanceled()) {
-		tempFile.delete();
+	    if (isCanceled())
 		return;
-	    }
-
-	    // Move the temporary ZIP file to the final location
-	    if (saveFile.exists() && !saveFile.delete()) {
-		throw new IOException("Could not delete old file " + saveFile);
-	    }
 
-	    boolean renameOK = tempFile.renameTo(saveFile);
-	    if (!renameOK) {
-		throw new IOException("Could not move the temporary file "
-			+ tempFile + " to the final location " + saveFile);
+	    // Map the data points from the new file, so that the file they were
+	    // mapped from so far is not used anymore. From now on, the
+	    // temporary file must be kept.
+	    File savedFile = (tempFile != null) ? tempFile : saveFile;
+	    tempFile = null;
+	    remapDataPoints(rawDataFiles, savedFile, scansEntryNames);
+
+	    // Replace the old project file with the new one
+	    if (!savedFile.equals(saveFile)) {
+		try {
+		    Files.move(savedFile.toPath(), saveFile.toPath(),
+			    StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+		    throw new IOException("Could not move the temporary file "
+			    + savedFile + " to the final location " + saveFile
+			    + ": " + ExceptionUtils.exceptionToString(e));
+		}
+		for (RawDataFile rawDataFile : rawDataFiles) {
+		    ((RawDataFileImpl) rawDataFile).renameMappedFile(
+			    savedFile, saveFile);
+		}
 	    }
 
 	    // Update the location of the project
 	    savedProject.setProjectFile(saveFile);
+	    savedProject.setSavedState(newState);
 
 	    // Update the window title to reflect the new name of the project
 	    if (MZmineCore.getDesktop() instanceof MainWindow) {
@@ -238,21 +415,146 @@ public class ProjectSavingTask extends AbstractTask {
 			+ ExceptionUtils.exceptionToString(e));
 	    }
 
+	} finally {
+
+	    // Clean up after an error or cancel
+	    if (zipWriter != null) {
+		try {
+		    zipWriter.abort();
+		} catch (IOException e) {
+		    logger.warning("Could not restore the project file "
+			    + saveFile + ": " + ExceptionUtils.exceptionToString(e));
+		}
+	    }
+	    if (tempFile != null)
+		tempFile.delete();
+
 	}
     }
 
+    /**
+     * Maps the data points of the raw data files from the saved project file.
+     * Raw data files which cannot be mapped keep reading their data points
+     * from where they read them so far.
+     */
+    private void remapDataPoints(RawDataFile rawDataFiles[], File savedFile,
+	    String scansEntryNames[]) throws IOException {
+
+	Map<String, ZipEntryInfo> savedEntries = new Hashtable<String, ZipEntryInfo>();
+	for (ZipEntryInfo entry : ZipUtils.readCentralDirectory(savedFile))
+	    savedEntries.put(entry.getName(), entry);
+
+	for (int i = 0; i < rawDataFiles.length; i++) {
+	    ZipEntryInfo scansEntry = savedEntries.get(scansEntryNames[i]);
+	    try {
+		if ((scansEntry == null)
+			|| !rawDataFileSaveHandlers[i].remapDataPoints(
+				savedFile, scansEntry)) {
+		    logger.info("Data points of " + rawDataFiles[i]
+			    + " cannot be mapped from " + savedFile);
+		}
+	    } catch (IOException e) {
+		logger.warning("Could not map the data points of "
+			+ rawDataFiles[i] + " from " + savedFile + ": "
+			+ ExceptionUtils.exceptionToString(e));
+	    }
+	}
+    }
+
+    /**
+     * Reads the list of entries of the project file described by the given
+     * saved state. Returns null if the file cannot be used.
+     */
+    private Map<String, ZipEntryInfo> readOldEntries(SavedProjectState state) {
+
+	if ((state == null) || (state.getProjectFile() == null)
+		|| (!state.getProjectFile().isFile()))
+	    return null;
+
+	try {
+	    Map<String, ZipEntryInfo> entries = new Hashtable<String, ZipEntryInfo>();
+	    for (ZipEntryInfo entry : ZipUtils.readCentralDirectory(state
+		    .getProjectFile())) {
+		entries.put(entry.getName(), entry);
+	    }
+	    return entries;
+	} catch (IOException e) {
+	    logger.warning("Could not read the previous project file "
+		    + state.getProjectFile() + ": "
+		    + ExceptionUtils.exceptionToString(e));
+	    return null;
+	}
+    }
+
+    /**
+     * Assigns the IDs used in the names of the saved objects. Objects which
+     * were saved before keep their previous ID, others get new unique IDs.
+     */
+    private int[] assignIDs(Object objects[], SavedProjectState oldState) {
+	int ids[] = new int[objects.length];
+	int maxID = 0;
+	for (int i = 0; i < objects.length; i++) {
+	    if (oldState != null)
+		ids[i] = oldState.getSavedID(objects[i]);
+	    maxID = Math.max(maxID, ids[i]);
+	}
+	for (int i = 0; i < objects.length; i++) {
+	    if (ids[i] <= 0)
+		ids[i] = ++maxID;
+	}
+	return ids;
+    }
+
+    /**
+     * Returns true if the object has not been modified since the last save
+     * and its entries are still present in the previous project file.
+     */
+    private boolean canKeep(Object object, SavedProjectState oldState,
+	    Map<String, ZipEntryInfo> oldEntries) {
+	if ((oldState == null) || (!oldState.isUnchanged(object)))
+	    return false;
+	for (String entryName : oldState.getEntryNames(object)) {
+	    if (!oldEntries.containsKey(entryName))
+		return false;
+	}
+	return true;
+    }
+
+    private long getSavedSize(Object object, SavedProjectState oldState,
+	    Map<String, ZipEntryInfo> oldEntries) {
+	long size = 0;
+	for (String entryName : oldState.getEntryNames(object))
+	    size += oldEntries.get(entryName).getCompressedSize();
+	return size;
+    }
+
+    /**
+     * Keeps an entry of the previous project file, either in place (when
+     * appending) or by copying it to the new file.
+     */
+    private void keepEntry(ZipFileWriter zipWriter, boolean append,
+	    SavedProjectState oldState, Map<String, ZipEntryInfo> oldEntries,
+	    String entryName, int alignment) throws IOException {
+	ZipEntryInfo entry = oldEntries.get(entryName);
+	if (append)
+	    zipWriter.keepEntry(entry);
+	else
+	    zipWriter.copyEntry(oldState.getProjectFile(), entry, alignment);
+    }
+
     /**
      * Save the version info
      * 
      * @throws java.io.IOException
      */
-    private void saveVersion(ZipOutputStream zipStream) throws IOException {
+    private void saveVersion(ZipFileWriter zipWriter) throws IOException {
 
-	zipStream.putNextEntry(new ZipEntry(VERSION_FILENAME));
+	OutputStream stream = zipWriter.putDeflatedEntry(VERSION_FILENAME);
 
 	String MZmineVersion = MZmineCore.getMZmineVersion();
 
-	zipStream.write(MZmineVersion.getBytes());
+	stream.write(MZmineVersion.getBytes());
+	stream.close();
 
     }
 
@@ -261,14 +563,13 @@ public class ProjectSavingTask extends AbstractTask {
      * 
      * @throws java.io.IOException
      */
-    private void saveConfiguration(ZipOutputStream zipStream)
+    private void saveConfiguration(ZipFileWriter zipWriter)
 	    throws IOException {
 
 	logger.info("Saving configuration file");
 
 	currentSavedObjectName = "configuration";
 
-	zipStream.putNextEntry(new ZipEntry(CONFIG_FILENAME));
 	File tempConfigFile = File.createTempFile("mzmineconfig", ".tmp");
 
 	try {
@@ -278,92 +579,36 @@ public class ProjectSavingTask extends AbstractTask {
 		    + ExceptionUtils.exceptionToString(e));
 	}
 
+	OutputStream stream = zipWriter.putDeflatedEntry(CONFIG_FILENAME);
 	FileInputStream fileStream = new FileInputStream(tempConfigFile);
 
 	StreamCopy copyMachine = new StreamCopy();
-	copyMachine.copy(fileStream, zipStream);
+	copyMachine.copy(fileStream, stream);
 
 	fileStream.close();
+	stream.close();
 	tempConfigFile.delete();
     }
 
     /**
-     * Save the raw data files
-     * 
-     * @throws SAXException
-     * @throws TransformerConfigurationException
-     */
-    private void saveRawDataFiles(ZipOutputStream zipStream)
-	    throws IOException, TransformerConfigurationException, SAXException {
-
-	rawDataFileSaveHandler = new RawDataFileSaveHandler(zipStream);
-
-	RawDataFile rawDataFiles[] = savedProject.getDataFiles();
-
-	for (int i = 0; i < rawDataFiles.length; i++) {
-
-	    if (isCanceled())
-		return;
-
-	    currentSavedObjectName = rawDataFiles[i].getName();
-	    rawDataFileSaveHandler.writeRawDataFile(
-		    (RawDataFileImpl) rawDataFiles[i], i + 1);
-	    dataFilesIDMap.put(rawDataFiles[i], String.valueOf(i + 1));
-	}
-    }
-
-    /**
-     * Save the peak lists
-     * 
-     * @throws SAXException
-     * @throws TransformerConfigurationException
-     */
-    private void savePeakLists(ZipOutputStream zipStream) throws IOException,
-	    TransformerConfigurationException, SAXException {
-
-	PeakList peakLists[] = savedProject.getPeakLists();
-
-	for (int i = 0; i < peakLists.length; i++) {
-
-	    if (isCanceled())
-		return;
-
-	    logger.info("Saving peak list: " + peakLists[i].getName());
-
-	    String peakListSavedName = "Peak list #" + (i + 1) + " "
-		    + peakLists[i].getName();
-
-	    zipStream.putNextEntry(new ZipEntry(peakListSavedName + ".xml"));
-
-	    peakListSaveHandler = new PeakListSaveHandler(zipStream,
-		    dataFilesIDMap);
-
-	    currentSavedObjectName = peakLists[i].getName();
-	    peakListSaveHandler.savePeakList(peakLists[i]);
-	}
-    }
-
-    /**
-     * Save the peak lists
-     * 
-     * @throws SAXException
-     * @throws TransformerConfigurationException
+     * Save the user parameters
      */
-    private void saveUserParameters(ZipOutputStream zipStream)
-	    throws IOException, TransformerConfigurationException, SAXException {
+    private void saveUserParameters(ZipFileWriter zipWriter) throws Exception {
 
 	if (isCanceled())
 	    return;
 
 	logger.info("Saving user parameters");
 
-	zipStream.putNextEntry(new ZipEntry("User parameters.xml"));
+	OutputStream stream = zipWriter
+		.putDeflatedEntry(USER_PARAMETERS_FILENAME);
 
-	userParameterSaveHandler = new UserParameterSaveHandler(zipStream,
+	userParameterSaveHandler = new UserParameterSaveHandler(stream,
 		savedProject, dataFilesIDMap);
 
 	currentSavedObjectName = "User parameters";
 	userParameterSaveHandler.saveParameters();
+	stream.close();
 
     }
 
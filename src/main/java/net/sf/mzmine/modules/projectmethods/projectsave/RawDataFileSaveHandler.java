@@ -19,14 +19,13 @@
 
 package net.sf.mzmine.modules.projectmethods.projectsave;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -40,6 +39,8 @@ import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.project.impl.StorableScan;
+import net.sf.mzmine.util.ZipUtils;
+import net.sf.mzmine.util.ZipUtils.ZipEntryInfo;
 
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
@@ -49,84 +50,109 @@ import com.google.common.collect.Range;
 class RawDataFileSaveHandler {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
+    private RawDataFileImpl rawDataFile;
     private int numOfScans, completedScans;
-    private ZipOutputStream zipOutputStream;
-    private boolean canceled = false;
+    private volatile boolean canceled = false;
     private Map<Integer, Long> dataPointsOffsets;
-    private Map<Integer, Long> consolidatedDataPointsOffsets;
+    private TreeMap<Integer, Long> consolidatedDataPointsOffsets;
     private Map<Integer, Integer> dataPointsLengths;
-    private double progress = 0;
-
-    RawDataFileSaveHandler(ZipOutputStream zipOutputStream) {
-	this.zipOutputStream = zipOutputStream;
-    }
+    private long totalBytes;
+    private volatile double dataPointsProgress = 0, descriptionProgress = 0;
 
     /**
-     * Copy the data points file of the raw data file from the temporary folder
-     * to the zip file. Create an XML file which contains the description of the
-     * same raw data file an copy it into the same zip file.
+     * The data points and the description of the raw data file can be written
+     * independently (and in parallel), because the offsets of the data points
+     * within the saved data points entry are calculated here in advance.
      * 
      * @param rawDataFile
-     *            raw data file to be copied
-     * @param rawDataSavedName
-     *            name of the raw data inside the zip file
-     * @throws java.io.IOException
-     * @throws TransformerConfigurationException
-     * @throws SAXException
+     *            raw data file to be saved
      */
-    void writeRawDataFile(RawDataFileImpl rawDataFile, int number)
-	    throws IOException, TransformerConfigurationException, SAXException {
+    RawDataFileSaveHandler(RawDataFileImpl rawDataFile) {
 
-	numOfScans = rawDataFile.getNumOfScans();
+	this.rawDataFile = rawDataFile;
 
 	// Get the structure of the data points file
-	dataPointsOffsets = rawDataFile.getDataPointsOffsets();
-	dataPointsLengths = rawDataFile.getDataPointsLengths();
-	consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
-
-	// step 1 - save data file
-	logger.info("Saving data points of: " + rawDataFile.getName());
-
-	String rawDataSavedName = "Raw data file #" + number + " "
-		+ rawDataFile.getName();
-
-	zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".scans"));
+	synchronized (rawDataFile) {
+	    numOfScans = rawDataFile.getNumOfScans();
+	    dataPointsOffsets = new TreeMap<Integer, Long>(
+		    rawDataFile.getDataPointsOffsets());
+	    dataPointsLengths = new TreeMap<Integer, Integer>(
+		    rawDataFile.getDataPointsLengths());
+	}
 
 	// We save only those data points that still have a reference in the
 	// dataPointsOffset table. Some deleted mass lists may still be present
 	// in the data points file, we don't want to copy those.
-	long newOffset = 0;
+	consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
+	totalBytes = 0;
+	for (Integer storageID : dataPointsOffsets.keySet()) {
+	    consolidatedDataPointsOffsets.put(storageID, totalBytes);
+	    totalBytes += dataPointsLengths.get(storageID) * 4L * 2;
+	}
+    }
+
+    /**
+     * Copy the data points of the raw data file from the temporary folder to
+     * the given stream.
+     * 
+     * The data points are saved as a STORED (uncompressed) entry, so that they
+     * can be memory-mapped directly from the project file when the project is
+     * opened.
+     */
+    void writeDataPoints(OutputStream outputStream) throws IOException {
+
+	logger.info("Saving data points of: " + rawDataFile.getName());
+
 	byte buffer[] = new byte[1 << 20];
-	RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
+	long writtenBytes = 0;
 	for (Integer storageID : dataPointsOffsets.keySet()) {
 
 	    if (canceled)
 		return;
 
-	    final long offset = dataPointsOffsets.get(storageID);
-	    dataPointsFile.seek(offset);
-
 	    final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
-	    consolidatedDataPointsOffsets.put(storageID, newOffset);
 	    if (buffer.length < bytes) {
 		buffer = new byte[bytes * 2];
 	    }
-	    dataPointsFile.read(buffer, 0, bytes);
-	    zipOutputStream.write(buffer, 0, bytes);
-	    newOffset += bytes;
-	    progress = 0.9 * ((double) offset / dataPointsFile.length());
+	    rawDataFile.readDataPointsBytes(storageID, buffer);
+	    outputStream.write(buffer, 0, bytes);
+	    writtenBytes += bytes;
+	    dataPointsProgress = (double) writtenBytes / totalBytes;
 	}
+	dataPointsProgress = 1;
+    }
+
+    /**
+     * Maps the data points of the raw data file from the given entry of the
+     * saved project file, which contains the data points written by
+     * writeDataPoints() (or the same data points saved previously). Returns
+     * false if the entry cannot be mapped, because it is compressed.
+     */
+    boolean remapDataPoints(File projectFile, ZipEntryInfo scansEntry)
+	    throws IOException {
+	if ((scansEntry.getMethod() != ZipEntry.STORED)
+		|| (scansEntry.getSize() != totalBytes))
+	    return false;
+	long dataOffset = ZipUtils.getEntryDataOffset(projectFile, scansEntry);
+	rawDataFile.remapDataPoints(projectFile, dataOffset, totalBytes,
+		consolidatedDataPointsOffsets);
+	return true;
+    }
 
-	if (canceled)
-	    return;
+    /**
+     * Create an XML document which contains the description of the raw data
+     * file and write it to the given stream.
+     * 
+     * @throws TransformerConfigurationException
+     * @throws SAXException
+     */
+    void writeDescription(OutputStream outputStream)
+	    throws TransformerConfigurationException, SAXException,
+	    IOException {
 
-	// step 2 - save raw data description
 	logger.info("Saving raw data description of: " + rawDataFile.getName());
 
-	zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".xml"));
-	OutputStream finalStream = zipOutputStream;
-
-	StreamResult streamResult = new StreamResult(finalStream);
+	StreamResult streamResult = new StreamResult(outputStream);
 	SAXTransformerFactory tf = (SAXTransformerFactory) SAXTransformerFactory
 		.newInstance();
 
@@ -216,7 +242,7 @@ class RawDataFileSaveHandler {
 	    hd.endElement("", "", RawDataElementName.SCAN.getElementName());
 	    atts.clear();
 	    completedScans++;
-	    progress = 0.9 + (0.1 * ((double) completedScans / numOfScans));
+	    descriptionProgress = (double) completedScans / numOfScans;
 	}
 
 	hd.endElement("", "", RawDataElementName.RAWDATA.getElementName());
@@ -362,7 +388,7 @@ class RawDataFileSaveHandler {
      *         to the zip file.
      */
     double getProgress() {
-	return progress;
+	return 0.9 * dataPointsProgress + 0.1 * descriptionProgress;
     }
 
     void cancel() {
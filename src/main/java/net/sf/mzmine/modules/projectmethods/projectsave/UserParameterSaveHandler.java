@@ -47,7 +47,7 @@ class UserParameterSaveHandler {
     private Hashtable<RawDataFile, String> dataFilesIDMap;
     private int numOfParameters, completedParameters;
     private OutputStream finalStream;
-    private boolean canceled = false;
+    private volatile boolean canceled = false;
 
     UserParameterSaveHandler(OutputStream finalStream,
 	    MZmineProjectImpl project,
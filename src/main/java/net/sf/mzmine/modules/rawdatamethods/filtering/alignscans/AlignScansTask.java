@@ -33,6 +33,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ScanWindow;
 
 public class AlignScansTask extends AbstractTask {
 
@@ -45,6 +46,10 @@ public class AlignScansTask extends AbstractTask {
     private int processedScans = 0, totalScans;
     private int[] scanNumbers;
 
+    // Window of decoded scans, each scan is decoded only once while the
+    // window slides over it
+    private ScanWindow window;
+
     // User parameters
     private String suffix;
     private double minimumHeight;
@@ -82,7 +87,12 @@ public class AlignScansTask extends AbstractTask {
      * @see net.sf.mzmine.taskcontrol.Task#getTaskDescription()
      */
     public String getTaskDescription() {
-	return "Aligning scans in " + dataFile;
+	String description = "Aligning scans in " + dataFile;
+	ScanWindow window = this.window;
+	if (window != null)
+	    description += " (" + window.getNumberOfDecodedScans()
+		    + " scans decoded)";
+	return description;
     }
 
     /**
@@ -116,8 +126,10 @@ public class AlignScansTask extends AbstractTask {
 	    newRDFW = MZmineCore.createNewFile(dataFile.getName() + ' '
 		    + suffix);
 
-	    DataPoint mzValues[][] = null; // [relative scan][j value]
-	    int i, j, si, sj, ii, k, shift, ks;
+	    window = new ScanWindow(dataFile, scanNumbers);
+	    double mzValues[][] = null; // [relative scan][j value]
+	    double intensityValues[][] = null;
+	    int i, j, si, sj, ii, k, shift, ks, n;
 	    int shiftedScans[] = new int[mzSpan * 2 + 1];
 	    for (i = 0; i < totalScans; i++) {
 
@@ -132,13 +144,18 @@ public class AlignScansTask extends AbstractTask {
 		    sj = (int) (si + 2 * scanSpan);
 		}
 		if (scan != null) {
-		    // Allocate
-		    if (mzValues == null || mzValues.length < sj - si + 1)
-			mzValues = new DataPoint[sj - si + 1][];
+		    // Allocate, only the first n rows belong to the current
+		    // window
+		    n = sj - si + 1;
+		    if (mzValues == null || mzValues.length < n) {
+			mzValues = new double[n][];
+			intensityValues = new double[n][];
+		    }
 		    // Load Data Points
+		    window.moveTo(si, sj);
 		    for (j = si; j <= sj; j++) {
-			Scan xscan = dataFile.getScan(scanNumbers[j]);
-			mzValues[j - si] = xscan.getDataPoints();
+			mzValues[j - si] = window.getMZValues(j);
+			intensityValues[j - si] = window.getIntensityValues(j);
 		    }
 		    // Estimate Correlations
 		    ii = i - si;
@@ -152,40 +169,30 @@ public class AlignScansTask extends AbstractTask {
 			PearsonCorrelation thisShift = new PearsonCorrelation();
 			for (k = 0; k < ndp; k++) {
 			    ks = k + shift;
-			    if (ks >= 0
-				    && ks < ndp
-				    && mzValues[ii][ks].getIntensity() >= minimumHeight) {
-				DataPoint dp = mzValues[ii][k];
-				double mz = dp.getMZ();
+			    if (ks >= 0 && ks < ndp
+				    && intensityValues[ii][ks] >= minimumHeight) {
+				double mz = mzValues[ii][k];
 				int f = 0;
-				for (j = 0; j < mzValues.length; j++) {
-				    // System.out.println(j);
+				for (j = 0; j < n; j++) {
 				    if (j != ii) {
 					if (mzValues[j].length > k
-						&& Math.abs(mzValues[j][k]
-							.getMZ() - mz) < 1e-10) {
+						&& Math.abs(mzValues[j][k] - mz) < 1e-10) {
 					    f = k;
 					} else {
 					    f = findFirstMass(mz, mzValues[j]);
-					    if (Math.abs(mzValues[j][f].getMZ()
-						    - mz) > 1e-10) {
+					    if (Math.abs(mzValues[j][f] - mz) > 1e-10) {
 						f = -f;
 					    }
 					}
 					if (f >= 0) {
 					    if (logScale) {
-						thisShift
-							.enter(Math
-								.log(mzValues[j][f]
-									.getIntensity()),
-								Math.log(mzValues[ii][ks]
-									.getIntensity()));
+						thisShift.enter(
+							Math.log(intensityValues[j][f]),
+							Math.log(intensityValues[ii][ks]));
 					    } else {
-						thisShift
-							.enter(mzValues[j][f]
-								.getIntensity(),
-								mzValues[ii][ks]
-									.getIntensity());
+						thisShift.enter(
+							intensityValues[j][f],
+							intensityValues[ii][ks]);
 					    }
 					}
 				    }
@@ -206,12 +213,10 @@ public class AlignScansTask extends AbstractTask {
 		    for (k = 0; k < ndp; k++) {
 			ks = k + shift;
 			if (ks >= 0 && ks < ndp) {
-			    newDP[k] = new SimpleDataPoint(
-				    mzValues[ii][k].getMZ(),
-				    mzValues[ii][ks].getIntensity());
+			    newDP[k] = new SimpleDataPoint(mzValues[ii][k],
+				    intensityValues[ii][ks]);
 			} else {
-			    newDP[k] = new SimpleDataPoint(
-				    mzValues[ii][k].getMZ(), 0);
+			    newDP[k] = new SimpleDataPoint(mzValues[ii][k], 0);
 			}
 		    }
 		    newScan.setDataPoints(newDP);
@@ -242,7 +247,9 @@ public class AlignScansTask extends AbstractTask {
 			    + " | ";
 		}
 		logger.info("Finished Scan Alignment on " + dataFile
-			+ ". Scans per shift = " + shifts);
+			+ ". Scans per shift = " + shifts + " ("
+			+ window.getNumberOfDecodedScans()
+			+ " scans decoded for " + totalScans + " scans)");
 
 	    }
 
@@ -252,15 +259,15 @@ public class AlignScansTask extends AbstractTask {
 
     }
 
-    int findFirstMass(double mass, DataPoint mzValues[]) {
+    int findFirstMass(double mass, double mzValues[]) {
 	int l = 0;
 	int r = mzValues.length - 1;
 	int mid = 0;
 	while (l < r) {
 	    mid = (r + l) / 2;
-	    if (mzValues[mid].getMZ() > mass) {
+	    if (mzValues[mid] > mass) {
 		r = mid - 1;
-	    } else if (mzValues[mid].getMZ() < mass) {
+	    } else if (mzValues[mid] < mass) {
 		l = mid + 1;
 	    } else {
 		r = mid;
@@ -131,6 +131,14 @@ public class BaselineCorrectionParameters extends SimpleParameterSet {
      */
     public static final MSLevelParameter MS_LEVEL = new MSLevelParameter();
 
+    /**
+     * Compute the corrected scans when they are accessed.
+     */
+    public static final BooleanParameter VIRTUAL_FILE = new BooleanParameter(
+	    "Virtual file",
+	    "If checked, the corrected scans are not stored, but computed from the original file and the baselines when they are needed",
+	    false);
+
     /**
      * Remove original data file.
      */
@@ -146,7 +154,7 @@ public class BaselineCorrectionParameters extends SimpleParameterSet {
 	super(new Parameter[] { dataFiles, SUFFIX,
 		// RENGINE_TYPE,
 		CHROMOTAGRAM_TYPE, MS_LEVEL, USE_MZ_BINS, MZ_BIN_WIDTH,
-		BASELINE_CORRECTORS, REMOVE_ORIGINAL });
+		BASELINE_CORRECTORS, VIRTUAL_FILE, REMOVE_ORIGINAL });
 	thisParameters = null;
     }
 
@@ -21,6 +21,7 @@ package net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -33,6 +34,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModule;
 import net.sf.mzmine.modules.rawdatamethods.filtering.baselinecorrection.RSession.RengineType;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.project.impl.VirtualRawDataFile;
 import net.sf.mzmine.util.RangeUtils;
 
 import com.google.common.collect.Range;
@@ -67,6 +69,7 @@ public abstract class BaselineCorrector implements BaselineProvider,
     private double binWidth;
     private boolean useBins;
     private int msLevel;
+    private boolean virtualFile;
 
     /**
      * Initialization
@@ -109,6 +112,8 @@ public abstract class BaselineCorrector implements BaselineProvider,
 		BaselineCorrectionParameters.USE_MZ_BINS).getValue();
 	msLevel = generalParameters.getParameter(
 		BaselineCorrectionParameters.MS_LEVEL).getValue();
+	virtualFile = generalParameters.getParameter(
+		BaselineCorrectionParameters.VIRTUAL_FILE).getValue();
     }
 
     public final RawDataFile correctDatafile(final RSession rSession,
@@ -127,9 +132,12 @@ public abstract class BaselineCorrector implements BaselineProvider,
 	    if (!progressMap.containsKey(origDataFile))
 		progressMap.put(origDataFile, new int[] { 0, 0, 0 });
 
-	    // Create a new temporary file to write in.
-	    RawDataFileWriter rawDataFileWriter = MZmineCore
-		    .createNewFile(origDataFile.getName() + ' ' + suffix);
+	    // Create a new temporary file to write in, unless the corrected
+	    // scans are computed when they are accessed.
+	    final String newName = origDataFile.getName() + ' ' + suffix;
+	    RawDataFileWriter rawDataFileWriter = null;
+	    if (!virtualFile)
+		rawDataFileWriter = MZmineCore.createNewFile(newName);
 
 	    // Determine number of bins.
 	    final double mzLen = origDataFile.getDataMZRange().upperEndpoint()
@@ -148,9 +156,13 @@ public abstract class BaselineCorrector implements BaselineProvider,
 		foundLevel |= isMSLevel;
 		// progressMax += isMSLevel || msLevel == 0 ? 2 * numScans +
 		// numBins : numScans;
-		progressMap.get(origDataFile)[1] += (isMSLevel || msLevel == 0 ? 2
-			* numScans + numBins
-			: numScans);
+		// A virtual file neither copies nor subtracts the scans.
+		final int numWrittenScans = virtualFile ? 0 : numScans;
+		if (isMSLevel || msLevel == 0)
+		    progressMap.get(origDataFile)[1] += numScans
+			    + numWrittenScans + numBins;
+		else
+		    progressMap.get(origDataFile)[1] += numWrittenScans;
 	    }
 
 	    // Is the specified MS-level present?
@@ -163,6 +175,9 @@ public abstract class BaselineCorrector implements BaselineProvider,
 	    // Which chromatogram type.
 	    final boolean useTIC = (chromatogramType == ChromatogramType.TIC);
 
+	    // Baselines of each corrected MS-level.
+	    final Map<Integer, double[][]> baselines = new HashMap<Integer, double[][]>();
+
 	    // Process each MS level.
 	    for (final int level : levels) {
 
@@ -171,15 +186,15 @@ public abstract class BaselineCorrector implements BaselineProvider,
 
 			// Correct baseline for this MS-level.
 			if (useTIC) {
-			    correctTICBaselines(rSession, origDataFile,
-				    rawDataFileWriter, level, numBins,
-				    parameters);
+			    baselines.put(level, correctTICBaselines(rSession,
+				    origDataFile, rawDataFileWriter, level,
+				    numBins, parameters));
 			} else {
-			    correctBasePeakBaselines(rSession, origDataFile,
-				    rawDataFileWriter, level, numBins,
-				    parameters);
+			    baselines.put(level, correctBasePeakBaselines(
+				    rSession, origDataFile, rawDataFileWriter,
+				    level, numBins, parameters));
 			}
-		    } else {
+		    } else if (rawDataFileWriter != null) {
 
 			// Copy scans for this MS-level.
 			copyScansToWriter(origDataFile, rawDataFileWriter,
@@ -190,8 +205,14 @@ public abstract class BaselineCorrector implements BaselineProvider,
 
 	    // If the referring task was canceled, stop processing.
 	    if (!isAborted(origDataFile)) {
-		// Finalize writing.
-		correctedDataFile = rawDataFileWriter.finishWriting();
+		if (rawDataFileWriter == null) {
+		    // Subtract the baselines when the scans are accessed.
+		    correctedDataFile = createVirtualFile(newName,
+			    origDataFile, baselines, numBins, useTIC);
+		} else {
+		    // Finalize writing.
+		    correctedDataFile = rawDataFileWriter.finishWriting();
+		}
 	    }
 
 	} catch (Throwable t) {
@@ -202,6 +223,69 @@ public abstract class BaselineCorrector implements BaselineProvider,
 	return correctedDataFile;
     }
 
+    /**
+     * Create a virtual file, whose scans are corrected when they are
+     * accessed.
+     *
+     * @param newName
+     *            name of the corrected file.
+     * @param origDataFile
+     *            dataFile of concern.
+     * @param baselines
+     *            the baselines of each corrected MS-level, as returned by
+     *            correctTICBaselines() or correctBasePeakBaselines().
+     * @param numBins
+     *            number of m/z bins.
+     * @param useTIC
+     *            whether the baselines were built from TIC chromatograms.
+     * @return the virtual file.
+     * @throws IOException
+     *             if there are i/o problems.
+     */
+    private RawDataFile createVirtualFile(final String newName,
+	    final RawDataFile origDataFile,
+	    final Map<Integer, double[][]> baselines, final int numBins,
+	    final boolean useTIC) throws IOException {
+
+	// Index of each corrected scan among the scans of its MS-level.
+	final Map<Integer, Integer> scanIndexes = new HashMap<Integer, Integer>();
+	for (final int level : baselines.keySet()) {
+	    final int[] scanNumbers = origDataFile.getScanNumbers(level);
+	    for (int scanIndex = 0; scanIndex < scanNumbers.length; scanIndex++)
+		scanIndexes.put(scanNumbers[scanIndex], scanIndex);
+	}
+
+	return new VirtualRawDataFile(newName, origDataFile,
+		origDataFile.getScanNumbers(),
+		new VirtualRawDataFile.ScanProcessor() {
+		    public Scan processScan(Scan origScan) {
+
+			// Scans of other MS-levels are not corrected.
+			final double[][] levelBaselines = baselines
+				.get(origScan.getMSLevel());
+			if (levelBaselines == null)
+			    return origScan;
+
+			final int scanIndex = scanIndexes.get(origScan
+				.getScanNumber());
+			final DataPoint[] origDataPoints = origScan
+				.getDataPoints();
+
+			final SimpleScan newScan = new SimpleScan(origScan);
+			if (useTIC) {
+			    newScan.setDataPoints(subtractTICBaselines(
+				    origDataFile, origDataPoints,
+				    levelBaselines, numBins, scanIndex));
+			} else {
+			    newScan.setDataPoints(subtractBasePeakBaselines(
+				    origDataFile, origDataPoints,
+				    levelBaselines, numBins, scanIndex));
+			}
+			return newScan;
+		    }
+		});
+    }
+
     /**
      * Copy scans to RawDataFileWriter.
      *
@@ -254,7 +338,7 @@ public abstract class BaselineCorrector implements BaselineProvider,
      * @param origDataFile
      *            dataFile of concern.
      * @param writer
-     *            data file writer.
+     *            data file writer, or null to only compute the baselines.
      * @param level
      *            the MS level.
      * @param numBins
@@ -262,12 +346,13 @@ public abstract class BaselineCorrector implements BaselineProvider,
      * @param parameters
      *            parameters specific to the actual method for baseline
      *            computing.
+     * @return the baselines as double[number of bins][number of scans].
      * @throws IOException
      *             if there are i/o problems.
      * @throws BaselineCorrectionException
      * @throws InterruptedException
      */
-    private void correctBasePeakBaselines(final RSession rSession,
+    private double[][] correctBasePeakBaselines(final RSession rSession,
 	    final RawDataFile origDataFile, final RawDataFileWriter writer,
 	    final int level, final int numBins, final ParameterSet parameters)
 	    throws IOException {
@@ -290,6 +375,10 @@ public abstract class BaselineCorrector implements BaselineProvider,
 	    progressMap.get(origDataFile)[0]++;
 	}
 
+	// Virtual file: the baselines are subtracted when scans are accessed.
+	if (writer == null)
+	    return baseChrom;
+
 	// Subtract baselines.
 	LOG.finest("Subtracting baselines.");
 	for (int scanIndex = 0; !isAborted(origDataFile)
@@ -308,6 +397,8 @@ public abstract class BaselineCorrector implements BaselineProvider,
 	    writer.addScan(newScan);
 	    progressMap.get(origDataFile)[0]++;
 	}
+
+	return baseChrom;
     }
 
     /**
@@ -316,7 +407,7 @@ public abstract class BaselineCorrector implements BaselineProvider,
      * @param origDataFile
      *            dataFile of concern.
      * @param writer
-     *            data file writer.
+     *            data file writer, or null to only compute the baselines.
      * @param level
      *            the MS level.
      * @param numBins
@@ -324,11 +415,13 @@ public abstract class BaselineCorrector implements BaselineProvider,
      * @param parameters
      *            parameters specific to the actual method for baseline
      *            computing.
+     * @return the baselines, normalized w.r.t. the chromatograms, as
+     *         double[number of bins][number of scans].
      * @throws IOException
      *             if there are i/o problems.
      * @throws BaselineCorrectionException
      */
-    private void correctTICBaselines(final RSession rSession,
+    private double[][] correctTICBaselines(final RSession rSession,
 	    final RawDataFile origDataFile, final RawDataFileWriter writer,
 	    final int level, final int numBins, final ParameterSet parameters)
 	    throws IOException {
@@ -363,6 +456,10 @@ public abstract class BaselineCorrector implements BaselineProvider,
 	    progressMap.get(origDataFile)[0]++;
 	}
 
+	// Virtual file: the baselines are subtracted when scans are accessed.
+	if (writer == null)
+	    return baseChrom;
+
 	// Subtract baselines.
 	LOG.finest("Subtracting baselines.");
 	for (int scanIndex = 0; !isAborted(origDataFile)
@@ -382,6 +479,7 @@ public abstract class BaselineCorrector implements BaselineProvider,
 	    progressMap.get(origDataFile)[0]++;
 	}
 
+	return baseChrom;
     }
 
     /**
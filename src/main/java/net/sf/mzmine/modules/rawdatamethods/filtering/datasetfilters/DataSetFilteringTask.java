@@ -19,14 +19,17 @@
 
 package net.sf.mzmine.modules.rawdatamethods.filtering.datasetfilters;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.project.impl.VirtualRawDataFile;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
@@ -38,6 +41,7 @@ class DataSetFilteringTask extends AbstractTask {
     // User parameters
     private String suffix;
     private boolean removeOriginal;
+    private boolean virtualFile;
 
     // Raw Data Filter
     private MZmineProcessingStep<RawDataSetFilter> rawDataFilter;
@@ -57,6 +61,9 @@ class DataSetFilteringTask extends AbstractTask {
 	rawDataFilter = parameters
 		.getParameter(DataSetFiltersParameters.filter).getValue();
 
+	this.virtualFile = parameters.getParameter(
+		DataSetFiltersParameters.virtualFile).getValue();
+
 	this.removeOriginal = parameters.getParameter(
 		DataSetFiltersParameters.autoRemove).getValue();
 
@@ -92,11 +99,17 @@ class DataSetFilteringTask extends AbstractTask {
 
 	try {
 	    for (RawDataFile dataFile : dataFiles) {
-		RawDataFileWriter rawDataFileWriter = MZmineCore
-			.createNewFile(dataFile.getName() + " " + suffix);
-		RawDataFile filteredRawDataFile = rawDataFilter.getModule()
-			.filterDatafile(dataFile, rawDataFileWriter,
-				rawDataFilter.getParameterSet());
+		String newName = dataFile.getName() + " " + suffix;
+		RawDataFile filteredRawDataFile;
+		if (virtualFile) {
+		    filteredRawDataFile = createVirtualFile(dataFile, newName);
+		} else {
+		    RawDataFileWriter rawDataFileWriter = MZmineCore
+			    .createNewFile(newName);
+		    filteredRawDataFile = rawDataFilter.getModule()
+			    .filterDatafile(dataFile, rawDataFileWriter,
+				    rawDataFilter.getParameterSet());
+		}
 		if (filteredRawDataFile != null) {
 		    project.addFile(filteredRawDataFile);
 		    filteredRawDataFiles.add(filteredRawDataFile);
@@ -117,4 +130,23 @@ class DataSetFilteringTask extends AbstractTask {
 	}
 
     }
+
+    /**
+     * Creates a file containing the scans kept by the filter, whose data
+     * points are read from the original file when they are accessed
+     */
+    private RawDataFile createVirtualFile(RawDataFile dataFile,
+	    String newName) throws IOException {
+
+	int scanNumbers[] = rawDataFilter.getModule().getFilteredScanNumbers(
+		dataFile, rawDataFilter.getParameterSet());
+
+	return new VirtualRawDataFile(newName, dataFile, scanNumbers,
+		new VirtualRawDataFile.ScanProcessor() {
+		    public Scan processScan(Scan sourceScan) {
+			return sourceScan;
+		    }
+		});
+
+    }
 }
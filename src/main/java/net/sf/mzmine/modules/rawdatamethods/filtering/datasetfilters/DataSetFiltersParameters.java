@@ -39,12 +39,17 @@ public class DataSetFiltersParameters extends SimpleParameterSet {
     public static final ModuleComboParameter<RawDataSetFilter> filter = new ModuleComboParameter<RawDataSetFilter>(
 	    "Filter", "Raw data filter", rawDataFilters);
 
+    public static final BooleanParameter virtualFile = new BooleanParameter(
+	    "Virtual file",
+	    "If checked, the filtered file does not store its scans, but reads them from the original file when they are needed");
+
     public static final BooleanParameter autoRemove = new BooleanParameter(
 	    "Remove source file after filtering",
 	    "If checked, original file will be removed and only filtered version remains");
 
     public DataSetFiltersParameters() {
-	super(new Parameter[] { dataFiles, suffix, filter, autoRemove });
+	super(new Parameter[] { dataFiles, suffix, filter, virtualFile,
+		autoRemove });
     }
 
 }
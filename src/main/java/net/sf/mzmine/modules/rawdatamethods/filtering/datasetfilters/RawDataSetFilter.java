@@ -35,6 +35,14 @@ public interface RawDataSetFilter extends MZmineModule {
 	    RawDataFileWriter newFile, ParameterSet parameters)
 	    throws IOException;
 
+    /**
+     * Returns the numbers of the scans of the data file which are kept by the
+     * filter with unchanged data points. Used to create a virtual filtered
+     * file, which reads the data points from the original file.
+     */
+    public int[] getFilteredScanNumbers(RawDataFile dataFile,
+	    ParameterSet parameters);
+
     public double getProgress();
 
 }
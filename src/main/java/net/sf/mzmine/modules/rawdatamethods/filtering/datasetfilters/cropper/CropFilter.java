@@ -20,6 +20,7 @@
 package net.sf.mzmine.modules.rawdatamethods.filtering.datasetfilters.cropper;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.annotation.Nonnull;
 
@@ -59,6 +60,26 @@ public class CropFilter implements RawDataSetFilter {
 
     }
 
+    public int[] getFilteredScanNumbers(RawDataFile dataFile,
+	    ParameterSet parameters) {
+
+	Range<Double> RTRange = parameters.getParameter(
+		CropFilterParameters.retentionTimeRange).getValue();
+
+	int[] scanNumbers = dataFile.getScanNumbers();
+	int filteredScanNumbers[] = new int[scanNumbers.length];
+	int numOfFilteredScans = 0;
+
+	for (int scanNumber : scanNumbers) {
+	    Scan scan = dataFile.getScan(scanNumber);
+	    if (RTRange.contains(scan.getRetentionTime()))
+		filteredScanNumbers[numOfFilteredScans++] = scanNumber;
+	}
+
+	return Arrays.copyOf(filteredScanNumbers, numOfFilteredScans);
+
+    }
+
     public double getProgress() {
 	if (totalScans == 0)
 	    return 0;
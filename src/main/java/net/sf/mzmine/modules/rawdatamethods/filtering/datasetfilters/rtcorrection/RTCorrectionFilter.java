@@ -53,6 +53,12 @@ public class RTCorrectionFilter implements RawDataSetFilter {
 	}
     }
 
+    @Override
+    public int[] getFilteredScanNumbers(RawDataFile dataFile,
+	    ParameterSet parameters) {
+	return dataFile.getScanNumbers(1);
+    }
+
     @Override
     public double getProgress() {
 	return 0.5f;
@@ -29,6 +29,7 @@ import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.project.impl.VirtualRawDataFile;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
@@ -46,6 +47,7 @@ class ScanFilteringTask extends AbstractTask {
     // User parameters
     private String suffix;
     private boolean removeOriginal;
+    private boolean virtualFile;
 
     // Raw Data Filter
     private MZmineProcessingStep<ScanFilter> rawDataFilter;
@@ -65,6 +67,12 @@ class ScanFilteringTask extends AbstractTask {
 	suffix = parameters.getParameter(ScanFiltersParameters.suffix)
 		.getValue();
 
+	virtualFile = parameters.getParameter(ScanFiltersParameters.virtualFile)
+		.getValue();
+
+	removeOriginal = parameters.getParameter(
+		ScanFiltersParameters.autoRemove).getValue();
+
     }
 
     /**
@@ -103,9 +111,15 @@ class ScanFilteringTask extends AbstractTask {
 
 	try {
 
+	    String newName = dataFile.getName() + " " + suffix;
+
+	    if (virtualFile) {
+		createVirtualFile(newName);
+		return;
+	    }
+
 	    // Create new raw data file
 
-	    String newName = dataFile.getName() + " " + suffix;
 	    RawDataFileWriter rawDataFileWriter = MZmineCore
 		    .createNewFile(newName);
 
@@ -149,4 +163,39 @@ class ScanFilteringTask extends AbstractTask {
 
     }
 
+    /**
+     * Creates a file whose scans are filtered when they are accessed
+     */
+    private void createVirtualFile(String newName) throws IOException {
+
+	// The filter parameters are copied, so that later changes of the
+	// parameters do not affect the virtual file
+	final ScanFilter filter = rawDataFilter.getModule();
+	final ParameterSet filterParameters = rawDataFilter.getParameterSet()
+		.cloneParameterSet();
+
+	filteredRawDataFile = new VirtualRawDataFile(newName, dataFile, 1,
+		new VirtualRawDataFile.ScanProcessor() {
+		    public Scan processScan(Scan sourceScan) {
+			return filter.filterScan(sourceScan, filterParameters);
+		    }
+		});
+
+	if (isCanceled())
+	    return;
+
+	project.addFile(filteredRawDataFile);
+	processedScans = totalScans;
+
+	// Remove the original file if requested. The filtered scans are stored
+	// before the original file is closed.
+	if (removeOriginal)
+	    project.removeFile(dataFile);
+
+	setStatus(TaskStatus.FINISHED);
+	logger.info("Created virtual filtered file " + newName + " from "
+		+ dataFile);
+
+    }
+
 }
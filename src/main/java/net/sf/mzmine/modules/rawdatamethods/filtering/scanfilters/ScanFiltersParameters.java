@@ -43,12 +43,17 @@ public class ScanFiltersParameters extends SimpleParameterSet {
     public static final ModuleComboParameter<ScanFilter> filter = new ModuleComboParameter<ScanFilter>(
 	    "Filter", "Raw data filter", rawDataFilters);
 
+    public static final BooleanParameter virtualFile = new BooleanParameter(
+	    "Virtual file",
+	    "If checked, the filtered scans are not stored, but computed from the original file when they are needed");
+
     public static final BooleanParameter autoRemove = new BooleanParameter(
 	    "Remove source file after filtering",
 	    "If checked, original file will be removed and only filtered version remains");
 
     public ScanFiltersParameters() {
-	super(new Parameter[] { dataFiles, suffix, filter, autoRemove });
+	super(new Parameter[] { dataFiles, suffix, filter, virtualFile,
+		autoRemove });
     }
 
 }
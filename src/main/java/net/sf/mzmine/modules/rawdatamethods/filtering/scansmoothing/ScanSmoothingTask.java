@@ -33,6 +33,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ScanWindow;
 
 public class ScanSmoothingTask extends AbstractTask {
 
@@ -45,6 +46,10 @@ public class ScanSmoothingTask extends AbstractTask {
     private int processedScans = 0, totalScans;
     private int[] scanNumbers;
 
+    // Window of decoded scans, each scan is decoded only once while the
+    // window slides over it
+    private ScanWindow window;
+
     // User parameters
     private String suffix;
     private double timeSpan, minimumHeight;
@@ -85,7 +90,12 @@ public class ScanSmoothingTask extends AbstractTask {
      * @see net.sf.mzmine.taskcontrol.Task#getTaskDescription()
      */
     public String getTaskDescription() {
-	return "Smoothing scans in " + dataFile;
+	String description = "Smoothing scans in " + dataFile;
+	ScanWindow window = this.window;
+	if (window != null)
+	    description += " (" + window.getNumberOfDecodedScans()
+		    + " scans decoded)";
+	return description;
     }
 
     /**
@@ -121,8 +131,10 @@ public class ScanSmoothingTask extends AbstractTask {
 	    newRDFW = MZmineCore.createNewFile(dataFile.getName() + ' '
 		    + suffix);
 
-	    DataPoint mzValues[][] = null; // [relative scan][j value]
-	    int i, j, si, sj, ii, k, ssi, ssj;
+	    window = new ScanWindow(dataFile, scanNumbers);
+	    double mzValues[][] = null; // [relative scan][j value]
+	    double intensityValues[][] = null;
+	    int i, j, si, sj, k, ssi, ssj, n;
 	    for (i = 0; i < totalScans; i++) {
 
 		if (isCanceled())
@@ -172,47 +184,47 @@ public class ScanSmoothingTask extends AbstractTask {
 			}
 			if (sj > si) {
 			    timepassed++;
-			    // Allocate
-			    if (mzValues == null
-				    || mzValues.length < sj - si + 1)
-				mzValues = new DataPoint[sj - si + 1][];
+			    // Allocate, only the first n rows belong to the
+			    // current window
+			    n = sj - si + 1;
+			    if (mzValues == null || mzValues.length < n) {
+				mzValues = new double[n][];
+				intensityValues = new double[n][];
+			    }
 			    // Load Data Points
+			    window.moveTo(si, sj);
 			    for (j = si; j <= sj; j++) {
-				Scan xscan = dataFile.getScan(scanNumbers[j]);
-				mzValues[j - si] = xscan.getDataPoints();
+				mzValues[j - si] = window.getMZValues(j);
+				intensityValues[j - si] = window
+					.getIntensityValues(j);
 			    }
 			    // Estimate Averages
-			    ii = i - si;
-			    newDP = new DataPoint[mzValues[ii].length];
-			    for (k = 0; k < mzValues[ii].length; k++) {
-				DataPoint dp = mzValues[ii][k];
-				double mz = dp.getMZ();
+			    double scanMZValues[] = window.getMZValues(i);
+			    double scanIntensityValues[] = window
+				    .getIntensityValues(i);
+			    newDP = new DataPoint[scanMZValues.length];
+			    for (k = 0; k < scanMZValues.length; k++) {
+				double mz = scanMZValues[k];
 				double intensidad = 0;
-				if (dp.getIntensity() > 0) { // only process
-							     // those > 0
+				if (scanIntensityValues[k] > 0) { // only process
+								  // those > 0
 				    double a = 0;
 				    short c = 0;
 				    int f = 0;
-				    for (j = 0; j < mzValues.length; j++) {
-					// System.out.println(j);
+				    for (j = 0; j < n; j++) {
 					if (mzValues[j].length > k
-						&& Math.abs(mzValues[j][k]
-							.getMZ() - mz) < timeMZtol) {
+						&& Math.abs(mzValues[j][k] - mz) < timeMZtol) {
 					    f = k;
 					} else {
 					    f = findFirstMass(mz, mzValues[j]);
-					    if (Math.abs(mzValues[j][f].getMZ()
-						    - mz) > timeMZtol) {
+					    if (Math.abs(mzValues[j][f] - mz) > timeMZtol) {
 						f = -f;
 					    }
 					}
 					if (f >= 0
-						&& mzValues[j][f]
-							.getIntensity() >= minimumHeight) {
-					    a += mzValues[j][f].getIntensity();
+						&& intensityValues[j][f] >= minimumHeight) {
+					    a += intensityValues[j][f];
 					    c++;
-					} else {
-					    c = (short) (c + 0);
 					}
 				    }
 				    intensidad = c > 0 ? a / c : 0;
@@ -281,7 +293,9 @@ public class ScanSmoothingTask extends AbstractTask {
 			    + timepassed + ", mz=" + mzpassed);
 		}
 
-		logger.info("Finished Scan Smoothing on " + dataFile);
+		logger.info("Finished Scan Smoothing on " + dataFile + " ("
+			+ window.getNumberOfDecodedScans()
+			+ " scans decoded for " + totalScans + " scans)");
 
 	    }
 
@@ -291,15 +305,15 @@ public class ScanSmoothingTask extends AbstractTask {
 
     }
 
-    static int findFirstMass(double mass, DataPoint mzValues[]) {
+    static int findFirstMass(double mass, double mzValues[]) {
 	int l = 0;
 	int r = mzValues.length - 1;
 	int mid = 0;
 	while (l < r) {
 	    mid = (r + l) / 2;
-	    if (mzValues[mid].getMZ() > mass) {
+	    if (mzValues[mid] > mass) {
 		r = mid - 1;
-	    } else if (mzValues[mid].getMZ() < mass) {
+	    } else if (mzValues[mid] < mass) {
 		l = mid + 1;
 	    } else {
 		r = mid;
@@ -38,6 +38,7 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ArrayUtils;
+import net.sf.mzmine.util.ScanWindow;
 
 public class GridMassTask extends AbstractTask {
 
@@ -52,6 +53,9 @@ public class GridMassTask extends AbstractTask {
     private float procedure = 0;
     private int newPeakID = 0;
     private int[] scanNumbers;
+
+    // Window of decoded scans used by the smoothing step
+    private ScanWindow window;
     Datum[] roi[];
     double retentiontime[];
 
@@ -115,7 +119,12 @@ public class GridMassTask extends AbstractTask {
      * @see net.sf.mzmine.taskcontrol.Task#getTaskDescription()
      */
     public String getTaskDescription() {
-	return "Detecting chromatograms (RT) in " + dataFile;
+	String description = "Detecting chromatograms (RT) in " + dataFile;
+	ScanWindow window = this.window;
+	if (window != null)
+	    description += " (" + window.getNumberOfDecodedScans()
+		    + " scans decoded)";
+	return description;
     }
 
     /**
@@ -670,9 +679,11 @@ public class GridMassTask extends AbstractTask {
 	    int mzPoints, double minimumHeight) {
 	int[] scanNumbers = dataFile.getScanNumbers(1);
 	int totalScans = scanNumbers.length;
-	DataPoint mzValues[][] = null; // [relative scan][j value]
-	DataPoint mzValuesJ[] = null;
-	int mzValuesScan[] = null;
+	// Each scan is decoded only once while the window slides over it
+	window = new ScanWindow(dataFile, scanNumbers);
+	double mzValues[][] = null; // [relative scan][j value]
+	double intensityValues[][] = null;
+	double mzValuesJ[] = null;
 	int mzValuesMZidx[] = null;
 	IndexedDataPoint newMZValues[][] = null;
 	IndexedDataPoint tmpDP[] = new IndexedDataPoint[0];
@@ -725,23 +736,16 @@ public class GridMassTask extends AbstractTask {
 		if (scan != null && sj > si) {
 		    // Allocate
 		    if (mzValues == null || mzValues.length < sj - si + 1) {
-			mzValues = new DataPoint[sj - si + 1][];
-			mzValuesScan = new int[sj - si + 1];
+			mzValues = new double[sj - si + 1][];
+			intensityValues = new double[sj - si + 1][];
 			mzValuesMZidx = new int[sj - si + 1];
 		    }
 		    // Load Data Points
+		    window.moveTo(si, sj);
 		    for (j = si; j <= sj; j++) {
 			int jsi = j - si;
-			if (mzValues[jsi] == null
-				|| jsi >= mzValuesScan.length - 1
-				|| mzValuesScan[jsi + 1] != scanNumbers[j]) {
-			    Scan xscan = dataFile.getScan(scanNumbers[j]);
-			    mzValues[jsi] = xscan.getDataPoints();
-			    mzValuesScan[jsi] = scanNumbers[j];
-			} else {
-			    mzValues[jsi] = mzValues[jsi + 1];
-			    mzValuesScan[jsi] = mzValuesScan[jsi + 1];
-			}
+			mzValues[jsi] = window.getMZValues(j);
+			intensityValues[jsi] = window.getIntensityValues(j);
 			mzValuesMZidx[jsi] = 0;
 		    }
 		    // Estimate Averages
@@ -749,27 +753,24 @@ public class GridMassTask extends AbstractTask {
 		    if (tmpDP.length < mzValues[ii].length)
 			tmpDP = new IndexedDataPoint[mzValues[ii].length * 3 / 2];
 		    for (k = 0; k < mzValues[ii].length; k++) {
-			DataPoint dp = mzValues[ii][k];
-			double mz = dp.getMZ();
+			double mz = mzValues[ii][k];
 			double intensidad = 0;
-			if (dp.getIntensity() > 0) { // only process those > 0
+			if (intensityValues[ii][k] > 0) { // only process those > 0
 			    double a = 0;
 			    short c = 0;
 			    int f = 0;
 			    for (j = 0; j <= sj - si; j++) {
 				for (mzValuesJ = mzValues[j]; mzValuesMZidx[j] < mzValuesJ.length - 1
-					&& mzValuesJ[mzValuesMZidx[j] + 1]
-						.getMZ() < mz
+					&& mzValuesJ[mzValuesMZidx[j] + 1] < mz
 						- timeSmoothingMZtol; mzValuesMZidx[j]++)
 				    ;
 
 				f = mzValuesMZidx[j];
 
 				for (m = mzValuesMZidx[j] + 1; m < mzValuesJ.length
-					&& mzValuesJ[m].getMZ() < mz
-						+ timeSmoothingMZtol; m++) {
-				    if (Math.abs(mzValuesJ[m].getMZ() - mz) < Math
-					    .abs(mzValuesJ[f].getMZ() - mz)) {
+					&& mzValuesJ[m] < mz + timeSmoothingMZtol; m++) {
+				    if (Math.abs(mzValuesJ[m] - mz) < Math
+					    .abs(mzValuesJ[f] - mz)) {
 					f = m;
 				    } else {
 					// siempre debe ser mas cercano porque
@@ -780,12 +781,12 @@ public class GridMassTask extends AbstractTask {
 				}
 				if (f > 0
 					&& f < mzValuesJ.length
-					&& Math.abs(mzValuesJ[f].getMZ() - mz) <= timeSmoothingMZtol
-					&& mzValuesJ[f].getIntensity() > 0) { // >=
+					&& Math.abs(mzValuesJ[f] - mz) <= timeSmoothingMZtol
+					&& intensityValues[j][f] > 0) { // >=
 				    // minimumHeight
 				    // ?
 				    // System.out.println("mz="+mz+"; Closer="+mzValuesJ[f].getMZ()+", f="+f+", Intensity="+mzValuesJ[f].getIntensity());
-				    a += mzValuesJ[f].getIntensity();
+				    a += intensityValues[j][f];
 				    c++;
 				}
 			    }
@@ -823,6 +824,9 @@ public class GridMassTask extends AbstractTask {
 
 	}
 
+	logger.info("Smoothing decoded " + window.getNumberOfDecodedScans()
+		+ " scans for " + totalScans + " scans on " + dataFile);
+
 	return newMZValues;
     }
 
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Scheduler of the disk reads of raw data import tasks. Each import task must
+ * hold a file permit while it reads its file, and at most as many permits as
+ * set by the "Concurrent file readers" preference are given out, so the other
+ * files wait until a file is done instead of interleaving their reads. All
+ * reads are done by a small pool of file reader threads of the same size, in
+ * large sequential blocks. The parsing and decoding of the data is done by
+ * the import tasks and the shared thread pool of the task controller, so it
+ * is not limited by the disk access.
+ */
+public class RawDataImportScheduler {
+
+    private static final Logger logger = Logger
+	    .getLogger(RawDataImportScheduler.class.getName());
+
+    /**
+     * Size of one block read from the disk
+     */
+    public static final int BLOCK_SIZE = 1 << 21;
+
+    /**
+     * Number of blocks read in advance for each open stream
+     */
+    private static final int READ_AHEAD_BLOCKS = 2;
+
+    private static final int DEFAULT_FILE_READERS = 2;
+
+    private static ThreadPoolExecutor readerExecutor;
+
+    /**
+     * Number of file permits given out, guarded by the class lock
+     */
+    private static int openFiles = 0;
+
+    /**
+     * Returns the number of files which may be read at the same time, as set
+     * in the preferences
+     */
+    public static int getNumberOfFileReaders() {
+	if (MZmineCore.getConfiguration() == null)
+	    return DEFAULT_FILE_READERS;
+	Integer value = MZmineCore.getConfiguration().getPreferences()
+		.getParameter(MZminePreferences.numOfFileReaders).getValue();
+	if (value == null)
+	    return DEFAULT_FILE_READERS;
+	return Math.max(1, value);
+    }
+
+    /**
+     * Returns the pool of file reader threads, adjusting its size to the
+     * current preferences
+     */
+    private static synchronized ThreadPoolExecutor getReaderExecutor() {
+
+	final int numOfReaders = getNumberOfFileReaders();
+
+	if (readerExecutor == null) {
+	    final AtomicInteger threadCounter = new AtomicInteger();
+	    ThreadFactory threadFactory = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread newThread = new Thread(r, "File reader thread "
+			    + threadCounter.incrementAndGet());
+		    newThread.setDaemon(true);
+		    return newThread;
+		}
+	    };
+	    readerExecutor = new ThreadPoolExecutor(numOfReaders,
+		    numOfReaders, 60, TimeUnit.SECONDS,
+		    new LinkedBlockingQueue<Runnable>(), threadFactory);
+	    readerExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	// The core size must never exceed the maximum size
+	if (readerExecutor.getMaximumPoolSize() != numOfReaders) {
+	    logger.finest("Setting number of file reader threads to "
+		    + numOfReaders);
+	    if (numOfReaders > readerExecutor.getMaximumPoolSize()) {
+		readerExecutor.setMaximumPoolSize(numOfReaders);
+		readerExecutor.setCorePoolSize(numOfReaders);
+	    } else {
+		readerExecutor.setCorePoolSize(numOfReaders);
+		readerExecutor.setMaximumPoolSize(numOfReaders);
+	    }
+	}
+
+	return readerExecutor;
+    }
+
+    /**
+     * Waits for a file permit. The caller must call releaseFilePermit() when
+     * it has finished reading its file, also when the reading fails.
+     * 
+     * @return false if the task was canceled while waiting, in which case no
+     *         permit is held
+     */
+    public static synchronized boolean acquireFilePermit(Task task)
+	    throws InterruptedException {
+	// The limit is checked again on every wake-up, so changes of the
+	// preferences take effect for the waiting tasks
+	while (openFiles >= getNumberOfFileReaders()) {
+	    if (task.getStatus() == TaskStatus.CANCELED)
+		return false;
+	    // Wake up now and then to notice a canceled task
+	    RawDataImportScheduler.class.wait(500);
+	}
+	openFiles++;
+	return true;
+    }
+
+    /**
+     * Returns the permit obtained by acquireFilePermit()
+     */
+    public static synchronized void releaseFilePermit() {
+	openFiles--;
+	RawDataImportScheduler.class.notifyAll();
+    }
+
+    /**
+     * Schedules reading of the given part of a file by one of the file reader
+     * threads.
+     */
+    public static Future<byte[]> read(final FileChannel channel,
+	    final long position, final int length) {
+	return getReaderExecutor().submit(new Callable<byte[]>() {
+	    public byte[] call() throws IOException {
+		byte bytes[] = new byte[length];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+		    int n = channel.read(buffer, position + buffer.position());
+		    if (n < 0)
+			throw new IOException("Unexpected end of file");
+		}
+		return bytes;
+	    }
+	});
+    }
+
+    /**
+     * Waits for the result of read()
+     */
+    public static byte[] getResult(Future<byte[]> future) throws IOException {
+	try {
+	    return future.get();
+	} catch (InterruptedException e) {
+	    future.cancel(false);
+	    throw new IOException("Reading interrupted", e);
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof IOException)
+		throw (IOException) e.getCause();
+	    throw new IOException(e.getCause());
+	}
+    }
+
+    /**
+     * Returns the reading speed of an import task, to be appended to the
+     * task description, or an empty string if the reading has not started
+     * yet.
+     * 
+     * @param startTime
+     *            time when the reading started, in ms, or 0
+     */
+    public static String getSpeedDescription(long startTime, long bytesRead,
+	    int parsedScans) {
+	if (startTime == 0)
+	    return "";
+	double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+	return String.format(" (%.1f MB/s, %.0f scans/s)", bytesRead / seconds
+		/ (1024 * 1024), parsedScans / seconds);
+    }
+
+    /**
+     * Opens a stream reading the given file through the file reader threads.
+     * The following blocks of the file are read in advance, while the caller
+     * processes the current one.
+     */
+    public static ScheduledInputStream openStream(File file)
+	    throws IOException {
+	return new ScheduledInputStream(file, 0);
+    }
+
+    /**
+     * Same as openStream(File), but the stream starts at the given position
+     * of the file
+     */
+    public static ScheduledInputStream openStream(File file, long position)
+	    throws IOException {
+	return new ScheduledInputStream(file, position);
+    }
+
+    /**
+     * Input stream whose data are read by the file reader threads. It also
+     * counts the bytes consumed, to report the reading speed.
+     */
+    public static class ScheduledInputStream extends InputStream {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long fileSize;
+	private long nextBlockPosition;
+	private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+	private byte currentBlock[] = new byte[0];
+	private int positionInBlock = 0;
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	ScheduledInputStream(File fileToRead, long position)
+		throws IOException {
+	    file = new RandomAccessFile(fileToRead, "r");
+	    channel = file.getChannel();
+	    fileSize = channel.size();
+	    nextBlockPosition = position;
+	    for (int i = 0; i < READ_AHEAD_BLOCKS; i++)
+		scheduleNextBlock();
+	}
+
+	private void scheduleNextBlock() {
+	    if (nextBlockPosition >= fileSize)
+		return;
+	    int length = (int) Math.min(BLOCK_SIZE, fileSize
+		    - nextBlockPosition);
+	    pendingBlocks.add(RawDataImportScheduler.read(channel,
+		    nextBlockPosition, length));
+	    nextBlockPosition += length;
+	}
+
+	/**
+	 * Makes the next block current, returns false at the end of file
+	 */
+	private boolean nextBlock() throws IOException {
+	    if (pendingBlocks.isEmpty())
+		return false;
+	    currentBlock = getResult(pendingBlocks.removeFirst());
+	    positionInBlock = 0;
+	    scheduleNextBlock();
+	    return true;
+	}
+
+	public int read() throws IOException {
+	    if ((positionInBlock == currentBlock.length) && !nextBlock())
+		return -1;
+	    bytesRead.incrementAndGet();
+	    return currentBlock[positionInBlock++] & 0xFF;
+	}
+
+	public int read(byte b[], int off, int len) throws IOException {
+	    if (len == 0)
+		return 0;
+	    if ((positionInBlock == currentBlock.length) && !nextBlock())
+		return -1;
+	    int n = Math.min(len, currentBlock.length - positionInBlock);
+	    System.arraycopy(currentBlock, positionInBlock, b, off, n);
+	    positionInBlock += n;
+	    bytesRead.addAndGet(n);
+	    return n;
+	}
+
+	public int available() {
+	    return currentBlock.length - positionInBlock;
+	}
+
+	/**
+	 * Returns the number of bytes consumed so far. May be called from any
+	 * thread.
+	 */
+	public long getBytesRead() {
+	    return bytesRead.get();
+	}
+
+	public long getFileSize() {
+	    return fileSize;
+	}
+
+	public void close() throws IOException {
+	    for (Future<byte[]> block : pendingBlocks)
+		block.cancel(false);
+	    pendingBlocks.clear();
+	    file.close();
+	}
+
+    }
+
+}
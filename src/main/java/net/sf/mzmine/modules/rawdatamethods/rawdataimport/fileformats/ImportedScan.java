@@ -0,0 +1,89 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.util.ScanUtils;
+
+/**
+ * Scan being imported. The data points are kept as arrays of m/z and
+ * intensity values, which are passed directly to the raw data file when the
+ * scan is added, so no object is created per data point.
+ */
+class ImportedScan extends SimpleScan {
+
+    private double mzValues[] = new double[0];
+    private double intensityValues[] = new double[0];
+    private int numOfDataPoints = 0;
+
+    ImportedScan(int scanNumber, int msLevel, double retentionTime,
+	    double precursorMZ, int precursorCharge, PolarityType polarity,
+	    String scanDefinition) {
+	super(null, scanNumber, msLevel, retentionTime, precursorMZ,
+		precursorCharge, null, new DataPoint[0], null, polarity,
+		scanDefinition, null);
+    }
+
+    /**
+     * Sets the data points and detects the spectrum type. The arrays are not
+     * copied, so the caller must not modify them afterwards.
+     */
+    void setDataPoints(double mzValues[], double intensityValues[],
+	    int numOfDataPoints) {
+	this.mzValues = mzValues;
+	this.intensityValues = intensityValues;
+	this.numOfDataPoints = numOfDataPoints;
+
+	// Auto-detect whether this scan is centroided
+	setSpectrumType(ScanUtils.detectSpectrumType(mzValues,
+		intensityValues, numOfDataPoints));
+    }
+
+    /**
+     * Adds this scan to the given raw data file
+     */
+    void addTo(RawDataFileWriter rawDataFile) throws IOException {
+	rawDataFile.addScan(this, mzValues, intensityValues, numOfDataPoints);
+    }
+
+    public int getNumberOfDataPoints() {
+	return numOfDataPoints;
+    }
+
+    /**
+     * Creates the data point objects, only needed if the scan is used other
+     * than by addTo()
+     */
+    public @Nonnull DataPoint[] getDataPoints() {
+	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+	for (int i = 0; i < numOfDataPoints; i++)
+	    dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+	return dataPoints;
+    }
+
+}
@@ -21,7 +21,6 @@ package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.LinkedList;
 import java.util.logging.Logger;
@@ -29,21 +28,19 @@ import java.util.logging.Logger;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
-import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportScheduler;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportScheduler.ScheduledInputStream;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.BinaryDataDecoder;
 import net.sf.mzmine.util.ExceptionUtils;
-import net.sf.mzmine.util.ScanUtils;
 
-import org.apache.axis.encoding.Base64;
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
@@ -59,12 +56,15 @@ public class MzDataReadTask extends AbstractTask {
     private RawDataFileWriter newMZmineFile;
     private RawDataFile finalRawDataFile;
     private int totalScans = 0, parsedScans;
-    private int peaksCount = 0;
-    private StringBuilder charBuffer;
+
+    // For reporting of the reading speed
+    private volatile ScheduledInputStream inputStream;
+    private volatile long startTime = 0;
     private boolean precursorFlag = false;
     private boolean spectrumInstrumentFlag = false;
     private boolean mzArrayBinaryFlag = false;
     private boolean intenArrayBinaryFlag = false;
+    private boolean dataFlag = false;
     private String precision, endian;
     private int scanNumber;
     private int msLevel;
@@ -82,11 +82,17 @@ public class MzDataReadTask extends AbstractTask {
     private double[] mzDataPoints;
     private double[] intensityDataPoints;
 
+    /*
+     * The binary arrays are decoded directly from the characters received by
+     * the parser
+     */
+    private BinaryDataDecoder decoder = new BinaryDataDecoder();
+
     /*
      * This variable hold the current scan or fragment, it is send to the stack
      * when another scan/fragment appears as a parser.startElement
      */
-    private SimpleScan buildingScan;
+    private ImportedScan buildingScan;
 
     /*
      * This stack stores at most 10 consecutive scans. This window serves to
@@ -101,13 +107,11 @@ public class MzDataReadTask extends AbstractTask {
      * 
      * http://sourceforge.net/projects/psidev/
      */
-    private LinkedList<SimpleScan> parentStack;
+    private LinkedList<ImportedScan> parentStack;
 
     public MzDataReadTask(MZmineProject project, File fileToOpen,
 	    RawDataFileWriter newMZmineFile) {
-	// 256 kilo-chars buffer
-	charBuffer = new StringBuilder(1 << 18);
-	parentStack = new LinkedList<SimpleScan>();
+	parentStack = new LinkedList<ImportedScan>();
 	this.project = project;
 	this.file = fileToOpen;
 	this.newMZmineFile = newMZmineFile;
@@ -134,7 +138,24 @@ public class MzDataReadTask extends AbstractTask {
 	try {
 
 	    SAXParser saxParser = factory.newSAXParser();
-	    saxParser.parse(file, handler);
+
+	    // The file is read by the file reader threads of the import
+	    // scheduler, while we parse it here
+	    if (!RawDataImportScheduler.acquireFilePermit(this))
+		return;
+	    try {
+		inputStream = RawDataImportScheduler.openStream(file);
+		startTime = System.currentTimeMillis();
+		try {
+		    InputSource source = new InputSource(inputStream);
+		    source.setSystemId(file.toURI().toString());
+		    saxParser.parse(source, handler);
+		} finally {
+		    inputStream.close();
+		}
+	    } finally {
+		RawDataImportScheduler.releaseFilePermit();
+	    }
 
 	    // Close file
 	    finalRawDataFile = newMZmineFile.finishWriting();
@@ -162,7 +183,12 @@ public class MzDataReadTask extends AbstractTask {
     }
 
     public String getTaskDescription() {
-	return "Opening file " + file;
+	ScheduledInputStream stream = inputStream;
+	long bytesRead = (stream == null) ? 0 : stream.getBytesRead();
+	return "Opening file "
+		+ file
+		+ RawDataImportScheduler.getSpeedDescription(startTime,
+			bytesRead, parsedScans);
     }
 
     private class MzDataHandler extends DefaultHandler {
@@ -190,6 +216,8 @@ public class MzDataReadTask extends AbstractTask {
 		polarity = PolarityType.UNKNOWN;
 		precursorMz = 0f;
 		precursorCharge = 0;
+		mzDataPoints = new double[0];
+		intensityDataPoints = new double[0];
 		scanNumber = Integer.parseInt(attrs.getValue("id"));
 	    }
 
@@ -257,21 +285,12 @@ public class MzDataReadTask extends AbstractTask {
 
 	    // <data>
 	    if (qName.equalsIgnoreCase("data")) {
-		// clean the current char buffer for the new element
-		charBuffer.setLength(0);
-		if (mzArrayBinaryFlag) {
+		// start decoding the new element
+		if (mzArrayBinaryFlag || intenArrayBinaryFlag) {
+		    decoder.reset();
+		    dataFlag = true;
 		    endian = attrs.getValue("endian");
 		    precision = attrs.getValue("precision");
-		    String len = attrs.getValue("length");
-		    if (len != null)
-			peaksCount = Integer.parseInt(len);
-		}
-		if (intenArrayBinaryFlag) {
-		    endian = attrs.getValue("endian");
-		    precision = attrs.getValue("precision");
-		    String len = attrs.getValue("length");
-		    if (len != null)
-			peaksCount = Integer.parseInt(len);
 		}
 	    }
 
@@ -308,28 +327,23 @@ public class MzDataReadTask extends AbstractTask {
 	    // <spectrum>
 	    if (qName.equalsIgnoreCase("spectrum")) {
 
-		DataPoint dataPoints[] = new DataPoint[peaksCount];
 		spectrumInstrumentFlag = false;
 
-		// Copy m/z and intensity data
-		for (int i = 0; i < dataPoints.length; i++) {
-		    dataPoints[i] = new SimpleDataPoint(
-			    (double) mzDataPoints[i],
-			    (double) intensityDataPoints[i]);
-		}
+		buildingScan = new ImportedScan(scanNumber, msLevel,
+			retentionTime, precursorMz, precursorCharge, polarity,
+			"");
 
-		// Auto-detect whether this scan is centroided
-		MassSpectrumType spectrumType = ScanUtils
-			.detectSpectrumType(dataPoints);
-
-		buildingScan = new SimpleScan(null, scanNumber, msLevel,
-			retentionTime, precursorMz, precursorCharge, null,
-			dataPoints, spectrumType, polarity, "", null);
+		// Set the data points, this also detects whether the scan is
+		// centroided
+		int peaksCount = Math.min(mzDataPoints.length,
+			intensityDataPoints.length);
+		buildingScan.setDataPoints(mzDataPoints, intensityDataPoints,
+			peaksCount);
 
 		/*
 		 * Update of fragmentScanNumbers of each Scan in the parentStack
 		 */
-		for (SimpleScan s : parentStack) {
+		for (ImportedScan s : parentStack) {
 		    // if (s.getScanNumber() ==
 		    // buildingScan.getParentScanNumber()) {
 		    s.addFragmentScan(buildingScan.getScanNumber());
@@ -342,9 +356,9 @@ public class MzDataReadTask extends AbstractTask {
 		 * 10 elements.
 		 */
 		if (parentStack.size() > 10) {
-		    SimpleScan scan = parentStack.removeLast();
+		    ImportedScan scan = parentStack.removeLast();
 		    try {
-			newMZmineFile.addScan(scan);
+			scan.addTo(newMZmineFile);
 		    } catch (IOException e) {
 			setStatus(TaskStatus.ERROR);
 			setErrorMessage("IO error: " + e);
@@ -358,60 +372,35 @@ public class MzDataReadTask extends AbstractTask {
 
 	    }
 
+	    // <data>
+	    if (qName.equalsIgnoreCase("data")) {
+		dataFlag = false;
+	    }
+
 	    // <mzArrayBinary>
 	    if (qName.equalsIgnoreCase("mzArrayBinary")) {
-
 		mzArrayBinaryFlag = false;
-		mzDataPoints = new double[peaksCount];
-
-		byte[] peakBytes = Base64.decode(charBuffer.toString());
-
-		ByteBuffer currentMzBytes = ByteBuffer.wrap(peakBytes);
-
-		if (endian.equals("big")) {
-		    currentMzBytes = currentMzBytes.order(ByteOrder.BIG_ENDIAN);
-		} else {
-		    currentMzBytes = currentMzBytes
-			    .order(ByteOrder.LITTLE_ENDIAN);
-		}
-
-		for (int i = 0; i < mzDataPoints.length; i++) {
-		    if (precision == null || precision.equals("32"))
-			mzDataPoints[i] = (double) currentMzBytes.getFloat();
-		    else
-			mzDataPoints[i] = currentMzBytes.getDouble();
-		}
+		mzDataPoints = getDecodedValues();
 	    }
 
 	    // <intenArrayBinary>
 	    if (qName.equalsIgnoreCase("intenArrayBinary")) {
-
 		intenArrayBinaryFlag = false;
-		intensityDataPoints = new double[peaksCount];
-
-		byte[] peakBytes = Base64.decode(charBuffer.toString());
-
-		ByteBuffer currentIntensityBytes = ByteBuffer.wrap(peakBytes);
-
-		if (endian.equals("big")) {
-		    currentIntensityBytes = currentIntensityBytes
-			    .order(ByteOrder.BIG_ENDIAN);
-		} else {
-		    currentIntensityBytes = currentIntensityBytes
-			    .order(ByteOrder.LITTLE_ENDIAN);
-		}
-
-		for (int i = 0; i < intensityDataPoints.length; i++) {
-		    if (precision == null || precision.equals("32"))
-			intensityDataPoints[i] = (double) currentIntensityBytes
-				.getFloat();
-		    else
-			intensityDataPoints[i] = currentIntensityBytes
-				.getDouble();
-		}
+		intensityDataPoints = getDecodedValues();
 	    }
 	}
 
+	/**
+	 * Converts the decoded bytes of the last <data> element to numbers
+	 */
+	private double[] getDecodedValues() {
+	    ByteOrder byteOrder = "big".equals(endian) ? ByteOrder.BIG_ENDIAN
+		    : ByteOrder.LITTLE_ENDIAN;
+	    int bits = ((precision == null) || precision.equals("32")) ? 32
+		    : 64;
+	    return decoder.getValues(bits, false, byteOrder);
+	}
+
 	/**
 	 * characters()
 	 * 
@@ -419,14 +408,22 @@ public class MzDataReadTask extends AbstractTask {
 	 */
 	public void characters(char buf[], int offset, int len)
 		throws SAXException {
-	    charBuffer.append(buf, offset, len);
+	    if (!dataFlag)
+		return;
+	    try {
+		decoder.decodeBase64(buf, offset, len);
+	    } catch (IllegalArgumentException e) {
+		setStatus(TaskStatus.ERROR);
+		setErrorMessage("Corrupt mzData file: " + e.getMessage());
+		throw new SAXException("Parsing cancelled");
+	    }
 	}
 
 	public void endDocument() throws SAXException {
 	    while (!parentStack.isEmpty()) {
-		SimpleScan scan = parentStack.removeLast();
+		ImportedScan scan = parentStack.removeLast();
 		try {
-		    newMZmineFile.addScan(scan);
+		    scan.addTo(newMZmineFile);
 		} catch (IOException e) {
 		    setStatus(TaskStatus.ERROR);
 		    setErrorMessage("IO error: " + e);
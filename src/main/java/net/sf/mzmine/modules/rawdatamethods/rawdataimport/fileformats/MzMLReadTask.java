@@ -19,54 +19,84 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import net.sf.mzmine.datamodel.DataPoint;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassSpectrumType;
-import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
-import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportScheduler;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportScheduler.ScheduledInputStream;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrumParser.ParsedSpectrum;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.BinaryDataDecoder;
 import net.sf.mzmine.util.ExceptionUtils;
-import net.sf.mzmine.util.ScanUtils;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArray;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArrayList;
-import uk.ac.ebi.jmzml.model.mzml.CVParam;
-import uk.ac.ebi.jmzml.model.mzml.ParamGroup;
-import uk.ac.ebi.jmzml.model.mzml.Precursor;
-import uk.ac.ebi.jmzml.model.mzml.PrecursorList;
-import uk.ac.ebi.jmzml.model.mzml.Scan;
-import uk.ac.ebi.jmzml.model.mzml.ScanList;
-import uk.ac.ebi.jmzml.model.mzml.SelectedIonList;
-import uk.ac.ebi.jmzml.model.mzml.Spectrum;
-import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
+import net.sf.mzmine.util.ParallelUtils;
 
 /**
  * This class reads mzML 1.0 and 1.1.0 files
- * (http://www.psidev.info/index.php?q=node/257) using the jmzml library
- * (http://code.google.com/p/jmzml/).
+ * (http://www.psidev.info/index.php?q=node/257) using a streaming (StAX)
+ * parser. The spectrum metadata are read in the task thread, while the
+ * base64/zlib binary arrays are decoded by the shared thread pool. The scans
+ * are still written in the file order.
+ * 
+ * If the file is an indexedmzML with valid offsets, whole chunks of spectra
+ * are read as single blocks and parsed in parallel.
+ * 
+ * The disk reads are done by the file reader threads of the
+ * RawDataImportScheduler.
  */
 public class MzMLReadTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
+    /*
+     * Number of spectra parsed (indexed mode) or decoded (sequential mode) in
+     * one piece of work for the thread pool
+     */
+    private static final int INDEXED_CHUNK_SIZE = 64,
+	    SEQUENTIAL_CHUNK_SIZE = 16;
+
+    /*
+     * Number of chunks of an indexed file read from the disk in advance
+     */
+    private static final int READ_AHEAD_CHUNKS = 2;
+
+    /*
+     * Largest chunk which can be read into a byte array
+     */
+    private static final long MAX_CHUNK_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int BLOCK_SIZE = RawDataImportScheduler.BLOCK_SIZE;
+
     private File file;
     private MZmineProject project;
     private RawDataFileWriter newMZmineFile;
     private RawDataFile finalRawDataFile;
-    private int totalScans = 0, parsedScans;
+    private volatile int totalScans = 0, parsedScans;
+
+    // For reporting of the reading speed
+    private volatile long startTime = 0, bytesRead = 0;
+    private volatile ScheduledInputStream inputStream;
 
     private int lastScanNumber = 0;
 
@@ -81,7 +111,12 @@ public class MzMLReadTask extends AbstractTask {
      * after one or more full scans.
      */
     private static final int PARENT_STACK_SIZE = 20;
-    private LinkedList<SimpleScan> parentStack = new LinkedList<SimpleScan>();
+    private LinkedList<ImportedScan> parentStack = new LinkedList<ImportedScan>();
+
+    private final MzMLSpectrumParser parser = new MzMLSpectrumParser();
+
+    // Work submitted to the thread pool, in the file order
+    private final LinkedList<FutureTask<List<ParsedSpectrum>>> pendingChunks = new LinkedList<FutureTask<List<ParsedSpectrum>>>();
 
     public MzMLReadTask(MZmineProject project, File fileToOpen,
 	    RawDataFileWriter newMZmineFile) {
@@ -105,69 +140,40 @@ public class MzMLReadTask extends AbstractTask {
 	setStatus(TaskStatus.PROCESSING);
 	logger.info("Started parsing file " + file);
 
-	MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(file);
-
-	totalScans = unmarshaller
-		.getObjectCountForXpath("/run/spectrumList/spectrum");
-
-	MzMLObjectIterator<Spectrum> spectrumIterator = unmarshaller
-		.unmarshalCollectionFromXpath("/run/spectrumList/spectrum",
-			Spectrum.class);
 	try {
 
-	    while (spectrumIterator.hasNext()) {
-
-		if (isCanceled())
-		    return;
-
-		Spectrum spectrum = spectrumIterator.next();
-
-		String scanId = spectrum.getId();
-		int scanNumber = convertScanIdToScanNumber(scanId);
-
-		// Extract scan data
-		int msLevel = extractMSLevel(spectrum);
-		double retentionTime = extractRetentionTime(spectrum);
-		PolarityType polarity = extractPolarity(spectrum);
-		int parentScan = extractParentScanNumber(spectrum);
-		double precursorMz = extractPrecursorMz(spectrum);
-		int precursorCharge = extractPrecursorCharge(spectrum);
-		String scanDefinition = extractScanDefinition(spectrum);
-		DataPoint dataPoints[] = extractDataPoints(spectrum);
-
-		// Auto-detect whether this scan is centroided
-		MassSpectrumType spectrumType = ScanUtils
-			.detectSpectrumType(dataPoints);
-
-		SimpleScan scan = new SimpleScan(null, scanNumber, msLevel,
-			retentionTime, precursorMz, precursorCharge, null,
-			dataPoints, spectrumType, polarity, scanDefinition,
-			null);
-
-		for (SimpleScan s : parentStack) {
-		    if (s.getScanNumber() == parentScan) {
-			s.addFragmentScan(scanNumber);
-		    }
+	    XMLInputFactory factory = createFactory();
+
+	    // Wait until this file may be read
+	    if (!RawDataImportScheduler.acquireFilePermit(this))
+		return;
+	    try {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file,
+			"r");
+		try {
+		    FileChannel channel = randomAccessFile.getChannel();
+		    long offsets[] = MzMLSpectrumParser.readSpectrumOffsets(
+			    file, channel, factory);
+		    startTime = System.currentTimeMillis();
+		    if (offsets != null)
+			readIndexed(factory, channel, offsets);
+		    else
+			readSequential(factory, 0, null);
+		} finally {
+		    for (FutureTask<?> chunk : pendingChunks)
+			chunk.cancel(false);
+		    randomAccessFile.close();
 		}
-
-		/*
-		 * Verify the size of parentStack. The actual size of the window
-		 * to cover possible candidates is defined by limitSize.
-		 */
-		if (parentStack.size() > PARENT_STACK_SIZE) {
-		    SimpleScan firstScan = parentStack.removeLast();
-		    newMZmineFile.addScan(firstScan);
-		}
-
-		parentStack.addFirst(scan);
-
-		parsedScans++;
-
+	    } finally {
+		RawDataImportScheduler.releaseFilePermit();
 	    }
 
+	    if (isCanceled())
+		return;
+
 	    while (!parentStack.isEmpty()) {
-		SimpleScan scan = parentStack.removeLast();
-		newMZmineFile.addScan(scan);
+		ImportedScan scan = parentStack.removeLast();
+		scan.addTo(newMZmineFile);
 
 	    }
 
@@ -175,6 +181,8 @@ public class MzMLReadTask extends AbstractTask {
 	    project.addFile(finalRawDataFile);
 
 	} catch (Throwable e) {
+	    if (e instanceof ExecutionException)
+		e = e.getCause();
 	    setStatus(TaskStatus.ERROR);
 	    setErrorMessage("Error parsing mzML: "
 		    + ExceptionUtils.exceptionToString(e));
@@ -188,291 +196,363 @@ public class MzMLReadTask extends AbstractTask {
 	    return;
 	}
 
-	logger.info("Finished parsing " + file + ", parsed " + parsedScans
-		+ " scans");
+	double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+	logger.info(String.format(
+		"Finished parsing %s, parsed %d scans in %.1f s (%.0f scans/s, %.1f MB/s)",
+		file, parsedScans, seconds, parsedScans / seconds,
+		getBytesRead() / seconds / (1024 * 1024)));
 	setStatus(TaskStatus.FINISHED);
 
     }
 
-    private int convertScanIdToScanNumber(String scanId) {
+    private static XMLInputFactory createFactory() {
+	XMLInputFactory factory = XMLInputFactory.newInstance();
+	factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+		false);
+	factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+	return factory;
+    }
 
-	if (scanIdTable.containsKey(scanId))
-	    return scanIdTable.get(scanId);
+    /**
+     * Reads a file without a usable index. The metadata are parsed here, the
+     * binary arrays are decoded by the thread pool.
+     * 
+     * @param position
+     *            0 to read the whole file, or the offset of a <spectrum>
+     *            element from which the rest of an indexed file is read
+     * @param encoding
+     *            encoding of the file, needed when reading from a spectrum
+     *            offset
+     */
+    private void readSequential(XMLInputFactory factory, long position,
+	    String encoding) throws Exception {
 
-	final Pattern pattern = Pattern.compile("scan=([0-9]+)");
-	final Matcher matcher = pattern.matcher(scanId);
-	boolean scanNumberFound = matcher.find();
+	inputStream = RawDataImportScheduler.openStream(file, position);
+	try {
+	    XMLStreamReader reader;
+	    if (position == 0) {
+		reader = factory.createXMLStreamReader(inputStream);
+		if (!parser.readHeader(reader))
+		    return;
+		totalScans = parser.getSpectrumCount();
+	    } else {
+		// The header has been read already, continue as if we were
+		// inside the <spectrumList> element
+		String charset = (encoding == null) ? "UTF-8" : encoding;
+		InputStream in = new SequenceInputStream(
+			new ByteArrayInputStream("<spectrumList>"
+				.getBytes(charset)), inputStream);
+		reader = factory.createXMLStreamReader(in, charset);
+		reader.nextTag();
+	    }
 
-	// Some vendors include scan=XX in the ID, some don't, such as
-	// mzML converted from WIFF files. See the definition of nativeID in
-	// http://psidev.cvs.sourceforge.net/viewvc/psidev/psi/psi-ms/mzML/controlledVocabulary/psi-ms.obo
-	if (scanNumberFound) {
-	    int scanNumber = Integer.parseInt(matcher.group(1));
-	    scanIdTable.put(scanId, scanNumber);
-	    return scanNumber;
+	    List<ParsedSpectrum> chunk = new ArrayList<ParsedSpectrum>();
+	    while (MzMLSpectrumParser.nextSpectrum(reader)) {
+		if (isCanceled())
+		    return;
+		chunk.add(parser.readSpectrum(reader, null));
+		if (chunk.size() == SEQUENTIAL_CHUNK_SIZE) {
+		    submitDecoding(chunk);
+		    chunk = new ArrayList<ParsedSpectrum>();
+		}
+	    }
+	    if (!chunk.isEmpty())
+		submitDecoding(chunk);
+	    reader.close();
+	} finally {
+	    inputStream.close();
 	}
 
-	int scanNumber = lastScanNumber + 1;
-	lastScanNumber++;
-	scanIdTable.put(scanId, scanNumber);
-	return scanNumber;
+	while (!pendingChunks.isEmpty() && !isCanceled())
+	    addScans(pendingChunks.removeFirst());
+
     }
 
-    private int extractMSLevel(Spectrum spectrum) {
-	// Browse the spectrum parameters
-	List<CVParam> cvParams = spectrum.getCvParam();
-	if (cvParams == null)
-	    return 1;
-	for (CVParam param : cvParams) {
-	    String accession = param.getAccession();
-	    String value = param.getValue();
-	    if ((accession == null) || (value == null))
-		continue;
-
-	    // MS level MS:1000511
-	    if (accession.equals("MS:1000511")) {
-		int msLevel = Integer.parseInt(value);
-		return msLevel;
-	    }
+    /**
+     * Reads an indexedmzML file. Chunks of consecutive spectra are read from
+     * the disk as single blocks, then parsed and decoded by the thread pool.
+     * 
+     * @param offsets
+     *            spectrum offsets followed by the end of the last spectrum, as
+     *            returned by MzMLSpectrumParser.readSpectrumOffsets()
+     */
+    private void readIndexed(final XMLInputFactory factory,
+	    final FileChannel channel, final long offsets[]) throws Exception {
+
+	// The referenceable parameter groups are defined in the header
+	InputStream in = RawDataImportScheduler.openStream(file);
+	final String encoding;
+	try {
+	    XMLStreamReader reader = factory.createXMLStreamReader(in);
+	    parser.readHeader(reader);
+	    encoding = reader.getEncoding();
+	    reader.close();
+	} finally {
+	    in.close();
 	}
-	return 1;
-    }
 
-    private double extractRetentionTime(Spectrum spectrum) {
-
-	ScanList scanListElement = spectrum.getScanList();
-	if (scanListElement == null)
-	    return 0;
-	List<Scan> scanElements = scanListElement.getScan();
-	if (scanElements == null)
-	    return 0;
-
-	for (Scan scan : scanElements) {
-	    List<CVParam> cvParams = scan.getCvParam();
-	    if (cvParams == null)
-		continue;
-
-	    for (CVParam param : cvParams) {
-		String accession = param.getAccession();
-		String unitAccession = param.getUnitAccession();
-		String value = param.getValue();
-		if ((accession == null) || (value == null))
-		    continue;
-
-		// Retention time (actually "Scan start time") MS:1000016
-		if (accession.equals("MS:1000016")) {
-		    // MS:1000038 is used in mzML 1.0, while UO:0000031
-		    // is used in mzML 1.1.0 :-/
-		    double retentionTime;
-		    if ((unitAccession == null)
-			    || (unitAccession.equals("MS:1000038"))
-			    || unitAccession.equals("UO:0000031")) {
-			retentionTime = Double.parseDouble(value);
-		    } else {
-			retentionTime = Double.parseDouble(value) / 60d;
+	final int numOfSpectra = offsets.length - 1;
+	logger.finest("Using the index of " + numOfSpectra + " spectra in "
+		+ file);
+	totalScans = numOfSpectra;
+
+	LinkedList<Future<byte[]>> pendingReads = new LinkedList<Future<byte[]>>();
+	LinkedList<int[]> pendingRanges = new LinkedList<int[]>();
+	int nextSpectrum = 0;
+
+	// Spectrum from which the file is read sequentially, after a wrong
+	// offset was found in the index
+	int sequentialStart = -1;
+
+	// Spectrum which is too large to be read as a single block
+	int largeSpectrum = -1;
+
+	try {
+	    while ((nextSpectrum < numOfSpectra) || !pendingReads.isEmpty()) {
+
+		if (isCanceled())
+		    return;
+
+		// Schedule the reading of the following chunks. A chunk ends
+		// after INDEXED_CHUNK_SIZE spectra or when it would exceed
+		// one block of the scheduler, unless it is a single spectrum.
+		while ((nextSpectrum < numOfSpectra)
+			&& (pendingReads.size() < READ_AHEAD_CHUNKS)) {
+		    int start = nextSpectrum, end = start + 1;
+		    while ((end < numOfSpectra)
+			    && (end - start < INDEXED_CHUNK_SIZE)
+			    && (offsets[end + 1] - offsets[start] <= BLOCK_SIZE))
+			end++;
+		    // The start of the following spectrum is read as well, to
+		    // check its offset
+		    long readEnd = offsets[end];
+		    if (end < numOfSpectra)
+			readEnd += MzMLSpectrumParser.SPECTRUM_START_LENGTH;
+		    long readLength = readEnd - offsets[start];
+		    if (readLength > MAX_CHUNK_LENGTH) {
+			largeSpectrum = start;
+			nextSpectrum = numOfSpectra;
+			break;
 		    }
-		    return retentionTime;
+		    pendingReads.add(RawDataImportScheduler.read(channel,
+			    offsets[start], (int) readLength));
+		    pendingRanges.add(new int[] { start, end });
+		    nextSpectrum = end;
+		}
 
+		if (pendingReads.isEmpty())
+		    break;
+
+		final byte chunkBytes[] = RawDataImportScheduler
+			.getResult(pendingReads.removeFirst());
+		final int range[] = pendingRanges.removeFirst();
+		bytesRead += chunkBytes.length;
+
+		// Check the offsets of the chunk, before any of its spectra is
+		// parsed. The spectrum preceding a wrong offset is the first
+		// one read sequentially.
+		int checkEnd = Math.min(range[1], numOfSpectra - 1);
+		for (int i = range[0]; i <= checkEnd; i++) {
+		    if (!MzMLSpectrumParser.isSpectrumStart(chunkBytes,
+			    (int) (offsets[i] - offsets[range[0]]))) {
+			logger.info("Wrong offset of spectrum #" + (i + 1)
+				+ " in the index of " + file
+				+ ", reading the rest of the file sequentially");
+			sequentialStart = Math.max(0, i - 1);
+			break;
+		    }
 		}
+		if (sequentialStart >= 0) {
+		    if (sequentialStart > range[0])
+			submitParsing(factory, encoding, offsets, chunkBytes,
+				range[0], sequentialStart);
+		    break;
+		}
+
+		submitParsing(factory, encoding, offsets, chunkBytes,
+			range[0], range[1]);
 	    }
+	} finally {
+	    for (Future<byte[]> read : pendingReads)
+		read.cancel(false);
 	}
 
-	return 0;
-    }
-
-    private DataPoint[] extractDataPoints(Spectrum spectrum) {
-	BinaryDataArrayList dataList = spectrum.getBinaryDataArrayList();
-
-	if ((dataList == null) || (dataList.getCount().equals(0)))
-	    return new DataPoint[0];
-
-	BinaryDataArray mzArray = dataList.getBinaryDataArray().get(0);
-	BinaryDataArray intensityArray = dataList.getBinaryDataArray().get(1);
-	Number mzValues[] = mzArray.getBinaryDataAsNumberArray();
-	Number intensityValues[] = intensityArray.getBinaryDataAsNumberArray();
-	DataPoint dataPoints[] = new DataPoint[mzValues.length];
-	for (int i = 0; i < dataPoints.length; i++) {
-	    double mz = mzValues[i].doubleValue();
-	    double intensity = intensityValues[i].doubleValue();
-	    dataPoints[i] = new SimpleDataPoint(mz, intensity);
+	// A spectrum too large for a byte array is read sequentially as well
+	if ((sequentialStart < 0) && (largeSpectrum >= 0)) {
+	    logger.info("Spectrum #" + (largeSpectrum + 1) + " of " + file
+		    + " is too large to be read as one block, reading the "
+		    + "rest of the file sequentially");
+	    sequentialStart = largeSpectrum;
 	}
-	return dataPoints;
+
+	if (sequentialStart == 0)
+	    readSequential(factory, 0, null);
+	else if (sequentialStart > 0)
+	    readSequential(factory, offsets[sequentialStart], encoding);
+
+	while (!pendingChunks.isEmpty() && !isCanceled())
+	    addScans(pendingChunks.removeFirst());
 
     }
 
-    private int extractParentScanNumber(Spectrum spectrum) {
-	PrecursorList precursorListElement = spectrum.getPrecursorList();
-	if ((precursorListElement == null)
-		|| (precursorListElement.getCount().equals(0)))
-	    return -1;
-
-	List<Precursor> precursorList = precursorListElement.getPrecursor();
-	for (Precursor parent : precursorList) {
-	    // Get the precursor scan number
-	    String precursorScanId = parent.getSpectrumRef();
-	    if (precursorScanId == null) {
-		return -1;
+    /**
+     * Submits the parsing of the given spectra of an indexed file, whose
+     * bytes were read as one chunk
+     */
+    private void submitParsing(final XMLInputFactory factory,
+	    final String encoding, final long offsets[],
+	    final byte chunkBytes[], final int chunkStart, final int chunkEnd)
+	    throws Exception {
+	submit(new Callable<List<ParsedSpectrum>>() {
+	    public List<ParsedSpectrum> call() throws Exception {
+		BinaryDataDecoder decoder = new BinaryDataDecoder();
+		List<ParsedSpectrum> spectra = new ArrayList<ParsedSpectrum>(
+			chunkEnd - chunkStart);
+		for (int i = chunkStart; i < chunkEnd; i++) {
+		    if (isCanceled())
+			break;
+		    int position = (int) (offsets[i] - offsets[chunkStart]);
+		    int length = (int) (offsets[i + 1] - offsets[i]);
+		    InputStream spectrumIn = new ByteArrayInputStream(
+			    chunkBytes, position, length);
+		    XMLStreamReader reader = (encoding == null) ? factory
+			    .createXMLStreamReader(spectrumIn) : factory
+			    .createXMLStreamReader(spectrumIn, encoding);
+		    reader.nextTag();
+		    spectra.add(parser.readSpectrum(reader, decoder));
+		    // Do not read beyond the end of the spectrum, the
+		    // rest is not a valid XML fragment
+		    reader.close();
+		}
+		createScans(spectra);
+		return spectra;
 	    }
-	    int parentScan = convertScanIdToScanNumber(precursorScanId);
-	    return parentScan;
-	}
-	return -1;
+	});
     }
 
-    private double extractPrecursorMz(Spectrum spectrum) {
-
-	PrecursorList precursorListElement = spectrum.getPrecursorList();
-	if ((precursorListElement == null)
-		|| (precursorListElement.getCount().equals(0)))
-	    return 0;
-
-	List<Precursor> precursorList = precursorListElement.getPrecursor();
-	for (Precursor parent : precursorList) {
-
-	    SelectedIonList selectedIonListElement = parent
-		    .getSelectedIonList();
-	    if ((selectedIonListElement == null)
-		    || (selectedIonListElement.getCount().equals(0)))
-		return 0;
-	    List<ParamGroup> selectedIonParams = selectedIonListElement
-		    .getSelectedIon();
-	    if (selectedIonParams == null)
-		continue;
-
-	    for (ParamGroup pg : selectedIonParams) {
-		List<CVParam> pgCvParams = pg.getCvParam();
-		for (CVParam param : pgCvParams) {
-		    String accession = param.getAccession();
-		    String value = param.getValue();
-		    if ((accession == null) || (value == null))
-			continue;
-		    // MS:1000040 is used in mzML 1.0,
-		    // MS:1000744 is used in mzML 1.1.0
-		    if (accession.equals("MS:1000040")
-			    || accession.equals("MS:1000744")) {
-			double precursorMz = Double.parseDouble(value);
-			return precursorMz;
-		    }
-		}
+    private long getBytesRead() {
+	ScheduledInputStream stream = inputStream;
+	return bytesRead + ((stream == null) ? 0 : stream.getBytesRead());
+    }
 
+    private void submitDecoding(final List<ParsedSpectrum> chunk)
+	    throws Exception {
+	submit(new Callable<List<ParsedSpectrum>>() {
+	    public List<ParsedSpectrum> call() throws Exception {
+		BinaryDataDecoder decoder = new BinaryDataDecoder();
+		for (ParsedSpectrum spectrum : chunk)
+		    MzMLSpectrumParser.decodeBinaryArrays(spectrum, decoder);
+		createScans(chunk);
+		return chunk;
 	    }
-	}
-	return 0;
+	});
     }
 
-    private int extractPrecursorCharge(Spectrum spectrum) {
-	PrecursorList precursorListElement = spectrum.getPrecursorList();
-	if ((precursorListElement == null)
-		|| (precursorListElement.getCount().equals(0)))
-	    return 0;
-
-	List<Precursor> precursorList = precursorListElement.getPrecursor();
-	for (Precursor parent : precursorList) {
-
-	    SelectedIonList selectedIonListElement = parent
-		    .getSelectedIonList();
-	    if ((selectedIonListElement == null)
-		    || (selectedIonListElement.getCount().equals(0)))
-		return 0;
-	    List<ParamGroup> selectedIonParams = selectedIonListElement
-		    .getSelectedIon();
-	    if (selectedIonParams == null)
-		continue;
-
-	    for (ParamGroup pg : selectedIonParams) {
-		List<CVParam> pgCvParams = pg.getCvParam();
-		for (CVParam param : pgCvParams) {
-		    String accession = param.getAccession();
-		    String value = param.getValue();
-		    if ((accession == null) || (value == null))
-			continue;
-		    if (accession.equals("MS:1000041")) {
-			int precursorCharge = Integer.parseInt(value);
-			return precursorCharge;
-		    }
-
-		}
+    /**
+     * Submits a piece of work. Only a limited number of chunks is kept in
+     * memory, so the oldest one is written to the file first if necessary.
+     */
+    private void submit(Callable<List<ParsedSpectrum>> work) throws Exception {
+	int maxPendingChunks = 2 * Math.max(1,
+		ParallelUtils.getNumberOfThreads());
+	while (pendingChunks.size() >= maxPendingChunks)
+	    addScans(pendingChunks.removeFirst());
+	pendingChunks.add(ParallelUtils.submit(work));
+    }
 
-	    }
+    /**
+     * Creates the scans from the decoded arrays, which also detects the
+     * spectrum type. Called by the pool threads, the scan numbers are set
+     * later, in the file order.
+     */
+    private static void createScans(List<ParsedSpectrum> spectra) {
+	for (ParsedSpectrum spectrum : spectra) {
+	    ImportedScan scan = new ImportedScan(0, spectrum.msLevel,
+		    spectrum.retentionTime, spectrum.precursorMz,
+		    spectrum.precursorCharge, spectrum.polarity,
+		    spectrum.scanDefinition);
+	    scan.setDataPoints(spectrum.mzValues, spectrum.intensityValues,
+		    spectrum.mzValues.length);
+	    spectrum.scan = scan;
+	    spectrum.mzValues = null;
+	    spectrum.intensityValues = null;
 	}
-	return 0;
     }
 
-    private PolarityType extractPolarity(Spectrum spectrum) {
-	List<CVParam> cvParams = spectrum.getCvParam();
-	if (cvParams != null) {
-	    for (CVParam param : cvParams) {
-		String accession = param.getAccession();
-
-		if (accession == null)
-		    continue;
-		if (accession.equals("MS:1000130"))
-		    return PolarityType.POSITIVE;
-		if (accession.equals("MS:1000129"))
-		    return PolarityType.NEGATIVE;
-	    }
-	}
-	ScanList scanListElement = spectrum.getScanList();
-	if (scanListElement != null) {
-	    List<Scan> scanElements = scanListElement.getScan();
-	    if (scanElements != null) {
-		for (Scan scan : scanElements) {
-		    cvParams = scan.getCvParam();
-		    if (cvParams == null)
-			continue;
-		    for (CVParam param : cvParams) {
-			String accession = param.getAccession();
-			if (accession == null)
-			    continue;
-			if (accession.equals("MS:1000130"))
-			    return PolarityType.POSITIVE;
-			if (accession.equals("MS:1000129"))
-			    return PolarityType.NEGATIVE;
-		    }
+    /**
+     * Waits for the given chunk and passes its spectra to the raw data file,
+     * in the file order
+     */
+    private void addScans(FutureTask<List<ParsedSpectrum>> chunk)
+	    throws Exception {
+
+	List<ParsedSpectrum> spectra = ParallelUtils.getResult(chunk);
 
+	for (ParsedSpectrum spectrum : spectra) {
+
+	    if (isCanceled())
+		return;
+
+	    int scanNumber = convertScanIdToScanNumber(spectrum.id);
+	    int parentScan = (spectrum.precursorRef == null) ? -1
+		    : convertScanIdToScanNumber(spectrum.precursorRef);
+
+	    ImportedScan scan = spectrum.scan;
+	    scan.setScanNumber(scanNumber);
+
+	    for (ImportedScan s : parentStack) {
+		if (s.getScanNumber() == parentScan) {
+		    s.addFragmentScan(scanNumber);
 		}
 	    }
+
+	    /*
+	     * Verify the size of parentStack. The actual size of the window to
+	     * cover possible candidates is defined by limitSize.
+	     */
+	    if (parentStack.size() > PARENT_STACK_SIZE) {
+		ImportedScan firstScan = parentStack.removeLast();
+		firstScan.addTo(newMZmineFile);
+	    }
+
+	    parentStack.addFirst(scan);
+
+	    parsedScans++;
+
 	}
-	return PolarityType.UNKNOWN;
 
     }
 
-    private String extractScanDefinition(Spectrum spectrum) {
-	List<CVParam> cvParams = spectrum.getCvParam();
-	if (cvParams != null) {
-	    for (CVParam param : cvParams) {
-		String accession = param.getAccession();
+    private int convertScanIdToScanNumber(String scanId) {
 
-		if (accession == null)
-		    continue;
-		if (accession.equals("MS:1000512"))
-		    return param.getValue();
-	    }
-	}
-	ScanList scanListElement = spectrum.getScanList();
-	if (scanListElement != null) {
-	    List<Scan> scanElements = scanListElement.getScan();
-	    if (scanElements != null) {
-		for (Scan scan : scanElements) {
-		    cvParams = scan.getCvParam();
-		    if (cvParams == null)
-			continue;
-		    for (CVParam param : cvParams) {
-			String accession = param.getAccession();
-			if (accession == null)
-			    continue;
-			if (accession.equals("MS:1000512"))
-			    return param.getValue();
-		    }
+	if (scanIdTable.containsKey(scanId))
+	    return scanIdTable.get(scanId);
 
-		}
-	    }
+	final Pattern pattern = Pattern.compile("scan=([0-9]+)");
+	final Matcher matcher = pattern.matcher(scanId);
+	boolean scanNumberFound = matcher.find();
+
+	// Some vendors include scan=XX in the ID, some don't, such as
+	// mzML converted from WIFF files. See the definition of nativeID in
+	// http://psidev.cvs.sourceforge.net/viewvc/psidev/psi/psi-ms/mzML/controlledVocabulary/psi-ms.obo
+	if (scanNumberFound) {
+	    int scanNumber = Integer.parseInt(matcher.group(1));
+	    scanIdTable.put(scanId, scanNumber);
+	    return scanNumber;
 	}
-	return spectrum.getId();
+
+	int scanNumber = lastScanNumber + 1;
+	lastScanNumber++;
+	scanIdTable.put(scanId, scanNumber);
+	return scanNumber;
     }
 
     public String getTaskDescription() {
-	return "Opening file " + file;
+	return "Opening file "
+		+ file
+		+ RawDataImportScheduler.getSpeedDescription(startTime,
+			getBytesRead(), parsedScans);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,638 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportScheduler;
+import net.sf.mzmine.util.BinaryDataDecoder;
+
+/**
+ * Streaming parser of mzML spectra. Only the parameters used by MZmine are
+ * extracted, everything else is skipped. The binary arrays can either be
+ * decoded immediately, or kept as base64 text and decoded later by
+ * decodeBinaryArrays(), possibly in a different thread.
+ * 
+ * The parser keeps the referenceable parameter groups read from the file
+ * header. Once the header has been read, readSpectrum() can be called from
+ * several threads at the same time.
+ */
+class MzMLSpectrumParser {
+
+    /**
+     * Spectrum metadata and data, as read from the file
+     */
+    static class ParsedSpectrum {
+
+	String id, precursorRef, scanDefinition;
+	int msLevel = 1, precursorCharge = 0;
+	double retentionTime = 0, precursorMz = 0;
+	PolarityType polarity = PolarityType.UNKNOWN;
+	final List<BinaryArray> binaryArrays = new ArrayList<BinaryArray>();
+
+	// Set by decodeBinaryArrays()
+	double mzValues[], intensityValues[];
+
+	// Set by the reader task
+	ImportedScan scan;
+
+	// Parameters of the <scan> element, used only if not set for the
+	// whole spectrum
+	private PolarityType scanPolarity = PolarityType.UNKNOWN;
+	private String scanScanDefinition;
+	private boolean retentionTimeFound = false;
+	private int numOfPrecursors = 0;
+	private boolean precursorMzFound = false, precursorChargeFound = false;
+
+    }
+
+    /**
+     * One <binaryDataArray> element
+     */
+    static class BinaryArray {
+
+	static final int MZ = 1, INTENSITY = 2, OTHER = 0;
+
+	int type = OTHER;
+	int precision = 64;
+	boolean integer = false, compressed = false;
+	String unsupportedCompression;
+
+	// Exactly one of these is set, depending on whether the array was
+	// decoded immediately
+	String encodedText;
+	double values[];
+
+	void decode(BinaryDataDecoder decoder) throws IOException {
+	    if (values != null)
+		return;
+	    if (unsupportedCompression != null)
+		throw new IOException("Unsupported compression of binary data: "
+			+ unsupportedCompression);
+	    decoder.reset();
+	    if (encodedText != null)
+		decoder.decodeBase64(encodedText);
+	    encodedText = null;
+	    convert(decoder);
+	}
+
+	private void convert(BinaryDataDecoder decoder) throws IOException {
+	    if (compressed) {
+		try {
+		    decoder.inflate();
+		} catch (DataFormatException e) {
+		    throw new IOException("Invalid compressed binary data", e);
+		}
+	    }
+	    values = decoder.getValues(precision, integer,
+		    ByteOrder.LITTLE_ENDIAN);
+	}
+
+    }
+
+    private static final String SPECTRUM = "spectrum",
+	    SPECTRUM_LIST = "spectrumList", CHROMATOGRAM = "chromatogram";
+
+    private static final Pattern INDEX_LIST_OFFSET_PATTERN = Pattern
+	    .compile("<indexListOffset>\\s*([0-9]+)\\s*</indexListOffset>");
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte SPECTRUM_START[] = ("<" + SPECTRUM)
+	    .getBytes(ASCII);
+
+    private static final byte SPECTRUM_END[] = ("</" + SPECTRUM + ">")
+	    .getBytes(ASCII);
+
+    /**
+     * Number of bytes checked by isSpectrumStart()
+     */
+    static final int SPECTRUM_START_LENGTH = SPECTRUM_START.length;
+
+    private final Map<String, List<String[]>> paramGroups = new HashMap<String, List<String[]>>();
+    private int spectrumCount = 0;
+
+    /**
+     * Reads the file header up to the <spectrumList> element, collecting the
+     * referenceable parameter groups.
+     * 
+     * @return true if the reader is positioned at the <spectrumList> element,
+     *         false if the document has no spectra
+     */
+    boolean readHeader(XMLStreamReader reader) throws XMLStreamException {
+
+	String groupId = null;
+	List<String[]> group = null;
+
+	while (reader.hasNext()) {
+	    if (reader.next() != XMLStreamConstants.START_ELEMENT)
+		continue;
+	    String name = reader.getLocalName();
+	    if (name.equals(SPECTRUM_LIST)) {
+		String count = reader.getAttributeValue(null, "count");
+		if (count != null)
+		    spectrumCount = Integer.parseInt(count.trim());
+		return true;
+	    }
+	    if (name.equals("referenceableParamGroup")) {
+		groupId = reader.getAttributeValue(null, "id");
+		group = new ArrayList<String[]>();
+		paramGroups.put(groupId, group);
+	    } else if (name.equals("cvParam") && (group != null)) {
+		group.add(new String[] {
+			reader.getAttributeValue(null, "accession"),
+			reader.getAttributeValue(null, "value"),
+			reader.getAttributeValue(null, "unitAccession") });
+	    } else if (name.equals("run")) {
+		// Parameter groups are always defined before the run
+		group = null;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Returns the number of spectra declared by the <spectrumList> element,
+     * or 0 if unknown
+     */
+    int getSpectrumCount() {
+	return spectrumCount;
+    }
+
+    /**
+     * Moves the reader to the next <spectrum> element.
+     * 
+     * @return false if there are no more spectra
+     */
+    static boolean nextSpectrum(XMLStreamReader reader)
+	    throws XMLStreamException {
+	while (reader.hasNext()) {
+	    int event = reader.next();
+	    if ((event == XMLStreamConstants.START_ELEMENT)
+		    && reader.getLocalName().equals(SPECTRUM))
+		return true;
+	    if ((event == XMLStreamConstants.END_ELEMENT)
+		    && reader.getLocalName().equals(SPECTRUM_LIST))
+		return false;
+	}
+	return false;
+    }
+
+    /**
+     * Reads one spectrum. The reader must be positioned at the <spectrum>
+     * start element, and it is left at the matching end element.
+     * 
+     * @param decoder
+     *            if not null, the binary arrays are decoded immediately using
+     *            this decoder, otherwise only their base64 text is kept
+     */
+    ParsedSpectrum readSpectrum(XMLStreamReader reader,
+	    BinaryDataDecoder decoder) throws XMLStreamException, IOException {
+
+	if ((reader.getEventType() != XMLStreamConstants.START_ELEMENT)
+		|| !reader.getLocalName().equals(SPECTRUM))
+	    throw new IOException("Expected <spectrum> element at line "
+		    + reader.getLocation().getLineNumber());
+
+	ParsedSpectrum spectrum = new ParsedSpectrum();
+	spectrum.id = reader.getAttributeValue(null, "id");
+
+	// Names of the open elements, to know the context of each parameter
+	String elementStack[] = new String[16];
+	int depth = 0;
+	elementStack[0] = SPECTRUM;
+	BinaryArray currentArray = null;
+
+	while (depth >= 0) {
+
+	    int event = reader.next();
+
+	    if (event == XMLStreamConstants.END_ELEMENT) {
+		depth--;
+		continue;
+	    }
+	    if (event != XMLStreamConstants.START_ELEMENT)
+		continue;
+
+	    String name = reader.getLocalName();
+	    String context = elementStack[depth];
+
+	    if (name.equals("cvParam")) {
+		processParam(spectrum, currentArray, context,
+			reader.getAttributeValue(null, "accession"),
+			reader.getAttributeValue(null, "value"),
+			reader.getAttributeValue(null, "unitAccession"));
+	    } else if (name.equals("referenceableParamGroupRef")) {
+		List<String[]> group = paramGroups.get(reader
+			.getAttributeValue(null, "ref"));
+		if (group != null) {
+		    for (String param[] : group)
+			processParam(spectrum, currentArray, context, param[0],
+				param[1], param[2]);
+		}
+	    } else if (name.equals("precursor")) {
+		spectrum.numOfPrecursors++;
+		if (spectrum.numOfPrecursors == 1)
+		    spectrum.precursorRef = reader.getAttributeValue(null,
+			    "spectrumRef");
+	    } else if (name.equals("binaryDataArray")) {
+		currentArray = new BinaryArray();
+		spectrum.binaryArrays.add(currentArray);
+	    } else if (name.equals("binary") && (currentArray != null)) {
+		if (decoder != null) {
+		    decodeBinaryText(reader, decoder, currentArray);
+		} else {
+		    currentArray.encodedText = reader.getElementText();
+		}
+		// Both leave the reader at the </binary> end element
+		continue;
+	    }
+
+	    // Every start element, including the empty ones, gets its end
+	    // element event
+	    depth++;
+	    if (depth == elementStack.length) {
+		String newStack[] = new String[depth * 2];
+		System.arraycopy(elementStack, 0, newStack, 0, depth);
+		elementStack = newStack;
+	    }
+	    elementStack[depth] = name;
+
+	}
+
+	if (spectrum.polarity == PolarityType.UNKNOWN)
+	    spectrum.polarity = spectrum.scanPolarity;
+	if (spectrum.scanDefinition == null)
+	    spectrum.scanDefinition = spectrum.scanScanDefinition;
+	if (spectrum.scanDefinition == null)
+	    spectrum.scanDefinition = spectrum.id;
+
+	if (decoder != null)
+	    selectArrays(spectrum);
+
+	return spectrum;
+    }
+
+    /**
+     * Decodes the binary arrays which were not decoded by readSpectrum()
+     */
+    static void decodeBinaryArrays(ParsedSpectrum spectrum,
+	    BinaryDataDecoder decoder) throws IOException {
+	for (BinaryArray array : spectrum.binaryArrays)
+	    array.decode(decoder);
+	selectArrays(spectrum);
+    }
+
+    /**
+     * Picks the m/z and intensity arrays. Arrays without a type parameter are
+     * taken by their position (m/z first, intensity second).
+     */
+    private static void selectArrays(ParsedSpectrum spectrum)
+	    throws IOException {
+
+	List<BinaryArray> arrays = spectrum.binaryArrays;
+	BinaryArray mzArray = null, intensityArray = null;
+	for (BinaryArray array : arrays) {
+	    if ((array.type == BinaryArray.MZ) && (mzArray == null))
+		mzArray = array;
+	    if ((array.type == BinaryArray.INTENSITY)
+		    && (intensityArray == null))
+		intensityArray = array;
+	}
+	if ((mzArray == null) && (arrays.size() > 0))
+	    mzArray = arrays.get(0);
+	if ((intensityArray == null) && (arrays.size() > 1))
+	    intensityArray = arrays.get(1);
+
+	if ((mzArray == null) || (intensityArray == null)) {
+	    spectrum.mzValues = new double[0];
+	    spectrum.intensityValues = new double[0];
+	} else {
+	    if (mzArray.values.length != intensityArray.values.length)
+		throw new IOException("Spectrum " + spectrum.id + " has "
+			+ mzArray.values.length + " m/z values and "
+			+ intensityArray.values.length + " intensity values");
+	    spectrum.mzValues = mzArray.values;
+	    spectrum.intensityValues = intensityArray.values;
+	}
+
+	// The encoded data are not needed anymore
+	spectrum.binaryArrays.clear();
+
+    }
+
+    /**
+     * Feeds the text of the <binary> element to the decoder piece by piece,
+     * without creating a String
+     */
+    private static void decodeBinaryText(XMLStreamReader reader,
+	    BinaryDataDecoder decoder, BinaryArray array)
+	    throws XMLStreamException, IOException {
+	decoder.reset();
+	while (true) {
+	    int event = reader.next();
+	    if (event == XMLStreamConstants.END_ELEMENT)
+		break;
+	    if ((event == XMLStreamConstants.CHARACTERS)
+		    || (event == XMLStreamConstants.CDATA)
+		    || (event == XMLStreamConstants.SPACE)) {
+		try {
+		    decoder.decodeBase64(reader.getTextCharacters(),
+			    reader.getTextStart(), reader.getTextLength());
+		} catch (IllegalArgumentException e) {
+		    throw new IOException(e.getMessage(), e);
+		}
+	    }
+	}
+	if (array.unsupportedCompression != null)
+	    throw new IOException("Unsupported compression of binary data: "
+		    + array.unsupportedCompression);
+	array.convert(decoder);
+    }
+
+    private static void processParam(ParsedSpectrum spectrum,
+	    BinaryArray currentArray, String context, String accession,
+	    String value, String unitAccession) {
+
+	if (accession == null)
+	    return;
+
+	// mzML 1.0 keeps some spectrum parameters in <spectrumDescription>
+	if (context.equals(SPECTRUM) || context.equals("spectrumDescription")) {
+	    // MS level MS:1000511
+	    if (accession.equals("MS:1000511") && (value != null))
+		spectrum.msLevel = Integer.parseInt(value.trim());
+	    else if (accession.equals("MS:1000130")
+		    && (spectrum.polarity == PolarityType.UNKNOWN))
+		spectrum.polarity = PolarityType.POSITIVE;
+	    else if (accession.equals("MS:1000129")
+		    && (spectrum.polarity == PolarityType.UNKNOWN))
+		spectrum.polarity = PolarityType.NEGATIVE;
+	    else if (accession.equals("MS:1000512")
+		    && (spectrum.scanDefinition == null))
+		spectrum.scanDefinition = value;
+	    return;
+	}
+
+	if (context.equals("scan")) {
+	    // Retention time (actually "Scan start time") MS:1000016
+	    if (accession.equals("MS:1000016") && (value != null)
+		    && !spectrum.retentionTimeFound) {
+		// MS:1000038 is used in mzML 1.0, while UO:0000031
+		// is used in mzML 1.1.0 :-/
+		double retentionTime = Double.parseDouble(value.trim());
+		if ((unitAccession != null)
+			&& !unitAccession.equals("MS:1000038")
+			&& !unitAccession.equals("UO:0000031"))
+		    retentionTime /= 60d;
+		spectrum.retentionTime = retentionTime;
+		spectrum.retentionTimeFound = true;
+	    } else if (accession.equals("MS:1000130")
+		    && (spectrum.scanPolarity == PolarityType.UNKNOWN))
+		spectrum.scanPolarity = PolarityType.POSITIVE;
+	    else if (accession.equals("MS:1000129")
+		    && (spectrum.scanPolarity == PolarityType.UNKNOWN))
+		spectrum.scanPolarity = PolarityType.NEGATIVE;
+	    else if (accession.equals("MS:1000512")
+		    && (spectrum.scanScanDefinition == null))
+		spectrum.scanScanDefinition = value;
+	    return;
+	}
+
+	// Only the first precursor is considered
+	if (context.equals("selectedIon") && (spectrum.numOfPrecursors == 1)) {
+	    // MS:1000040 is used in mzML 1.0,
+	    // MS:1000744 is used in mzML 1.1.0
+	    if ((accession.equals("MS:1000040") || accession
+		    .equals("MS:1000744"))
+		    && (value != null)
+		    && !spectrum.precursorMzFound) {
+		spectrum.precursorMz = Double.parseDouble(value.trim());
+		spectrum.precursorMzFound = true;
+	    } else if (accession.equals("MS:1000041") && (value != null)
+		    && !spectrum.precursorChargeFound) {
+		spectrum.precursorCharge = Integer.parseInt(value.trim());
+		spectrum.precursorChargeFound = true;
+	    }
+	    return;
+	}
+
+	if (context.equals("binaryDataArray") && (currentArray != null)) {
+	    if (accession.equals("MS:1000521"))
+		currentArray.precision = 32;
+	    else if (accession.equals("MS:1000523"))
+		currentArray.precision = 64;
+	    else if (accession.equals("MS:1000519")) {
+		currentArray.precision = 32;
+		currentArray.integer = true;
+	    } else if (accession.equals("MS:1000522")) {
+		currentArray.precision = 64;
+		currentArray.integer = true;
+	    } else if (accession.equals("MS:1000574"))
+		currentArray.compressed = true;
+	    else if (accession.equals("MS:1000576"))
+		currentArray.compressed = false;
+	    else if (accession.equals("MS:1002312")
+		    || accession.equals("MS:1002313")
+		    || accession.equals("MS:1002314")
+		    || accession.equals("MS:1002746")
+		    || accession.equals("MS:1002747")
+		    || accession.equals("MS:1002748"))
+		// MS-Numpress encodings
+		currentArray.unsupportedCompression = accession;
+	    else if (accession.equals("MS:1000514"))
+		currentArray.type = BinaryArray.MZ;
+	    else if (accession.equals("MS:1000515"))
+		currentArray.type = BinaryArray.INTENSITY;
+	}
+
+    }
+
+    /**
+     * Reads the spectrum offsets from the index of an indexedmzML file. The
+     * offsets are only returned if they are in increasing order and within
+     * the spectra part of the file. Some writers produce offsets which do not
+     * point to a <spectrum> element, so the reader has to check each of them
+     * by isSpectrumStart() when it reads the spectra.
+     * 
+     * @return offsets of all spectra in the file order, followed by the end
+     *         of the last spectrum, or null if the file has no usable index
+     */
+    static long[] readSpectrumOffsets(File file, FileChannel channel,
+	    XMLInputFactory factory) throws IOException {
+
+	// The <indexListOffset> element is at the very end of the file
+	long fileSize = channel.size();
+	int tailSize = (int) Math.min(fileSize, 4096);
+	byte tailBytes[] = RawDataImportScheduler.getResult(
+		RawDataImportScheduler.read(channel, fileSize - tailSize,
+			tailSize));
+	String tail = new String(tailBytes, ASCII);
+	Matcher matcher = INDEX_LIST_OFFSET_PATTERN.matcher(tail);
+	if (!matcher.find())
+	    return null;
+	long indexListOffset = Long.parseLong(matcher.group(1));
+	if ((indexListOffset <= 0) || (indexListOffset >= fileSize))
+	    return null;
+
+	long offsets[] = new long[1024];
+	int numOfOffsets = 0;
+	long firstChromatogramOffset = -1;
+
+	InputStream indexStream = RawDataImportScheduler.openStream(file,
+		indexListOffset);
+	try {
+	    XMLStreamReader reader = factory.createXMLStreamReader(indexStream);
+	    try {
+		reader.nextTag();
+		if (!reader.getLocalName().equals("indexList"))
+		    return null;
+		boolean inSpectrumIndex = false, inChromatogramIndex = false;
+		while (reader.hasNext()) {
+		    int event = reader.next();
+		    if (event == XMLStreamConstants.END_ELEMENT) {
+			if (reader.getLocalName().equals("indexList"))
+			    break;
+			if (reader.getLocalName().equals("index")) {
+			    inSpectrumIndex = false;
+			    inChromatogramIndex = false;
+			}
+			continue;
+		    }
+		    if (event != XMLStreamConstants.START_ELEMENT)
+			continue;
+		    String name = reader.getLocalName();
+		    if (name.equals("index")) {
+			String indexName = reader.getAttributeValue(null,
+				"name");
+			inSpectrumIndex = SPECTRUM.equals(indexName);
+			inChromatogramIndex = CHROMATOGRAM.equals(indexName);
+		    } else if (name.equals("offset") && inSpectrumIndex) {
+			if (numOfOffsets == offsets.length) {
+			    long newOffsets[] = new long[numOfOffsets * 2];
+			    System.arraycopy(offsets, 0, newOffsets, 0,
+				    numOfOffsets);
+			    offsets = newOffsets;
+			}
+			offsets[numOfOffsets++] = Long.parseLong(reader
+				.getElementText().trim());
+			// getElementText() leaves the reader at </offset>
+		    } else if (name.equals("offset") && inChromatogramIndex
+			    && (firstChromatogramOffset < 0)) {
+			firstChromatogramOffset = Long.parseLong(reader
+				.getElementText().trim());
+		    }
+		}
+	    } finally {
+		reader.close();
+	    }
+	} catch (XMLStreamException e) {
+	    return null;
+	} catch (NumberFormatException e) {
+	    return null;
+	} finally {
+	    indexStream.close();
+	}
+
+	if (numOfOffsets == 0)
+	    return null;
+
+	for (int i = 0; i < numOfOffsets; i++) {
+	    long offset = offsets[i];
+	    if ((offset < 0)
+		    || (offset + SPECTRUM_START_LENGTH > indexListOffset))
+		return null;
+	    if ((i > 0) && (offset <= offsets[i - 1]))
+		return null;
+	}
+
+	// The chromatograms follow the spectra, so the last spectrum ends
+	// before the first of them
+	long lastOffset = offsets[numOfOffsets - 1];
+	long spectraEnd = indexListOffset;
+	if ((firstChromatogramOffset > lastOffset)
+		&& (firstChromatogramOffset < spectraEnd))
+	    spectraEnd = firstChromatogramOffset;
+
+	long result[] = new long[numOfOffsets + 1];
+	System.arraycopy(offsets, 0, result, 0, numOfOffsets);
+	result[numOfOffsets] = findSpectrumEnd(channel, lastOffset,
+		spectraEnd);
+	return result;
+    }
+
+    /**
+     * Returns the position right after the last </spectrum> tag between the
+     * given positions. Only the end of the range is searched, because the
+     * last spectrum is followed by a few closing tags at most. If the tag is
+     * not found there, the end of the range is returned.
+     */
+    private static long findSpectrumEnd(FileChannel channel,
+	    long spectrumOffset, long rangeEnd) throws IOException {
+	int searchLength = (int) Math.min(rangeEnd - spectrumOffset, 4096);
+	long searchStart = rangeEnd - searchLength;
+	byte bytes[] = RawDataImportScheduler.getResult(RawDataImportScheduler
+		.read(channel, searchStart, searchLength));
+	for (int i = searchLength - SPECTRUM_END.length; i >= 0; i--) {
+	    int j = 0;
+	    while ((j < SPECTRUM_END.length)
+		    && (bytes[i + j] == SPECTRUM_END[j]))
+		j++;
+	    if (j == SPECTRUM_END.length)
+		return searchStart + i + SPECTRUM_END.length;
+	}
+	return rangeEnd;
+    }
+
+    /**
+     * Returns true if a <spectrum> element starts at the given position of
+     * the given bytes
+     */
+    static boolean isSpectrumStart(byte bytes[], int position) {
+	if ((position < 0)
+		|| (position + SPECTRUM_START_LENGTH > bytes.length))
+	    return false;
+	for (int i = 0; i < SPECTRUM_START_LENGTH; i++) {
+	    if (bytes[position + i] != SPECTRUM_START[i])
+		return false;
+	}
+	return true;
+    }
+
+}
@@ -19,10 +19,9 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.logging.Logger;
@@ -33,22 +32,19 @@ import javax.xml.datatype.Duration;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
-import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportScheduler;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportScheduler.ScheduledInputStream;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.CompressionUtils;
+import net.sf.mzmine.util.BinaryDataDecoder;
 import net.sf.mzmine.util.ExceptionUtils;
-import net.sf.mzmine.util.ScanUtils;
 
-import org.apache.axis.encoding.Base64;
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
@@ -66,12 +62,23 @@ public class MzXMLReadTask extends AbstractTask {
     private RawDataFileWriter newMZmineFile;
     private RawDataFile finalRawDataFile;
     private int totalScans = 0, parsedScans;
+
+    // For reporting of the reading speed
+    private volatile ScheduledInputStream inputStream;
+    private volatile long startTime = 0;
     private int peaksCount = 0;
     private StringBuilder charBuffer;
     private boolean compressFlag = false;
     private DefaultHandler handler = new MzXMLHandler();
     private String precision;
 
+    /*
+     * The peaks are decoded directly from the characters received by the
+     * parser, without collecting them in the char buffer
+     */
+    private BinaryDataDecoder peaksDecoder = new BinaryDataDecoder();
+    private boolean peaksFlag = false;
+
     // Retention time parser
     private DatatypeFactory dataTypeFactory;
 
@@ -88,19 +95,20 @@ public class MzXMLReadTask extends AbstractTask {
      * information is recover. The logic is FIFO at the moment of write into the
      * RawDataFile
      */
-    private LinkedList<SimpleScan> parentStack;
+    private LinkedList<ImportedScan> parentStack;
 
     /*
      * This variable hold the present scan or fragment, it is send to the stack
      * when another scan/fragment appears as a parser.startElement
      */
-    private SimpleScan buildingScan;
+    private ImportedScan buildingScan;
 
     public MzXMLReadTask(MZmineProject project, File fileToOpen,
 	    RawDataFileWriter newMZmineFile) {
-	// 256 kilo-chars buffer
-	charBuffer = new StringBuilder(1 << 18);
-	parentStack = new LinkedList<SimpleScan>();
+	// Only short text elements are collected, the peaks are decoded
+	// directly
+	charBuffer = new StringBuilder(1 << 10);
+	parentStack = new LinkedList<ImportedScan>();
 	this.project = project;
 	this.file = fileToOpen;
 	this.newMZmineFile = newMZmineFile;
@@ -129,7 +137,24 @@ public class MzXMLReadTask extends AbstractTask {
 	    dataTypeFactory = DatatypeFactory.newInstance();
 
 	    SAXParser saxParser = factory.newSAXParser();
-	    saxParser.parse(file, handler);
+
+	    // The file is read by the file reader threads of the import
+	    // scheduler, while we parse it here
+	    if (!RawDataImportScheduler.acquireFilePermit(this))
+		return;
+	    try {
+		inputStream = RawDataImportScheduler.openStream(file);
+		startTime = System.currentTimeMillis();
+		try {
+		    InputSource source = new InputSource(inputStream);
+		    source.setSystemId(file.toURI().toString());
+		    saxParser.parse(source, handler);
+		} finally {
+		    inputStream.close();
+		}
+	    } finally {
+		RawDataImportScheduler.releaseFilePermit();
+	    }
 
 	    // Close file
 	    finalRawDataFile = newMZmineFile.finishWriting();
@@ -161,7 +186,12 @@ public class MzXMLReadTask extends AbstractTask {
     }
 
     public String getTaskDescription() {
-	return "Opening file " + file;
+	ScheduledInputStream stream = inputStream;
+	long bytesRead = (stream == null) ? 0 : stream.getBytesRead();
+	return "Opening file "
+		+ file
+		+ RawDataImportScheduler.getSpeedDescription(startTime,
+			bytesRead, parsedScans);
     }
 
     private class MzXMLHandler extends DefaultHandler {
@@ -188,6 +218,10 @@ public class MzXMLReadTask extends AbstractTask {
 		    buildingScan = null;
 		}
 
+		// clean the current char buffer, it only collects whitespace
+		// since the last text element
+		charBuffer.setLength(0);
+
 		/*
 		 * Only num, msLevel & peaksCount values are required according
 		 * with mzxml standard, the others are optional
@@ -233,7 +267,7 @@ public class MzXMLReadTask extends AbstractTask {
 
 		if (msLevel > 1) {
 		    parentScan = parentTreeValue[msLevel - 1];
-		    for (SimpleScan p : parentStack) {
+		    for (ImportedScan p : parentStack) {
 			if (p.getScanNumber() == parentScan) {
 			    p.addFragmentScan(scanNumber);
 			}
@@ -244,16 +278,16 @@ public class MzXMLReadTask extends AbstractTask {
 		msLevelTree++;
 		parentTreeValue[msLevel] = scanNumber;
 
-		buildingScan = new SimpleScan(null, scanNumber, msLevel,
-			retentionTime, 0, 0, null, new DataPoint[0], null,
-			polarity, scanId, null);
+		buildingScan = new ImportedScan(scanNumber, msLevel,
+			retentionTime, 0, 0, polarity, scanId);
 
 	    }
 
 	    // <peaks>
 	    if (qName.equalsIgnoreCase("peaks")) {
-		// clean the current char buffer for the new element
-		charBuffer.setLength(0);
+		// start decoding the new element
+		peaksDecoder.reset();
+		peaksFlag = true;
 		compressFlag = false;
 		String compressionType = attrs.getValue("compressionType");
 		if ((compressionType == null)
@@ -300,9 +334,9 @@ public class MzXMLReadTask extends AbstractTask {
 		    parentStack.addFirst(buildingScan);
 		    buildingScan = null;
 		    while (!parentStack.isEmpty()) {
-			SimpleScan currentScan = parentStack.removeLast();
+			ImportedScan currentScan = parentStack.removeLast();
 			try {
-			    newMZmineFile.addScan(currentScan);
+			    currentScan.addTo(newMZmineFile);
 			} catch (IOException e) {
 			    setStatus(TaskStatus.ERROR);
 			    setErrorMessage("IO error: " + e);
@@ -335,11 +369,11 @@ public class MzXMLReadTask extends AbstractTask {
 	    // <peaks>
 	    if (qName.equalsIgnoreCase("peaks")) {
 
-		byte[] peakBytes = Base64.decode(charBuffer.toString());
+		peaksFlag = false;
 
 		if (compressFlag) {
 		    try {
-			peakBytes = CompressionUtils.decompress(peakBytes);
+			peaksDecoder.inflate();
 		    } catch (DataFormatException e) {
 			setStatus(TaskStatus.ERROR);
 			setErrorMessage("Corrupt compressed peak: "
@@ -348,46 +382,24 @@ public class MzXMLReadTask extends AbstractTask {
 		    }
 		}
 
-		// make a data input stream
-		DataInputStream peakStream = new DataInputStream(
-			new ByteArrayInputStream(peakBytes));
-
-		DataPoint dataPoints[] = new DataPoint[peaksCount];
-
-		try {
-		    for (int i = 0; i < dataPoints.length; i++) {
-
-			// Always respect this order pairOrder="m/z-int"
-			double massOverCharge;
-			double intensity;
-			if ("64".equals(precision)) {
-			    massOverCharge = peakStream.readDouble();
-			    intensity = peakStream.readDouble();
-			} else {
-			    massOverCharge = (double) peakStream.readFloat();
-			    intensity = (double) peakStream.readFloat();
-			}
-
-			// Copy m/z and intensity data
-			dataPoints[i] = new SimpleDataPoint(massOverCharge,
-				intensity);
-
-		    }
-		} catch (IOException eof) {
+		// Always respect this order pairOrder="m/z-int", the byte
+		// order is always "network" (big endian)
+		double mzValues[] = new double[peaksCount];
+		double intensityValues[] = new double[peaksCount];
+		int numOfPeaks = peaksDecoder.getValuePairs(
+			"64".equals(precision) ? 64 : 32, false,
+			ByteOrder.BIG_ENDIAN, mzValues, intensityValues,
+			peaksCount);
+		if (numOfPeaks < peaksCount) {
 		    setStatus(TaskStatus.ERROR);
 		    setErrorMessage("Corrupt mzXML file");
 		    throw new SAXException("Parsing Cancelled");
 		}
 
-		// Auto-detect whether this scan is centroided
-		MassSpectrumType spectrumType = ScanUtils
-			.detectSpectrumType(dataPoints);
-
-		// Set the centroided tag
-		buildingScan.setSpectrumType(spectrumType);
-
-		// Set the final data points to the scan
-		buildingScan.setDataPoints(dataPoints);
+		// Set the final data points to the scan, this also detects
+		// whether the scan is centroided
+		buildingScan.setDataPoints(mzValues, intensityValues,
+			numOfPeaks);
 
 		return;
 	    }
@@ -400,6 +412,16 @@ public class MzXMLReadTask extends AbstractTask {
 	 */
 	public void characters(char buf[], int offset, int len)
 		throws SAXException {
+	    if (peaksFlag) {
+		try {
+		    peaksDecoder.decodeBase64(buf, offset, len);
+		} catch (IllegalArgumentException e) {
+		    setStatus(TaskStatus.ERROR);
+		    setErrorMessage("Corrupt mzXML file: " + e.getMessage());
+		    throw new SAXException("Parsing Cancelled");
+		}
+		return;
+	    }
 	    charBuffer.append(buf, offset, len);
 	}
     }
@@ -60,6 +60,37 @@ class FormattedCellRenderer implements TableCellRenderer {
     public Component getTableCellRendererComponent(JTable table, Object value,
 	    boolean isSelected, boolean hasFocus, int row, int column) {
 
+	String text = null;
+
+	if (value != null) {
+	    if (value instanceof Number)
+		text = format.format((Number) value);
+	    else
+		text = value.toString();
+	}
+
+	return createComponent(table, text, isSelected, hasFocus);
+
+    }
+
+    /**
+     * Renders a primitive value, which is missing if it is NaN
+     */
+    Component getTableCellRendererComponent(JTable table, double value,
+	    boolean isSelected, boolean hasFocus, int row, int column) {
+
+	String text = null;
+
+	if (!Double.isNaN(value))
+	    text = format.format(value);
+
+	return createComponent(table, text, isSelected, hasFocus);
+
+    }
+
+    private Component createComponent(JTable table, String text,
+	    boolean isSelected, boolean hasFocus) {
+
 	JPanel newPanel = new JPanel();
 	Color bgColor;
 
@@ -89,14 +120,7 @@ class FormattedCellRenderer implements TableCellRenderer {
 
 	}
 
-	if (value != null) {
-
-	    String text;
-
-	    if (value instanceof Number)
-		text = format.format((Number) value);
-	    else
-		text = value.toString();
+	if (text != null) {
 
 	    JLabel newLabel = new JLabel(text, JLabel.CENTER);
 
@@ -19,6 +19,7 @@
 
 package net.sf.mzmine.modules.visualization.peaklist.table;
 
+import java.awt.Component;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -35,7 +36,7 @@ import javax.swing.JTable;
 import javax.swing.UIManager;
 import javax.swing.event.RowSorterEvent;
 import javax.swing.table.TableCellEditor;
-import javax.swing.table.TableRowSorter;
+import javax.swing.table.TableCellRenderer;
 
 import net.sf.mzmine.datamodel.PeakIdentity;
 import net.sf.mzmine.datamodel.PeakList;
@@ -67,7 +68,7 @@ public class PeakListTable extends JTable implements ComponentToolTipProvider {
     private PeakListTableModel pkTableModel;
     private PeakList peakList;
     private PeakListRow peakListRow;
-    private TableRowSorter<PeakListTableModel> sorter;
+    private PeakListTableRowSorter sorter;
     private PeakListTableColumnModel cm;
     private ComponentToolTipManager ttm;
     private DefaultCellEditor currentEditor = null;
@@ -95,8 +96,8 @@ public class PeakListTable extends JTable implements ComponentToolTipProvider {
 	// create default columns
 	cm.createColumns();
 
-	// Initialize sorter
-	sorter = new TableRowSorter<PeakListTableModel>(pkTableModel);
+	// Initialize sorter, which sorts the rows in a background thread
+	sorter = new PeakListTableRowSorter(pkTableModel, peakList);
 	setRowSorter(sorter);
 
 	PeakListTablePopupMenu popupMenu = new PeakListTablePopupMenu(window,
@@ -230,6 +231,37 @@ public class PeakListTable extends JTable implements ComponentToolTipProvider {
 
     }
 
+    /**
+     * Renders the numeric columns from the primitive values of the model
+     * snapshot, so that the values are not boxed on each paint
+     */
+    public Component prepareRenderer(TableCellRenderer renderer, int row,
+	    int column) {
+
+	int modelColumn = convertColumnIndexToModel(column);
+	if (!(renderer instanceof FormattedCellRenderer)
+		|| !pkTableModel.isNumericColumn(modelColumn))
+	    return super.prepareRenderer(renderer, row, column);
+
+	// Same as in JTable.prepareRenderer()
+	boolean isSelected = false, hasFocus = false;
+	if (!isPaintingForPrint()) {
+	    isSelected = isCellSelected(row, column);
+	    boolean rowIsLead = (getSelectionModel()
+		    .getLeadSelectionIndex() == row);
+	    boolean colIsLead = (getColumnModel().getSelectionModel()
+		    .getLeadSelectionIndex() == column);
+	    hasFocus = rowIsLead && colIsLead && isFocusOwner();
+	}
+
+	double value = pkTableModel.getNumericValueAt(
+		convertRowIndexToModel(row), modelColumn);
+	return ((FormattedCellRenderer) renderer)
+		.getTableCellRendererComponent(this, value, isSelected,
+			hasFocus, row, column);
+
+    }
+
     /**
      * When user sorts the table, we have to cancel current combobox for
      * identity selection. Unfortunately, this doesn't happen automatically.
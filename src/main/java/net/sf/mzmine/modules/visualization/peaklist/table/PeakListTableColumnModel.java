@@ -57,7 +57,8 @@ public class PeakListTableColumnModel extends DefaultTableColumnModel implements
 
     private static final Font editFont = new Font("SansSerif", Font.PLAIN, 10);
 
-    private FormattedCellRenderer mzRenderer, rtRenderer, intensityRenderer;
+    private FormattedCellRenderer mzRenderer, rtRenderer, intensityRenderer,
+	    integerRenderer;
     private TableCellRenderer peakShapeRenderer, identityRenderer,
 	    peakStatusRenderer;
     private DefaultTableCellRenderer defaultRenderer, defaultRendererLeft;
@@ -87,11 +88,14 @@ public class PeakListTableColumnModel extends DefaultTableColumnModel implements
 	NumberFormat rtFormat = MZmineCore.getConfiguration().getRTFormat();
 	NumberFormat intensityFormat = MZmineCore.getConfiguration()
 		.getIntensityFormat();
+	NumberFormat integerFormat = NumberFormat.getIntegerInstance();
+	integerFormat.setGroupingUsed(false);
 
 	// prepare cell renderers
 	mzRenderer = new FormattedCellRenderer(mzFormat);
 	rtRenderer = new FormattedCellRenderer(rtFormat);
 	intensityRenderer = new FormattedCellRenderer(intensityFormat);
+	integerRenderer = new FormattedCellRenderer(integerFormat);
 	peakShapeRenderer = new PeakShapeCellRenderer(peakList, parameters);
 	identityRenderer = new CompoundIdentityCellRenderer();
 	peakStatusRenderer = new PeakStatusCellRenderer();
@@ -159,6 +163,9 @@ public class PeakListTableColumnModel extends DefaultTableColumnModel implements
 	    newColumn.setIdentifier(commonColumn);
 
 	    switch (commonColumn) {
+	    case ROWID:
+		newColumn.setCellRenderer(integerRenderer);
+		break;
 	    case AVERAGEMZ:
 		newColumn.setCellRenderer(mzRenderer);
 		break;
@@ -229,6 +236,9 @@ public class PeakListTableColumnModel extends DefaultTableColumnModel implements
 		case AREA:
 		    newColumn.setCellRenderer(intensityRenderer);
 		    break;
+		case CHARGE:
+		    newColumn.setCellRenderer(integerRenderer);
+		    break;
 		default:
 		    newColumn.setCellRenderer(defaultRenderer);
 		    break;
@@ -19,6 +19,7 @@
 
 package net.sf.mzmine.modules.visualization.peaklist.table;
 
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.AbstractTableModel;
 
 import net.sf.mzmine.datamodel.Feature;
@@ -28,6 +29,15 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 
+/**
+ * Table model of the peak list table. The cells are read from a snapshot of
+ * the peak list, which keeps the rows in an array and copies each column into
+ * an array of features or primitive values when it is first shown, so that
+ * painting does not look up the rows and peaks again. The snapshot is taken
+ * again when the model fires a change event or the number of rows changes.
+ * The snapshot is only used by the event dispatching thread; other threads
+ * read the values from the given PeakListRow.
+ */
 public class PeakListTableModel extends AbstractTableModel {
 
     /**
@@ -36,6 +46,14 @@ public class PeakListTableModel extends AbstractTableModel {
     private static final long serialVersionUID = 1L;
     private PeakList peakList;
 
+    /**
+     * Snapshot of the rows, the peaks of each data file and the values of
+     * each numeric column. The columns are filled when they are first read.
+     */
+    private PeakListRow snapshotRows[];
+    private Feature snapshotPeaks[][];
+    private double snapshotValues[][];
+
     /**
      * Constructor, assign given dataset to this table
      */
@@ -70,79 +88,238 @@ public class PeakListTableModel extends AbstractTableModel {
 
     }
 
+    /**
+     * Discards the snapshot, so that the changed values are shown
+     */
+    public void fireTableChanged(TableModelEvent event) {
+	snapshotRows = null;
+	snapshotPeaks = null;
+	snapshotValues = null;
+	super.fireTableChanged(event);
+    }
+
     /**
      * This method returns the value at given coordinates of the dataset or null
-     * if it is a missing value
+     * if it is a missing value. The numeric columns are rendered from
+     * getNumericValueAt(int, int) instead, which does not box the values.
      */
 
     public Object getValueAt(int row, int col) {
 
-	PeakListRow peakListRow = peakList.getRow(row);
+	if (isNumericColumn(col))
+	    return boxNumericValue(getNumericValueAt(row, col), col);
 
-	if (isCommonColumn(col)) {
-	    CommonColumnType commonColumn = getCommonColumn(col);
+	if (isCommonColumn(col))
+	    return getCommonValue(getSnapshotRows()[row], col);
+	else
+	    return getDataFileValue(getPeakAt(row, col), col);
 
-	    switch (commonColumn) {
-	    case ROWID:
-		return new Integer(peakListRow.getID());
-	    case AVERAGEMZ:
-		return new Double(peakListRow.getAverageMZ());
-	    case AVERAGERT:
-		if (peakListRow.getAverageRT() <= 0)
-		    return null;
-		return new Double(peakListRow.getAverageRT());
-	    case COMMENT:
-		return peakListRow.getComment();
-	    case IDENTITY:
-		return peakListRow.getPreferredPeakIdentity();
-	    case PEAKSHAPE:
-		return peakListRow;
-	    }
+    }
 
-	} else {
+    /**
+     * Returns the value of the given column for the given peak list row or
+     * null if it is a missing value
+     */
+    Object getValueAt(PeakListRow peakListRow, int col) {
 
-	    DataFileColumnType dataFileColumn = getDataFileColumn(col);
-	    RawDataFile file = getColumnDataFile(col);
-	    Feature peak = peakListRow.getPeak(file);
-
-	    if (peak == null) {
-		if (dataFileColumn == DataFileColumnType.STATUS)
-		    return FeatureStatus.UNKNOWN;
-		else
-		    return null;
-	    }
+	if (isNumericColumn(col))
+	    return boxNumericValue(getNumericValueAt(peakListRow, col), col);
+
+	if (isCommonColumn(col))
+	    return getCommonValue(peakListRow, col);
+	else
+	    return getDataFileValue(
+		    peakListRow.getPeak(getColumnDataFile(col)), col);
+
+    }
+
+    private Object boxNumericValue(double value, int col) {
+	if (Double.isNaN(value))
+	    return null;
+	if (getColumnClass(col) == Integer.class)
+	    return (int) value;
+	return value;
+    }
+
+    private Object getCommonValue(PeakListRow peakListRow, int col) {
+
+	CommonColumnType commonColumn = getCommonColumn(col);
+
+	switch (commonColumn) {
+	case COMMENT:
+	    return peakListRow.getComment();
+	case IDENTITY:
+	    return peakListRow.getPreferredPeakIdentity();
+	case PEAKSHAPE:
+	    return peakListRow;
+	default:
+	    return null;
+	}
+
+    }
+
+    private Object getDataFileValue(Feature peak, int col) {
+
+	DataFileColumnType dataFileColumn = getDataFileColumn(col);
+
+	if (peak == null) {
+	    if (dataFileColumn == DataFileColumnType.STATUS)
+		return FeatureStatus.UNKNOWN;
+	    else
+		return null;
+	}
+
+	switch (dataFileColumn) {
+	case STATUS:
+	    return peak.getFeatureStatus();
+	case PEAKSHAPE:
+	    return peak;
+	default:
+	    return null;
+	}
+
+    }
+
+    /**
+     * Returns true if the values of the column are Integers or Doubles, which
+     * can be obtained without boxing by getNumericValueAt()
+     */
+    boolean isNumericColumn(int col) {
+	Class<?> columnClass = getColumnClass(col);
+	return (columnClass == Integer.class) || (columnClass == Double.class);
+    }
 
-	    switch (dataFileColumn) {
-	    case STATUS:
-		return peak.getFeatureStatus();
-	    case PEAKSHAPE:
-		return peak;
-	    case MZ:
-		return peak.getMZ();
-	    case RT:
-		if (peak.getRT() <= 0)
-		    return null;
-		return peak.getRT();
-	    case HEIGHT:
-		if (peak.getHeight() <= 0)
-		    return null;
-		return peak.getHeight();
-	    case AREA:
-		return peak.getArea();
-	    case DURATION:
-		double rtLen = peak.getRawDataPointsRTRange().upperEndpoint()
-			- peak.getRawDataPointsRTRange().lowerEndpoint();
-		return rtLen;
-	    case CHARGE:
-		if (peak.getCharge() <= 0)
-		    return null;
-		return new Integer(peak.getCharge());
+    /**
+     * Returns the value of a numeric column at the given coordinates from the
+     * snapshot, or NaN if it is a missing value
+     */
+    double getNumericValueAt(int row, int col) {
+
+	PeakListRow rows[] = getSnapshotRows();
+	double values[] = snapshotValues[col];
+
+	if (values == null) {
+	    values = new double[rows.length];
+	    if (isCommonColumn(col)) {
+		for (int i = 0; i < rows.length; i++)
+		    values[i] = getCommonNumericValue(rows[i], col);
+	    } else {
+		Feature peaks[] = getSnapshotPeaks(col);
+		for (int i = 0; i < rows.length; i++)
+		    values[i] = getDataFileNumericValue(peaks[i], col);
 	    }
+	    snapshotValues[col] = values;
+	}
+
+	return values[row];
+
+    }
+
+    /**
+     * Returns the value of a numeric column for the given peak list row, or
+     * NaN if it is a missing value
+     */
+    double getNumericValueAt(PeakListRow peakListRow, int col) {
+
+	if (isCommonColumn(col))
+	    return getCommonNumericValue(peakListRow, col);
+	else
+	    return getDataFileNumericValue(
+		    peakListRow.getPeak(getColumnDataFile(col)), col);
+
+    }
 
+    private double getCommonNumericValue(PeakListRow peakListRow, int col) {
+
+	CommonColumnType commonColumn = getCommonColumn(col);
+
+	switch (commonColumn) {
+	case ROWID:
+	    return peakListRow.getID();
+	case AVERAGEMZ:
+	    return peakListRow.getAverageMZ();
+	case AVERAGERT:
+	    if (peakListRow.getAverageRT() <= 0)
+		return Double.NaN;
+	    return peakListRow.getAverageRT();
+	default:
+	    return Double.NaN;
 	}
 
-	return null;
+    }
+
+    private double getDataFileNumericValue(Feature peak, int col) {
+
+	if (peak == null)
+	    return Double.NaN;
+
+	DataFileColumnType dataFileColumn = getDataFileColumn(col);
+
+	switch (dataFileColumn) {
+	case MZ:
+	    return peak.getMZ();
+	case RT:
+	    if (peak.getRT() <= 0)
+		return Double.NaN;
+	    return peak.getRT();
+	case HEIGHT:
+	    if (peak.getHeight() <= 0)
+		return Double.NaN;
+	    return peak.getHeight();
+	case AREA:
+	    return peak.getArea();
+	case DURATION:
+	    double rtLen = peak.getRawDataPointsRTRange().upperEndpoint()
+		    - peak.getRawDataPointsRTRange().lowerEndpoint();
+	    return rtLen;
+	case CHARGE:
+	    if (peak.getCharge() <= 0)
+		return Double.NaN;
+	    return peak.getCharge();
+	default:
+	    return Double.NaN;
+	}
+
+    }
+
+    /**
+     * Returns the rows of the snapshot, taking a new snapshot if there is
+     * none or the number of rows has changed
+     */
+    private PeakListRow[] getSnapshotRows() {
+	if ((snapshotRows == null)
+		|| (snapshotRows.length != peakList.getNumberOfRows())) {
+	    snapshotRows = peakList.getRows();
+	    snapshotPeaks = new Feature[peakList.getNumberOfRawDataFiles()][];
+	    snapshotValues = new double[getColumnCount()][];
+	}
+	return snapshotRows;
+    }
+
+    /**
+     * Returns the peaks of the data file of the given column in the snapshot
+     */
+    private Feature[] getSnapshotPeaks(int col) {
+
+	PeakListRow rows[] = getSnapshotRows();
+	int fileIndex = (col - CommonColumnType.values().length)
+		/ DataFileColumnType.values().length;
+	Feature peaks[] = snapshotPeaks[fileIndex];
+
+	if (peaks == null) {
+	    RawDataFile file = peakList.getRawDataFile(fileIndex);
+	    peaks = new Feature[rows.length];
+	    for (int i = 0; i < rows.length; i++)
+		peaks[i] = rows[i].getPeak(file);
+	    snapshotPeaks[fileIndex] = peaks;
+	}
+
+	return peaks;
+
+    }
 
+    private Feature getPeakAt(int row, int col) {
+	return getSnapshotPeaks(col)[row];
     }
 
     public boolean isCellEditable(int row, int col) {
@@ -0,0 +1,467 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.visualization.peaklist.table;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.SwingUtilities;
+
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+
+/**
+ * Row sorter of the peak list table. Unlike TableRowSorter, it does not
+ * compare boxed cell values on the event dispatching thread. The values of the
+ * sorted columns are copied into arrays of primitive values or collation keys
+ * and sorted in parallel by a background thread. Until the sorting is
+ * finished, the table keeps showing the previous order. The sorting follows
+ * the rules of TableRowSorter: missing values come first in ascending order,
+ * strings are compared by the collator of the current locale, other
+ * non-numeric values by their string representation, and equal rows keep
+ * their order in the peak list.
+ */
+class PeakListTableRowSorter extends RowSorter<PeakListTableModel> {
+
+    private static final Logger logger = Logger
+	    .getLogger(PeakListTableRowSorter.class.getName());
+
+    /**
+     * Same limit as in DefaultRowSorter
+     */
+    private static final int MAX_SORT_KEYS = 3;
+
+    /**
+     * Rows are sorted in parallel in chunks of at least this size
+     */
+    private static final int MIN_CHUNK_SIZE = 4096;
+
+    private final PeakListTableModel model;
+    private final PeakList peakList;
+
+    private List<SortKey> sortKeys = Collections.emptyList();
+
+    /**
+     * Current order, or null if the rows are not sorted
+     */
+    private int viewToModel[], modelToView[];
+
+    /**
+     * Incremented by each change, so that outdated sorting can be stopped and
+     * its results discarded
+     */
+    private volatile int sortingGeneration = 0;
+
+    PeakListTableRowSorter(PeakListTableModel model, PeakList peakList) {
+	this.model = model;
+	this.peakList = peakList;
+    }
+
+    public PeakListTableModel getModel() {
+	return model;
+    }
+
+    /**
+     * Makes the column the primary sort key, or reverses its order if it is
+     * already the primary sort key
+     */
+    public void toggleSortOrder(int column) {
+	List<SortKey> keys = new ArrayList<SortKey>(sortKeys);
+	SortOrder order = SortOrder.ASCENDING;
+	for (int i = 0; i < keys.size(); i++) {
+	    if (keys.get(i).getColumn() != column)
+		continue;
+	    if ((i == 0)
+		    && (keys.get(i).getSortOrder() == SortOrder.ASCENDING))
+		order = SortOrder.DESCENDING;
+	    keys.remove(i);
+	    break;
+	}
+	keys.add(0, new SortKey(column, order));
+	if (keys.size() > MAX_SORT_KEYS)
+	    keys = keys.subList(0, MAX_SORT_KEYS);
+	setSortKeys(keys);
+    }
+
+    public void setSortKeys(List<? extends SortKey> keys) {
+	List<SortKey> newKeys = new ArrayList<SortKey>();
+	if (keys != null) {
+	    for (SortKey key : keys) {
+		if ((key.getColumn() < 0)
+			|| (key.getColumn() >= model.getColumnCount()))
+		    throw new IllegalArgumentException("Invalid sort key");
+		if (key.getSortOrder() != SortOrder.UNSORTED)
+		    newKeys.add(key);
+	    }
+	}
+	if (newKeys.equals(sortKeys))
+	    return;
+	sortKeys = Collections.unmodifiableList(newKeys);
+	fireSortOrderChanged();
+	sort();
+    }
+
+    public List<? extends SortKey> getSortKeys() {
+	return sortKeys;
+    }
+
+    public int convertRowIndexToModel(int index) {
+	if (viewToModel == null) {
+	    if ((index < 0) || (index >= getModelRowCount()))
+		throw new IndexOutOfBoundsException("Invalid index " + index);
+	    return index;
+	}
+	return viewToModel[index];
+    }
+
+    public int convertRowIndexToView(int index) {
+	if (modelToView == null) {
+	    if ((index < 0) || (index >= getModelRowCount()))
+		throw new IndexOutOfBoundsException("Invalid index " + index);
+	    return index;
+	}
+	return modelToView[index];
+    }
+
+    public int getViewRowCount() {
+	return getModelRowCount();
+    }
+
+    public int getModelRowCount() {
+	return model.getRowCount();
+    }
+
+    public void modelStructureChanged() {
+	allRowsChanged();
+    }
+
+    /**
+     * Keeps the current order while the rows are sorted again, if the number
+     * of rows did not change. Otherwise, the rows are shown unsorted until the
+     * sorting is finished.
+     */
+    public void allRowsChanged() {
+	if ((viewToModel != null)
+		&& (viewToModel.length != getModelRowCount())) {
+	    int previousViewToModel[] = viewToModel;
+	    viewToModel = null;
+	    modelToView = null;
+	    fireRowSorterChanged(previousViewToModel);
+	}
+	sort();
+    }
+
+    public void rowsInserted(int firstRow, int endRow) {
+	allRowsChanged();
+    }
+
+    public void rowsDeleted(int firstRow, int endRow) {
+	allRowsChanged();
+    }
+
+    /**
+     * Like DefaultRowSorter, rows are not sorted again after their values are
+     * updated
+     */
+    public void rowsUpdated(int firstRow, int endRow) {
+    }
+
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+    }
+
+    /**
+     * Starts sorting the rows by the current sort keys in a background thread
+     */
+    private void sort() {
+
+	final int generation = ++sortingGeneration;
+
+	if (sortKeys.isEmpty()) {
+	    if (viewToModel != null)
+		setOrder(null);
+	    return;
+	}
+
+	// Take the rows now, because the peak list may change while sorting
+	final PeakListRow rows[] = peakList.getRows();
+	final List<SortKey> keys = sortKeys;
+
+	Thread sortingThread = new Thread(new Runnable() {
+	    public void run() {
+		try {
+		    final int order[] = sortRows(rows, keys, generation);
+		    if (order == null)
+			return;
+		    SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+			    if ((generation == sortingGeneration)
+				    && (order.length == getModelRowCount()))
+				setOrder(order);
+			}
+		    });
+		} catch (Exception e) {
+		    logger.log(Level.WARNING, "Error while sorting peak list "
+			    + peakList, e);
+		}
+	    }
+	}, "Peak list sorting thread");
+	sortingThread.setDaemon(true);
+	sortingThread.start();
+
+    }
+
+    /**
+     * Returns the model indexes of the rows in the sorted order, or null if
+     * the sorting became outdated
+     */
+    private int[] sortRows(final PeakListRow rows[], List<SortKey> keys,
+	    int generation) {
+
+	final int numOfRows = rows.length;
+	final int numOfKeys = keys.size();
+	final double numericValues[][] = new double[numOfKeys][];
+	final CollationKey collationKeys[][] = new CollationKey[numOfKeys][];
+	final boolean descending[] = new boolean[numOfKeys];
+
+	// Copy the values of the sorted columns
+	for (int k = 0; k < numOfKeys; k++) {
+	    final int column = keys.get(k).getColumn();
+	    descending[k] = keys.get(k).getSortOrder() == SortOrder.DESCENDING;
+	    if (model.isNumericColumn(column)
+		    || model.getColumnClass(column).isEnum()) {
+		final double values[] = new double[numOfRows];
+		ParallelUtils.processInParallel(numOfRows, MIN_CHUNK_SIZE,
+			new IndexRangeProcessor() {
+			    public void process(int startIndex, int endIndex) {
+				for (int i = startIndex; i < endIndex; i++)
+				    values[i] = getSortValue(rows[i], column);
+			    }
+			});
+		numericValues[k] = values;
+	    } else {
+		final CollationKey values[] = new CollationKey[numOfRows];
+		ParallelUtils.processInParallel(numOfRows, MIN_CHUNK_SIZE,
+			new IndexRangeProcessor() {
+			    public void process(int startIndex, int endIndex) {
+				// Collators are not thread-safe
+				Collator collator = Collator.getInstance();
+				for (int i = startIndex; i < endIndex; i++) {
+				    Object value = model.getValueAt(rows[i],
+					    column);
+				    if (value == null)
+					continue;
+				    String text = value.toString();
+				    values[i] = collator.getCollationKey(text);
+				}
+			    }
+			});
+		collationKeys[k] = values;
+	    }
+	    if (generation != sortingGeneration)
+		return null;
+	}
+
+	RowComparator comparator = new RowComparator() {
+	    public int compare(int row1, int row2) {
+		for (int k = 0; k < numOfKeys; k++) {
+		    int result;
+		    if (numericValues[k] != null)
+			result = compareNumbers(numericValues[k][row1],
+				numericValues[k][row2]);
+		    else
+			result = compareCollationKeys(collationKeys[k][row1],
+				collationKeys[k][row2]);
+		    if (result != 0)
+			return descending[k] ? -result : result;
+		}
+		return row1 - row2;
+	    }
+	};
+
+	int order[] = new int[numOfRows];
+	for (int i = 0; i < numOfRows; i++)
+	    order[i] = i;
+	sortInParallel(order, comparator);
+
+	if (generation != sortingGeneration)
+	    return null;
+	return order;
+
+    }
+
+    /**
+     * Returns the value of a numeric column, or the order of an enum value,
+     * such as the feature status. Missing values are NaN.
+     */
+    private double getSortValue(PeakListRow row, int column) {
+	if (model.isNumericColumn(column))
+	    return model.getNumericValueAt(row, column);
+	Object value = model.getValueAt(row, column);
+	if (value == null)
+	    return Double.NaN;
+	return ((Enum<?>) value).ordinal();
+    }
+
+    private static int compareNumbers(double value1, double value2) {
+	boolean missing1 = Double.isNaN(value1), missing2 = Double
+		.isNaN(value2);
+	if (missing1 || missing2)
+	    return (missing1 == missing2) ? 0 : (missing1 ? -1 : 1);
+	return Double.compare(value1, value2);
+    }
+
+    private static int compareCollationKeys(CollationKey key1,
+	    CollationKey key2) {
+	if ((key1 == null) || (key2 == null))
+	    return (key1 == key2) ? 0 : ((key1 == null) ? -1 : 1);
+	return key1.compareTo(key2);
+    }
+
+    private void setOrder(int order[]) {
+	int previousViewToModel[] = viewToModel;
+	viewToModel = order;
+	if (order == null) {
+	    modelToView = null;
+	} else {
+	    modelToView = new int[order.length];
+	    for (int i = 0; i < order.length; i++)
+		modelToView[order[i]] = i;
+	}
+	fireRowSorterChanged(previousViewToModel);
+    }
+
+    /**
+     * Compares two rows given by their model indexes
+     */
+    private interface RowComparator {
+	int compare(int row1, int row2);
+    }
+
+    /**
+     * Sorts the indexes by merge sort. Chunks of the array are sorted in
+     * parallel, then pairs of sorted runs are merged in parallel.
+     */
+    private static void sortInParallel(final int indexes[],
+	    final RowComparator comparator) {
+
+	final int length = indexes.length;
+	int numOfChunks = Math.min(ParallelUtils.getNumberOfThreads(),
+		Math.max(1, length / MIN_CHUNK_SIZE));
+	final int chunkSize = (length + numOfChunks - 1) / numOfChunks;
+	final int buffer[] = new int[length];
+
+	ParallelUtils.processInParallel(numOfChunks, 1,
+		new IndexRangeProcessor() {
+		    public void process(int startIndex, int endIndex) {
+			for (int c = startIndex; c < endIndex; c++) {
+			    int start = c * chunkSize;
+			    int end = Math.min(start + chunkSize, length);
+			    if (start < end)
+				mergeSort(indexes, buffer, start, end,
+					comparator);
+			}
+		    }
+		});
+
+	int source[] = indexes, target[] = buffer;
+	for (int runSize = chunkSize; runSize < length; runSize *= 2) {
+	    final int from[] = source, to[] = target, width = runSize;
+	    int numOfPairs = (length + 2 * width - 1) / (2 * width);
+	    ParallelUtils.processInParallel(numOfPairs, 1,
+		    new IndexRangeProcessor() {
+			public void process(int startIndex, int endIndex) {
+			    for (int p = startIndex; p < endIndex; p++) {
+				int start = p * 2 * width;
+				int middle = Math.min(start + width, length);
+				int end = Math.min(start + 2 * width, length);
+				merge(from, to, start, middle, end, comparator);
+			    }
+			}
+		    });
+	    source = to;
+	    target = from;
+	}
+
+	if (source != indexes)
+	    System.arraycopy(source, 0, indexes, 0, length);
+
+    }
+
+    /**
+     * Sorts indexes[start..end), using the same range of buffer as work space
+     */
+    private static void mergeSort(int indexes[], int buffer[], int start,
+	    int end, RowComparator comparator) {
+
+	// Insertion sort for short ranges
+	if (end - start <= 16) {
+	    for (int i = start + 1; i < end; i++) {
+		int value = indexes[i];
+		int j = i - 1;
+		while ((j >= start)
+			&& (comparator.compare(indexes[j], value) > 0)) {
+		    indexes[j + 1] = indexes[j];
+		    j--;
+		}
+		indexes[j + 1] = value;
+	    }
+	    return;
+	}
+
+	int middle = (start + end) >>> 1;
+	mergeSort(indexes, buffer, start, middle, comparator);
+	mergeSort(indexes, buffer, middle, end, comparator);
+	if (comparator.compare(indexes[middle - 1], indexes[middle]) <= 0)
+	    return;
+	merge(indexes, buffer, start, middle, end, comparator);
+	System.arraycopy(buffer, start, indexes, start, end - start);
+
+    }
+
+    /**
+     * Merges the sorted runs from[start..middle) and from[middle..end) into
+     * to[start..end)
+     */
+    private static void merge(int from[], int to[], int start, int middle,
+	    int end, RowComparator comparator) {
+	int i = start, j = middle, k = start;
+	while ((i < middle) && (j < end)) {
+	    if (comparator.compare(from[i], from[j]) <= 0)
+		to[k++] = from[i++];
+	    else
+		to[k++] = from[j++];
+	}
+	while (i < middle)
+	    to[k++] = from[i++];
+	while (j < end)
+	    to[k++] = from[j++];
+    }
+
+}
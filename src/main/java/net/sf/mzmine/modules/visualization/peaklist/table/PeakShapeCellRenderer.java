@@ -35,6 +35,7 @@ import net.sf.mzmine.modules.visualization.peaklist.PeakListTableParameters;
 import net.sf.mzmine.modules.visualization.peaklist.PeakShapeNormalization;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.util.components.CombinedXICComponent;
+import net.sf.mzmine.util.components.PeakShapeCache;
 import net.sf.mzmine.util.components.PeakXICComponent;
 
 class PeakShapeCellRenderer implements TableCellRenderer {
@@ -80,7 +81,12 @@ class PeakShapeCellRenderer implements TableCellRenderer {
 		maxHeight = peakList.getDataPointMaxIntensity();
 		break;
 	    case ROWMAX:
-		int rowNumber = peakList.getPeakRowNum(peak);
+		// The table rows follow the rows of the peak list, so we can
+		// avoid searching the whole peak list for the peak
+		int rowNumber = table.convertRowIndexToModel(row);
+		if ((rowNumber >= peakList.getNumberOfRows())
+			|| (!peakList.getRow(rowNumber).hasPeak(peak)))
+		    rowNumber = peakList.getPeakRowNum(peak);
 		maxHeight = peakList.getRow(rowNumber)
 			.getDataPointMaxIntensity();
 		break;
@@ -90,6 +96,13 @@ class PeakShapeCellRenderer implements TableCellRenderer {
 		break;
 	    }
 
+	    // Paint an empty cell until the shape is loaded
+	    if (PeakShapeCache.getShapeLater(peak, table) == null) {
+		newPanel.setBorder(PeakXICComponent.componentBorder);
+		newPanel.setToolTipText(peak.toString());
+		return newPanel;
+	    }
+
 	    PeakXICComponent xic = new PeakXICComponent(peak, maxHeight);
 
 	    newPanel.add(xic);
@@ -104,8 +117,19 @@ class PeakShapeCellRenderer implements TableCellRenderer {
 
 	    RawDataFile[] dataFiles = peakList.getRawDataFiles();
 	    Feature[] peaks = new Feature[dataFiles.length];
+	    boolean shapesLoaded = true;
 	    for (int i = 0; i < dataFiles.length; i++) {
 		peaks[i] = plRow.getPeak(dataFiles[i]);
+		if (peaks[i] == null)
+		    continue;
+		if (PeakShapeCache.getShapeLater(peaks[i], table) == null)
+		    shapesLoaded = false;
+	    }
+
+	    // Paint an empty cell until all shapes are loaded
+	    if (!shapesLoaded) {
+		newPanel.setBorder(CombinedXICComponent.componentBorder);
+		return newPanel;
 	    }
 
 	    CombinedXICComponent xic = new CombinedXICComponent(peaks,
@@ -137,6 +137,9 @@ public class ThreeDDisplay extends DisplayImplJ3D {
     // Intensity statistics.
     private double maxIntensity;
 
+    // Whether the data reference has been added to the display.
+    private boolean dataShown;
+
     // Whether to show peaks.
     private boolean peaksShown;
 
@@ -367,7 +370,12 @@ public class ThreeDDisplay extends DisplayImplJ3D {
 	maxIntensity = intensityMax;
 	retentionTimeMap.setRange(rtMin, rtMax);
 	mzMap.setRange(mzMin, mzMax);
-	addReference(dataReference);
+
+	// The data may be set again, after a preview of the data was shown
+	if (!dataShown) {
+	    addReference(dataReference);
+	    dataShown = true;
+	}
 
 	// Set the scaling mode.
 	setUseLog10Intensity(useLog10Intensity);
@@ -19,15 +19,23 @@
 
 package net.sf.mzmine.modules.visualization.threed;
 
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.project.impl.StorableScan;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
 import net.sf.mzmine.util.ScanUtils;
 import net.sf.mzmine.util.ScanUtils.BinningType;
 import visad.Linear2DSet;
@@ -36,10 +44,34 @@ import visad.Set;
 import com.google.common.collect.Range;
 
 /**
- * Sampling task which loads the raw data and feeds them to ThreeDDisplay
+ * Sampling task which loads the raw data and feeds them to ThreeDDisplay. A
+ * preview from every n-th scan is shown first, then the remaining scans are
+ * added. The sampled values are cached, so that opening the same plot again
+ * does not read the scans again. The cache refers to the raw data files only
+ * weakly, so that removed files can be garbage collected.
  */
 class ThreeDSamplingTask extends AbstractTask {
 
+    /**
+     * The preview contains roughly this fraction of the RT resolution
+     */
+    private static final int PREVIEW_RT_DIVISOR = 4;
+
+    /**
+     * Maximum number of sampled plots kept in memory
+     */
+    private static final int MAX_CACHED_SAMPLES = 8;
+
+    private static final Map<SamplingKey, SoftReference<SampledData>> cache = new LinkedHashMap<SamplingKey, SoftReference<SampledData>>(
+	    16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	protected boolean removeEldestEntry(
+		Map.Entry<SamplingKey, SoftReference<SampledData>> eldest) {
+	    return size() > MAX_CACHED_SAMPLES;
+	}
+    };
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private RawDataFile dataFile;
@@ -113,117 +145,279 @@ class ThreeDSamplingTask extends AbstractTask {
 		    rtResolution, mzRange.lowerEndpoint(),
 		    mzRange.upperEndpoint(), mzResolution);
 
-	    final double rtStep = (rtRange.upperEndpoint() - rtRange
-		    .lowerEndpoint()) / rtResolution;
+	    SamplingKey key = new SamplingKey(dataFile, scanNumbers, rtRange,
+		    mzRange, rtResolution, mzResolution);
+	    SampledData sampledData = getCachedData(key);
+
+	    if (sampledData == null) {
+
+		// create an array for all data points
+		float[] intensityValues = new float[mzResolution
+			* rtResolution];
+		boolean rtDataSet[] = new boolean[rtResolution];
+
+		// Read every n-th scan and show a preview
+		int previewStep = scanNumbers.length
+			/ Math.max(1, rtResolution / PREVIEW_RT_DIVISOR);
+		if (previewStep > 1) {
+		    if (!sampleScans(previewStep, true, intensityValues,
+			    rtDataSet))
+			return;
+		    float previewValues[] = intensityValues.clone();
+		    interpolate(previewValues, rtDataSet);
+		    display.setData(new float[][] { previewValues }, domainSet,
+			    rtRange.lowerEndpoint(), rtRange.upperEndpoint(),
+			    mzRange.lowerEndpoint(), mzRange.upperEndpoint(),
+			    maxBinnedIntensity);
+		} else {
+		    previewStep = 0;
+		}
 
-	    // create an array for all data points
-	    float[][] intensityValues = new float[1][mzResolution
-		    * rtResolution];
-	    boolean rtDataSet[] = new boolean[rtResolution];
+		// Add the remaining scans
+		if (!sampleScans(previewStep, false, intensityValues,
+			rtDataSet))
+		    return;
+		interpolate(intensityValues, rtDataSet);
 
-	    // load scans
-	    for (int scanIndex = 0; scanIndex < scanNumbers.length; scanIndex++) {
+		sampledData = new SampledData(intensityValues,
+			maxBinnedIntensity);
+		synchronized (cache) {
+		    cache.put(key, new SoftReference<SampledData>(sampledData));
+		}
 
-		if (isCanceled())
-		    return;
+	    } else {
+		retrievedScans = scanNumbers.length;
+	    }
 
-		Scan scan = dataFile.getScan(scanNumbers[scanIndex]);
+	    display.setData(new float[][] { sampledData.intensityValues },
+		    domainSet, rtRange.lowerEndpoint(),
+		    rtRange.upperEndpoint(), mzRange.lowerEndpoint(),
+		    mzRange.upperEndpoint(), sampledData.maxIntensity);
 
-		DataPoint dataPoints[] = scan.getDataPoints();
-		double[] scanMZValues = new double[dataPoints.length];
-		double[] scanIntensityValues = new double[dataPoints.length];
-		for (int dp = 0; dp < dataPoints.length; dp++) {
-		    scanMZValues[dp] = dataPoints[dp].getMZ();
-		    scanIntensityValues[dp] = dataPoints[dp].getIntensity();
-		}
+	    // After we have constructed everything, load the peak lists into
+	    // the bottom panel
+	    bottomPanel.rebuildPeakListSelector();
+
+	} catch (Throwable e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage("Error while sampling 3D data, "
+		    + ExceptionUtils.exceptionToString(e));
+	    return;
+	}
 
-		double[] binnedIntensities = ScanUtils.binValues(scanMZValues,
-			scanIntensityValues, mzRange, mzResolution,
-			scan.getSpectrumType() != MassSpectrumType.CENTROIDED,
-			BinningType.MAX);
+	logger.info("Finished sampling 3D plot of " + dataFile);
 
-		int scanBinIndex;
+	setStatus(TaskStatus.FINISHED);
 
-		double rt = scan.getRetentionTime();
-		scanBinIndex = (int) ((rt - rtRange.lowerEndpoint()) / rtStep);
+    }
 
-		// last scan falls into last bin
-		if (scanBinIndex == rtResolution)
-		    scanBinIndex--;
+    /**
+     * Bins the scans into the intensity values. The preview contains every
+     * previewStep-th scan, the rest contains the other scans, or all scans if
+     * previewStep is 0. The scans are binned in parallel, in blocks. Returns
+     * false if the task was canceled.
+     */
+    private boolean sampleScans(int previewStep, boolean preview,
+	    float intensityValues[], boolean rtDataSet[]) {
+
+	// Indexes of the scans to bin
+	int scanIndexes[] = new int[scanNumbers.length];
+	int numOfScans = 0;
+	for (int i = 0; i < scanNumbers.length; i++) {
+	    boolean inPreview = (previewStep > 0) && (i % previewStep == 0);
+	    if (inPreview == preview)
+		scanIndexes[numOfScans++] = i;
+	}
 
+	final int blockSize = 4 * ParallelUtils.getNumberOfThreads();
+	final double rtStep = (rtRange.upperEndpoint() - rtRange
+		.lowerEndpoint()) / rtResolution;
+
+	for (int blockStart = 0; blockStart < numOfScans; blockStart += blockSize) {
+
+	    if (isCanceled())
+		return false;
+
+	    final int block[] = Arrays.copyOfRange(scanIndexes, blockStart,
+		    Math.min(blockStart + blockSize, numOfScans));
+	    final double binnedIntensities[][] = new double[block.length][];
+	    final int scanBinIndexes[] = new int[block.length];
+
+	    ParallelUtils.processInParallel(block.length, 1,
+		    new IndexRangeProcessor() {
+			public void process(int startIndex, int endIndex) {
+			    for (int b = startIndex; b < endIndex; b++) {
+				Scan scan = dataFile
+					.getScan(scanNumbers[block[b]]);
+				binnedIntensities[b] = binScan(scan);
+
+				double rt = scan.getRetentionTime();
+				int scanBinIndex = (int) ((rt - rtRange
+					.lowerEndpoint()) / rtStep);
+
+				// last scan falls into last bin
+				if (scanBinIndex == rtResolution)
+				    scanBinIndex--;
+				scanBinIndexes[b] = scanBinIndex;
+			    }
+			}
+		    });
+
+	    for (int b = 0; b < block.length; b++) {
+		int scanBinIndex = scanBinIndexes[b];
 		for (int mzIndex = 0; mzIndex < mzResolution; mzIndex++) {
 
 		    int intensityValuesIndex = (rtResolution * mzIndex)
 			    + scanBinIndex;
-		    if (binnedIntensities[mzIndex] > intensityValues[0][intensityValuesIndex])
-			intensityValues[0][intensityValuesIndex] = (float) binnedIntensities[mzIndex];
+		    double binnedIntensity = binnedIntensities[b][mzIndex];
+		    if (binnedIntensity > intensityValues[intensityValuesIndex])
+			intensityValues[intensityValuesIndex] = (float) binnedIntensity;
 
-		    if (intensityValues[0][intensityValuesIndex] > maxBinnedIntensity)
-			maxBinnedIntensity = (double) binnedIntensities[mzIndex];
+		    if (intensityValues[intensityValuesIndex] > maxBinnedIntensity)
+			maxBinnedIntensity = binnedIntensity;
 		}
 
 		rtDataSet[scanBinIndex] = true;
 
 		retrievedScans++;
+	    }
+
+	}
 
+	return true;
+
+    }
+
+    private double[] binScan(Scan scan) {
+	double scanMZValues[], scanIntensityValues[];
+	if (scan instanceof StorableScan) {
+	    // Read the values without creating a DataPoint for each of them
+	    double values[][] = ((StorableScan) scan).getDataPointValues();
+	    scanMZValues = values[0];
+	    scanIntensityValues = values[1];
+	} else {
+	    DataPoint dataPoints[] = scan.getDataPoints();
+	    scanMZValues = new double[dataPoints.length];
+	    scanIntensityValues = new double[dataPoints.length];
+	    for (int dp = 0; dp < dataPoints.length; dp++) {
+		scanMZValues[dp] = dataPoints[dp].getMZ();
+		scanIntensityValues[dp] = dataPoints[dp].getIntensity();
 	    }
+	}
 
-	    // Interpolate missing values on the RT-axis
-	    for (int rtIndex = 1; rtIndex < rtResolution - 1; rtIndex++) {
+	return ScanUtils.binValues(scanMZValues, scanIntensityValues, mzRange,
+		mzResolution,
+		scan.getSpectrumType() != MassSpectrumType.CENTROIDED,
+		BinningType.MAX);
+    }
 
-		// If the data was set, go to next RT line
-		if (rtDataSet[rtIndex])
-		    continue;
-		int prevIndex, nextIndex;
-		for (prevIndex = rtIndex - 1; prevIndex >= 0; prevIndex--) {
-		    if (rtDataSet[prevIndex])
-			break;
-		}
-		for (nextIndex = rtIndex + 1; nextIndex < rtResolution; nextIndex++) {
-		    if (rtDataSet[nextIndex])
-			break;
-		}
+    /**
+     * Interpolate missing values on the RT-axis
+     */
+    private void interpolate(float intensityValues[], boolean rtDataSet[]) {
 
-		// If no neighboring data was found, give up
-		if ((prevIndex < 0) || (nextIndex >= rtResolution))
-		    continue;
+	for (int rtIndex = 1; rtIndex < rtResolution - 1; rtIndex++) {
 
-		for (int mzIndex = 0; mzIndex < mzResolution; mzIndex++) {
+	    // If the data was set, go to next RT line
+	    if (rtDataSet[rtIndex])
+		continue;
+	    int prevIndex, nextIndex;
+	    for (prevIndex = rtIndex - 1; prevIndex >= 0; prevIndex--) {
+		if (rtDataSet[prevIndex])
+		    break;
+	    }
+	    for (nextIndex = rtIndex + 1; nextIndex < rtResolution; nextIndex++) {
+		if (rtDataSet[nextIndex])
+		    break;
+	    }
 
-		    int valueIndex = (rtResolution * mzIndex) + rtIndex;
-		    int nextValueIndex = (rtResolution * mzIndex) + nextIndex;
-		    int prevValueIndex = (rtResolution * mzIndex) + prevIndex;
+	    // If no neighboring data was found, give up
+	    if ((prevIndex < 0) || (nextIndex >= rtResolution))
+		continue;
 
-		    double prevValue = intensityValues[0][prevValueIndex];
-		    double nextValue = intensityValues[0][nextValueIndex];
+	    for (int mzIndex = 0; mzIndex < mzResolution; mzIndex++) {
 
-		    double slope = (nextValue - prevValue)
-			    / (nextIndex - prevIndex);
-		    intensityValues[0][valueIndex] = (float) (prevValue + (slope * (rtIndex - prevIndex)));
+		int valueIndex = (rtResolution * mzIndex) + rtIndex;
+		int nextValueIndex = (rtResolution * mzIndex) + nextIndex;
+		int prevValueIndex = (rtResolution * mzIndex) + prevIndex;
 
-		}
+		double prevValue = intensityValues[prevValueIndex];
+		double nextValue = intensityValues[nextValueIndex];
+
+		double slope = (nextValue - prevValue)
+			/ (nextIndex - prevIndex);
+		intensityValues[valueIndex] = (float) (prevValue + (slope * (rtIndex - prevIndex)));
 
 	    }
 
-	    display.setData(intensityValues, domainSet,
-		    rtRange.lowerEndpoint(), rtRange.upperEndpoint(),
-		    mzRange.lowerEndpoint(), mzRange.upperEndpoint(),
-		    maxBinnedIntensity);
+	}
 
-	    // After we have constructed everything, load the peak lists into
-	    // the bottom panel
-	    bottomPanel.rebuildPeakListSelector();
+    }
 
-	} catch (Throwable e) {
-	    setStatus(TaskStatus.ERROR);
-	    setErrorMessage("Error while sampling 3D data, "
-		    + ExceptionUtils.exceptionToString(e));
-	    return;
+    private static SampledData getCachedData(SamplingKey key) {
+	synchronized (cache) {
+	    SoftReference<SampledData> reference = cache.get(key);
+	    return (reference == null) ? null : reference.get();
 	}
+    }
 
-	logger.info("Finished sampling 3D plot of " + dataFile);
+    /**
+     * Sampled intensities of one plot
+     */
+    private static class SampledData {
 
-	setStatus(TaskStatus.FINISHED);
+	final float intensityValues[];
+	final double maxIntensity;
+
+	SampledData(float intensityValues[], double maxIntensity) {
+	    this.intensityValues = intensityValues;
+	    this.maxIntensity = maxIntensity;
+	}
+
+    }
+
+    /**
+     * Identifies the sampled data of one plot. The key refers to the raw data
+     * file weakly and never equals another key after the file was collected.
+     */
+    private static class SamplingKey {
+
+	private final WeakReference<RawDataFile> dataFile;
+	private final int dataFileHash;
+	private final int scanNumbers[];
+	private final Range<Double> rtRange, mzRange;
+	private final int rtResolution, mzResolution;
+
+	SamplingKey(RawDataFile dataFile, int scanNumbers[],
+		Range<Double> rtRange, Range<Double> mzRange, int rtResolution,
+		int mzResolution) {
+	    this.dataFile = new WeakReference<RawDataFile>(dataFile);
+	    this.dataFileHash = System.identityHashCode(dataFile);
+	    this.scanNumbers = scanNumbers;
+	    this.rtRange = rtRange;
+	    this.mzRange = mzRange;
+	    this.rtResolution = rtResolution;
+	    this.mzResolution = mzResolution;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof SamplingKey))
+		return false;
+	    SamplingKey key = (SamplingKey) o;
+	    RawDataFile file = dataFile.get();
+	    return (file != null) && (file == key.dataFile.get())
+		    && Arrays.equals(scanNumbers, key.scanNumbers)
+		    && rtRange.equals(key.rtRange)
+		    && mzRange.equals(key.mzRange)
+		    && (rtResolution == key.rtResolution)
+		    && (mzResolution == key.mzResolution);
+	}
+
+	public int hashCode() {
+	    return dataFileHash + 31 * Arrays.hashCode(scanNumbers)
+		    + 17 * rtRange.hashCode() + 7 * mzRange.hashCode()
+		    + rtResolution * 3 + mzResolution;
+	}
 
     }
 
@@ -47,6 +47,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.taskcontrol.TaskPriority;
+import net.sf.mzmine.taskcontrol.TaskStatus;
 import visad.ProjectionControl;
 import visad.VisADException;
 import visad.java3d.MouseBehaviorJ3D;
@@ -88,6 +89,9 @@ public class ThreeDVisualizerWindow extends JFrame implements
     // Raw data file.
     private final RawDataFile dataFile;
 
+    // Sampling task.
+    private final ThreeDSamplingTask samplingTask;
+
     /**
      * Create the visualization window.
      *
@@ -157,10 +161,10 @@ public class ThreeDVisualizerWindow extends JFrame implements
 	this.addComponentListener(settings);
 
 	// Add sampling task.
-	MZmineCore.getTaskController().addTask(
-		new ThreeDSamplingTask(file, file.getScanNumbers(msLevel,
-			rtRange), rtRange, mzRange, rtRes, mzRes, display,
-			bottomPanel), TaskPriority.HIGH);
+	samplingTask = new ThreeDSamplingTask(file, file.getScanNumbers(
+		msLevel, rtRange), rtRange, mzRange, rtRes, mzRes, display,
+		bottomPanel);
+	MZmineCore.getTaskController().addTask(samplingTask, TaskPriority.HIGH);
 
 	MZmineCore.getDesktop().addPeakListTreeListener(bottomPanel);
     }
@@ -174,6 +178,12 @@ public class ThreeDVisualizerWindow extends JFrame implements
 	super.dispose();
 	MZmineCore.getDesktop().removePeakListTreeListener(bottomPanel);
 
+	// Stop sampling for a closed window.
+	TaskStatus samplingStatus = samplingTask.getStatus();
+	if ((samplingStatus == TaskStatus.WAITING)
+		|| (samplingStatus == TaskStatus.PROCESSING))
+	    samplingTask.cancel();
+
 	// Cleanup display.
 	if (display != null) {
 
@@ -49,13 +49,17 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
     private static final long serialVersionUID = 1L;
 
     private RawDataFile rawDataFile;
+    private int msLevel;
 
     private double retentionTimes[];
     private double basePeaks[];
     private SoftReference<DataPoint[]> dataPointMatrix[];
 
     private Range<Double> totalRTRange, totalMZRange;
-    private int scanNumbers[], totalScans, processedScans;
+    private int scanNumbers[], totalScans;
+
+    // Read by the 2D plot sampling threads
+    private volatile int processedScans;
 
     private TaskStatus status = TaskStatus.WAITING;
 
@@ -64,6 +68,7 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 	    Range<Double> mzRange, TwoDVisualizerWindow visualizer) {
 
 	this.rawDataFile = rawDataFile;
+	this.msLevel = msLevel;
 
 	totalRTRange = rtRange;
 	totalMZRange = mzRange;
@@ -149,6 +154,25 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 	    return totalMZRange.upperEndpoint();
     }
 
+    RawDataFile getRawDataFile() {
+	return rawDataFile;
+    }
+
+    int getMSLevel() {
+	return msLevel;
+    }
+
+    Range<Double> getTotalRTRange() {
+	return totalRTRange;
+    }
+
+    /**
+     * Returns true when the data points of all scans have been loaded
+     */
+    boolean isLoaded() {
+	return processedScans == totalScans;
+    }
+
     double upperEndpointIntensity(Range<Double> rtRange, Range<Double> mzRange,
 	    PlotMode plotMode) {
 
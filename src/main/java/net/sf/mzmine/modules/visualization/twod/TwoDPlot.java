@@ -107,7 +107,7 @@ class TwoDPlot extends ChartPanel {
 	yAxis.setLowerMargin(0);
 
 	// set the plot properties
-	plot = new TwoDXYPlot(dataset, rtRange, mzRange, xAxis, yAxis);
+	plot = new TwoDXYPlot(dataset, xAxis, yAxis);
 	plot.setBackgroundPaint(Color.white);
 	plot.setDomainGridlinesVisible(false);
 	plot.setRangeGridlinesVisible(false);
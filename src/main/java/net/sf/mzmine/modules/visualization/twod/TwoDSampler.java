@@ -0,0 +1,321 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.visualization.twod;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.util.ParallelUtils;
+import net.sf.mzmine.util.ParallelUtils.IndexRangeProcessor;
+
+import com.google.common.collect.Range;
+
+/**
+ * Samples the maximum intensities of the pixels of the 2D plot in a background
+ * thread. A coarse grid is sampled first and then refined by blocks of
+ * columns, repainting the plot after each step. Sampling of a region is
+ * canceled as soon as another region is requested. Complete grids are cached
+ * per raw data file and region, so that returning to a previous zoom level or
+ * opening the same plot again does not sample the data again. The cache refers
+ * to the raw data files only weakly, so that removed files can be garbage
+ * collected.
+ */
+class TwoDSampler {
+
+    private static final Logger logger = Logger.getLogger(TwoDSampler.class
+	    .getName());
+
+    /**
+     * Size of the cells of the coarse grid, in pixels
+     */
+    private static final int COARSE_CELL_SIZE = 8;
+
+    /**
+     * Number of columns refined by one thread at a time
+     */
+    private static final int COLUMN_BLOCK_SIZE = 16;
+
+    /**
+     * Maximum number of complete grids kept in memory
+     */
+    private static final int MAX_CACHED_GRIDS = 16;
+
+    private static final Map<GridKey, SoftReference<float[]>> cache = new LinkedHashMap<GridKey, SoftReference<float[]>>(
+	    16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	protected boolean removeEldestEntry(
+		Map.Entry<GridKey, SoftReference<float[]>> eldest) {
+	    return size() > MAX_CACHED_GRIDS;
+	}
+    };
+
+    private final TwoDDataSet dataset;
+    private final Runnable repaintAction;
+
+    /**
+     * Sampling of the last requested region, accessed only by the event
+     * dispatching thread
+     */
+    private SamplingJob currentJob;
+
+    /**
+     * @param repaintAction
+     *            Called in the event dispatching thread when more values are
+     *            available
+     */
+    TwoDSampler(TwoDDataSet dataset, Runnable repaintAction) {
+	this.dataset = dataset;
+	this.repaintAction = repaintAction;
+    }
+
+    /**
+     * Returns the maximum intensities of the pixels of the given region,
+     * indexed [x * height + y], where y grows with m/z. The values may be
+     * partially coarse while the sampling continues. Returns null if no
+     * values are available yet.
+     */
+    float[] getValues(Range<Double> rtRange, Range<Double> mzRange, int width,
+	    int height, PlotMode plotMode) {
+
+	GridKey key = new GridKey(dataset.getRawDataFile(),
+		dataset.getMSLevel(), dataset.getTotalRTRange(), rtRange,
+		mzRange, width, height, plotMode);
+
+	// Sample again when the dataset has finished loading its scans
+	if ((currentJob != null) && currentJob.key.equals(key)
+		&& (currentJob.dataLoaded || !dataset.isLoaded()))
+	    return currentJob.values;
+
+	cancel();
+
+	float cachedValues[] = getCachedValues(key);
+	if (cachedValues != null)
+	    return cachedValues;
+
+	currentJob = new SamplingJob(key, dataset.isLoaded());
+	Thread samplingThread = new Thread(currentJob,
+		"2D plot sampling thread");
+	samplingThread.setDaemon(true);
+	samplingThread.start();
+
+	return null;
+
+    }
+
+    /**
+     * Cancels the sampling of the last requested region
+     */
+    void cancel() {
+	if (currentJob != null) {
+	    currentJob.canceled = true;
+	    currentJob = null;
+	}
+    }
+
+    private static float[] getCachedValues(GridKey key) {
+	synchronized (cache) {
+	    SoftReference<float[]> reference = cache.get(key);
+	    return (reference == null) ? null : reference.get();
+	}
+    }
+
+    private class SamplingJob implements Runnable {
+
+	private final GridKey key;
+	private final boolean dataLoaded;
+	private volatile boolean canceled = false;
+	private volatile float values[];
+
+	SamplingJob(GridKey key, boolean dataLoaded) {
+	    this.key = key;
+	    this.dataLoaded = dataLoaded;
+	}
+
+	public void run() {
+	    try {
+		sample();
+	    } catch (Exception e) {
+		logger.log(Level.WARNING, "Error while sampling 2D plot of "
+			+ dataset.getRawDataFile(), e);
+	    }
+	}
+
+	private void sample() {
+
+	    final int width = key.width, height = key.height;
+	    final float grid[] = new float[width * height];
+	    final double rtMin = key.rtRange.lowerEndpoint();
+	    final double mzMin = key.mzRange.lowerEndpoint();
+	    final double rtStep = (key.rtRange.upperEndpoint() - rtMin) / width;
+	    final double mzStep = (key.mzRange.upperEndpoint() - mzMin)
+		    / height;
+
+	    // Coarse grid, each cell filling a square of pixels
+	    final int coarseWidth = (width + COARSE_CELL_SIZE - 1)
+		    / COARSE_CELL_SIZE;
+	    final int coarseHeight = (height + COARSE_CELL_SIZE - 1)
+		    / COARSE_CELL_SIZE;
+	    ParallelUtils.processInParallel(coarseWidth, 1,
+		    new IndexRangeProcessor() {
+			public void process(int startIndex, int endIndex) {
+			    for (int cx = startIndex; cx < endIndex; cx++) {
+				if (canceled)
+				    return;
+				int x1 = cx * COARSE_CELL_SIZE;
+				int x2 = Math.min(x1 + COARSE_CELL_SIZE, width);
+				for (int cy = 0; cy < coarseHeight; cy++) {
+				    int y1 = cy * COARSE_CELL_SIZE;
+				    int y2 = Math.min(y1 + COARSE_CELL_SIZE,
+					    height);
+				    float value = getIntensity(rtMin + x1
+					    * rtStep, rtMin + x2 * rtStep,
+					    mzMin + y1 * mzStep, mzMin + y2
+						    * mzStep);
+				    for (int x = x1; x < x2; x++) {
+					for (int y = y1; y < y2; y++)
+					    grid[x * height + y] = value;
+				    }
+				}
+			    }
+			}
+		    });
+
+	    if (canceled)
+		return;
+	    values = grid;
+	    requestRepaint();
+
+	    // Refine the grid by blocks of columns
+	    final int roundSize = COLUMN_BLOCK_SIZE
+		    * ParallelUtils.getNumberOfThreads();
+	    for (int start = 0; start < width; start += roundSize) {
+
+		if (canceled)
+		    return;
+
+		final int firstColumn = start;
+		int roundColumns = Math.min(roundSize, width - start);
+		ParallelUtils.processInParallel(roundColumns,
+			COLUMN_BLOCK_SIZE, new IndexRangeProcessor() {
+			    public void process(int startIndex, int endIndex) {
+				for (int i = startIndex; i < endIndex; i++) {
+				    int x = firstColumn + i;
+				    double pointRTMin = rtMin + x * rtStep;
+				    for (int y = 0; y < height; y++) {
+					double pointMZMin = mzMin + y * mzStep;
+					grid[x * height + y] = getIntensity(
+						pointRTMin,
+						pointRTMin + rtStep,
+						pointMZMin,
+						pointMZMin + mzStep);
+				    }
+				}
+			    }
+			});
+
+		requestRepaint();
+	    }
+
+	    // Grids sampled before all scans were loaded are not cached
+	    if (dataLoaded) {
+		synchronized (cache) {
+		    cache.put(key, new SoftReference<float[]>(grid));
+		}
+	    }
+
+	}
+
+	private float getIntensity(double rtMin, double rtMax, double mzMin,
+		double mzMax) {
+	    return (float) dataset.upperEndpointIntensity(
+		    Range.closed(rtMin, rtMax), Range.closed(mzMin, mzMax),
+		    key.plotMode);
+	}
+
+	private void requestRepaint() {
+	    SwingUtilities.invokeLater(new Runnable() {
+		public void run() {
+		    if (!canceled)
+			repaintAction.run();
+		}
+	    });
+	}
+
+    }
+
+    /**
+     * Identifies a sampled region of the data of one raw data file. The key
+     * refers to the file weakly and never equals another key after the file
+     * was collected.
+     */
+    private static class GridKey {
+
+	private final WeakReference<RawDataFile> dataFile;
+	private final int dataFileHash;
+	private final int msLevel;
+	private final Range<Double> totalRTRange, rtRange, mzRange;
+	private final int width, height;
+	private final PlotMode plotMode;
+
+	GridKey(RawDataFile dataFile, int msLevel, Range<Double> totalRTRange,
+		Range<Double> rtRange, Range<Double> mzRange, int width,
+		int height, PlotMode plotMode) {
+	    this.dataFile = new WeakReference<RawDataFile>(dataFile);
+	    this.dataFileHash = System.identityHashCode(dataFile);
+	    this.msLevel = msLevel;
+	    this.totalRTRange = totalRTRange;
+	    this.rtRange = rtRange;
+	    this.mzRange = mzRange;
+	    this.width = width;
+	    this.height = height;
+	    this.plotMode = plotMode;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof GridKey))
+		return false;
+	    GridKey key = (GridKey) o;
+	    RawDataFile file = dataFile.get();
+	    return (file != null) && (file == key.dataFile.get())
+		    && (msLevel == key.msLevel)
+		    && totalRTRange.equals(key.totalRTRange)
+		    && rtRange.equals(key.rtRange)
+		    && mzRange.equals(key.mzRange) && (width == key.width)
+		    && (height == key.height) && (plotMode == key.plotMode);
+	}
+
+	public int hashCode() {
+	    return dataFileHash + 31 * rtRange.hashCode() + 17
+		    * mzRange.hashCode() + 7 * totalRTRange.hashCode() + 5
+		    * width + 3 * height + msLevel + plotMode.hashCode();
+	}
+
+    }
+
+}
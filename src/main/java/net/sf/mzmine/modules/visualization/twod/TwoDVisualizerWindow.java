@@ -105,6 +105,7 @@ public class TwoDVisualizerWindow extends JFrame implements ActionListener {
 
     public void dispose() {
 	super.dispose();
+	twoDPlot.getXYPlot().cancelSampling();
 	MZmineCore.getDesktop().removePeakListTreeListener(bottomPanel);
     }
 
@@ -43,10 +43,8 @@ class TwoDXYPlot extends XYPlot {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private Range<Double> totalRTRange, totalMZRange;
-    private BufferedImage zoomOutBitmap;
-
     private TwoDDataSet dataset;
+    private TwoDSampler sampler;
 
     private TwoDPaletteType paletteType = TwoDPaletteType.PALETTE_GRAY20;
 
@@ -55,15 +53,18 @@ class TwoDXYPlot extends XYPlot {
     private boolean logScale;
     private double maxValue = 0;
 
-    TwoDXYPlot(TwoDDataSet dataset, Range<Double> rtRange,
-	    Range<Double> mzRange, ValueAxis domainAxis, ValueAxis rangeAxis) {
+    TwoDXYPlot(TwoDDataSet dataset, ValueAxis domainAxis, ValueAxis rangeAxis) {
 
 	super(dataset, domainAxis, rangeAxis, null);
 
 	this.dataset = dataset;
 
-	totalRTRange = rtRange;
-	totalMZRange = mzRange;
+	sampler = new TwoDSampler(dataset, new Runnable() {
+	    public void run() {
+		datasetChanged(new DatasetChangeEvent(TwoDXYPlot.this.dataset,
+			TwoDXYPlot.this.dataset));
+	    }
+	});
 
     }
 
@@ -84,67 +85,44 @@ class TwoDXYPlot extends XYPlot {
 		.getLowerBound();
 	final double imageRTMax = (double) getDomainAxis().getRange()
 		.getUpperBound();
-	final double imageRTStep = (imageRTMax - imageRTMin) / width;
 	final double imageMZMin = (double) getRangeAxis().getRange()
 		.getLowerBound();
 	final double imageMZMax = (double) getRangeAxis().getRange()
 		.getUpperBound();
-	final double imageMZStep = (imageMZMax - imageMZMin) / height;
-
-	if ((zoomOutBitmap != null)
-		&& (imageRTMin == totalRTRange.lowerEndpoint())
-		&& (imageRTMax == totalRTRange.upperEndpoint())
-		&& (imageMZMin == totalMZRange.lowerEndpoint())
-		&& (imageMZMax == totalMZRange.upperEndpoint())
-		&& (zoomOutBitmap.getWidth() == width)
-		&& (zoomOutBitmap.getHeight() == height)) {
-	    g2.drawImage(zoomOutBitmap, x, y, null);
-	    return true;
-	}
 
 	// Save current time
 	Date renderStartTime = new Date();
 
-	// prepare a double array of summed intensities
-	double values[][] = new double[width][height];
-	maxValue = 0; // now this is an instance variable
-
-	for (int i = 0; i < width; i++)
-	    for (int j = 0; j < height; j++) {
-
-		double pointRTMin = imageRTMin + (i * imageRTStep);
-		double pointRTMax = pointRTMin + imageRTStep;
-		double pointMZMin = imageMZMin + (j * imageMZStep);
-		double pointMZMax = pointMZMin + imageMZStep;
-
-		double lv = dataset.upperEndpointIntensity(
-			Range.closed(pointRTMin, pointRTMax),
-			Range.closed(pointMZMin, pointMZMax), plotMode);
-
-		if (logScale) {
-		    lv = Math.log10(lv);
-		    if (lv < 0 || Double.isInfinite(lv))
-			lv = 0;
-		    values[i][j] = lv;
-		    // values[r.nextInt(width)][r.nextInt(height)] = lv;
-		} else {
-		    values[i][j] = lv;
-		}
+	// get the maximum intensities of the pixels, which are sampled in a
+	// background thread; we will be repainted when they are ready
+	float sampledValues[] = sampler.getValues(
+		Range.closed(imageRTMin, imageRTMax),
+		Range.closed(imageMZMin, imageMZMax), width, height, plotMode);
+	if (sampledValues == null)
+	    return false;
 
-		if (lv > maxValue)
-		    maxValue = lv;
+	double values[] = new double[sampledValues.length];
+	maxValue = 0; // now this is an instance variable
 
+	for (int i = 0; i < values.length; i++) {
+	    double lv = sampledValues[i];
+	    if (logScale) {
+		lv = Math.log10(lv);
+		if (lv < 0 || Double.isInfinite(lv))
+		    lv = 0;
 	    }
+	    values[i] = lv;
+	    if (lv > maxValue)
+		maxValue = lv;
+	}
 
-	// This should never happen, but just for correctness
+	// Nothing sampled yet, or no data in this region
 	if (maxValue == 0)
 	    return false;
 
 	// Normalize all values
-	for (int i = 0; i < width; i++)
-	    for (int j = 0; j < height; j++) {
-		values[i][j] /= maxValue;
-	    }
+	for (int i = 0; i < values.length; i++)
+	    values[i] /= maxValue;
 
 	// prepare a bitmap of required size
 	BufferedImage image = new BufferedImage(width, height,
@@ -153,18 +131,10 @@ class TwoDXYPlot extends XYPlot {
 	// draw image points
 	for (int i = 0; i < width; i++)
 	    for (int j = 0; j < height; j++) {
-		Color pointColor = paletteType.getColor(values[i][j]);
+		Color pointColor = paletteType.getColor(values[i * height + j]);
 		image.setRGB(i, height - j - 1, pointColor.getRGB());
 	    }
 
-	// if we are zoomed out, save the values
-	if ((imageRTMin == totalRTRange.lowerEndpoint())
-		&& (imageRTMax == totalRTRange.upperEndpoint())
-		&& (imageMZMin == totalMZRange.lowerEndpoint())
-		&& (imageMZMax == totalMZRange.upperEndpoint())) {
-	    zoomOutBitmap = image;
-	}
-
 	// Paint image
 	g2.drawImage(image, x, y, null);
 
@@ -194,7 +164,6 @@ class TwoDXYPlot extends XYPlot {
 	if (newIndex >= types.length)
 	    newIndex = 0;
 	paletteType = types[newIndex];
-	zoomOutBitmap = null;
 	datasetChanged(new DatasetChangeEvent(dataset, dataset));
     }
 
@@ -204,20 +173,19 @@ class TwoDXYPlot extends XYPlot {
 
     void setPlotMode(PlotMode plotMode) {
 	this.plotMode = plotMode;
-
-	// clear the zoom out image cache
-	zoomOutBitmap = null;
-
 	datasetChanged(new DatasetChangeEvent(dataset, dataset));
     }
 
     void setLogScale(boolean logscale) {
 	logScale = logscale;
-
-	// clear the zoom out image cache
-	zoomOutBitmap = null;
-
 	datasetChanged(new DatasetChangeEvent(dataset, dataset));
     }
 
+    /**
+     * Cancels the sampling of the data in the background
+     */
+    void cancelSampling() {
+	sampler.cancel();
+    }
+
 }
\ No newline at end of file
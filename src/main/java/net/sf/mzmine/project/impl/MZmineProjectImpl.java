@@ -20,7 +20,9 @@
 package net.sf.mzmine.project.impl;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Vector;
 
 import javax.swing.SwingUtilities;
@@ -34,6 +36,7 @@ import net.sf.mzmine.desktop.impl.projecttree.ProjectTree;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.UserParameter;
+import net.sf.mzmine.util.components.PeakShapeCache;
 
 /**
  * This class represents a MZmine project. That includes raw data files, peak
@@ -48,6 +51,9 @@ public class MZmineProjectImpl implements MZmineProject {
 
     private File projectFile;
 
+    // Contents of the project file, for incremental saving
+    private SavedProjectState savedState;
+
     public MZmineProjectImpl() {
 
 	this.peakListTreeModel = new PeakListTreeModel(this);
@@ -157,6 +163,14 @@ public class MZmineProjectImpl implements MZmineProject {
 
 	assert file != null;
 
+	List<VirtualRawDataFile> virtualFiles = new ArrayList<VirtualRawDataFile>();
+	for (RawDataFile dataFile : getDataFiles()) {
+	    if ((dataFile instanceof VirtualRawDataFile)
+		    && ((VirtualRawDataFile) dataFile).isVirtual()
+		    && (((VirtualRawDataFile) dataFile).getSourceFile() == file))
+		virtualFiles.add((VirtualRawDataFile) dataFile);
+	}
+
 	Runnable swingCode = new Runnable() {
 	    public void run() {
 		rawDataTreeModel.removeObject(file);
@@ -170,6 +184,21 @@ public class MZmineProjectImpl implements MZmineProject {
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
+	PeakShapeCache.removeShapes(file);
+
+	// Virtual files computed from this file must store their scans before
+	// it is closed. The file is already removed from the project, but it is
+	// only closed after that. Storing reads all their scans, so on the
+	// event dispatching thread it is done in a task.
+	if (!virtualFiles.isEmpty()) {
+	    VirtualFilesStoringTask storingTask = new VirtualFilesStoringTask(
+		    file, virtualFiles);
+	    if (SwingUtilities.isEventDispatchThread())
+		MZmineCore.getTaskController().addTask(storingTask);
+	    else
+		storingTask.run();
+	    return;
+	}
 
 	// Close the data file, which also removed the temporary data
 	file.close();
@@ -220,6 +249,7 @@ public class MZmineProjectImpl implements MZmineProject {
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
+	PeakShapeCache.removeShapes(peakList);
     }
 
     public PeakList[] getPeakLists(RawDataFile file) {
@@ -243,6 +273,18 @@ public class MZmineProjectImpl implements MZmineProject {
 	// treeModel.notifyObjectChanged(this, false);
     }
 
+    /**
+     * Returns the description of the project file contents as of the last
+     * save or load, or null if unknown.
+     */
+    public SavedProjectState getSavedState() {
+	return savedState;
+    }
+
+    public void setSavedState(SavedProjectState savedState) {
+	this.savedState = savedState;
+    }
+
     public void removeProjectFile() {
 	projectFile.delete();
     }
@@ -24,13 +24,18 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Set;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
@@ -43,7 +48,6 @@ import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
 
 /**
  * RawDataFile implementation. It provides storage of data points for scans and
@@ -56,6 +60,12 @@ import com.google.common.primitives.Ints;
  * the storage ID is just deleted from the two TreeMaps. When the project is
  * saved, the contents of the dataPointsFile are consolidated - only data points
  * referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * 
+ * When a project is opened, the data points may be memory-mapped directly from
+ * the project file instead (see openMappedDataPoints()). The mapped data are
+ * never modified. Data points stored afterwards are written to a new temporary
+ * file, so the project file is only read. When the project is saved, the data
+ * points are mapped from the new project file (see remapDataPoints()).
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
@@ -67,7 +77,6 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     private final Hashtable<Integer, Range<Double>> dataMZRange, dataRTRange;
     private final Hashtable<Integer, Double> dataMaxBasePeakIntensity,
 	    dataMaxTIC;
-    private final Hashtable<Integer, int[]> scanNumbersCache;
 
     private ByteBuffer buffer = ByteBuffer.allocate(20000);
     private final TreeMap<Integer, Long> dataPointsOffsets;
@@ -77,17 +86,43 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     private File dataPointsFileName;
     private RandomAccessFile dataPointsFile;
 
+    /**
+     * Maximum size of one memory-mapped segment of the project file
+     */
+    private static final long MAX_MAPPED_SEGMENT_SIZE = 1L << 30;
+
+    // Data points mapped from a project file. The storage IDs in mappedIDs
+    // refer to the mapped data, their offsets are relative to the beginning
+    // of the mapped data. The mapping is split into segments, because a
+    // single MappedByteBuffer cannot exceed 2 GB.
+    private File mappedFileName;
+    private MappedByteBuffer mappedSegments[];
+    private long mappedSegmentOffsets[];
+    private final BitSet mappedIDs = new BitSet();
+
+    // Storage IDs up to lastReservedID may belong to scans whose data points
+    // have not been stored yet (see VirtualRawDataFile). Storage IDs are never
+    // reused, even when their data points are removed.
+    private int lastReservedID = 0;
+
+    private int modificationCount = 0;
+
     /**
      * Scans
      */
     private final Hashtable<Integer, StorableScan> scans;
 
+    /**
+     * Index of the scans by MS level, retention time and precursor m/z. It is
+     * built by finishWriting(), or when first needed.
+     */
+    private volatile ScanIndex scanIndex;
+
     public RawDataFileImpl(String dataFileName) throws IOException {
 
 	this.dataFileName = dataFileName;
 
 	// Prepare the hashtables for scan numbers and data limits.
-	scanNumbersCache = new Hashtable<Integer, int[]>();
 	dataMZRange = new Hashtable<Integer, Range<Double>>();
 	dataRTRange = new Hashtable<Integer, Range<Double>>();
 	dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
@@ -128,6 +163,9 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
 	this.dataPointsFileName = dataPointsFileName;
 	this.dataPointsFile = new RandomAccessFile(dataPointsFileName, "rw");
+	if (!dataPointsOffsets.isEmpty())
+	    lastReservedID = Math.max(lastReservedID,
+		    dataPointsOffsets.lastKey());
 
 	// Locks the temporary file so it is not removed when another instance
 	// of MZmine is starting. Lock will be automatically released when this
@@ -142,6 +180,227 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     }
 
+    /**
+     * Maps the data points stored in the given file (typically a project file)
+     * to memory, without copying them. The data start at dataOffset and take
+     * dataLength bytes. The TreeMaps describing the storage IDs must already
+     * be filled, with offsets relative to dataOffset.
+     */
+    public synchronized void openMappedDataPoints(File fileName,
+	    long dataOffset, long dataLength) throws IOException {
+
+	if ((this.dataPointsFile != null) || (this.mappedSegments != null)) {
+	    throw new IOException(
+		    "Cannot map data points, because a data points file is already open");
+	}
+
+	mapSegments(fileName, dataOffset, dataLength, dataPointsOffsets);
+	mappedIDs.clear();
+	for (Integer ID : dataPointsOffsets.keySet())
+	    mappedIDs.set(ID);
+
+	// New data points must never get an ID of the mapped range, even when
+	// the mapped data points with the highest IDs are removed
+	if (!dataPointsOffsets.isEmpty())
+	    lastReservedID = Math.max(lastReservedID,
+		    dataPointsOffsets.lastKey());
+
+	logger.finest("Mapped " + dataLength + " bytes of data points from "
+		+ fileName + " in " + mappedSegments.length + " segment(s)");
+
+    }
+
+    /**
+     * Maps the data points from a project file to which they were just saved,
+     * instead of the file they were read from so far. The data start at
+     * dataOffset and take dataLength bytes. savedOffsets maps the saved
+     * storage IDs to their offsets relative to dataOffset.
+     * 
+     * Data points stored or removed since the saving started are taken into
+     * account: only the storage IDs present both in savedOffsets and in this
+     * file are mapped, because storage IDs are never reused. Previously mapped
+     * data are unmapped, so that the file they were mapped from can be
+     * replaced or deleted.
+     */
+    public synchronized void remapDataPoints(File fileName, long dataOffset,
+	    long dataLength, SortedMap<Integer, Long> savedOffsets)
+	    throws IOException {
+
+	TreeMap<Integer, Long> remappedOffsets = new TreeMap<Integer, Long>();
+	for (Map.Entry<Integer, Long> entry : savedOffsets.entrySet()) {
+	    if (dataPointsOffsets.containsKey(entry.getKey()))
+		remappedOffsets.put(entry.getKey(), entry.getValue());
+	}
+
+	// Mapped data points are never modified, so all of them were saved
+	for (int ID = mappedIDs.nextSetBit(0); ID >= 0; ID = mappedIDs
+		.nextSetBit(ID + 1)) {
+	    if (dataPointsOffsets.containsKey(ID)
+		    && !remappedOffsets.containsKey(ID)) {
+		throw new IOException("Data points of storage ID " + ID
+			+ " were not saved to " + fileName);
+	    }
+	}
+
+	MappedByteBuffer oldSegments[] = mappedSegments;
+	mapSegments(fileName, dataOffset, dataLength, remappedOffsets);
+	unmapSegments(oldSegments);
+
+	mappedIDs.clear();
+	for (Map.Entry<Integer, Long> entry : remappedOffsets.entrySet()) {
+	    dataPointsOffsets.put(entry.getKey(), entry.getValue());
+	    mappedIDs.set(entry.getKey());
+	}
+
+	logger.finest("Mapped " + remappedOffsets.size()
+		+ " data points records from " + fileName + " in "
+		+ mappedSegments.length + " segment(s)");
+
+    }
+
+    /**
+     * Updates the name of the file from which the data points are mapped,
+     * after the file was renamed
+     */
+    public synchronized void renameMappedFile(File oldName, File newName) {
+	if (oldName.equals(mappedFileName))
+	    mappedFileName = newName;
+    }
+
+    /**
+     * Maps the data points records described by the given offsets (relative
+     * to dataOffset) from the given file, and replaces the current mapping
+     * with the new one. The old buffers are not unmapped here.
+     */
+    private void mapSegments(File fileName, long dataOffset, long dataLength,
+	    SortedMap<Integer, Long> offsets) throws IOException {
+
+	// Split the data into segments, so that no data points record crosses
+	// a segment boundary. Saved projects store the records in the order of
+	// their storage IDs.
+	ArrayList<Long> segmentOffsets = new ArrayList<Long>();
+	ArrayList<Long> segmentLengths = new ArrayList<Long>();
+	long segmentStart = offsets.isEmpty() ? 0 : offsets.get(offsets
+		.firstKey());
+	long segmentEnd = segmentStart;
+	for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+	    final long offset = entry.getValue();
+	    final long end = offset
+		    + (long) dataPointsLengths.get(entry.getKey()) * 2 * 4;
+	    if ((offset < segmentStart) || (end > dataLength)) {
+		throw new IOException("Invalid offset of storage ID "
+			+ entry.getKey());
+	    }
+	    if (end - segmentStart > MAX_MAPPED_SEGMENT_SIZE) {
+		segmentOffsets.add(segmentStart);
+		segmentLengths.add(segmentEnd - segmentStart);
+		segmentStart = offset;
+	    }
+	    segmentEnd = Math.max(segmentEnd, end);
+	}
+	segmentOffsets.add(segmentStart);
+	segmentLengths.add(segmentEnd - segmentStart);
+
+	MappedByteBuffer segments[] = new MappedByteBuffer[segmentOffsets
+		.size()];
+	long segmentStarts[] = new long[segmentOffsets.size()];
+
+	// The mapping stays valid after the file is closed
+	RandomAccessFile mappedFile = new RandomAccessFile(fileName, "r");
+	try {
+	    FileChannel fileChannel = mappedFile.getChannel();
+	    for (int i = 0; i < segments.length; i++) {
+		segmentStarts[i] = segmentOffsets.get(i);
+		segments[i] = fileChannel.map(MapMode.READ_ONLY, dataOffset
+			+ segmentOffsets.get(i), segmentLengths.get(i));
+	    }
+	} finally {
+	    mappedFile.close();
+	}
+
+	this.mappedSegments = segments;
+	this.mappedSegmentOffsets = segmentStarts;
+	this.mappedFileName = fileName;
+    }
+
+    /**
+     * Unmaps the given buffers right away. Otherwise they would only be
+     * unmapped when garbage collected, and until then the mapped file could
+     * not be replaced or deleted on some platforms (e.g. Windows). The buffers
+     * must not be accessed anymore, which is guaranteed by reading the mapped
+     * data only while holding the lock of this object.
+     */
+    private void unmapSegments(MappedByteBuffer segments[]) {
+	if (segments == null)
+	    return;
+	try {
+	    for (MappedByteBuffer segment : segments)
+		unmap(segment);
+	} catch (Exception e) {
+	    logger.fine("Could not unmap the data points mapped from "
+		    + mappedFileName + ": " + e);
+	}
+    }
+
+    /**
+     * Unmaps the given buffer right away. The buffer must not be accessed
+     * anymore. There is no public API for unmapping, so we use
+     * sun.misc.Unsafe (Java 9 and newer) or the cleaner of the direct buffer
+     * (Java 7 and 8).
+     */
+    public static void unmap(MappedByteBuffer buffer) throws Exception {
+	Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+	try {
+	    Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+		    ByteBuffer.class);
+	    Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+	    theUnsafe.setAccessible(true);
+	    invokeCleaner.invoke(theUnsafe.get(null), buffer);
+	    return;
+	} catch (NoSuchMethodException e) {
+	    // Java 7 or 8
+	}
+	Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+	cleanerMethod.setAccessible(true);
+	Object cleaner = cleanerMethod.invoke(buffer);
+	if (cleaner == null)
+	    return;
+	Method cleanMethod = cleaner.getClass().getMethod("clean");
+	cleanMethod.setAccessible(true);
+	cleanMethod.invoke(cleaner);
+    }
+
+    /**
+     * Returns a buffer containing the data points stored under given ID,
+     * between its position and limit
+     */
+    private ByteBuffer getDataPointsBuffer(int ID, long offset, int numOfBytes)
+	    throws IOException {
+
+	if ((mappedSegments != null) && mappedIDs.get(ID)) {
+	    int segment = Arrays.binarySearch(mappedSegmentOffsets, offset);
+	    if (segment < 0)
+		segment = -segment - 2;
+	    ByteBuffer mappedData = mappedSegments[segment].duplicate();
+	    int position = (int) (offset - mappedSegmentOffsets[segment]);
+	    mappedData.position(position);
+	    mappedData.limit(position + numOfBytes);
+	    return mappedData;
+	}
+
+	if (buffer.capacity() < numOfBytes) {
+	    buffer = ByteBuffer.allocate(numOfBytes * 2);
+	} else {
+	    buffer.clear();
+	}
+
+	dataPointsFile.seek(offset);
+	dataPointsFile.readFully(buffer.array(), 0, numOfBytes);
+	buffer.limit(numOfBytes);
+
+	return buffer;
+    }
+
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getNumOfScans()
      */
@@ -160,12 +419,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
      * @see net.sf.mzmine.datamodel.RawDataFile#getScanNumbers(int)
      */
     public @Nonnull int[] getScanNumbers(int msLevel) {
-	if (scanNumbersCache.containsKey(msLevel))
-	    return scanNumbersCache.get(msLevel);
-	Range<Double> all = Range.all();
-	int scanNumbers[] = getScanNumbers(msLevel, all);
-	scanNumbersCache.put(msLevel, scanNumbers);
-	return scanNumbers;
+	return getScanIndex().getScanNumbers(msLevel);
     }
 
     /**
@@ -177,58 +431,50 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
 	assert rtRange != null;
 
-	ArrayList<Integer> eligibleScanNumbers = new ArrayList<Integer>();
-
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
+	return getScanIndex().getScanNumbers(msLevel, rtRange);
+    }
 
-	    if ((scan.getMSLevel() == msLevel)
-		    && (rtRange.contains(scan.getRetentionTime())))
-		eligibleScanNumbers.add(scan.getScanNumber());
-	}
+    /**
+     * @see net.sf.mzmine.datamodel.RawDataFile#getScanNumbers(int, Range,
+     *      Range)
+     */
+    public @Nonnull int[] getScanNumbers(int msLevel,
+	    @Nonnull Range<Double> rtRange,
+	    @Nonnull Range<Double> precursorMZRange) {
 
-	int[] numbersArray = Ints.toArray(eligibleScanNumbers);
-	Arrays.sort(numbersArray);
+	assert rtRange != null;
+	assert precursorMZRange != null;
 
-	return numbersArray;
+	return getScanIndex().getScanNumbers(msLevel, rtRange,
+		precursorMZRange);
     }
 
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getScanNumbers()
      */
     public @Nonnull int[] getScanNumbers() {
-
-	if (scanNumbersCache.containsKey(0))
-	    return scanNumbersCache.get(0);
-
-	Set<Integer> allScanNumbers = scans.keySet();
-	int[] numbersArray = Ints.toArray(allScanNumbers);
-	Arrays.sort(numbersArray);
-
-	scanNumbersCache.put(0, numbersArray);
-
-	return numbersArray;
-
+	return getScanIndex().getScanNumbers();
     }
 
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getMSLevels()
      */
     public @Nonnull int[] getMSLevels() {
+	return getScanIndex().getMSLevels();
+    }
 
-	Set<Integer> msLevelsSet = new HashSet<Integer>();
-
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
-	    msLevelsSet.add(scan.getMSLevel());
+    /**
+     * Returns the index of the current scans, building it if necessary
+     */
+    private ScanIndex getScanIndex() {
+	ScanIndex index = scanIndex;
+	if (index != null)
+	    return index;
+	synchronized (this) {
+	    if (scanIndex == null)
+		scanIndex = new ScanIndex(scans.values());
+	    return scanIndex;
 	}
-
-	int[] msLevels = Ints.toArray(msLevelsSet);
-	Arrays.sort(msLevels);
-	return msLevels;
-
     }
 
     /**
@@ -308,21 +554,57 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     public synchronized int storeDataPoints(DataPoint dataPoints[])
 	    throws IOException {
+	final int currentID = reserveStorageID();
+	storeDataPoints(currentID, dataPoints);
+	return currentID;
+    }
 
-	if (dataPointsFile == null) {
-	    File newFile = RawDataFileImpl.createNewDataPointsFile();
-	    openDataPointsFile(newFile);
-	}
-
-	final long currentOffset = dataPointsFile.length();
-
-	final int currentID;
+    /**
+     * Returns a new storage ID, under which no data points are stored yet
+     */
+    synchronized int reserveStorageID() {
 	if (!dataPointsOffsets.isEmpty())
-	    currentID = dataPointsOffsets.lastKey() + 1;
-	else
-	    currentID = 1;
+	    lastReservedID = Math.max(lastReservedID,
+		    dataPointsOffsets.lastKey());
+	lastReservedID++;
+	return lastReservedID;
+    }
 
+    /**
+     * Stores the data points under the given storage ID, which must have been
+     * obtained from reserveStorageID()
+     */
+    synchronized void storeDataPoints(int currentID, DataPoint dataPoints[])
+	    throws IOException {
 	final int numOfDataPoints = dataPoints.length;
+	FloatBuffer floatBuffer = prepareBuffer(numOfDataPoints);
+	for (DataPoint dp : dataPoints) {
+	    floatBuffer.put((float) dp.getMZ());
+	    floatBuffer.put((float) dp.getIntensity());
+	}
+	writeBuffer(currentID, numOfDataPoints);
+    }
+
+    /**
+     * Stores the data points given as arrays of m/z and intensity values
+     * under the given storage ID, which must have been obtained from
+     * reserveStorageID()
+     */
+    synchronized void storeDataPoints(int currentID, double mzValues[],
+	    double intensityValues[], int numOfDataPoints) throws IOException {
+	FloatBuffer floatBuffer = prepareBuffer(numOfDataPoints);
+	for (int i = 0; i < numOfDataPoints; i++) {
+	    floatBuffer.put((float) mzValues[i]);
+	    floatBuffer.put((float) intensityValues[i]);
+	}
+	writeBuffer(currentID, numOfDataPoints);
+    }
+
+    /**
+     * Makes the buffer large enough for the given number of data points and
+     * returns a float view of it
+     */
+    private FloatBuffer prepareBuffer(int numOfDataPoints) {
 
 	// Convert the dataPoints into a byte array. Each float takes 4 bytes,
 	// so we get the current float offset by dividing the size of the file
@@ -335,19 +617,30 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	    buffer.clear();
 	}
 
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
-	for (DataPoint dp : dataPoints) {
-	    floatBuffer.put((float) dp.getMZ());
-	    floatBuffer.put((float) dp.getIntensity());
+	return buffer.asFloatBuffer();
+    }
+
+    /**
+     * Appends the data points prepared in the buffer to the data points file
+     */
+    private void writeBuffer(int currentID, int numOfDataPoints)
+	    throws IOException {
+	modificationCount++;
+
+	if (dataPointsFile == null) {
+	    File newFile = RawDataFileImpl.createNewDataPointsFile();
+	    openDataPointsFile(newFile);
 	}
 
+	final long currentOffset = dataPointsFile.length();
+	final int numOfBytes = numOfDataPoints * 2 * 4;
+
 	dataPointsFile.seek(currentOffset);
 	dataPointsFile.write(buffer.array(), 0, numOfBytes);
 
 	dataPointsOffsets.put(currentID, currentOffset);
 	dataPointsLengths.put(currentID, numOfDataPoints);
-
-	return currentID;
+	mappedIDs.clear(currentID);
 
     }
 
@@ -362,16 +655,10 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
 	final int numOfBytes = numOfDataPoints * 2 * 4;
 
-	if (buffer.capacity() < numOfBytes) {
-	    buffer = ByteBuffer.allocate(numOfBytes * 2);
-	} else {
-	    buffer.clear();
-	}
+	ByteBuffer dataBuffer = getDataPointsBuffer(ID, currentOffset,
+		numOfBytes);
 
-	dataPointsFile.seek(currentOffset);
-	dataPointsFile.read(buffer.array(), 0, numOfBytes);
-
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	FloatBuffer floatBuffer = dataBuffer.asFloatBuffer();
 
 	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
 
@@ -385,12 +672,72 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     }
 
+    /**
+     * Reads the data points stored under given ID as separate arrays of m/z
+     * and intensity values, { mzValues, intensityValues }, without creating
+     * a DataPoint instance for each of them.
+     */
+    public synchronized double[][] readDataPointValues(int ID)
+	    throws IOException {
+
+	final Long currentOffset = dataPointsOffsets.get(ID);
+	final Integer numOfDataPoints = dataPointsLengths.get(ID);
+
+	if ((currentOffset == null) || (numOfDataPoints == null)) {
+	    throw new IllegalArgumentException("Unknown storage ID " + ID);
+	}
+
+	final int numOfBytes = numOfDataPoints * 2 * 4;
+
+	ByteBuffer dataBuffer = getDataPointsBuffer(ID, currentOffset,
+		numOfBytes);
+
+	FloatBuffer floatBuffer = dataBuffer.asFloatBuffer();
+
+	double mzValues[] = new double[numOfDataPoints];
+	double intensityValues[] = new double[numOfDataPoints];
+
+	for (int i = 0; i < numOfDataPoints; i++) {
+	    mzValues[i] = floatBuffer.get();
+	    intensityValues[i] = floatBuffer.get();
+	}
+
+	return new double[][] { mzValues, intensityValues };
+
+    }
+
+    /**
+     * Copies the stored bytes of the data points stored under given ID into
+     * the given array, which must be large enough. Returns the number of
+     * copied bytes.
+     */
+    public synchronized int readDataPointsBytes(int ID, byte target[])
+	    throws IOException {
+
+	final Long currentOffset = dataPointsOffsets.get(ID);
+	final Integer numOfDataPoints = dataPointsLengths.get(ID);
+
+	if ((currentOffset == null) || (numOfDataPoints == null)) {
+	    throw new IllegalArgumentException("Unknown storage ID " + ID);
+	}
+
+	final int numOfBytes = numOfDataPoints * 2 * 4;
+	ByteBuffer dataBuffer = getDataPointsBuffer(ID, currentOffset,
+		numOfBytes);
+	dataBuffer.get(target, 0, numOfBytes);
+	return numOfBytes;
+    }
+
     public synchronized void removeStoredDataPoints(int ID) throws IOException {
+	modificationCount++;
 	dataPointsOffsets.remove(ID);
 	dataPointsLengths.remove(ID);
+	mappedIDs.clear(ID);
     }
 
     public synchronized void addScan(Scan newScan) throws IOException {
+	modificationCount++;
+	scanIndex = null;
 
 	// When we are loading the project, scan data file is already prepare
 	// and we just need store the reference
@@ -409,6 +756,32 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     }
 
+    /**
+     * @see net.sf.mzmine.datamodel.RawDataFileWriter#addScan(net.sf.mzmine.datamodel.Scan,
+     *      double[], double[], int)
+     */
+    public synchronized void addScan(Scan newScan, double mzValues[],
+	    double intensityValues[], int numOfDataPoints) throws IOException {
+	modificationCount++;
+	scanIndex = null;
+
+	final int storageID = reserveStorageID();
+	storeDataPoints(storageID, mzValues, intensityValues, numOfDataPoints);
+
+	// The m/z range, base peak and TIC are calculated from the stored
+	// data points
+	StorableScan storedScan = new StorableScan(this, storageID,
+		numOfDataPoints, newScan.getScanNumber(),
+		newScan.getMSLevel(), newScan.getRetentionTime(),
+		newScan.getPrecursorMZ(), newScan.getPrecursorCharge(),
+		newScan.getFragmentScanNumbers(), newScan.getSpectrumType(),
+		newScan.getPolarity(), newScan.getScanDefinition(),
+		newScan.getScaningMZRange());
+
+	scans.put(newScan.getScanNumber(), storedScan);
+
+    }
+
     /**
      * @see net.sf.mzmine.datamodel.RawDataFileWriter#finishWriting()
      */
@@ -416,6 +789,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	for (StorableScan scan : scans.values()) {
 	    scan.updateValues();
 	}
+	scanIndex = new ScanIndex(scans.values());
 	logger.finest("Writing of scans to file " + dataPointsFileName
 		+ " finished");
 	return this;
@@ -513,10 +887,16 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     }
 
     public synchronized void close() {
+	// The mapped project file must not be deleted, we just unmap it
+	unmapSegments(mappedSegments);
+	mappedSegments = null;
+	mappedSegmentOffsets = null;
+	mappedFileName = null;
+	mappedIDs.clear();
 	try {
 	    if(dataPointsFileName != null) {
-    	    	dataPointsFile.close();
-    	    	dataPointsFileName.delete();
+		dataPointsFile.close();
+		dataPointsFileName.delete();
 	    }
 	} catch (IOException e) {
 	    logger.warning("Could not close file " + dataPointsFileName + ": "
@@ -529,6 +909,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     }
 
     public void setName(@Nonnull String name) {
+	modificationCount++;
 	this.dataFileName = name;
     }
 
@@ -536,4 +917,12 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	return dataFileName;
     }
 
+    /**
+     * Returns a number which changes every time this raw data file is
+     * modified.
+     */
+    public int getModificationCount() {
+	return modificationCount;
+    }
+
 }
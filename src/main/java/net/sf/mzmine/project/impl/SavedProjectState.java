@@ -0,0 +1,188 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.util.IdentityHashMap;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.impl.AlignedPeakListRow;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+
+/**
+ * Remembers which raw data files and peak lists of a project were saved to
+ * (or loaded from) which entries of the project file, together with a
+ * fingerprint of their state at that time. When the project is saved to the
+ * same file again, objects whose fingerprint did not change can be kept in
+ * the file as they are.
+ */
+public class SavedProjectState {
+
+    /**
+     * Fingerprint of objects whose changes cannot be tracked
+     */
+    public static final long UNTRACKED = Long.MIN_VALUE;
+
+    private static class SavedObject {
+	int id;
+	long fingerprint;
+	String entryNames[];
+    }
+
+    private final File projectFile;
+    private final IdentityHashMap<Object, SavedObject> savedObjects = new IdentityHashMap<Object, SavedObject>();
+
+    public SavedProjectState(File projectFile) {
+	this.projectFile = projectFile;
+    }
+
+    public File getProjectFile() {
+	return projectFile;
+    }
+
+    /**
+     * Records that the given object was saved under the given ID into the
+     * given entries of the project file.
+     * 
+     * @param fingerprint
+     *            fingerprint of the object at the time of saving, as returned
+     *            by getFingerprint()
+     */
+    public synchronized void addObject(Object object, int id,
+	    long fingerprint, String... entryNames) {
+	SavedObject savedObject = new SavedObject();
+	savedObject.id = id;
+	savedObject.fingerprint = fingerprint;
+	savedObject.entryNames = entryNames;
+	savedObjects.put(object, savedObject);
+    }
+
+    /**
+     * Returns the ID of the object within the project file, or -1 if the
+     * object was not saved.
+     */
+    public synchronized int getSavedID(Object object) {
+	SavedObject savedObject = savedObjects.get(object);
+	if (savedObject == null)
+	    return -1;
+	return savedObject.id;
+    }
+
+    /**
+     * Returns the names of the project file entries containing the object, or
+     * null if the object was not saved.
+     */
+    public synchronized String[] getEntryNames(Object object) {
+	SavedObject savedObject = savedObjects.get(object);
+	if (savedObject == null)
+	    return null;
+	return savedObject.entryNames;
+    }
+
+    /**
+     * Returns true if the object was saved and it has not been modified
+     * since.
+     */
+    public synchronized boolean isUnchanged(Object object) {
+	SavedObject savedObject = savedObjects.get(object);
+	if ((savedObject == null) || (savedObject.fingerprint == UNTRACKED))
+	    return false;
+	return savedObject.fingerprint == getFingerprint(object);
+    }
+
+    /**
+     * Computes a fingerprint of the current state of a raw data file or a
+     * peak list. The fingerprint changes whenever the object (or any of its
+     * rows, peaks or identities) is modified. Returns UNTRACKED for objects
+     * whose modifications we cannot detect.
+     */
+    public static long getFingerprint(Object object) {
+
+	if (object instanceof RawDataFileImpl)
+	    return mix(1, ((RawDataFileImpl) object).getModificationCount());
+
+	if (!(object instanceof SimplePeakList))
+	    return UNTRACKED;
+
+	SimplePeakList peakList = (SimplePeakList) object;
+	long fingerprint = mix(2, peakList.getModificationCount());
+	for (PeakListRow row : peakList.getRows()) {
+	    fingerprint = mix(fingerprint, System.identityHashCode(row));
+	    if (row instanceof SimplePeakListRow) {
+		fingerprint = mix(fingerprint,
+			((SimplePeakListRow) row).getModificationCount());
+	    } else if (row instanceof AlignedPeakListRow) {
+		fingerprint = mix(fingerprint,
+			((AlignedPeakListRow) row).getModificationCount());
+	    } else {
+		fingerprint = mix(fingerprint, Double.doubleToLongBits(row
+			.getAverageMZ()));
+		fingerprint = mix(fingerprint, Double.doubleToLongBits(row
+			.getAverageRT()));
+		fingerprint = mix(fingerprint, String.valueOf(row.getComment())
+			.hashCode());
+		fingerprint = mix(fingerprint,
+			System.identityHashCode(row.getPreferredPeakIdentity()));
+	    }
+
+	    for (Feature peak : row.getPeaks()) {
+		fingerprint = mix(fingerprint, System.identityHashCode(peak));
+		if (peak instanceof SimpleFeature) {
+		    fingerprint = mix(fingerprint,
+			    ((SimpleFeature) peak).getModificationCount());
+		} else {
+		    // Other peak implementations can only be modified through
+		    // the setters of the Feature interface
+		    fingerprint = mix(fingerprint,
+			    System.identityHashCode(peak.getIsotopePattern()));
+		    fingerprint = mix(fingerprint, peak.getCharge());
+		}
+	    }
+
+	    for (PeakIdentity identity : row.getPeakIdentities()) {
+		fingerprint = mix(fingerprint,
+			System.identityHashCode(identity));
+		if (identity instanceof SimplePeakIdentity) {
+		    fingerprint = mix(fingerprint,
+			    ((SimplePeakIdentity) identity)
+				    .getModificationCount());
+		} else {
+		    fingerprint = mix(fingerprint, identity.getAllProperties()
+			    .hashCode());
+		}
+	    }
+	}
+
+	if (fingerprint == UNTRACKED)
+	    fingerprint++;
+	return fingerprint;
+    }
+
+    private static long mix(long hash, long value) {
+	hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+	return hash ^ (hash >>> 29);
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.TreeMap;
+
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+
+/**
+ * Immutable index of the scans of a raw data file. For each MS level, the
+ * scans are kept sorted by retention time and by precursor m/z, so that the
+ * scans within a retention time window or a precursor m/z window can be found
+ * by binary search, without going through all scans of the file.
+ */
+class ScanIndex {
+
+    private final int allScanNumbers[];
+    private final int msLevels[];
+    private final TreeMap<Integer, LevelIndex> levels = new TreeMap<Integer, LevelIndex>();
+
+    ScanIndex(Collection<? extends Scan> scans) {
+
+	TreeMap<Integer, Integer> levelSizes = new TreeMap<Integer, Integer>();
+	allScanNumbers = new int[scans.size()];
+	int i = 0;
+	for (Scan scan : scans) {
+	    allScanNumbers[i++] = scan.getScanNumber();
+	    Integer size = levelSizes.get(scan.getMSLevel());
+	    levelSizes.put(scan.getMSLevel(), size == null ? 1 : size + 1);
+	}
+	Arrays.sort(allScanNumbers);
+
+	msLevels = new int[levelSizes.size()];
+	i = 0;
+	for (Integer msLevel : levelSizes.keySet()) {
+	    msLevels[i++] = msLevel;
+	    Scan levelScans[] = new Scan[levelSizes.get(msLevel)];
+	    int j = 0;
+	    for (Scan scan : scans) {
+		if (scan.getMSLevel() == msLevel)
+		    levelScans[j++] = scan;
+	    }
+	    levels.put(msLevel, new LevelIndex(levelScans));
+	}
+
+    }
+
+    /**
+     * Returns all scan numbers, sorted
+     */
+    int[] getScanNumbers() {
+	return allScanNumbers;
+    }
+
+    /**
+     * Returns all MS levels, sorted
+     */
+    int[] getMSLevels() {
+	return msLevels;
+    }
+
+    /**
+     * Returns the scan numbers of given MS level, sorted
+     */
+    int[] getScanNumbers(int msLevel) {
+	LevelIndex level = levels.get(msLevel);
+	if (level == null)
+	    return new int[0];
+	return level.scanNumbers;
+    }
+
+    /**
+     * Returns the sorted scan numbers of given MS level within the retention
+     * time range
+     */
+    int[] getScanNumbers(int msLevel, Range<Double> rtRange) {
+	LevelIndex level = levels.get(msLevel);
+	if (level == null)
+	    return new int[0];
+	int start = lowerIndex(level.retentionTimes, rtRange);
+	int end = upperIndex(level.retentionTimes, rtRange);
+	if (start >= end)
+	    return new int[0];
+	int result[] = Arrays.copyOfRange(level.rtSortedScanNumbers, start, end);
+	Arrays.sort(result);
+	return result;
+    }
+
+    /**
+     * Returns the sorted scan numbers of given MS level within the retention
+     * time range and the precursor m/z range
+     */
+    int[] getScanNumbers(int msLevel, Range<Double> rtRange,
+	    Range<Double> precursorMZRange) {
+	LevelIndex level = levels.get(msLevel);
+	if (level == null)
+	    return new int[0];
+
+	// Go through the narrower window and check the other condition
+	int rtStart = lowerIndex(level.retentionTimes, rtRange);
+	int rtEnd = upperIndex(level.retentionTimes, rtRange);
+	int mzStart = lowerIndex(level.precursorMZs, precursorMZRange);
+	int mzEnd = upperIndex(level.precursorMZs, precursorMZRange);
+	if ((rtStart >= rtEnd) || (mzStart >= mzEnd))
+	    return new int[0];
+
+	int result[];
+	int count = 0;
+	if (rtEnd - rtStart <= mzEnd - mzStart) {
+	    result = new int[rtEnd - rtStart];
+	    for (int i = rtStart; i < rtEnd; i++) {
+		if (precursorMZRange.contains(level.rtSortedPrecursorMZs[i]))
+		    result[count++] = level.rtSortedScanNumbers[i];
+	    }
+	} else {
+	    result = new int[mzEnd - mzStart];
+	    for (int i = mzStart; i < mzEnd; i++) {
+		if (rtRange.contains(level.mzSortedRetentionTimes[i]))
+		    result[count++] = level.mzSortedScanNumbers[i];
+	    }
+	}
+	result = Arrays.copyOf(result, count);
+	Arrays.sort(result);
+	return result;
+    }
+
+    /**
+     * Returns the index of the first value which is not below the range
+     */
+    private static int lowerIndex(double sortedValues[], Range<Double> range) {
+	if (!range.hasLowerBound())
+	    return 0;
+	final double bound = range.lowerEndpoint();
+	final boolean open = range.lowerBoundType() == BoundType.OPEN;
+	int low = 0, high = sortedValues.length;
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    if ((sortedValues[mid] < bound)
+		    || (open && sortedValues[mid] == bound))
+		low = mid + 1;
+	    else
+		high = mid;
+	}
+	return low;
+    }
+
+    /**
+     * Returns the index following the last value which is not above the range
+     */
+    private static int upperIndex(double sortedValues[], Range<Double> range) {
+	if (!range.hasUpperBound())
+	    return sortedValues.length;
+	final double bound = range.upperEndpoint();
+	final boolean open = range.upperBoundType() == BoundType.OPEN;
+	int low = 0, high = sortedValues.length;
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    if ((sortedValues[mid] > bound)
+		    || (open && sortedValues[mid] == bound))
+		high = mid;
+	    else
+		low = mid + 1;
+	}
+	return low;
+    }
+
+    /**
+     * Scans of one MS level, as parallel arrays sorted by scan number, by
+     * retention time and by precursor m/z
+     */
+    private static class LevelIndex {
+
+	final int scanNumbers[];
+
+	final int rtSortedScanNumbers[];
+	final double retentionTimes[];
+	final double rtSortedPrecursorMZs[];
+
+	final int mzSortedScanNumbers[];
+	final double precursorMZs[];
+	final double mzSortedRetentionTimes[];
+
+	LevelIndex(Scan scans[]) {
+
+	    final int numOfScans = scans.length;
+
+	    scanNumbers = new int[numOfScans];
+	    for (int i = 0; i < numOfScans; i++)
+		scanNumbers[i] = scans[i].getScanNumber();
+	    Arrays.sort(scanNumbers);
+
+	    Arrays.sort(scans, new Comparator<Scan>() {
+		public int compare(Scan s1, Scan s2) {
+		    int result = Double.compare(s1.getRetentionTime(),
+			    s2.getRetentionTime());
+		    if (result != 0)
+			return result;
+		    return Integer.compare(s1.getScanNumber(),
+			    s2.getScanNumber());
+		}
+	    });
+	    rtSortedScanNumbers = new int[numOfScans];
+	    retentionTimes = new double[numOfScans];
+	    rtSortedPrecursorMZs = new double[numOfScans];
+	    for (int i = 0; i < numOfScans; i++) {
+		rtSortedScanNumbers[i] = scans[i].getScanNumber();
+		retentionTimes[i] = scans[i].getRetentionTime();
+		rtSortedPrecursorMZs[i] = scans[i].getPrecursorMZ();
+	    }
+
+	    Arrays.sort(scans, new Comparator<Scan>() {
+		public int compare(Scan s1, Scan s2) {
+		    int result = Double.compare(s1.getPrecursorMZ(),
+			    s2.getPrecursorMZ());
+		    if (result != 0)
+			return result;
+		    return Integer.compare(s1.getScanNumber(),
+			    s2.getScanNumber());
+		}
+	    });
+	    mzSortedScanNumbers = new int[numOfScans];
+	    precursorMZs = new double[numOfScans];
+	    mzSortedRetentionTimes = new double[numOfScans];
+	    for (int i = 0; i < numOfScans; i++) {
+		mzSortedScanNumbers[i] = scans[i].getScanNumber();
+		precursorMZs[i] = scans[i].getPrecursorMZ();
+		mzSortedRetentionTimes[i] = scans[i].getRetentionTime();
+	    }
+
+	}
+
+    }
+
+}
@@ -131,6 +131,22 @@ public class StorableScan implements Scan {
 
     }
 
+    /**
+     * Returns the data points as separate arrays of m/z and intensity values,
+     * { mzValues, intensityValues }, read directly from the temporary file
+     */
+    public @Nonnull double[][] getDataPointValues() {
+
+	try {
+	    return rawDataFile.readDataPointValues(storageID);
+	} catch (IOException e) {
+	    logger.severe("Could not read data from temporary file "
+		    + e.toString());
+	    return new double[][] { new double[0], new double[0] };
+	}
+
+    }
+
     /**
      * @return Returns scan datapoints within a given range
      */
@@ -192,6 +208,10 @@ public class StorableScan implements Scan {
      * @see net.sf.mzmine.datamodel.Scan#getNumberOfDataPoints()
      */
     public int getNumberOfDataPoints() {
+	// -1 means the data points have not been computed yet (see
+	// VirtualRawDataFile)
+	if (numberOfDataPoints < 0)
+	    updateValues();
 	return numberOfDataPoints;
     }
 
@@ -232,6 +252,7 @@ public class StorableScan implements Scan {
 
     void updateValues() {
 	DataPoint dataPoints[] = getDataPoints();
+	numberOfDataPoints = dataPoints.length;
 
 	// find m/z range and base peak
 	if (dataPoints.length > 0) {
@@ -272,7 +293,7 @@ public class StorableScan implements Scan {
      * @see net.sf.mzmine.datamodel.Scan#getBasePeakMZ()
      */
     public DataPoint getHighestDataPoint() {
-	if ((basePeak == null) && (numberOfDataPoints > 0))
+	if ((basePeak == null) && (numberOfDataPoints != 0))
 	    updateValues();
 	return basePeak;
     }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.project.impl;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
+
+/**
+ * Stores the scans of virtual files computed from a raw data file which was
+ * removed from the project, and then closes the raw data file. If the scans
+ * cannot be stored, the raw data file stays open, so that the virtual files
+ * can still compute their scans from it.
+ */
+class VirtualFilesStoringTask extends AbstractTask {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private final RawDataFile removedFile;
+    private final List<VirtualRawDataFile> virtualFiles;
+
+    private int storedFiles = 0;
+
+    VirtualFilesStoringTask(RawDataFile removedFile,
+	    List<VirtualRawDataFile> virtualFiles) {
+	this.removedFile = removedFile;
+	this.virtualFiles = virtualFiles;
+    }
+
+    public String getTaskDescription() {
+	return "Storing scans computed from removed file " + removedFile;
+    }
+
+    public double getFinishedPercentage() {
+	return (double) storedFiles / virtualFiles.size();
+    }
+
+    public void run() {
+
+	setStatus(TaskStatus.PROCESSING);
+
+	for (VirtualRawDataFile virtualFile : virtualFiles) {
+
+	    if (isCanceled())
+		return;
+
+	    try {
+		virtualFile.materialize();
+	    } catch (Exception e) {
+		setStatus(TaskStatus.ERROR);
+		setErrorMessage("Could not store the scans of " + virtualFile
+			+ ", " + removedFile + " was not closed: "
+			+ ExceptionUtils.exceptionToString(e));
+		logger.severe(getErrorMessage());
+		return;
+	    }
+
+	    storedFiles++;
+	}
+
+	// No file depends on the removed file anymore
+	removedFile.close();
+
+	logger.info("Closed " + removedFile + " after storing the scans of "
+		+ virtualFiles.size() + " virtual file(s)");
+
+	setStatus(TaskStatus.FINISHED);
+
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Raw data file whose scans are computed from the scans of another (source)
+ * raw data file when they are accessed, instead of being stored in a
+ * temporary file. The scans are described by regular StorableScan instances,
+ * using storage IDs which have no data points stored yet. Reading the data
+ * points of such ID runs the source scan through the ScanProcessor. The most
+ * recently computed results are kept in a small cache.
+ * 
+ * Mass lists added to the scans are stored as usual. The computed data points
+ * are stored by materialize(), which is called before the project is saved
+ * and before the source file is removed from the project. After that, this
+ * file behaves exactly like a RawDataFileImpl.
+ */
+public class VirtualRawDataFile extends RawDataFileImpl {
+
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+    /**
+     * Computes the scans of a virtual raw data file
+     */
+    public interface ScanProcessor {
+
+	/**
+	 * Returns the scan computed from the given scan of the source file.
+	 * Only its data points are used. May be called from several threads at
+	 * once.
+	 */
+	public Scan processScan(@Nonnull Scan sourceScan);
+
+    }
+
+    /**
+     * Maximum number of computed scans kept in memory
+     */
+    private static final int MAX_CACHED_SCANS = 50;
+
+    private final RawDataFile sourceFile;
+    private final ScanProcessor processor;
+
+    // Maps storage IDs of data points which have not been stored yet to the
+    // numbers of the source scans
+    private final Hashtable<Integer, Integer> virtualStorageIDs = new Hashtable<Integer, Integer>();
+
+    private final Map<Integer, DataPoint[]> cache = new LinkedHashMap<Integer, DataPoint[]>(
+	    16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	protected boolean removeEldestEntry(
+		Map.Entry<Integer, DataPoint[]> eldest) {
+	    return size() > MAX_CACHED_SCANS;
+	}
+    };
+
+    private int computedScans = 0;
+
+    /**
+     * Creates a virtual raw data file containing the scans of the given MS
+     * level of the source file, processed by the given processor.
+     */
+    public VirtualRawDataFile(String dataFileName,
+	    @Nonnull RawDataFile sourceFile, int msLevel,
+	    @Nonnull ScanProcessor processor) throws IOException {
+	this(dataFileName, sourceFile, sourceFile.getScanNumbers(msLevel),
+		processor);
+    }
+
+    /**
+     * Creates a virtual raw data file containing the given scans of the
+     * source file, processed by the given processor.
+     */
+    public VirtualRawDataFile(String dataFileName,
+	    @Nonnull RawDataFile sourceFile, @Nonnull int scanNumbers[],
+	    @Nonnull ScanProcessor processor) throws IOException {
+
+	super(dataFileName);
+
+	this.sourceFile = sourceFile;
+	this.processor = processor;
+
+	for (int scanNumber : scanNumbers) {
+	    Scan sourceScan = sourceFile.getScan(scanNumber);
+	    int storageID = reserveStorageID();
+	    virtualStorageIDs.put(storageID, scanNumber);
+
+	    // The number of data points is not known until the scan is
+	    // computed
+	    StorableScan scan = new StorableScan(this, storageID, -1,
+		    scanNumber, sourceScan.getMSLevel(),
+		    sourceScan.getRetentionTime(), sourceScan.getPrecursorMZ(),
+		    sourceScan.getPrecursorCharge(),
+		    sourceScan.getFragmentScanNumbers(),
+		    sourceScan.getSpectrumType(), sourceScan.getPolarity(),
+		    sourceScan.getScanDefinition(),
+		    sourceScan.getScaningMZRange());
+	    addScan(scan);
+	}
+
+    }
+
+    /**
+     * Returns the file from which the scans are computed
+     */
+    public @Nonnull RawDataFile getSourceFile() {
+	return sourceFile;
+    }
+
+    /**
+     * Returns true if the scans are still computed from the source file
+     */
+    public boolean isVirtual() {
+	return !virtualStorageIDs.isEmpty();
+    }
+
+    /**
+     * Returns how many times a scan was computed from the source file
+     */
+    public int getNumberOfComputedScans() {
+	synchronized (cache) {
+	    return computedScans;
+	}
+    }
+
+    /**
+     * The index of the scans does not need the data points, so writing is
+     * finished without computing the scans.
+     */
+    public RawDataFile finishWriting() throws IOException {
+	if (isVirtual())
+	    return this;
+	return super.finishWriting();
+    }
+
+    public DataPoint[] readDataPoints(int ID) throws IOException {
+
+	Integer scanNumber = virtualStorageIDs.get(ID);
+	if (scanNumber == null)
+	    return super.readDataPoints(ID);
+
+	synchronized (cache) {
+	    DataPoint cached[] = cache.get(ID);
+	    if (cached != null)
+		return cached.clone();
+	}
+
+	// Compute the scan outside of the lock, so that several threads can
+	// compute scans at the same time
+	DataPoint dataPoints[] = computeDataPoints(scanNumber);
+
+	synchronized (cache) {
+	    computedScans++;
+	    cache.put(ID, dataPoints);
+	}
+
+	return dataPoints.clone();
+    }
+
+    public double[][] readDataPointValues(int ID) throws IOException {
+
+	if (!virtualStorageIDs.containsKey(ID))
+	    return super.readDataPointValues(ID);
+
+	DataPoint dataPoints[] = readDataPoints(ID);
+	double mzValues[] = new double[dataPoints.length];
+	double intensityValues[] = new double[dataPoints.length];
+	for (int i = 0; i < dataPoints.length; i++) {
+	    mzValues[i] = dataPoints[i].getMZ();
+	    intensityValues[i] = dataPoints[i].getIntensity();
+	}
+	return new double[][] { mzValues, intensityValues };
+
+    }
+
+    /**
+     * Stores the data points of all scans which are still computed from the
+     * source file, so that this file no longer depends on it.
+     */
+    public synchronized void materialize() throws IOException {
+
+	if (!isVirtual())
+	    return;
+
+	logger.info("Storing the scans of " + this + ", computed from "
+		+ sourceFile);
+
+	// Store the data points in the order of the storage IDs
+	TreeMap<Integer, Integer> storageIDs = new TreeMap<Integer, Integer>(
+		virtualStorageIDs);
+	for (Map.Entry<Integer, Integer> entry : storageIDs.entrySet()) {
+	    DataPoint dataPoints[];
+	    synchronized (cache) {
+		dataPoints = cache.get(entry.getKey());
+	    }
+	    if (dataPoints == null)
+		dataPoints = computeDataPoints(entry.getValue());
+	    storeDataPoints(entry.getKey(), dataPoints);
+	    virtualStorageIDs.remove(entry.getKey());
+	}
+
+	synchronized (cache) {
+	    cache.clear();
+	}
+
+    }
+
+    public synchronized void close() {
+	synchronized (cache) {
+	    cache.clear();
+	}
+	super.close();
+    }
+
+    private DataPoint[] computeDataPoints(int scanNumber) {
+	Scan sourceScan = sourceFile.getScan(scanNumber);
+	if (sourceScan == null)
+	    return new DataPoint[0];
+	Scan processedScan = processor.processScan(sourceScan);
+	if (processedScan == null)
+	    return new DataPoint[0];
+	return processedScan.getDataPoints();
+    }
+
+}
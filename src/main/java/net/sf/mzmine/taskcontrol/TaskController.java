@@ -19,6 +19,8 @@
 
 package net.sf.mzmine.taskcontrol;
 
+import java.util.concurrent.ExecutorService;
+
 import net.sf.mzmine.taskcontrol.impl.TaskQueue;
 
 /**
@@ -40,4 +42,17 @@ public interface TaskController {
 
     public TaskQueue getTaskQueue();
 
+    /**
+     * Returns the shared thread pool that tasks may use to process independent
+     * parts of their work in parallel. The size of the pool follows the
+     * "Number of concurrently running tasks" preference.
+     */
+    public ExecutorService getExecutor();
+
+    /**
+     * Returns the maximum number of concurrently running threads, as set in
+     * the preferences.
+     */
+    public int getMaxRunningThreads();
+
 }
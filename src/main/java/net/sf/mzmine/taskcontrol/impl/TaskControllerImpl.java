@@ -22,6 +22,12 @@ package net.sf.mzmine.taskcontrol.impl;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
@@ -58,6 +64,12 @@ public class TaskControllerImpl implements TaskController, Runnable {
      */
     private Vector<WorkerThread> runningThreads;
 
+    /**
+     * Shared thread pool for parallel processing inside tasks. Its size is kept
+     * in sync with the number of threads set in the preferences.
+     */
+    private ThreadPoolExecutor executor;
+
     /**
      * Initialize the task controller
      */
@@ -67,6 +79,21 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
 	runningThreads = new Vector<WorkerThread>();
 
+	final int numOfThreads = Runtime.getRuntime().availableProcessors();
+	final AtomicInteger threadCounter = new AtomicInteger();
+	ThreadFactory threadFactory = new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread newThread = new Thread(r, "Shared worker thread "
+			+ threadCounter.incrementAndGet());
+		newThread.setDaemon(true);
+		return newThread;
+	    }
+	};
+	executor = new ThreadPoolExecutor(numOfThreads, numOfThreads, 60,
+		TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+		threadFactory);
+	executor.allowCoreThreadTimeOut(true);
+
 	// Create a low-priority thread that will manage the queue and start
 	// worker threads for tasks
 	taskControllerThread = new Thread(this, "Task controller thread");
@@ -79,6 +106,19 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	return taskQueue;
     }
 
+    public ExecutorService getExecutor() {
+	return executor;
+    }
+
+    public int getMaxRunningThreads() {
+	NumOfThreadsParameter parameter = MZmineCore.getConfiguration()
+		.getPreferences().getParameter(MZminePreferences.numOfThreads);
+	if (parameter.isAutomatic() || (parameter.getValue() == null))
+	    return Runtime.getRuntime().availableProcessors();
+	else
+	    return Math.max(1, parameter.getValue());
+    }
+
     public void addTask(Task task) {
 	addTasks(new Task[] { task }, TaskPriority.NORMAL);
     }
@@ -158,14 +198,10 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	    WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
 
 	    // Obtain the settings of max concurrent threads
-	    NumOfThreadsParameter parameter = MZmineCore.getConfiguration()
-		    .getPreferences()
-		    .getParameter(MZminePreferences.numOfThreads);
-	    int maxRunningThreads;
-	    if (parameter.isAutomatic() || (parameter.getValue() == null))
-		maxRunningThreads = Runtime.getRuntime().availableProcessors();
-	    else
-		maxRunningThreads = parameter.getValue();
+	    int maxRunningThreads = getMaxRunningThreads();
+
+	    // Resize the shared pool if the preference has changed
+	    updateExecutorSize(maxRunningThreads);
 
 	    // Check all tasks in the queue
 	    for (WrappedTask task : queueSnapshot) {
@@ -223,6 +259,24 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	}
     }
 
+    /**
+     * Adjusts the size of the shared thread pool. The order of the two calls
+     * matters, because the core size must never exceed the maximum size.
+     */
+    private void updateExecutorSize(int numOfThreads) {
+	if (executor.getMaximumPoolSize() == numOfThreads)
+	    return;
+	logger.finest("Setting size of the shared thread pool to "
+		+ numOfThreads);
+	if (numOfThreads > executor.getMaximumPoolSize()) {
+	    executor.setMaximumPoolSize(numOfThreads);
+	    executor.setCorePoolSize(numOfThreads);
+	} else {
+	    executor.setCorePoolSize(numOfThreads);
+	    executor.setMaximumPoolSize(numOfThreads);
+	}
+    }
+
     @Override
     public void addTaskControlListener(TaskControlListener listener) {
 	listeners.add(listener);
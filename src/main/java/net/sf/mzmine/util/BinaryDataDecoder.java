@@ -0,0 +1,233 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder of base64-encoded binary arrays, as found in mzML, mzXML and mzData
+ * files. The characters can be passed in several pieces (e.g. as received by
+ * a SAX parser), they are decoded directly into a byte buffer which is reused
+ * for the next array. The decoded bytes can be decompressed (zlib) and
+ * converted to numbers in any byte order.
+ * 
+ * Instances are not thread-safe, each thread should use its own decoder.
+ */
+public class BinaryDataDecoder {
+
+    private static final int INVALID = -1, IGNORED = -2;
+
+    private static final int BASE64_VALUES[] = new int[128];
+
+    static {
+	for (int i = 0; i < BASE64_VALUES.length; i++)
+	    BASE64_VALUES[i] = INVALID;
+	String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+	for (int i = 0; i < alphabet.length(); i++)
+	    BASE64_VALUES[alphabet.charAt(i)] = i;
+	// Whitespace and padding are skipped
+	BASE64_VALUES[' '] = IGNORED;
+	BASE64_VALUES['\t'] = IGNORED;
+	BASE64_VALUES['\n'] = IGNORED;
+	BASE64_VALUES['\r'] = IGNORED;
+	BASE64_VALUES['='] = IGNORED;
+    }
+
+    private byte bytes[] = new byte[4096], swapBytes[] = new byte[4096];
+    private int numOfBytes = 0;
+
+    // Bits decoded from characters which do not form a whole byte yet
+    private int pendingBits = 0, numOfPendingBits = 0;
+
+    private Inflater inflater;
+
+    /**
+     * Discards the decoded bytes, to start decoding a new array
+     */
+    public void reset() {
+	numOfBytes = 0;
+	pendingBits = 0;
+	numOfPendingBits = 0;
+    }
+
+    /**
+     * Decodes the given base64 characters and appends the result to the
+     * decoded bytes. Whitespace and padding characters are skipped.
+     * 
+     * @throws IllegalArgumentException
+     *             if the characters are not valid base64
+     */
+    public void decodeBase64(char chars[], int offset, int length) {
+
+	// Every 4 characters give 3 bytes
+	ensureCapacity(numOfBytes + (length * 3) / 4 + 3);
+
+	final byte target[] = bytes;
+	int position = numOfBytes;
+	int bits = pendingBits, numOfBits = numOfPendingBits;
+	final int end = offset + length;
+
+	for (int i = offset; i < end; i++) {
+	    final char c = chars[i];
+	    final int value = (c < 128) ? BASE64_VALUES[c] : INVALID;
+	    if (value < 0) {
+		if (value == IGNORED)
+		    continue;
+		throw new IllegalArgumentException(
+			"Invalid character in base64 data: " + c);
+	    }
+	    bits = (bits << 6) | value;
+	    numOfBits += 6;
+	    if (numOfBits >= 8) {
+		numOfBits -= 8;
+		target[position++] = (byte) (bits >> numOfBits);
+		bits &= (1 << numOfBits) - 1;
+	    }
+	}
+
+	numOfBytes = position;
+	pendingBits = bits;
+	numOfPendingBits = numOfBits;
+
+    }
+
+    /**
+     * Decodes the given base64 text and appends the result to the decoded
+     * bytes.
+     */
+    public void decodeBase64(String text) {
+	decodeBase64(text.toCharArray(), 0, text.length());
+    }
+
+    /**
+     * Replaces the decoded bytes by their zlib-decompressed content
+     */
+    public void inflate() throws DataFormatException {
+
+	if (inflater == null)
+	    inflater = new Inflater();
+	inflater.reset();
+	inflater.setInput(bytes, 0, numOfBytes);
+
+	int inflatedLength = 0;
+	ensureSwapCapacity(numOfBytes * 4);
+	while (!inflater.finished()) {
+	    if (inflatedLength == swapBytes.length)
+		ensureSwapCapacity(swapBytes.length * 2);
+	    int n = inflater.inflate(swapBytes, inflatedLength,
+		    swapBytes.length - inflatedLength);
+	    if ((n == 0) && !inflater.finished()
+		    && (inflater.needsInput() || inflater.needsDictionary()))
+		throw new DataFormatException("Truncated compressed data");
+	    inflatedLength += n;
+	}
+
+	byte previousBytes[] = bytes;
+	bytes = swapBytes;
+	swapBytes = previousBytes;
+	numOfBytes = inflatedLength;
+
+    }
+
+    /**
+     * Returns the number of decoded bytes
+     */
+    public int getNumberOfBytes() {
+	return numOfBytes;
+    }
+
+    /**
+     * Returns the decoded bytes, between the position and the limit of the
+     * returned buffer. The buffer is only valid until the next call of this
+     * decoder.
+     */
+    public ByteBuffer getBytes(ByteOrder byteOrder) {
+	ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, numOfBytes);
+	buffer.order(byteOrder);
+	return buffer;
+    }
+
+    /**
+     * Converts the decoded bytes to an array of numbers.
+     * 
+     * @param precision
+     *            32 or 64 bits per number
+     * @param integer
+     *            true if the numbers are integers, false for floating point
+     *            numbers
+     * @param byteOrder
+     *            byte order of the numbers
+     */
+    public double[] getValues(int precision, boolean integer,
+	    ByteOrder byteOrder) {
+	ByteBuffer buffer = getBytes(byteOrder);
+	final int numOfValues = numOfBytes / (precision / 8);
+	double values[] = new double[numOfValues];
+	for (int i = 0; i < numOfValues; i++)
+	    values[i] = readValue(buffer, precision, integer);
+	return values;
+    }
+
+    /**
+     * Converts the decoded bytes to pairs of numbers (e.g. m/z and intensity
+     * in mzXML), the first number of each pair goes to the first array, the
+     * second number to the second array. Only the given number of pairs is
+     * read, if there are enough bytes.
+     * 
+     * @return the number of pairs which were read
+     */
+    public int getValuePairs(int precision, boolean integer,
+	    ByteOrder byteOrder, double first[], double second[], int numOfPairs) {
+	ByteBuffer buffer = getBytes(byteOrder);
+	numOfPairs = Math.min(numOfPairs, numOfBytes / (precision / 4));
+	for (int i = 0; i < numOfPairs; i++) {
+	    first[i] = readValue(buffer, precision, integer);
+	    second[i] = readValue(buffer, precision, integer);
+	}
+	return numOfPairs;
+    }
+
+    private static double readValue(ByteBuffer buffer, int precision,
+	    boolean integer) {
+	if (precision == 64)
+	    return integer ? buffer.getLong() : buffer.getDouble();
+	return integer ? buffer.getInt() : buffer.getFloat();
+    }
+
+    private void ensureCapacity(int capacity) {
+	if (bytes.length >= capacity)
+	    return;
+	byte newBytes[] = new byte[Math.max(capacity, bytes.length * 2)];
+	System.arraycopy(bytes, 0, newBytes, 0, numOfBytes);
+	bytes = newBytes;
+    }
+
+    private void ensureSwapCapacity(int capacity) {
+	if (swapBytes.length >= capacity)
+	    return;
+	byte newBytes[] = new byte[Math.max(capacity, swapBytes.length * 2)];
+	System.arraycopy(swapBytes, 0, newBytes, 0, swapBytes.length);
+	swapBytes = newBytes;
+    }
+
+}
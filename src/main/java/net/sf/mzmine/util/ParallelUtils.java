@@ -0,0 +1,212 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.taskcontrol.TaskController;
+
+/**
+ * Helpers for splitting the work of a task over the shared thread pool of the
+ * task controller.
+ */
+public class ParallelUtils {
+
+    /**
+     * A piece of work operating on a range of item indexes.
+     */
+    public interface IndexRangeProcessor {
+
+	/**
+	 * Processes items from startIndex (inclusive) to endIndex (exclusive).
+	 */
+	void process(int startIndex, int endIndex);
+
+    }
+
+    /**
+     * Returns the number of threads that parallel processing may use.
+     */
+    public static int getNumberOfThreads() {
+	TaskController taskController = MZmineCore.getTaskController();
+	if (taskController == null)
+	    return 1;
+	return taskController.getMaxRunningThreads();
+    }
+
+    /**
+     * Processes numOfItems items in blocks of blockSize items, using the shared
+     * thread pool of the task controller. The calling thread takes part in the
+     * processing, so this method can be safely called even when the pool is
+     * fully occupied. It returns when all blocks have been processed. The
+     * first exception thrown by the processor is re-thrown to the caller and
+     * the remaining blocks are skipped.
+     */
+    public static void processInParallel(final int numOfItems,
+	    final int blockSize, final IndexRangeProcessor processor) {
+
+	if (numOfItems <= 0)
+	    return;
+	if (blockSize <= 0)
+	    throw new IllegalArgumentException("Invalid block size " + blockSize);
+
+	final int numOfBlocks = (numOfItems + blockSize - 1) / blockSize;
+	final int numOfThreads = Math.min(getNumberOfThreads(), numOfBlocks);
+
+	// Nothing to gain from other threads
+	if (numOfThreads <= 1) {
+	    processor.process(0, numOfItems);
+	    return;
+	}
+
+	final BlockWorker worker = new BlockWorker(numOfItems, blockSize,
+		processor);
+
+	ExecutorService executor = MZmineCore.getTaskController()
+		.getExecutor();
+	for (int i = 0; i < numOfThreads - 1; i++) {
+	    try {
+		executor.execute(worker);
+	    } catch (RejectedExecutionException e) {
+		break;
+	    }
+	}
+
+	// Work in the calling thread, too, then wait for the helpers
+	worker.run();
+	worker.awaitHelpers();
+
+	Throwable error = worker.getError();
+	if (error instanceof RuntimeException)
+	    throw (RuntimeException) error;
+	if (error instanceof Error)
+	    throw (Error) error;
+    }
+
+    /**
+     * Submits a piece of work to the shared thread pool of the task
+     * controller. The result should be obtained by getResult().
+     */
+    public static <T> FutureTask<T> submit(Callable<T> work) {
+	FutureTask<T> future = new FutureTask<T>(work);
+	TaskController taskController = MZmineCore.getTaskController();
+	if (taskController != null) {
+	    try {
+		taskController.getExecutor().execute(future);
+	    } catch (RejectedExecutionException e) {
+		// The work will be done by getResult()
+	    }
+	}
+	return future;
+    }
+
+    /**
+     * Returns the result of work submitted by submit(). If no pool thread has
+     * started the work yet, it is done in the calling thread, so this method
+     * never waits for a thread which is still sitting in the pool queue.
+     * 
+     * @throws ExecutionException
+     *             if the work threw an exception
+     */
+    public static <T> T getResult(FutureTask<T> future)
+	    throws ExecutionException {
+	// Does nothing if the work has already been started
+	future.run();
+	while (true) {
+	    try {
+		return future.get();
+	    } catch (InterruptedException e) {
+		// Ignore
+	    }
+	}
+    }
+
+    /**
+     * Takes blocks of items until all blocks are taken. Helpers that start
+     * after all the work has been claimed return immediately, so the caller
+     * never has to wait for a helper that is still sitting in the pool queue.
+     */
+    private static class BlockWorker implements Runnable {
+
+	private final int numOfItems, blockSize;
+	private final IndexRangeProcessor processor;
+	private final AtomicInteger nextIndex = new AtomicInteger();
+	private int runningHelpers = 0;
+	private boolean closed = false;
+	private volatile Throwable error;
+
+	BlockWorker(int numOfItems, int blockSize,
+		IndexRangeProcessor processor) {
+	    this.numOfItems = numOfItems;
+	    this.blockSize = blockSize;
+	    this.processor = processor;
+	}
+
+	public void run() {
+	    synchronized (this) {
+		if (closed)
+		    return;
+		runningHelpers++;
+	    }
+	    try {
+		while (true) {
+		    int start = nextIndex.getAndAdd(blockSize);
+		    if (start >= numOfItems)
+			break;
+		    int end = Math.min(start + blockSize, numOfItems);
+		    processor.process(start, end);
+		}
+	    } catch (Throwable e) {
+		if (error == null)
+		    error = e;
+		// Skip the remaining blocks
+		nextIndex.set(numOfItems);
+	    } finally {
+		synchronized (this) {
+		    runningHelpers--;
+		    notifyAll();
+		}
+	    }
+	}
+
+	synchronized void awaitHelpers() {
+	    closed = true;
+	    while (runningHelpers > 0) {
+		try {
+		    wait();
+		} catch (InterruptedException e) {
+		    // Ignore
+		}
+	    }
+	}
+
+	Throwable getError() {
+	    return error;
+	}
+
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+
+/**
+ * Retention times of all scans of a raw data file, so that peak processing
+ * methods do not have to call RawDataFile.getScan() for every data point.
+ * Tables are shared through getTable() and are never modified, so they can
+ * be used by several threads at once. The table must not be requested before
+ * all scans have been added to the raw data file.
+ */
+public class RetentionTimeTable {
+
+    private static final Map<RawDataFile, RetentionTimeTable> tables = new WeakHashMap<RawDataFile, RetentionTimeTable>();
+
+    // The table must not refer to the raw data file, which is the weak key
+    private final String dataFileName;
+    private final int scanNumbers[];
+    private final double retentionTimes[];
+    private final int ms1ScanNumbers[];
+    private final double ms1RetentionTimes[];
+
+    private RetentionTimeTable(RawDataFile dataFile) {
+	this.dataFileName = dataFile.getName();
+
+	// Scan numbers are returned sorted
+	scanNumbers = dataFile.getScanNumbers();
+	retentionTimes = new double[scanNumbers.length];
+	for (int i = 0; i < scanNumbers.length; i++)
+	    retentionTimes[i] = dataFile.getScan(scanNumbers[i])
+		    .getRetentionTime();
+
+	ms1ScanNumbers = dataFile.getScanNumbers(1);
+	ms1RetentionTimes = new double[ms1ScanNumbers.length];
+	for (int i = 0; i < ms1ScanNumbers.length; i++)
+	    ms1RetentionTimes[i] = getRetentionTime(ms1ScanNumbers[i]);
+    }
+
+    /**
+     * Returns the table of the given raw data file. The table is created on
+     * the first request and kept as long as the raw data file is in use.
+     */
+    public static RetentionTimeTable getTable(RawDataFile dataFile) {
+	synchronized (tables) {
+	    RetentionTimeTable table = tables.get(dataFile);
+	    if (table == null) {
+		table = new RetentionTimeTable(dataFile);
+		tables.put(dataFile, table);
+	    }
+	    return table;
+	}
+    }
+
+    /**
+     * Returns the retention time of the given scan, the same value as
+     * dataFile.getScan(scanNumber).getRetentionTime()
+     */
+    public double getRetentionTime(int scanNumber) {
+	int index = Arrays.binarySearch(scanNumbers, scanNumber);
+	if (index < 0)
+	    throw new IllegalArgumentException("Scan #" + scanNumber
+		    + " does not exist in " + dataFileName);
+	return retentionTimes[index];
+    }
+
+    /**
+     * Returns the MS1 scan numbers, the same array as
+     * dataFile.getScanNumbers(1). The returned array must not be modified.
+     */
+    public int[] getMS1ScanNumbers() {
+	return ms1ScanNumbers;
+    }
+
+    /**
+     * Returns the retention times of the scans returned by
+     * getMS1ScanNumbers(). The returned array must not be modified.
+     */
+    public double[] getMS1RetentionTimes() {
+	return ms1RetentionTimes;
+    }
+
+}
@@ -387,31 +387,75 @@ public class ScanUtils {
      * uses multiple checks for that purpose, as described in the code comments.
      */
     public static MassSpectrumType detectSpectrumType(
-	    @Nonnull DataPoint[] dataPoints) {
+	    @Nonnull final DataPoint[] dataPoints) {
+	return detectSpectrumType(new SpectrumValues() {
+	    public double getMZ(int index) {
+		return dataPoints[index].getMZ();
+	    }
+
+	    public double getIntensity(int index) {
+		return dataPoints[index].getIntensity();
+	    }
+	}, dataPoints.length);
+    }
+
+    /**
+     * Same as detectSpectrumType(DataPoint[]), for data points given as
+     * separate arrays of m/z and intensity values. Only the first
+     * numOfDataPoints values of the arrays are considered.
+     */
+    public static MassSpectrumType detectSpectrumType(
+	    @Nonnull final double mzValues[],
+	    @Nonnull final double intensityValues[], int numOfDataPoints) {
+	return detectSpectrumType(new SpectrumValues() {
+	    public double getMZ(int index) {
+		return mzValues[index];
+	    }
+
+	    public double getIntensity(int index) {
+		return intensityValues[index];
+	    }
+	}, numOfDataPoints);
+    }
+
+    /**
+     * Gives access to the m/z and intensity values of a spectrum, so that
+     * the detection does not have to copy them
+     */
+    private interface SpectrumValues {
+
+	double getMZ(int index);
+
+	double getIntensity(int index);
+
+    }
+
+    private static MassSpectrumType detectSpectrumType(SpectrumValues values,
+	    int numOfDataPoints) {
 
 	// If the spectrum has less than 5 data points, it should be centroided.
-	if (dataPoints.length < 5)
+	if (numOfDataPoints < 5)
 	    return MassSpectrumType.CENTROIDED;
 
 	// Go through the data points and find the highest one
 	double maxIntensity = 0.0;
 	int topDataPointIndex = 0;
-	for (int i = 0; i < dataPoints.length; i++) {
+	for (int i = 0; i < numOfDataPoints; i++) {
 
 	    // If the spectrum contains data points of zero intensity, it should
 	    // be in profile mode
-	    if (dataPoints[i].getIntensity() == 0.0) {
+	    if (values.getIntensity(i) == 0.0) {
 		return MassSpectrumType.PROFILE;
 	    }
 
 	    // Let's ignore the first and the last data point, because
 	    // that would complicate our following checks
-	    if ((i == 0) || (i == dataPoints.length - 1))
+	    if ((i == 0) || (i == numOfDataPoints - 1))
 		continue;
 
 	    // Update the maxDataPointIndex accordingly
-	    if (dataPoints[i].getIntensity() > maxIntensity) {
-		maxIntensity = dataPoints[i].getIntensity();
+	    if (values.getIntensity(i) > maxIntensity) {
+		maxIntensity = values.getIntensity(i);
 		topDataPointIndex = i;
 	    }
 	}
@@ -419,13 +463,13 @@ public class ScanUtils {
 	// Now we have the index of the top data point (except the first and
 	// the last). We also know the spectrum has at least 5 data points.
 	assert topDataPointIndex > 0;
-	assert topDataPointIndex < dataPoints.length - 1;
-	assert dataPoints.length >= 5;
+	assert topDataPointIndex < numOfDataPoints - 1;
+	assert numOfDataPoints >= 5;
 
 	// Calculate the m/z difference between the top data point and the
 	// previous one
-	final double topMzDifference = Math.abs(dataPoints[topDataPointIndex]
-		.getMZ() - dataPoints[topDataPointIndex - 1].getMZ());
+	final double topMzDifference = Math.abs(values.getMZ(topDataPointIndex)
+		- values.getMZ(topDataPointIndex - 1));
 
 	// For 5 data points around the top one (with the top one in the
 	// center), we check the distribution of the m/z values. If the spectrum
@@ -435,11 +479,11 @@ public class ScanUtils {
 	for (int i = topDataPointIndex - 2; i < topDataPointIndex + 2; i++) {
 
 	    // Check if the index is within acceptable range
-	    if ((i < 1) || (i > dataPoints.length - 1))
+	    if ((i < 1) || (i > numOfDataPoints - 1))
 		continue;
 
-	    final double currentMzDifference = Math.abs(dataPoints[i].getMZ()
-		    - dataPoints[i - 1].getMZ());
+	    final double currentMzDifference = Math.abs(values.getMZ(i)
+		    - values.getMZ(i - 1));
 
 	    // Check if the m/z distance of the pair of consecutive data points
 	    // falls within 25% tolerance of the distance of the top data point
@@ -458,9 +502,9 @@ public class ScanUtils {
 	// low-resolution spectra, so we can check the m/z difference the 3
 	// consecutive data points (with the top one in the middle). If it goes
 	// above 0.1, the spectrum should be centroided.
-	final double mzDifferenceTopThree = Math
-		.abs(dataPoints[topDataPointIndex - 1].getMZ()
-			- dataPoints[topDataPointIndex + 1].getMZ());
+	final double mzDifferenceTopThree = Math.abs(values
+		.getMZ(topDataPointIndex - 1)
+		- values.getMZ(topDataPointIndex + 1));
 	if (mzDifferenceTopThree > 0.1)
 	    return MassSpectrumType.CENTROIDED;
 
@@ -470,10 +514,10 @@ public class ScanUtils {
 	// their intensity is above 1/3 of the top data point. If not, the
 	// spectrum should be centroided.
 	final double thirdMaxIntensity = maxIntensity / 3;
-	final double leftDataPointIntensity = dataPoints[topDataPointIndex - 1]
-		.getIntensity();
-	final double rightDataPointIntensity = dataPoints[topDataPointIndex + 1]
-		.getIntensity();
+	final double leftDataPointIntensity = values
+		.getIntensity(topDataPointIndex - 1);
+	final double rightDataPointIntensity = values
+		.getIntensity(topDataPointIndex + 1);
 	if ((leftDataPointIntensity < thirdMaxIntensity)
 		|| (rightDataPointIntensity < thirdMaxIntensity))
 	    return MassSpectrumType.CENTROIDED;
@@ -498,24 +542,22 @@ public class ScanUtils {
 	int bestFragmentScan = -1;
 	double topBasePeak = 0;
 
-	int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
+	int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange,
+		mzRange);
 
 	for (int number : fragmentScanNumbers) {
 
 	    Scan scan = dataFile.getScan(number);
 
-	    if (mzRange.contains(scan.getPrecursorMZ())) {
+	    DataPoint basePeak = scan.getHighestDataPoint();
 
-		DataPoint basePeak = scan.getHighestDataPoint();
-
-		// If there is no peak in the scan, basePeak can be null
-		if (basePeak == null)
-		    continue;
+	    // If there is no peak in the scan, basePeak can be null
+	    if (basePeak == null)
+		continue;
 
-		if (basePeak.getIntensity() > topBasePeak) {
-		    bestFragmentScan = scan.getScanNumber();
-		    topBasePeak = basePeak.getIntensity();
-		}
+	    if (basePeak.getIntensity() > topBasePeak) {
+		bestFragmentScan = scan.getScanNumber();
+		topBasePeak = basePeak.getIntensity();
 	    }
 
 	}
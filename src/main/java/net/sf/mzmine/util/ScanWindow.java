@@ -0,0 +1,193 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.project.impl.StorableScan;
+
+/**
+ * A window of neighbouring scans sliding over a raw data file, as used by
+ * filters which combine each scan with the scans around it. The data points
+ * of each scan are read and decoded only once while the scan stays within the
+ * window, and kept as m/z and intensity arrays in a ring buffer. Scans stored
+ * in a temporary file are decoded directly into these arrays, without creating
+ * DataPoint instances.
+ * 
+ * The window is defined by indexes into the array of scan numbers given to
+ * the constructor. It can move in any direction, but it only saves work when
+ * consecutive windows overlap.
+ */
+public class ScanWindow {
+
+    private final RawDataFile dataFile;
+    private final int scanNumbers[];
+
+    // Ring buffer, the scan at index i is kept in slot (i % capacity)
+    private int slotIndexes[] = new int[0];
+    private double slotMZValues[][] = new double[0][];
+    private double slotIntensityValues[][] = new double[0][];
+
+    private int firstIndex = 0, lastIndex = -1;
+    private volatile int decodedScans = 0;
+
+    private static final double EMPTY[] = new double[0];
+
+    /**
+     * @param dataFile
+     *            Raw data file to read the scans from
+     * @param scanNumbers
+     *            Scan numbers, in the order in which the window slides over
+     *            them
+     */
+    public ScanWindow(@Nonnull RawDataFile dataFile, @Nonnull int scanNumbers[]) {
+	this.dataFile = dataFile;
+	this.scanNumbers = scanNumbers;
+    }
+
+    /**
+     * Moves the window to cover the scans from firstIndex to lastIndex
+     * (inclusive). Scans which were already in the window are kept, the
+     * others are read from the data file.
+     */
+    public void moveTo(int firstIndex, int lastIndex) {
+
+	if ((firstIndex < 0) || (lastIndex >= scanNumbers.length)
+		|| (firstIndex > lastIndex + 1)) {
+	    throw new IllegalArgumentException("Invalid scan window "
+		    + firstIndex + "-" + lastIndex);
+	}
+
+	final int size = lastIndex - firstIndex + 1;
+	if (size > slotIndexes.length)
+	    ensureCapacity(size);
+
+	for (int i = firstIndex; i <= lastIndex; i++) {
+	    final int slot = i % slotIndexes.length;
+	    if (slotIndexes[slot] == i)
+		continue;
+	    slotIndexes[slot] = i;
+	    decode(slot, scanNumbers[i]);
+	}
+
+	this.firstIndex = firstIndex;
+	this.lastIndex = lastIndex;
+
+    }
+
+    /**
+     * Returns the index of the first scan in the window
+     */
+    public int getFirstIndex() {
+	return firstIndex;
+    }
+
+    /**
+     * Returns the index of the last scan in the window
+     */
+    public int getLastIndex() {
+	return lastIndex;
+    }
+
+    /**
+     * Returns the m/z values of the scan at given index, which must be within
+     * the window. The returned array must not be modified.
+     */
+    public @Nonnull double[] getMZValues(int index) {
+	return slotMZValues[getSlot(index)];
+    }
+
+    /**
+     * Returns the intensity values of the scan at given index, which must be
+     * within the window. The returned array must not be modified.
+     */
+    public @Nonnull double[] getIntensityValues(int index) {
+	return slotIntensityValues[getSlot(index)];
+    }
+
+    /**
+     * Returns how many times the data points of a scan were decoded, for
+     * comparison with the number of scans in the file
+     */
+    public int getNumberOfDecodedScans() {
+	return decodedScans;
+    }
+
+    private int getSlot(int index) {
+	if ((index < firstIndex) || (index > lastIndex)) {
+	    throw new IndexOutOfBoundsException("Scan index " + index
+		    + " is outside of the window " + firstIndex + "-"
+		    + lastIndex);
+	}
+	return index % slotIndexes.length;
+    }
+
+    private void decode(int slot, int scanNumber) {
+	decodedScans++;
+	Scan scan = dataFile.getScan(scanNumber);
+	if (scan == null) {
+	    slotMZValues[slot] = EMPTY;
+	    slotIntensityValues[slot] = EMPTY;
+	    return;
+	}
+	if (scan instanceof StorableScan) {
+	    double values[][] = ((StorableScan) scan).getDataPointValues();
+	    slotMZValues[slot] = values[0];
+	    slotIntensityValues[slot] = values[1];
+	    return;
+	}
+	DataPoint dataPoints[] = scan.getDataPoints();
+	double mzValues[] = new double[dataPoints.length];
+	double intensityValues[] = new double[dataPoints.length];
+	for (int i = 0; i < dataPoints.length; i++) {
+	    mzValues[i] = dataPoints[i].getMZ();
+	    intensityValues[i] = dataPoints[i].getIntensity();
+	}
+	slotMZValues[slot] = mzValues;
+	slotIntensityValues[slot] = intensityValues;
+    }
+
+    /**
+     * Enlarges the ring buffer, keeping the scans of the current window
+     */
+    private void ensureCapacity(int size) {
+	final int capacity = Math.max(size, slotIndexes.length * 2);
+	int newIndexes[] = new int[capacity];
+	double newMZValues[][] = new double[capacity][];
+	double newIntensityValues[][] = new double[capacity][];
+	Arrays.fill(newIndexes, -1);
+	for (int i = firstIndex; i <= lastIndex; i++) {
+	    final int oldSlot = i % slotIndexes.length;
+	    final int newSlot = i % capacity;
+	    newIndexes[newSlot] = i;
+	    newMZValues[newSlot] = slotMZValues[oldSlot];
+	    newIntensityValues[newSlot] = slotIntensityValues[oldSlot];
+	}
+	slotIndexes = newIndexes;
+	slotMZValues = newMZValues;
+	slotIntensityValues = newIntensityValues;
+    }
+
+}
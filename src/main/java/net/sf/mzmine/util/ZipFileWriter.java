@@ -0,0 +1,592 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import net.sf.mzmine.util.ZipUtils.ZipEntryInfo;
+
+/**
+ * Writes ZIP files. Compared to java.util.zip.ZipOutputStream, this writer can
+ * 
+ * - stream STORED entries without knowing their size and CRC in advance (the
+ * local header is updated when the entry is closed),
+ * 
+ * - align the data of STORED entries, so they can be memory-mapped,
+ * 
+ * - copy entries from another ZIP file without decompressing them,
+ * 
+ * - append new entries to an existing ZIP file, keeping selected entries of
+ * that file in place, without rewriting them.
+ * 
+ * DEFLATED entries are compressed directly into the ZIP file, and their CRC
+ * and sizes are written in a data descriptor after the data. Local headers of
+ * streamed STORED entries contain a ZIP64 extra field, so entries of any size
+ * can be written; the central directory then contains a ZIP64 extra field as
+ * well. The writer never truncates the ZIP file, so it can be used with files
+ * which are memory-mapped (which cannot be truncated on some platforms, e.g.
+ * Windows). Entries must be written one at a time.
+ */
+public class ZipFileWriter {
+
+    private static final int VERSION = 45;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int ZIP64_LOCAL_EXTRA_SIZE = 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean append;
+    private final long originalLength;
+    private final List<ZipEntryInfo> entries = new ArrayList<ZipEntryInfo>();
+    private final int dosTime = getDosTime(System.currentTimeMillis());
+    private EntryOutputStream currentEntry;
+
+    // Central directory of the file opened for appending
+    private long originalCentralDirOffset, originalCentralDirSize;
+    private int originalEntryCount;
+
+    /**
+     * Creates a new ZIP file. The file must not exist or it must be empty.
+     */
+    public ZipFileWriter(File zipFile) throws IOException {
+	this(zipFile, false);
+    }
+
+    /**
+     * Opens a ZIP file for writing.
+     * 
+     * @param append
+     *            if true, the existing file is kept and new entries are
+     *            written after its current end. Existing entries can be kept
+     *            by keepEntry(), all other existing entries are dropped when
+     *            finish() writes the new central directory. If abort() is
+     *            called instead of finish(), the original central directory
+     *            is written again at the end of the file, so the file remains
+     *            valid and the appended data are left unused. If false, the
+     *            file must not exist or it must be empty.
+     */
+    public ZipFileWriter(File zipFile, boolean append) throws IOException {
+	this.file = new RandomAccessFile(zipFile, "rw");
+	this.channel = file.getChannel();
+	this.append = append;
+	try {
+	    originalLength = channel.size();
+	    if (append) {
+		long centralDir[] = ZipUtils.findCentralDirectory(channel);
+		originalCentralDirOffset = centralDir[0];
+		originalCentralDirSize = centralDir[1];
+		originalEntryCount = ZipUtils.readCentralDirectory(channel)
+			.size();
+	    } else if (originalLength > 0) {
+		throw new IOException("Cannot create ZIP file " + zipFile
+			+ ", because the file is not empty");
+	    }
+	    channel.position(originalLength);
+	} catch (IOException e) {
+	    file.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Returns the current size of the ZIP file.
+     */
+    public long getPosition() throws IOException {
+	return channel.position();
+    }
+
+    /**
+     * Starts a new STORED entry. The data written to the returned stream are
+     * stored uncompressed. The stream must be closed before another entry is
+     * started.
+     * 
+     * @param alignment
+     *            the offset of the entry data within the ZIP file will be
+     *            divisible by this number
+     */
+    public OutputStream putStoredEntry(String name, int alignment)
+	    throws IOException {
+	checkNoOpenEntry();
+	long headerOffset = channel.position();
+	writeLocalHeader(name, ZipEntry.STORED, UTF8_FLAG, 0, 0, 0, true,
+		alignment);
+	currentEntry = new EntryOutputStream(name, ZipEntry.STORED,
+		headerOffset);
+	return currentEntry;
+    }
+
+    /**
+     * Starts a new DEFLATED entry. The data written to the returned stream are
+     * compressed in the calling thread, directly into the ZIP file. The stream
+     * must be closed before another entry is started.
+     */
+    public OutputStream putDeflatedEntry(String name) throws IOException {
+	checkNoOpenEntry();
+	long headerOffset = channel.position();
+	writeLocalHeader(name, ZipEntry.DEFLATED, UTF8_FLAG
+		| DATA_DESCRIPTOR_FLAG, 0, 0, 0, false, 1);
+	currentEntry = new EntryOutputStream(name, ZipEntry.DEFLATED,
+		headerOffset);
+	return currentEntry;
+    }
+
+    /**
+     * Keeps an existing entry of the file opened for appending. The entry is
+     * listed in the central directory in the order in which this method was
+     * called, relative to the other entries.
+     * 
+     * @param entry
+     *            entry of this file, as returned by
+     *            ZipUtils.readCentralDirectory()
+     */
+    public void keepEntry(ZipEntryInfo entry) throws IOException {
+	if (!append)
+	    throw new IllegalStateException("The ZIP file was not appended");
+
+	// The central directory must describe the entry the same way as its
+	// local header does
+	boolean zip64Extra = ZipUtils.hasZip64LocalExtra(channel, entry);
+	entries.add(new ZipEntryInfo(entry.getName(), entry.getMethod(), entry
+		.getFlags(), entry.getDosTime(), entry.getCrc(), entry
+		.getCompressedSize(), entry.getSize(), entry
+		.getLocalHeaderOffset(), zip64Extra));
+    }
+
+    /**
+     * Copies the given entry of another ZIP file without decompressing it.
+     * 
+     * @param alignment
+     *            the offset of the entry data within the ZIP file will be
+     *            divisible by this number
+     */
+    public void copyEntry(File sourceFile, ZipEntryInfo entry, int alignment)
+	    throws IOException {
+	checkNoOpenEntry();
+	RandomAccessFile source = new RandomAccessFile(sourceFile, "r");
+	try {
+	    long dataOffset = ZipUtils.getEntryDataOffset(source.getChannel(),
+		    entry);
+	    long headerOffset = channel.position();
+
+	    // We always write the sizes in the local header, so the entry does
+	    // not need a data descriptor anymore
+	    boolean zip64Extra = needsZip64(entry.getSize(),
+		    entry.getCompressedSize());
+	    writeLocalHeader(entry.getName(), entry.getMethod(), UTF8_FLAG,
+		    entry.getCrc(), entry.getCompressedSize(), entry.getSize(),
+		    zip64Extra, alignment);
+	    transfer(source.getChannel(), dataOffset,
+		    entry.getCompressedSize());
+	    entries.add(new ZipEntryInfo(entry.getName(), entry.getMethod(),
+		    UTF8_FLAG, entry.getDosTime(), entry.getCrc(), entry
+			    .getCompressedSize(), entry.getSize(),
+		    headerOffset, zip64Extra));
+	} finally {
+	    source.close();
+	}
+    }
+
+    /**
+     * Writes the central directory and closes the file.
+     */
+    public void finish() throws IOException {
+	checkNoOpenEntry();
+
+	long centralDirOffset = channel.position();
+	OutputStream out = new BufferedOutputStream(
+		Channels.newOutputStream(channel), 1 << 16);
+	ByteBuffer buffer = ByteBuffer.allocate(ZipUtils.CENTRAL_HEADER_SIZE
+		+ 0xFFFF + 28);
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+	for (ZipEntryInfo entry : entries) {
+	    byte name[] = entry.getName().getBytes(ZipUtils.UTF8);
+
+	    // When the local header contains a ZIP64 extra field, the central
+	    // header must contain it as well
+	    boolean zip64Size = entry.hasZip64Extra()
+		    || needsZip64(entry.getSize(), entry.getCompressedSize());
+	    boolean zip64Offset = entry.getLocalHeaderOffset() >= ZipUtils.ZIP64_MAGIC;
+	    int extraLength = (zip64Size || zip64Offset) ? 4
+		    + (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0) : 0;
+
+	    buffer.clear();
+	    buffer.putInt(ZipUtils.CENTRAL_HEADER_SIGNATURE);
+	    buffer.putShort((short) VERSION);
+	    buffer.putShort((short) VERSION);
+	    buffer.putShort((short) entry.getFlags());
+	    buffer.putShort((short) entry.getMethod());
+	    buffer.putInt(entry.getDosTime());
+	    buffer.putInt((int) entry.getCrc());
+	    buffer.putInt((int) (zip64Size ? ZipUtils.ZIP64_MAGIC : entry
+		    .getCompressedSize()));
+	    buffer.putInt((int) (zip64Size ? ZipUtils.ZIP64_MAGIC : entry
+		    .getSize()));
+	    buffer.putShort((short) name.length);
+	    buffer.putShort((short) extraLength);
+	    buffer.putShort((short) 0); // comment length
+	    buffer.putShort((short) 0); // disk number
+	    buffer.putShort((short) 0); // internal attributes
+	    buffer.putInt(0); // external attributes
+	    buffer.putInt((int) (zip64Offset ? ZipUtils.ZIP64_MAGIC : entry
+		    .getLocalHeaderOffset()));
+	    buffer.put(name);
+	    if (extraLength > 0) {
+		buffer.putShort((short) ZipUtils.ZIP64_EXTRA_ID);
+		buffer.putShort((short) (extraLength - 4));
+		if (zip64Size) {
+		    buffer.putLong(entry.getSize());
+		    buffer.putLong(entry.getCompressedSize());
+		}
+		if (zip64Offset)
+		    buffer.putLong(entry.getLocalHeaderOffset());
+	    }
+	    out.write(buffer.array(), 0, buffer.position());
+	}
+	out.flush();
+
+	long centralDirSize = channel.position() - centralDirOffset;
+	writeEndOfCentralDirectory(centralDirOffset, centralDirSize,
+		entries.size());
+
+	channel.force(true);
+	file.close();
+    }
+
+    /**
+     * Abandons writing. When a file opened for appending was modified, its
+     * original central directory is written again at the end of the file, so
+     * the file remains valid. A new file is left incomplete and should be
+     * deleted by the caller.
+     */
+    public void abort() throws IOException {
+	try {
+	    if (append && (channel.size() > originalLength)) {
+		ByteBuffer centralDir = ZipUtils.read(channel,
+			originalCentralDirOffset,
+			(int) originalCentralDirSize);
+		long centralDirOffset = channel.size();
+		channel.position(centralDirOffset);
+		writeFully(centralDir);
+		writeEndOfCentralDirectory(centralDirOffset,
+			originalCentralDirSize, originalEntryCount);
+		channel.force(true);
+	    }
+	} finally {
+	    file.close();
+	}
+    }
+
+    private void checkNoOpenEntry() {
+	if (currentEntry != null)
+	    throw new IllegalStateException("Entry " + currentEntry.name
+		    + " was not closed");
+    }
+
+    private static boolean needsZip64(long size, long compressedSize) {
+	return (size >= ZipUtils.ZIP64_MAGIC)
+		|| (compressedSize >= ZipUtils.ZIP64_MAGIC);
+    }
+
+    /**
+     * Writes the end of central directory record at the current position,
+     * preceded by the ZIP64 end records if needed.
+     */
+    private void writeEndOfCentralDirectory(long centralDirOffset,
+	    long centralDirSize, int numOfEntries) throws IOException {
+
+	long centralDirEnd = centralDirOffset + centralDirSize;
+	boolean zip64 = (numOfEntries >= 0xFFFF)
+		|| (centralDirOffset >= ZipUtils.ZIP64_MAGIC)
+		|| (centralDirSize >= ZipUtils.ZIP64_MAGIC);
+
+	ByteBuffer buffer = ByteBuffer.allocate(ZipUtils.ZIP64_END_HEADER_SIZE
+		+ ZipUtils.ZIP64_LOCATOR_SIZE + ZipUtils.END_HEADER_SIZE);
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	if (zip64) {
+	    buffer.putInt(ZipUtils.ZIP64_END_HEADER_SIGNATURE);
+	    buffer.putLong(ZipUtils.ZIP64_END_HEADER_SIZE - 12);
+	    buffer.putShort((short) VERSION);
+	    buffer.putShort((short) VERSION);
+	    buffer.putInt(0); // number of this disk
+	    buffer.putInt(0); // disk with the central directory
+	    buffer.putLong(numOfEntries);
+	    buffer.putLong(numOfEntries);
+	    buffer.putLong(centralDirSize);
+	    buffer.putLong(centralDirOffset);
+
+	    buffer.putInt(ZipUtils.ZIP64_LOCATOR_SIGNATURE);
+	    buffer.putInt(0);
+	    buffer.putLong(centralDirEnd);
+	    buffer.putInt(1); // total number of disks
+	}
+	buffer.putInt(ZipUtils.END_HEADER_SIGNATURE);
+	buffer.putShort((short) 0);
+	buffer.putShort((short) 0);
+	buffer.putShort((short) Math.min(numOfEntries, 0xFFFF));
+	buffer.putShort((short) Math.min(numOfEntries, 0xFFFF));
+	buffer.putInt((int) Math.min(centralDirSize, ZipUtils.ZIP64_MAGIC));
+	buffer.putInt((int) Math.min(centralDirOffset, ZipUtils.ZIP64_MAGIC));
+	buffer.putShort((short) 0); // comment length
+	buffer.flip();
+	writeFully(buffer);
+    }
+
+    /**
+     * Writes a local header at the current position, padded so that the entry
+     * data will start at an aligned offset.
+     * 
+     * @param zip64Extra
+     *            if true, the sizes are written into a ZIP64 extra field
+     */
+    private void writeLocalHeader(String name, int method, int flags,
+	    long crc, long compressedSize, long size, boolean zip64Extra,
+	    int alignment) throws IOException {
+
+	byte nameBytes[] = name.getBytes(ZipUtils.UTF8);
+	int zip64ExtraSize = zip64Extra ? ZIP64_LOCAL_EXTRA_SIZE : 0;
+	long dataOffset = channel.position() + ZipUtils.LOCAL_HEADER_SIZE
+		+ nameBytes.length + zip64ExtraSize;
+
+	// The padding extra field has a 4 byte header, so we may have to pad
+	// to the next alignment boundary
+	int paddingFieldSize = 0;
+	int misalignment = (int) (dataOffset % alignment);
+	if (misalignment != 0) {
+	    paddingFieldSize = alignment - misalignment;
+	    while (paddingFieldSize < 4)
+		paddingFieldSize += alignment;
+	}
+
+	ByteBuffer buffer = ByteBuffer.allocate(ZipUtils.LOCAL_HEADER_SIZE
+		+ nameBytes.length + zip64ExtraSize + paddingFieldSize);
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	buffer.putInt(ZipUtils.LOCAL_HEADER_SIGNATURE);
+	buffer.putShort((short) VERSION);
+	buffer.putShort((short) flags);
+	buffer.putShort((short) method);
+	buffer.putInt(dosTime);
+	buffer.putInt((int) crc);
+	buffer.putInt((int) (zip64Extra ? ZipUtils.ZIP64_MAGIC
+		: compressedSize));
+	buffer.putInt((int) (zip64Extra ? ZipUtils.ZIP64_MAGIC : size));
+	buffer.putShort((short) nameBytes.length);
+	buffer.putShort((short) (zip64ExtraSize + paddingFieldSize));
+	buffer.put(nameBytes);
+	if (zip64Extra) {
+	    buffer.putShort((short) ZipUtils.ZIP64_EXTRA_ID);
+	    buffer.putShort((short) 16);
+	    buffer.putLong(size);
+	    buffer.putLong(compressedSize);
+	}
+	if (paddingFieldSize > 0) {
+	    buffer.putShort((short) ZipUtils.ALIGNMENT_EXTRA_ID);
+	    buffer.putShort((short) (paddingFieldSize - 4));
+	}
+	buffer.rewind();
+	writeFully(buffer);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+	while (buffer.hasRemaining())
+	    channel.write(buffer);
+    }
+
+    private void transfer(FileChannel source, long position, long length)
+	    throws IOException {
+	long transferred = 0;
+	while (transferred < length) {
+	    long count = source.transferTo(position + transferred, length
+		    - transferred, channel);
+	    if (count <= 0)
+		throw new IOException("Unexpected end of file");
+	    transferred += count;
+	}
+    }
+
+    private static int getDosTime(long time) {
+	Calendar calendar = Calendar.getInstance();
+	calendar.setTimeInMillis(time);
+	int year = calendar.get(Calendar.YEAR);
+	if (year < 1980)
+	    return (1 << 21) | (1 << 16);
+	return ((year - 1980) << 25)
+		| ((calendar.get(Calendar.MONTH) + 1) << 21)
+		| (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+		| (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+		| (calendar.get(Calendar.MINUTE) << 5)
+		| (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Counts the bytes written to the underlying stream.
+     */
+    private static class CountingStream extends FilterOutputStream {
+
+	private long count = 0;
+
+	CountingStream(OutputStream out) {
+	    super(out);
+	}
+
+	public void write(int b) throws IOException {
+	    out.write(b);
+	    count++;
+	}
+
+	public void write(byte b[], int off, int len) throws IOException {
+	    out.write(b, off, len);
+	    count += len;
+	}
+
+	long getCount() {
+	    return count;
+	}
+
+    }
+
+    /**
+     * Stream of one entry. Computes the CRC and sizes of the entry. When the
+     * stream is closed, they are written into the local header of a STORED
+     * entry, or into the data descriptor following a DEFLATED entry.
+     */
+    private class EntryOutputStream extends OutputStream {
+
+	private final String name;
+	private final int method;
+	private final long headerOffset;
+	private final CRC32 crc = new CRC32();
+	private final CountingStream compressedStream;
+	private final Deflater deflater;
+	private final OutputStream out;
+	private long size = 0;
+	private boolean closed = false;
+
+	EntryOutputStream(String name, int method, long headerOffset) {
+	    this.name = name;
+	    this.method = method;
+	    this.headerOffset = headerOffset;
+	    compressedStream = new CountingStream(new BufferedOutputStream(
+		    Channels.newOutputStream(channel), 1 << 16));
+	    if (method == ZipEntry.DEFLATED) {
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		out = new DeflaterOutputStream(compressedStream, deflater,
+			1 << 16);
+	    } else {
+		deflater = null;
+		out = compressedStream;
+	    }
+	}
+
+	public void write(int b) throws IOException {
+	    out.write(b);
+	    crc.update(b);
+	    size++;
+	}
+
+	public void write(byte b[], int off, int len) throws IOException {
+	    out.write(b, off, len);
+	    crc.update(b, off, len);
+	    size += len;
+	}
+
+	public void flush() throws IOException {
+	    out.flush();
+	}
+
+	public void close() throws IOException {
+	    if (closed)
+		return;
+	    closed = true;
+	    if (deflater != null) {
+		((DeflaterOutputStream) out).finish();
+		deflater.end();
+	    }
+	    compressedStream.flush();
+	    long compressedSize = compressedStream.getCount();
+
+	    boolean zip64Extra;
+	    int flags;
+	    if (method == ZipEntry.STORED) {
+		// Update the CRC and the sizes in the local header
+		long endPosition = channel.position();
+		ByteBuffer crcBuffer = ByteBuffer.allocate(4);
+		crcBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		crcBuffer.putInt(0, (int) crc.getValue());
+		channel.write(crcBuffer, headerOffset + 14);
+		ByteBuffer sizeBuffer = ByteBuffer.allocate(16);
+		sizeBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		sizeBuffer.putLong(0, size);
+		sizeBuffer.putLong(8, compressedSize);
+		channel.write(sizeBuffer, headerOffset
+			+ ZipUtils.LOCAL_HEADER_SIZE
+			+ name.getBytes(ZipUtils.UTF8).length + 4);
+		channel.position(endPosition);
+		zip64Extra = true;
+		flags = UTF8_FLAG;
+	    } else {
+		// Write the data descriptor, with 8 byte sizes if the sizes
+		// do not fit into 4 bytes (as java.util.zip does)
+		boolean zip64Size = needsZip64(size, compressedSize);
+		ByteBuffer descriptor = ByteBuffer.allocate(zip64Size ? 24
+			: 16);
+		descriptor.order(ByteOrder.LITTLE_ENDIAN);
+		descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+		descriptor.putInt((int) crc.getValue());
+		if (zip64Size) {
+		    descriptor.putLong(compressedSize);
+		    descriptor.putLong(size);
+		} else {
+		    descriptor.putInt((int) compressedSize);
+		    descriptor.putInt((int) size);
+		}
+		descriptor.flip();
+		writeFully(descriptor);
+		zip64Extra = false;
+		flags = UTF8_FLAG | DATA_DESCRIPTOR_FLAG;
+	    }
+
+	    entries.add(new ZipEntryInfo(name, method, flags, dosTime, crc
+		    .getValue(), compressedSize, size, headerOffset,
+		    zip64Extra));
+	    currentEntry = null;
+	}
+
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ZIP file related utilities. The java.util.zip classes do not tell where the
+ * data of an entry start within the ZIP file, so we read the ZIP structures
+ * directly here. See the ZIP file format specification (APPNOTE.TXT) for
+ * details.
+ */
+public class ZipUtils {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_HEADER_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_HEADER_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_HEADER_SIZE = 22;
+    static final int ZIP64_END_HEADER_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIZE = 20;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /**
+     * ID of the extra field used to pad local headers, so that the data of
+     * STORED entries start at an aligned offset (same ID as used by the
+     * Android zipalign tool)
+     */
+    static final int ALIGNMENT_EXTRA_ID = 0xD935;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Description of one entry, as found in the central directory of a ZIP
+     * file.
+     */
+    public static class ZipEntryInfo {
+
+	private final String name;
+	private final int method, flags, dosTime;
+	private final long crc, compressedSize, size, localHeaderOffset;
+	private final boolean zip64Extra;
+
+	ZipEntryInfo(String name, int method, int flags, int dosTime,
+		long crc, long compressedSize, long size,
+		long localHeaderOffset, boolean zip64Extra) {
+	    this.name = name;
+	    this.method = method;
+	    this.flags = flags;
+	    this.dosTime = dosTime;
+	    this.crc = crc;
+	    this.compressedSize = compressedSize;
+	    this.size = size;
+	    this.localHeaderOffset = localHeaderOffset;
+	    this.zip64Extra = zip64Extra;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	/**
+	 * @return ZipEntry.STORED or ZipEntry.DEFLATED
+	 */
+	public int getMethod() {
+	    return method;
+	}
+
+	int getFlags() {
+	    return flags;
+	}
+
+	int getDosTime() {
+	    return dosTime;
+	}
+
+	public long getCrc() {
+	    return crc;
+	}
+
+	public long getCompressedSize() {
+	    return compressedSize;
+	}
+
+	public long getSize() {
+	    return size;
+	}
+
+	public long getLocalHeaderOffset() {
+	    return localHeaderOffset;
+	}
+
+	/**
+	 * Returns true if the sizes of the entry are stored in a ZIP64 extra
+	 * field
+	 */
+	boolean hasZip64Extra() {
+	    return zip64Extra;
+	}
+
+	public String toString() {
+	    return name;
+	}
+
+    }
+
+    /**
+     * Returns the offset of the first byte of data of the given entry within
+     * the ZIP file. For STORED entries, the data can be read directly from
+     * this offset.
+     */
+    public static long getEntryDataOffset(File zipFile, String entryName)
+	    throws IOException {
+
+	RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+	try {
+	    FileChannel channel = file.getChannel();
+	    for (ZipEntryInfo entry : readCentralDirectory(channel)) {
+		if (entry.getName().equals(entryName))
+		    return getEntryDataOffset(channel, entry);
+	    }
+	    throw new IOException("Entry " + entryName
+		    + " not found in the ZIP file " + zipFile);
+	} finally {
+	    file.close();
+	}
+    }
+
+    /**
+     * Returns the offset of the first byte of data of the given entry, as
+     * returned by readCentralDirectory().
+     */
+    public static long getEntryDataOffset(File zipFile, ZipEntryInfo entry)
+	    throws IOException {
+	RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+	try {
+	    return getEntryDataOffset(file.getChannel(), entry);
+	} finally {
+	    file.close();
+	}
+    }
+
+    /**
+     * Returns all entries listed in the central directory of the given ZIP
+     * file, in the order in which they are listed.
+     */
+    public static List<ZipEntryInfo> readCentralDirectory(File zipFile)
+	    throws IOException {
+	RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+	try {
+	    return readCentralDirectory(file.getChannel());
+	} finally {
+	    file.close();
+	}
+    }
+
+    static long getEntryDataOffset(FileChannel channel, ZipEntryInfo entry)
+	    throws IOException {
+	long localHeaderOffset = entry.getLocalHeaderOffset();
+	ByteBuffer localHeader = read(channel, localHeaderOffset,
+		LOCAL_HEADER_SIZE);
+	if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE)
+	    throw new IOException("Invalid local header of entry "
+		    + entry.getName());
+	int nameLength = localHeader.getShort(26) & 0xFFFF;
+	int extraLength = localHeader.getShort(28) & 0xFFFF;
+	return localHeaderOffset + LOCAL_HEADER_SIZE + nameLength
+		+ extraLength;
+    }
+
+    /**
+     * Returns true if the local header of the given entry contains a ZIP64
+     * extended information extra field.
+     */
+    static boolean hasZip64LocalExtra(FileChannel channel, ZipEntryInfo entry)
+	    throws IOException {
+	long localHeaderOffset = entry.getLocalHeaderOffset();
+	ByteBuffer localHeader = read(channel, localHeaderOffset,
+		LOCAL_HEADER_SIZE);
+	if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE)
+	    throw new IOException("Invalid local header of entry "
+		    + entry.getName());
+	int nameLength = localHeader.getShort(26) & 0xFFFF;
+	int extraLength = localHeader.getShort(28) & 0xFFFF;
+	ByteBuffer extra = read(channel, localHeaderOffset + LOCAL_HEADER_SIZE
+		+ nameLength, extraLength);
+	int pos = 0;
+	while (pos + 4 <= extraLength) {
+	    if ((extra.getShort(pos) & 0xFFFF) == ZIP64_EXTRA_ID)
+		return true;
+	    pos += 4 + (extra.getShort(pos + 2) & 0xFFFF);
+	}
+	return false;
+    }
+
+    /**
+     * Returns the offset and the size of the central directory of the ZIP
+     * file.
+     */
+    static long[] findCentralDirectory(FileChannel channel) throws IOException {
+
+	// Find the end of central directory record, which may be followed by
+	// a comment of up to 64 kB
+	long fileSize = channel.size();
+	int tailSize = (int) Math.min(fileSize, END_HEADER_SIZE + 0xFFFF);
+	ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+	int endHeaderPos = -1;
+	for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+	    if (tail.getInt(i) == END_HEADER_SIGNATURE) {
+		endHeaderPos = i;
+		break;
+	    }
+	}
+	if (endHeaderPos == -1)
+	    throw new IOException("Could not find the ZIP central directory");
+
+	long centralDirSize = tail.getInt(endHeaderPos + 12) & ZIP64_MAGIC;
+	long centralDirOffset = tail.getInt(endHeaderPos + 16) & ZIP64_MAGIC;
+
+	// ZIP64 archives keep the real values in the ZIP64 end record
+	if ((centralDirOffset == ZIP64_MAGIC || centralDirSize == ZIP64_MAGIC)
+		&& (endHeaderPos >= ZIP64_LOCATOR_SIZE)
+		&& (tail.getInt(endHeaderPos - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIGNATURE)) {
+	    long zip64EndOffset = tail.getLong(endHeaderPos
+		    - ZIP64_LOCATOR_SIZE + 8);
+	    ByteBuffer zip64End = read(channel, zip64EndOffset,
+		    ZIP64_END_HEADER_SIZE);
+	    if (zip64End.getInt(0) != ZIP64_END_HEADER_SIGNATURE)
+		throw new IOException("Invalid ZIP64 end of central directory");
+	    centralDirSize = zip64End.getLong(40);
+	    centralDirOffset = zip64End.getLong(48);
+	}
+
+	return new long[] { centralDirOffset, centralDirSize };
+    }
+
+    static List<ZipEntryInfo> readCentralDirectory(FileChannel channel)
+	    throws IOException {
+
+	long centralDirLocation[] = findCentralDirectory(channel);
+	long centralDirOffset = centralDirLocation[0];
+	long centralDirSize = centralDirLocation[1];
+	if (centralDirSize > Integer.MAX_VALUE)
+	    throw new IOException("ZIP central directory is too large");
+
+	ByteBuffer centralDir = read(channel, centralDirOffset,
+		(int) centralDirSize);
+	List<ZipEntryInfo> entries = new ArrayList<ZipEntryInfo>();
+	int pos = 0;
+	while (pos + CENTRAL_HEADER_SIZE <= centralDirSize) {
+	    if (centralDir.getInt(pos) != CENTRAL_HEADER_SIGNATURE)
+		break;
+	    int flags = centralDir.getShort(pos + 8) & 0xFFFF;
+	    int method = centralDir.getShort(pos + 10) & 0xFFFF;
+	    int dosTime = centralDir.getInt(pos + 12);
+	    long crc = centralDir.getInt(pos + 16) & ZIP64_MAGIC;
+	    long compressedSize = centralDir.getInt(pos + 20) & ZIP64_MAGIC;
+	    long size = centralDir.getInt(pos + 24) & ZIP64_MAGIC;
+	    int nameLength = centralDir.getShort(pos + 28) & 0xFFFF;
+	    int extraLength = centralDir.getShort(pos + 30) & 0xFFFF;
+	    int commentLength = centralDir.getShort(pos + 32) & 0xFFFF;
+	    long localHeaderOffset = centralDir.getInt(pos + 42) & ZIP64_MAGIC;
+
+	    byte nameBytes[] = new byte[nameLength];
+	    centralDir.position(pos + CENTRAL_HEADER_SIZE);
+	    centralDir.get(nameBytes);
+	    String name = new String(nameBytes, UTF8);
+
+	    // The ZIP64 extended information extra field only contains the
+	    // values which did not fit into the central header, in a fixed
+	    // order
+	    boolean zip64Extra = (size == ZIP64_MAGIC)
+		    || (compressedSize == ZIP64_MAGIC);
+	    if ((size == ZIP64_MAGIC) || (compressedSize == ZIP64_MAGIC)
+		    || (localHeaderOffset == ZIP64_MAGIC)) {
+		int valuePos = findZip64Extra(centralDir, pos
+			+ CENTRAL_HEADER_SIZE + nameLength, extraLength);
+		if (size == ZIP64_MAGIC) {
+		    size = centralDir.getLong(valuePos);
+		    valuePos += 8;
+		}
+		if (compressedSize == ZIP64_MAGIC) {
+		    compressedSize = centralDir.getLong(valuePos);
+		    valuePos += 8;
+		}
+		if (localHeaderOffset == ZIP64_MAGIC)
+		    localHeaderOffset = centralDir.getLong(valuePos);
+	    }
+
+	    entries.add(new ZipEntryInfo(name, method, flags, dosTime, crc,
+		    compressedSize, size, localHeaderOffset, zip64Extra));
+
+	    pos += CENTRAL_HEADER_SIZE + nameLength + extraLength
+		    + commentLength;
+	}
+
+	return entries;
+    }
+
+    /**
+     * Returns the position of the first value of the ZIP64 extended
+     * information extra field.
+     */
+    private static int findZip64Extra(ByteBuffer buffer, int extraStart,
+	    int extraLength) throws IOException {
+	int pos = extraStart;
+	while (pos + 4 <= extraStart + extraLength) {
+	    int id = buffer.getShort(pos) & 0xFFFF;
+	    int length = buffer.getShort(pos + 2) & 0xFFFF;
+	    if (id == ZIP64_EXTRA_ID)
+		return pos + 4;
+	    pos += 4 + length;
+	}
+	throw new IOException("Missing ZIP64 extra field");
+    }
+
+    static ByteBuffer read(FileChannel channel, long position, int length)
+	    throws IOException {
+	ByteBuffer buffer = ByteBuffer.allocate(length);
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	while (buffer.hasRemaining()) {
+	    int read = channel.read(buffer, position + buffer.position());
+	    if (read < 0)
+		throw new IOException("Unexpected end of ZIP file");
+	}
+	buffer.rewind();
+	return buffer;
+    }
+
+}
@@ -29,7 +29,6 @@ import javax.swing.BorderFactory;
 import javax.swing.JComponent;
 import javax.swing.border.Border;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 
 import com.google.common.collect.Range;
@@ -110,37 +109,30 @@ public class CombinedXICComponent extends JComponent {
 	    colorIndex = (colorIndex + 1) % plotColors.length;
 
 	    // if we have no data, just return
-	    if ((peak == null) || (peak.getScanNumbers().length == 0))
+	    if (peak == null)
 		continue;
 
-	    // get scan numbers, one data point per each scan
-	    int scanNumbers[] = peak.getScanNumbers();
+	    // get the retention times and intensities, one per each scan
+	    PeakShape shape = PeakShapeCache.getShape(peak);
+	    double retentionTimes[] = shape.getRetentionTimes();
+	    double intensities[] = shape.getIntensities();
+	    if (retentionTimes.length == 0)
+		continue;
 
 	    // for each datapoint, find [X:Y] coordinates of its point in
 	    // painted image
-	    int xValues[] = new int[scanNumbers.length + 2];
-	    int yValues[] = new int[scanNumbers.length + 2];
-
-	    // find one datapoint with maximum intensity in each scan
-	    for (int i = 0; i < scanNumbers.length; i++) {
-
-		double dataPointIntensity = 0;
-		DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
-
-		if (dataPoint != null)
-		    dataPointIntensity = dataPoint.getIntensity();
+	    int xValues[] = new int[retentionTimes.length + 2];
+	    int yValues[] = new int[retentionTimes.length + 2];
 
-		// get retention time (X value)
-		double retentionTime = peak.getDataFile()
-			.getScan(scanNumbers[i]).getRetentionTime();
+	    for (int i = 0; i < retentionTimes.length; i++) {
 
 		// calculate [X:Y] coordinates
-		xValues[i + 1] = (int) Math.floor((retentionTime - rtRange
+		xValues[i + 1] = (int) Math.floor((retentionTimes[i] - rtRange
 			.lowerEndpoint())
 			/ (rtRange.upperEndpoint() - rtRange.lowerEndpoint())
 			* (size.width - 1));
 		yValues[i + 1] = size.height
-			- (int) Math.floor(dataPointIntensity / maxIntensity
+			- (int) Math.floor(intensities[i] / maxIntensity
 				* (size.height - 1));
 
 	    }
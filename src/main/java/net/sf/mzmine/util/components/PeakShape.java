@@ -0,0 +1,108 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.util.components;
+
+import java.util.Arrays;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+/**
+ * Retention times and intensities of the data points of a peak, one per each
+ * scan of the peak. Reading them requires access to the scans of the raw data
+ * file, so the shapes are kept by PeakShapeCache for repeated painting.
+ */
+public class PeakShape {
+
+    private final RawDataFile dataFile;
+    private final int scanNumbers[];
+    private final double height, area;
+    private final double retentionTimes[], intensities[];
+
+    public PeakShape(Feature peak) {
+
+	dataFile = peak.getDataFile();
+	// A copy, in case the peak modifies its array later
+	scanNumbers = peak.getScanNumbers().clone();
+	height = peak.getHeight();
+	area = peak.getArea();
+	retentionTimes = new double[scanNumbers.length];
+	intensities = new double[scanNumbers.length];
+
+	for (int i = 0; i < scanNumbers.length; i++) {
+	    DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
+	    if (dataPoint != null)
+		intensities[i] = dataPoint.getIntensity();
+	    retentionTimes[i] = dataFile.getScan(scanNumbers[i])
+		    .getRetentionTime();
+	}
+
+    }
+
+    /**
+     * Shape without data points, which stands for a peak whose shape could
+     * not be read
+     */
+    private PeakShape(Feature peak, boolean empty) {
+	dataFile = peak.getDataFile();
+	scanNumbers = peak.getScanNumbers().clone();
+	height = peak.getHeight();
+	area = peak.getArea();
+	retentionTimes = new double[0];
+	intensities = new double[0];
+    }
+
+    static PeakShape createEmptyShape(Feature peak) {
+	return new PeakShape(peak, true);
+    }
+
+    RawDataFile getDataFile() {
+	return dataFile;
+    }
+
+    public int getNumberOfDataPoints() {
+	return retentionTimes.length;
+    }
+
+    public double[] getRetentionTimes() {
+	return retentionTimes;
+    }
+
+    public double[] getIntensities() {
+	return intensities;
+    }
+
+    /**
+     * Returns true if this shape was read from the given peak and the peak has
+     * not been assigned other scans, another data file or other intensities
+     * since. Changed intensities are detected by the height and area of the
+     * peak. Some peaks return a new array of scan numbers on every call, so
+     * the arrays are compared by their contents.
+     */
+    boolean isValidFor(Feature peak) {
+	return (peak.getDataFile() == dataFile)
+		&& (Double.compare(peak.getHeight(), height) == 0)
+		&& (Double.compare(peak.getArea(), area) == 0)
+		&& Arrays.equals(peak.getScanNumbers(), scanNumbers);
+    }
+
+}
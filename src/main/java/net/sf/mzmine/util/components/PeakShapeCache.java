@@ -0,0 +1,198 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.util.components;
+
+import java.awt.Component;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+/**
+ * Keeps the shapes of recently painted peaks, so that scrolling through a peak
+ * list does not read the scans of every visible peak again on each repaint.
+ * Shapes can be loaded by a background thread, while the caller paints a
+ * placeholder. A shape which could not be read is kept as an empty shape, so
+ * it is not read again on every repaint. The project removes the shapes of
+ * removed peak lists and data files, so the cache does not keep them in
+ * memory.
+ */
+public class PeakShapeCache {
+
+    private static final Logger logger = Logger.getLogger(PeakShapeCache.class
+	    .getName());
+
+    /**
+     * Maximum number of shapes kept in memory
+     */
+    private static final int MAX_CACHED_SHAPES = 20000;
+
+    private static final Map<Feature, PeakShape> cache = new LinkedHashMap<Feature, PeakShape>(
+	    16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	protected boolean removeEldestEntry(
+		Map.Entry<Feature, PeakShape> eldest) {
+	    return size() > MAX_CACHED_SHAPES;
+	}
+    };
+
+    private static final Set<Feature> pendingPeaks = new HashSet<Feature>();
+
+    private static ThreadPoolExecutor loaderExecutor;
+
+    /**
+     * Returns the shape of the given peak, reading it in the calling thread if
+     * it is not cached
+     */
+    public static PeakShape getShape(Feature peak) {
+	PeakShape shape = getCachedShape(peak);
+	if (shape != null)
+	    return shape;
+	shape = readShape(peak);
+	synchronized (cache) {
+	    cache.put(peak, shape);
+	}
+	return shape;
+    }
+
+    /**
+     * Returns the shape of the given peak if it is cached. Otherwise, returns
+     * null and schedules reading of the shape in a background thread. The
+     * given component is repainted when the shape is ready.
+     */
+    public static PeakShape getShapeLater(final Feature peak,
+	    final Component repaintTarget) {
+
+	PeakShape shape = getCachedShape(peak);
+	if (shape != null)
+	    return shape;
+
+	synchronized (cache) {
+	    if (!pendingPeaks.add(peak))
+		return null;
+	}
+
+	getLoaderExecutor().execute(new Runnable() {
+	    public void run() {
+		PeakShape loadedShape = readShape(peak);
+		synchronized (cache) {
+		    cache.put(peak, loadedShape);
+		    pendingPeaks.remove(peak);
+		}
+		repaintTarget.repaint();
+	    }
+	});
+
+	return null;
+    }
+
+    /**
+     * Removes the shapes of the peaks of the given peak list from the cache
+     */
+    public static void removeShapes(PeakList peakList) {
+	synchronized (cache) {
+	    for (PeakListRow row : peakList.getRows()) {
+		for (Feature peak : row.getPeaks())
+		    cache.remove(peak);
+	    }
+	}
+    }
+
+    /**
+     * Removes the shapes of all peaks of the given data file from the cache
+     */
+    public static void removeShapes(RawDataFile dataFile) {
+	synchronized (cache) {
+	    Iterator<PeakShape> iterator = cache.values().iterator();
+	    while (iterator.hasNext()) {
+		if (iterator.next().getDataFile() == dataFile)
+		    iterator.remove();
+	    }
+	}
+    }
+
+    /**
+     * Reads the shape of the given peak. If that fails, the failure is logged
+     * and an empty shape is returned, which is cached like any other shape.
+     */
+    private static PeakShape readShape(Feature peak) {
+	try {
+	    return new PeakShape(peak);
+	} catch (Exception e) {
+	    logger.log(Level.WARNING, "Could not read the shape of " + peak, e);
+	    return PeakShape.createEmptyShape(peak);
+	}
+    }
+
+    private static PeakShape getCachedShape(Feature peak) {
+	synchronized (cache) {
+	    PeakShape shape = cache.get(peak);
+	    if ((shape != null) && (!shape.isValidFor(peak))) {
+		cache.remove(peak);
+		shape = null;
+	    }
+	    return shape;
+	}
+    }
+
+    /**
+     * Returns the executor of the loader thread. The most recently requested
+     * shapes are loaded first, because they belong to the cells which are
+     * currently visible.
+     */
+    private static synchronized ThreadPoolExecutor getLoaderExecutor() {
+	if (loaderExecutor == null) {
+	    ThreadFactory threadFactory = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread newThread = new Thread(r,
+			    "Peak shape loader thread");
+		    newThread.setDaemon(true);
+		    return newThread;
+		}
+	    };
+	    LinkedBlockingDeque<Runnable> stack = new LinkedBlockingDeque<Runnable>() {
+		private static final long serialVersionUID = 1L;
+
+		public boolean offer(Runnable r) {
+		    return offerFirst(r);
+		}
+	    };
+	    loaderExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+		    stack, threadFactory);
+	    loaderExecutor.allowCoreThreadTimeOut(true);
+	}
+	return loaderExecutor;
+    }
+
+}
@@ -30,7 +30,6 @@ import javax.swing.BorderFactory;
 import javax.swing.JComponent;
 import javax.swing.border.Border;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.RawDataFile;
 
@@ -93,39 +92,28 @@ public class PeakXICComponent extends JComponent {
 	// get canvas size
 	Dimension size = getSize();
 
-	// get scan numbers, one data point per each scan
-	RawDataFile dataFile = peak.getDataFile();
-	int scanNumbers[] = peak.getScanNumbers();
+	// get the retention times and intensities, one per each scan
+	PeakShape shape = PeakShapeCache.getShape(peak);
+	double retentionTimes[] = shape.getRetentionTimes();
+	double intensities[] = shape.getIntensities();
 
 	// If we have no data, just return
-	if (scanNumbers.length == 0)
+	if (retentionTimes.length == 0)
 	    return;
 
 	// for each datapoint, find [X:Y] coordinates of its point in painted
 	// image
-	int xValues[] = new int[scanNumbers.length];
-	int yValues[] = new int[scanNumbers.length];
-
-	// find one datapoint with maximum intensity in each scan
-	for (int i = 0; i < scanNumbers.length; i++) {
-
-	    double dataPointIntensity = 0;
-	    DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
-
-	    if (dataPoint != null)
-		dataPointIntensity = dataPoint.getIntensity();
+	int xValues[] = new int[retentionTimes.length];
+	int yValues[] = new int[retentionTimes.length];
 
-	    // get retention time (X value)
-	    double retentionTime = dataFile.getScan(scanNumbers[i])
-		    .getRetentionTime();
+	final double rtLen = rtRange.upperEndpoint() - rtRange.lowerEndpoint();
+	for (int i = 0; i < retentionTimes.length; i++) {
 
 	    // calculate [X:Y] coordinates
-	    final double rtLen = rtRange.upperEndpoint()
-		    - rtRange.lowerEndpoint();
-	    xValues[i] = (int) Math.floor((retentionTime - rtRange
+	    xValues[i] = (int) Math.floor((retentionTimes[i] - rtRange
 		    .lowerEndpoint()) / rtLen * (size.width - 1));
 	    yValues[i] = size.height
-		    - (int) Math.floor(dataPointIntensity / maxIntensity
+		    - (int) Math.floor(intensities[i] / maxIntensity
 			    * (size.height - 1));
 
 	}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.clustering.hierarchical;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the trees of HierarchicalClustering with the merges and heights
+ * which R's hclust() returns for the same data
+ */
+public class HierarchicalClusteringTest {
+
+    /**
+     * The values 7, 0, 15, 3 and 1, one item per row
+     */
+    private static final double DATA[][] = { { 7 }, { 0 }, { 15 }, { 3 },
+	    { 1 } };
+
+    /**
+     * hclust() merges the items in the same order for all link types
+     */
+    private static final int MERGE[][] = { { -2, -5 }, { -4, 1 }, { -1, 2 },
+	    { -3, 3 } };
+
+    private static final double DELTA = 1e-5;
+
+    @Test
+    public void testSingleLinkage() throws Exception {
+	checkTree(LinkType.SINGLE, new double[] { 1, 2, 4, 8 });
+    }
+
+    @Test
+    public void testCompleteLinkage() throws Exception {
+	checkTree(LinkType.COMPLETE, new double[] { 1, 3, 7, 15 });
+    }
+
+    @Test
+    public void testAverageLinkage() throws Exception {
+	checkTree(LinkType.AVERAGE, new double[] { 1, 2.5, 17.0 / 3, 12.25 });
+    }
+
+    /**
+     * Ward's linkage with the heights of hclust(method = "ward.D2")
+     */
+    @Test
+    public void testWardLinkage() throws Exception {
+	checkTree(LinkType.WARD, new double[] { 1, 5 / Math.sqrt(3),
+		Math.sqrt(1.5) * 17 / 3, Math.sqrt(1.6) * 12.25 });
+    }
+
+    /**
+     * Test that a missing value is skipped and the distance scaled up to all
+     * columns, like dist() does
+     */
+    @Test
+    public void testMissingValues() throws Exception {
+
+	// dist() gives sqrt(8), sqrt(2 * 9) and sqrt(2 * 1)
+	double data[][] = { { 0, 0 }, { 2, 2 }, { 3, Double.NaN } };
+	ClusteringTree tree = new HierarchicalClustering(data,
+		LinkType.COMPLETE, DistanceType.EUCLIDIAN).cluster();
+
+	int merge[][] = tree.getMerge();
+	Assert.assertArrayEquals(new int[] { -2, -3 }, merge[0]);
+	Assert.assertArrayEquals(new int[] { -1, 1 }, merge[1]);
+	Assert.assertArrayEquals(new double[] { Math.sqrt(2), Math.sqrt(18) },
+		tree.getHeights(), DELTA);
+
+    }
+
+    /**
+     * Test that each merge joins two existing clusters and that the heights
+     * do not decrease, for random data
+     */
+    @Test
+    public void testRandomData() throws Exception {
+
+	Random random = new Random(1);
+	double data[][] = new double[200][5];
+	for (double row[] : data) {
+	    for (int j = 0; j < row.length; j++)
+		row[j] = random.nextGaussian();
+	}
+
+	for (LinkType linkType : LinkType.values()) {
+	    if (!HierarchicalClustering.isSupported(linkType))
+		continue;
+	    ClusteringTree tree = new HierarchicalClustering(data, linkType,
+		    DistanceType.EUCLIDIAN).cluster();
+	    int merge[][] = tree.getMerge();
+	    double heights[] = tree.getHeights();
+	    Assert.assertEquals(data.length - 1, merge.length);
+
+	    boolean used[] = new boolean[data.length + merge.length];
+	    for (int i = 0; i < merge.length; i++) {
+		if (i > 0)
+		    Assert.assertTrue(heights[i] >= heights[i - 1]);
+		for (int node : merge[i]) {
+		    Assert.assertTrue((node >= -data.length) && (node <= i)
+			    && (node != 0));
+		    int usedIndex = (node < 0) ? -node - 1 : data.length
+			    + node - 1;
+		    Assert.assertFalse(used[usedIndex]);
+		    used[usedIndex] = true;
+		}
+	    }
+
+	    int order[] = tree.getLeafOrder(null);
+	    boolean ordered[] = new boolean[data.length];
+	    for (int item : order) {
+		Assert.assertFalse(ordered[item]);
+		ordered[item] = true;
+	    }
+	}
+
+    }
+
+    private static void checkTree(LinkType linkType, double heights[])
+	    throws Exception {
+	ClusteringTree tree = new HierarchicalClustering(DATA, linkType,
+		DistanceType.EUCLIDIAN).cluster();
+	Assert.assertEquals(DATA.length, tree.getNumberOfItems());
+	Assert.assertArrayEquals(MERGE, tree.getMerge());
+	Assert.assertArrayEquals(heights, tree.getHeights(), DELTA);
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.dataanalysis.projectionplots;
+
+import java.util.Random;
+
+import org.apache.commons.math.linear.Array2DRowRealMatrix;
+import org.apache.commons.math.linear.RealMatrix;
+import org.apache.commons.math.linear.SingularValueDecompositionImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the scores of RandomizedPCA with the scores calculated from an
+ * exact singular value decomposition of the scaled data
+ */
+public class RandomizedPCATest {
+
+    /**
+     * Test data with fewer columns than random vectors, where the randomized
+     * decomposition is exact
+     */
+    @Test
+    public void testSmallData() {
+	double data[][] = createData(new Random(1), 8, 6, 6, 0);
+	checkScores(data, 3, 1e-9);
+    }
+
+    /**
+     * Test data whose variance is explained by a few components, which the
+     * random vectors find up to the noise
+     */
+    @Test
+    public void testLowRankData() {
+	double data[][] = createData(new Random(2), 300, 60, 3, 1e-4);
+	checkScores(data, 2, 1e-6);
+    }
+
+    /**
+     * Test that the components beyond the rank of the data have zero scores
+     */
+    @Test
+    public void testRankDeficientData() {
+
+	// The third column is the sum of the first two
+	Random random = new Random(3);
+	double data[][] = new double[10][3];
+	for (double row[] : data) {
+	    row[0] = random.nextGaussian();
+	    row[1] = random.nextGaussian();
+	    row[2] = row[0] + row[1];
+	}
+
+	double scores[][] = new RandomizedPCA(data, 5).compute();
+	Assert.assertEquals(5, scores.length);
+	for (int component = 2; component < 5; component++) {
+	    for (int i = 0; i < data.length; i++)
+		Assert.assertEquals(0, scores[component][i], 1e-6);
+	}
+	checkScores(data, 2, 1e-9);
+
+    }
+
+    /**
+     * Creates data from the given number of random factors, plus noise
+     */
+    private static double[][] createData(Random random, int numOfRows,
+	    int numOfColumns, int numOfFactors, double noise) {
+	double loadings[][] = new double[numOfFactors][numOfColumns];
+	for (double factor[] : loadings) {
+	    for (int j = 0; j < numOfColumns; j++)
+		factor[j] = random.nextGaussian();
+	}
+	double data[][] = new double[numOfRows][numOfColumns];
+	for (int i = 0; i < numOfRows; i++) {
+	    for (int f = 0; f < numOfFactors; f++) {
+		// Decreasing variance of the factors
+		double score = random.nextGaussian() * (numOfFactors - f);
+		for (int j = 0; j < numOfColumns; j++)
+		    data[i][j] += score * loadings[f][j];
+	    }
+	    for (int j = 0; j < numOfColumns; j++)
+		data[i][j] += 10 + noise * random.nextGaussian();
+	}
+	return data;
+    }
+
+    /**
+     * Checks the scores of the first components against the left singular
+     * vectors times the singular values. The signs of the components are
+     * arbitrary.
+     */
+    private static void checkScores(double data[][], int numOfComponents,
+	    double relativeDelta) {
+
+	double scores[][] = new RandomizedPCA(data, numOfComponents)
+		.compute();
+	Assert.assertEquals(numOfComponents, scores.length);
+
+	SingularValueDecompositionImpl svd = new SingularValueDecompositionImpl(
+		new Array2DRowRealMatrix(scale(data)));
+	RealMatrix u = svd.getU();
+	double singularValues[] = svd.getSingularValues();
+
+	for (int component = 0; component < numOfComponents; component++) {
+	    double expected[] = new double[data.length];
+	    double dot = 0;
+	    for (int i = 0; i < data.length; i++) {
+		expected[i] = u.getEntry(i, component)
+			* singularValues[component];
+		dot += expected[i] * scores[component][i];
+	    }
+	    double sign = Math.signum(dot);
+	    double delta = relativeDelta * singularValues[0];
+	    for (int i = 0; i < data.length; i++) {
+		Assert.assertEquals("Score of item " + i + " in component "
+			+ component, expected[i], sign * scores[component][i],
+			delta);
+	    }
+	}
+
+    }
+
+    /**
+     * Centers the columns and scales them to unit variance
+     */
+    private static double[][] scale(double data[][]) {
+	final int numOfRows = data.length, numOfColumns = data[0].length;
+	double scaled[][] = new double[numOfRows][numOfColumns];
+	for (int j = 0; j < numOfColumns; j++) {
+	    double mean = 0;
+	    for (int i = 0; i < numOfRows; i++)
+		mean += data[i][j] / numOfRows;
+	    double variance = 0;
+	    for (int i = 0; i < numOfRows; i++)
+		variance += (data[i][j] - mean) * (data[i][j] - mean)
+			/ (numOfRows - 1);
+	    for (int i = 0; i < numOfRows; i++)
+		scaled[i][j] = (data[i][j] - mean) / Math.sqrt(variance);
+	}
+	return scaled;
+    }
+
+}
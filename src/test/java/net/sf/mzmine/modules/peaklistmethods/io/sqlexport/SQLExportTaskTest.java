@@ -0,0 +1,174 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package net.sf.mzmine.modules.peaklistmethods.io.sqlexport;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+/**
+ * Exports peak lists to an in-memory H2 database
+ */
+public class SQLExportTaskTest {
+
+    private static final String CREATE_TABLE = "CREATE TABLE peaks "
+	    + "(id INT PRIMARY KEY, mz DOUBLE, rawfile VARCHAR(100), "
+	    + "area DOUBLE)";
+
+    /**
+     * Test that all rows are exported when they span several batches
+     */
+    @Test
+    public void testExport() throws Exception {
+
+	String connectionString = "jdbc:h2:mem:export;DB_CLOSE_DELAY=-1";
+	executeUpdate(connectionString, CREATE_TABLE);
+
+	RawDataFile dataFile = new RawDataFileImpl("sample.mzML");
+	PeakList peakList = createPeakList(dataFile, 1, 2, 3, 4, 5);
+
+	SQLExportTask task = new SQLExportTask(peakList, connectionString,
+		"peaks", createColumns(), 2);
+	task.run();
+
+	Assert.assertEquals(TaskStatus.FINISHED, task.getStatus());
+	Assert.assertEquals(5, countRows(connectionString));
+
+	Connection connection = DriverManager.getConnection(connectionString);
+	try {
+	    Statement statement = connection.createStatement();
+	    ResultSet result = statement
+		    .executeQuery("SELECT id, mz, rawfile, area FROM peaks "
+			    + "ORDER BY id");
+	    for (int id = 1; id <= 5; id++) {
+		Assert.assertTrue(result.next());
+		Assert.assertEquals(id, result.getInt(1));
+		Assert.assertEquals(100.0 + id, result.getDouble(2), 0.0);
+		Assert.assertEquals("sample.mzML", result.getString(3));
+		Assert.assertEquals(1000.0 * id, result.getDouble(4), 0.0);
+	    }
+	    Assert.assertFalse(result.next());
+	} finally {
+	    connection.close();
+	}
+
+    }
+
+    /**
+     * Test that a failed export does not leave the batches which were already
+     * sent in the table
+     */
+    @Test
+    public void testFailedExportLeavesTableUnchanged() throws Exception {
+
+	String connectionString = "jdbc:h2:mem:failure;DB_CLOSE_DELAY=-1";
+	executeUpdate(connectionString, CREATE_TABLE);
+
+	// The duplicate ID violates the primary key in the third batch
+	RawDataFile dataFile = new RawDataFileImpl("sample.mzML");
+	PeakList peakList = createPeakList(dataFile, 1, 2, 3, 4, 4, 6);
+
+	SQLExportTask task = new SQLExportTask(peakList, connectionString,
+		"peaks", createColumns(), 2);
+	task.run();
+
+	Assert.assertEquals(TaskStatus.ERROR, task.getStatus());
+	Assert.assertNotNull(task.getErrorMessage());
+	Assert.assertEquals(0, countRows(connectionString));
+
+    }
+
+    private static SQLColumnSettings createColumns() {
+	SQLColumnSettings columns = new SQLColumnSettings();
+	addColumn(columns, "id", SQLExportDataType.ID);
+	addColumn(columns, "mz", SQLExportDataType.PEAKMZ);
+	addColumn(columns, "rawfile", SQLExportDataType.RAWFILE);
+	addColumn(columns, "area", SQLExportDataType.PEAKAREA);
+	return columns;
+    }
+
+    private static void addColumn(SQLColumnSettings columns, String name,
+	    SQLExportDataType dataType) {
+	columns.addNewRow();
+	int row = columns.getRowCount() - 1;
+	columns.setValueAt(name, row, 0);
+	columns.setValueAt(dataType, row, 1);
+    }
+
+    private static PeakList createPeakList(RawDataFile dataFile, int... ids) {
+	PeakList peakList = new SimplePeakList("peaks", dataFile);
+	for (int id : ids) {
+	    double mz = 100.0 + id, rt = id, height = 10.0 * id;
+	    DataPoint dataPoints[] = { new SimpleDataPoint(mz, height) };
+	    Feature peak = new SimpleFeature(dataFile, mz, rt, height,
+		    1000.0 * id, new int[] { id }, dataPoints,
+		    FeatureStatus.DETECTED, id, -1, Range.singleton(rt),
+		    Range.singleton(mz), Range.singleton(height));
+	    SimplePeakListRow row = new SimplePeakListRow(id);
+	    row.addPeak(dataFile, peak);
+	    peakList.addRow(row);
+	}
+	return peakList;
+    }
+
+    private static void executeUpdate(String connectionString, String sql)
+	    throws SQLException {
+	Connection connection = DriverManager.getConnection(connectionString);
+	try {
+	    connection.createStatement().executeUpdate(sql);
+	} finally {
+	    connection.close();
+	}
+    }
+
+    private static int countRows(String connectionString)
+	    throws SQLException {
+	Connection connection = DriverManager.getConnection(connectionString);
+	try {
+	    ResultSet result = connection.createStatement().executeQuery(
+		    "SELECT COUNT(*) FROM peaks");
+	    result.next();
+	    return result.getInt(1);
+	} finally {
+	    connection.close();
+	}
+    }
+
+}
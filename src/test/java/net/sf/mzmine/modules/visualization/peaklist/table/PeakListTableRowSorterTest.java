@@ -0,0 +1,261 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.visualization.peaklist.table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.RowSorter.SortKey;
+import javax.swing.SortOrder;
+import javax.swing.SwingUtilities;
+import javax.swing.event.RowSorterEvent;
+import javax.swing.event.RowSorterListener;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+/**
+ * Sorts a peak list by the rules of TableRowSorter: missing values first in
+ * ascending order, strings by the collator, enums by their order, and equal
+ * rows in the order of the peak list
+ */
+public class PeakListTableRowSorterTest {
+
+    private static final double NONE = Double.NaN;
+
+    /**
+     * Heights of the rows with IDs 1 to 8 in the first and second file
+     */
+    private static final double HEIGHTS1[] = { 5, 3, 5, 1, 3, 5, 2, 4 };
+    private static final double HEIGHTS2[] = { NONE, 7, 2, NONE, 9, 2, NONE,
+	    1 };
+
+    private static final String COMMENTS[] = { "cherry", null, "Banana",
+	    "apple", null, "date", "elder", "fig" };
+
+    private static final int ROWID_COLUMN = CommonColumnType.ROWID.ordinal();
+    private static final int COMMENT_COLUMN = CommonColumnType.COMMENT
+	    .ordinal();
+
+    @Test
+    public void testNumericColumn() throws Exception {
+
+	PeakListTableRowSorter sorter = createSorter(createPeakList());
+	int column = getDataFileColumn(1, DataFileColumnType.HEIGHT);
+
+	checkOrder(new int[] { 1, 4, 7, 8, 3, 6, 2, 5 },
+		sort(sorter, new SortKey(column, SortOrder.ASCENDING)));
+	checkOrder(new int[] { 5, 2, 3, 6, 8, 1, 4, 7 },
+		sort(sorter, new SortKey(column, SortOrder.DESCENDING)));
+
+    }
+
+    @Test
+    public void testSecondaryKey() throws Exception {
+
+	PeakListTableRowSorter sorter = createSorter(createPeakList());
+	int column = getDataFileColumn(0, DataFileColumnType.HEIGHT);
+
+	checkOrder(new int[] { 4, 7, 5, 2, 8, 6, 3, 1 },
+		sort(sorter, new SortKey(column, SortOrder.ASCENDING),
+			new SortKey(ROWID_COLUMN, SortOrder.DESCENDING)));
+
+    }
+
+    @Test
+    public void testStringColumn() throws Exception {
+
+	PeakListTableRowSorter sorter = createSorter(createPeakList());
+
+	checkOrder(new int[] { 2, 5, 4, 3, 1, 6, 7, 8 },
+		sort(sorter, new SortKey(COMMENT_COLUMN, SortOrder.ASCENDING)));
+
+    }
+
+    /**
+     * Rows without a peak have the UNKNOWN status, which comes first
+     */
+    @Test
+    public void testStatusColumn() throws Exception {
+
+	PeakListTableRowSorter sorter = createSorter(createPeakList());
+	int column = getDataFileColumn(1, DataFileColumnType.STATUS);
+
+	checkOrder(new int[] { 1, 4, 7, 2, 5, 6, 3, 8 },
+		sort(sorter, new SortKey(column, SortOrder.ASCENDING)));
+
+    }
+
+    /**
+     * Test a list which is sorted in several parallel chunks
+     */
+    @Test
+    public void testLargeList() throws Exception {
+
+	Random random = new Random(1);
+	RawDataFile dataFile = new RawDataFileImpl("large.mzML");
+	PeakList peakList = new SimplePeakList("large", dataFile);
+	final int numOfRows = 20000;
+	final double heights[] = new double[numOfRows];
+	for (int i = 0; i < numOfRows; i++) {
+	    heights[i] = (random.nextInt(10) == 0) ? NONE : random
+		    .nextInt(1000) + 1;
+	    peakList.addRow(createRow(i + 1, dataFile, heights[i],
+		    FeatureStatus.DETECTED));
+	}
+
+	// Stable sort in descending order, which puts the missing values last
+	List<Integer> expected = new ArrayList<Integer>();
+	for (int i = 0; i < numOfRows; i++)
+	    expected.add(i);
+	Collections.sort(expected, new Comparator<Integer>() {
+	    public int compare(Integer row1, Integer row2) {
+		boolean missing1 = Double.isNaN(heights[row1]);
+		boolean missing2 = Double.isNaN(heights[row2]);
+		if (missing1 || missing2)
+		    return (missing1 == missing2) ? 0 : (missing1 ? 1 : -1);
+		return Double.compare(heights[row2], heights[row1]);
+	    }
+	});
+
+	PeakListTableRowSorter sorter = createSorter(peakList);
+	int order[] = sort(sorter, new SortKey(getDataFileColumn(0,
+		DataFileColumnType.HEIGHT), SortOrder.DESCENDING));
+
+	Assert.assertEquals(numOfRows, order.length);
+	for (int i = 0; i < numOfRows; i++)
+	    Assert.assertEquals(expected.get(i).intValue(), order[i]);
+
+    }
+
+    /**
+     * Rows with IDs 1 to 8 in two raw data files
+     */
+    private static PeakList createPeakList() throws Exception {
+	RawDataFile file1 = new RawDataFileImpl("first.mzML");
+	RawDataFile file2 = new RawDataFileImpl("second.mzML");
+	PeakList peakList = new SimplePeakList("peaks", new RawDataFile[] {
+		file1, file2 });
+	for (int i = 0; i < HEIGHTS1.length; i++) {
+	    int id = i + 1;
+	    SimplePeakListRow row = createRow(id, file1, HEIGHTS1[i],
+		    FeatureStatus.DETECTED);
+	    if (!Double.isNaN(HEIGHTS2[i])) {
+		FeatureStatus status = FeatureStatus.DETECTED;
+		if ((id == 3) || (id == 8))
+		    status = FeatureStatus.ESTIMATED;
+		row.addPeak(file2, createPeak(id, file2, HEIGHTS2[i], status));
+	    }
+	    row.setComment(COMMENTS[i]);
+	    peakList.addRow(row);
+	}
+	return peakList;
+    }
+
+    private static SimplePeakListRow createRow(int id, RawDataFile dataFile,
+	    double height, FeatureStatus status) {
+	SimplePeakListRow row = new SimplePeakListRow(id);
+	if (!Double.isNaN(height))
+	    row.addPeak(dataFile, createPeak(id, dataFile, height, status));
+	return row;
+    }
+
+    private static Feature createPeak(int id, RawDataFile dataFile,
+	    double height, FeatureStatus status) {
+	double mz = 100.0 + id, rt = id;
+	DataPoint dataPoints[] = { new SimpleDataPoint(mz, height) };
+	return new SimpleFeature(dataFile, mz, rt, height, 10.0 * height,
+		new int[] { id }, dataPoints, status, id, -1,
+		Range.singleton(rt), Range.singleton(mz),
+		Range.singleton(height));
+    }
+
+    private static PeakListTableRowSorter createSorter(PeakList peakList) {
+	return new PeakListTableRowSorter(new PeakListTableModel(peakList),
+		peakList);
+    }
+
+    private static int getDataFileColumn(int fileIndex,
+	    DataFileColumnType columnType) {
+	return CommonColumnType.values().length + fileIndex
+		* DataFileColumnType.values().length + columnType.ordinal();
+    }
+
+    /**
+     * Sorts the rows in the background and returns the model indexes in the
+     * sorted order
+     */
+    private static int[] sort(final PeakListTableRowSorter sorter,
+	    final SortKey... keys) throws Exception {
+
+	final CountDownLatch sorted = new CountDownLatch(1);
+	final RowSorterListener listener = new RowSorterListener() {
+	    public void sorterChanged(RowSorterEvent event) {
+		if (event.getType() == RowSorterEvent.Type.SORTED)
+		    sorted.countDown();
+	    }
+	};
+	SwingUtilities.invokeAndWait(new Runnable() {
+	    public void run() {
+		sorter.addRowSorterListener(listener);
+		sorter.setSortKeys(Arrays.asList(keys));
+	    }
+	});
+	Assert.assertTrue(sorted.await(30, TimeUnit.SECONDS));
+
+	final int order[] = new int[sorter.getViewRowCount()];
+	SwingUtilities.invokeAndWait(new Runnable() {
+	    public void run() {
+		sorter.removeRowSorterListener(listener);
+		for (int i = 0; i < order.length; i++)
+		    order[i] = sorter.convertRowIndexToModel(i);
+	    }
+	});
+	return order;
+
+    }
+
+    private static void checkOrder(int expectedIDs[], int order[]) {
+	int ids[] = new int[order.length];
+	for (int i = 0; i < order.length; i++)
+	    ids[i] = order[i] + 1;
+	Assert.assertArrayEquals(expectedIDs, ids);
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+/**
+ * Compares the scans found by ScanIndex with the scans found by going through
+ * all scans
+ */
+public class ScanIndexTest {
+
+    private static final int NUM_OF_SCANS = 500;
+
+    /**
+     * Test the lists of all scans and MS levels
+     */
+    @Test
+    public void testScanNumbers() {
+
+	List<Scan> scans = createScans(new Random(1));
+	ScanIndex index = new ScanIndex(scans);
+
+	int allScanNumbers[] = new int[scans.size()];
+	for (int i = 0; i < allScanNumbers.length; i++)
+	    allScanNumbers[i] = scans.get(i).getScanNumber();
+	Arrays.sort(allScanNumbers);
+
+	Assert.assertArrayEquals(allScanNumbers, index.getScanNumbers());
+	Assert.assertArrayEquals(new int[] { 1, 2, 3 }, index.getMSLevels());
+	for (int msLevel = 1; msLevel <= 3; msLevel++) {
+	    Assert.assertArrayEquals(
+		    findScans(scans, msLevel, Range.<Double> all(),
+			    Range.<Double> all()),
+		    index.getScanNumbers(msLevel));
+	}
+	Assert.assertEquals(0, index.getScanNumbers(4).length);
+	Assert.assertEquals(0,
+		index.getScanNumbers(4, Range.<Double> all()).length);
+
+    }
+
+    /**
+     * Test retention time windows with all kinds of bounds, including bounds
+     * equal to the retention times of some scans
+     */
+    @Test
+    public void testRetentionTimeRanges() {
+
+	Random random = new Random(2);
+	List<Scan> scans = createScans(random);
+	ScanIndex index = new ScanIndex(scans);
+
+	for (int i = 0; i < 1000; i++) {
+	    int msLevel = 1 + random.nextInt(3);
+	    Range<Double> rtRange = createRange(random, 100);
+	    Assert.assertArrayEquals("Scans in " + rtRange,
+		    findScans(scans, msLevel, rtRange, Range.<Double> all()),
+		    index.getScanNumbers(msLevel, rtRange));
+	}
+
+    }
+
+    /**
+     * Test windows of both retention time and precursor m/z. Wide and narrow
+     * ranges of both kinds are combined, so the index goes through either of
+     * them.
+     */
+    @Test
+    public void testPrecursorRanges() {
+
+	Random random = new Random(3);
+	List<Scan> scans = createScans(random);
+	ScanIndex index = new ScanIndex(scans);
+
+	for (int i = 0; i < 1000; i++) {
+	    int msLevel = 1 + random.nextInt(3);
+	    Range<Double> rtRange = createRange(random, 100);
+	    Range<Double> mzRange = createRange(random, 1000);
+	    Assert.assertArrayEquals("Scans in " + rtRange + " and " + mzRange,
+		    findScans(scans, msLevel, rtRange, mzRange),
+		    index.getScanNumbers(msLevel, rtRange, mzRange));
+	}
+
+    }
+
+    /**
+     * Creates scans in random order. Retention times and precursor m/z values
+     * are rounded, so that many scans share them.
+     */
+    private static List<Scan> createScans(Random random) {
+	List<Scan> scans = new ArrayList<Scan>();
+	for (int i = 0; i < NUM_OF_SCANS; i++) {
+	    int scanNumber = 1 + 2 * i;
+	    int msLevel = 1 + random.nextInt(3);
+	    double rt = Math.round(random.nextDouble() * 200) / 2.0;
+	    double precursorMZ = (msLevel == 1) ? 0 : random.nextInt(1000);
+	    scans.add(new SimpleScan(null, scanNumber, msLevel, rt,
+		    precursorMZ, 0, null, new DataPoint[0],
+		    MassSpectrumType.CENTROIDED, PolarityType.POSITIVE, "",
+		    Range.singleton(0.0)));
+	}
+	Collections.shuffle(scans, random);
+	return scans;
+    }
+
+    /**
+     * Creates a random range within 0 to maximum, with open, closed or missing
+     * bounds
+     */
+    private static Range<Double> createRange(Random random, int maximum) {
+	double a = random.nextInt(2 * maximum + 1) / 2.0;
+	double b = a + random.nextInt(random.nextBoolean() ? maximum / 2
+		: maximum / 50);
+	switch (random.nextInt(7)) {
+	case 0:
+	    return Range.closed(a, b);
+	case 1:
+	    return Range.open(a, b + 1);
+	case 2:
+	    return Range.closedOpen(a, b + 1);
+	case 3:
+	    return Range.openClosed(a, b);
+	case 4:
+	    return Range.atLeast(a);
+	case 5:
+	    return Range.lessThan(b);
+	default:
+	    return Range.singleton(a);
+	}
+    }
+
+    private static int[] findScans(List<Scan> scans, int msLevel,
+	    Range<Double> rtRange, Range<Double> mzRange) {
+	List<Integer> scanNumbers = new ArrayList<Integer>();
+	for (Scan scan : scans) {
+	    if ((scan.getMSLevel() == msLevel)
+		    && rtRange.contains(scan.getRetentionTime())
+		    && mzRange.contains(scan.getPrecursorMZ()))
+		scanNumbers.add(scan.getScanNumber());
+	}
+	int result[] = new int[scanNumbers.size()];
+	for (int i = 0; i < result.length; i++)
+	    result[i] = scanNumbers.get(i);
+	Arrays.sort(result);
+	return result;
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+/**
+ * Slides a ScanWindow over a raw data file and checks that each scan is read
+ * only once while it stays within the window
+ */
+public class ScanWindowTest {
+
+    private static final int NUM_OF_SCANS = 20;
+
+    /**
+     * Test a window sliding forward, as used by the scan filters
+     */
+    @Test
+    public void testSlidingWindow() throws Exception {
+
+	RawDataFileImpl dataFile = createDataFile();
+	try {
+	    int scanNumbers[] = dataFile.getScanNumbers();
+	    ScanWindow window = new ScanWindow(dataFile, scanNumbers);
+
+	    final int halfWidth = 2;
+	    for (int i = 0; i < scanNumbers.length; i++) {
+		int first = Math.max(0, i - halfWidth);
+		int last = Math.min(scanNumbers.length - 1, i + halfWidth);
+		window.moveTo(first, last);
+		Assert.assertEquals(first, window.getFirstIndex());
+		Assert.assertEquals(last, window.getLastIndex());
+		for (int j = first; j <= last; j++)
+		    checkScan(window, scanNumbers, j);
+	    }
+
+	    Assert.assertEquals(NUM_OF_SCANS, window.getNumberOfDecodedScans());
+	} finally {
+	    dataFile.close();
+	}
+
+    }
+
+    /**
+     * Test a window which moves backwards, jumps and grows
+     */
+    @Test
+    public void testMovingWindow() throws Exception {
+
+	RawDataFileImpl dataFile = createDataFile();
+	try {
+	    int scanNumbers[] = dataFile.getScanNumbers();
+	    ScanWindow window = new ScanWindow(dataFile, scanNumbers);
+
+	    window.moveTo(10, 12);
+	    window.moveTo(9, 11);
+	    Assert.assertEquals(4, window.getNumberOfDecodedScans());
+	    checkScan(window, scanNumbers, 9);
+	    checkScan(window, scanNumbers, 11);
+
+	    // Growing keeps the scans which are already in the window
+	    window.moveTo(8, 15);
+	    Assert.assertEquals(9, window.getNumberOfDecodedScans());
+	    for (int j = 8; j <= 15; j++)
+		checkScan(window, scanNumbers, j);
+
+	    window.moveTo(0, 1);
+	    Assert.assertEquals(11, window.getNumberOfDecodedScans());
+	    checkScan(window, scanNumbers, 0);
+	    checkScan(window, scanNumbers, 1);
+
+	    // An empty window
+	    window.moveTo(5, 4);
+	    Assert.assertEquals(11, window.getNumberOfDecodedScans());
+	} finally {
+	    dataFile.close();
+	}
+
+    }
+
+    /**
+     * Test that the scans outside of the window cannot be read
+     */
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testOutsideOfWindow() throws Exception {
+
+	RawDataFileImpl dataFile = createDataFile();
+	try {
+	    ScanWindow window = new ScanWindow(dataFile,
+		    dataFile.getScanNumbers());
+	    window.moveTo(3, 5);
+	    window.getMZValues(6);
+	} finally {
+	    dataFile.close();
+	}
+
+    }
+
+    /**
+     * Creates a data file whose scans contain as many data points as their
+     * scan number. Half of the scans are stored from data points, half from
+     * arrays of values.
+     */
+    private static RawDataFileImpl createDataFile() throws Exception {
+	RawDataFileImpl dataFile = new RawDataFileImpl("window.mzML");
+	for (int scanNumber = 1; scanNumber <= NUM_OF_SCANS; scanNumber++) {
+	    double mzValues[] = new double[scanNumber];
+	    double intensityValues[] = new double[scanNumber];
+	    DataPoint dataPoints[] = new DataPoint[scanNumber];
+	    for (int i = 0; i < scanNumber; i++) {
+		mzValues[i] = getMZ(scanNumber, i);
+		intensityValues[i] = getIntensity(scanNumber, i);
+		dataPoints[i] = new SimpleDataPoint(mzValues[i],
+			intensityValues[i]);
+	    }
+	    SimpleScan scan = new SimpleScan(dataFile, scanNumber, 1,
+		    scanNumber, 0, 0, null, dataPoints,
+		    MassSpectrumType.CENTROIDED, PolarityType.POSITIVE, "",
+		    Range.closed(100.0, 200.0));
+	    if (scanNumber % 2 == 0)
+		dataFile.addScan(scan);
+	    else
+		dataFile.addScan(scan, mzValues, intensityValues, scanNumber);
+	}
+	dataFile.finishWriting();
+	return dataFile;
+    }
+
+    private static double getMZ(int scanNumber, int dataPoint) {
+	return 100.0 + dataPoint + scanNumber / 100.0;
+    }
+
+    private static double getIntensity(int scanNumber, int dataPoint) {
+	return 1000.0 * scanNumber + dataPoint;
+    }
+
+    private static void checkScan(ScanWindow window, int scanNumbers[],
+	    int index) {
+	int scanNumber = scanNumbers[index];
+	double mzValues[] = window.getMZValues(index);
+	double intensityValues[] = window.getIntensityValues(index);
+	Assert.assertEquals(scanNumber, mzValues.length);
+	Assert.assertEquals(scanNumber, intensityValues.length);
+	// The values are stored with float precision
+	for (int i = 0; i < scanNumber; i++) {
+	    Assert.assertEquals((float) getMZ(scanNumber, i), mzValues[i], 0.0);
+	    Assert.assertEquals((float) getIntensity(scanNumber, i),
+		    intensityValues[i], 0.0);
+	}
+    }
+
+}
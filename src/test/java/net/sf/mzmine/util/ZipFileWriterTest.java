@@ -0,0 +1,275 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import net.sf.mzmine.util.ZipUtils.ZipEntryInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes ZIP files with ZipFileWriter and reads them back with
+ * java.util.zip.ZipFile.
+ */
+public class ZipFileWriterTest {
+
+    private static final int ALIGNMENT = 4096;
+
+    private File zipFile, otherZipFile;
+
+    @Before
+    public void setUp() throws IOException {
+	zipFile = File.createTempFile("mzmine", ".zip");
+	otherZipFile = File.createTempFile("mzmine", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+	zipFile.delete();
+	otherZipFile.delete();
+    }
+
+    @Test
+    public void testStoredAndDeflatedEntries() throws IOException {
+	byte stored[] = randomBytes(10000, 1);
+	byte deflated[] = compressibleBytes(100000);
+
+	ZipFileWriter writer = new ZipFileWriter(zipFile);
+	writeEntry(writer.putDeflatedEntry("deflated"), deflated);
+	writeEntry(writer.putStoredEntry("stored", ALIGNMENT), stored);
+	writeEntry(writer.putStoredEntry("empty", ALIGNMENT), new byte[0]);
+	writer.finish();
+
+	ZipFile zip = new ZipFile(zipFile);
+	try {
+	    assertEquals(3, zip.size());
+	    assertArrayEquals(deflated, readEntry(zip, "deflated"));
+	    assertArrayEquals(stored, readEntry(zip, "stored"));
+	    assertArrayEquals(new byte[0], readEntry(zip, "empty"));
+	    assertEquals(ZipEntry.DEFLATED, zip.getEntry("deflated")
+		    .getMethod());
+	    assertEquals(ZipEntry.STORED, zip.getEntry("stored").getMethod());
+	} finally {
+	    zip.close();
+	}
+
+	assertEquals(0, ZipUtils.getEntryDataOffset(zipFile, "stored")
+		% ALIGNMENT);
+	assertEquals(0, ZipUtils.getEntryDataOffset(zipFile, "empty")
+		% ALIGNMENT);
+
+	List<ZipEntryInfo> entries = ZipUtils.readCentralDirectory(zipFile);
+	assertEquals(3, entries.size());
+	assertEquals("deflated", entries.get(0).getName());
+	assertEquals(deflated.length, entries.get(0).getSize());
+	assertEquals("stored", entries.get(1).getName());
+	assertEquals(stored.length, entries.get(1).getSize());
+	assertEquals(stored.length, entries.get(1).getCompressedSize());
+    }
+
+    @Test
+    public void testZip64EntryCount() throws IOException {
+	// More entries than fit into the end of central directory record
+	final int count = 0xFFFF + 10;
+	ZipFileWriter writer = new ZipFileWriter(zipFile);
+	for (int i = 0; i < count; i++) {
+	    OutputStream out = writer.putStoredEntry("entry" + i, 1);
+	    out.write(i);
+	    out.close();
+	}
+	writer.finish();
+
+	assertEquals(count, ZipUtils.readCentralDirectory(zipFile).size());
+	assertEquals(count, readZip64EntryCount(zipFile));
+
+	ZipFile zip = new ZipFile(zipFile);
+	try {
+	    assertEquals(count, zip.size());
+	    for (int i : new int[] { 0, 0xFFFF, count - 1 }) {
+		assertArrayEquals(new byte[] { (byte) i },
+			readEntry(zip, "entry" + i));
+	    }
+	} finally {
+	    zip.close();
+	}
+    }
+
+    @Test
+    public void testAppend() throws IOException {
+	byte kept[] = randomBytes(5000, 2);
+	byte dropped[] = randomBytes(3000, 3);
+	byte added[] = compressibleBytes(20000);
+
+	ZipFileWriter writer = new ZipFileWriter(zipFile);
+	writeEntry(writer.putStoredEntry("kept", ALIGNMENT), kept);
+	writeEntry(writer.putDeflatedEntry("dropped"), dropped);
+	writer.finish();
+
+	writer = new ZipFileWriter(zipFile, true);
+	for (ZipEntryInfo entry : ZipUtils.readCentralDirectory(zipFile)) {
+	    if (entry.getName().equals("kept"))
+		writer.keepEntry(entry);
+	}
+	writeEntry(writer.putDeflatedEntry("added"), added);
+	writer.finish();
+
+	ZipFile zip = new ZipFile(zipFile);
+	try {
+	    assertEquals(2, zip.size());
+	    assertArrayEquals(kept, readEntry(zip, "kept"));
+	    assertArrayEquals(added, readEntry(zip, "added"));
+	    assertNull(zip.getEntry("dropped"));
+	} finally {
+	    zip.close();
+	}
+	assertEquals(0, ZipUtils.getEntryDataOffset(zipFile, "kept")
+		% ALIGNMENT);
+    }
+
+    @Test
+    public void testAbortAppend() throws IOException {
+	byte original[] = randomBytes(5000, 4);
+
+	ZipFileWriter writer = new ZipFileWriter(zipFile);
+	writeEntry(writer.putStoredEntry("original", ALIGNMENT), original);
+	writer.finish();
+
+	writer = new ZipFileWriter(zipFile, true);
+	writeEntry(writer.putStoredEntry("aborted", ALIGNMENT),
+		randomBytes(5000, 5));
+	writer.abort();
+
+	ZipFile zip = new ZipFile(zipFile);
+	try {
+	    assertEquals(1, zip.size());
+	    assertArrayEquals(original, readEntry(zip, "original"));
+	    assertNull(zip.getEntry("aborted"));
+	} finally {
+	    zip.close();
+	}
+    }
+
+    @Test
+    public void testCopyEntry() throws IOException {
+	byte stored[] = randomBytes(7000, 6);
+	byte deflated[] = compressibleBytes(30000);
+
+	ZipFileWriter writer = new ZipFileWriter(otherZipFile);
+	writeEntry(writer.putStoredEntry("stored", 1), stored);
+	writeEntry(writer.putDeflatedEntry("deflated"), deflated);
+	writer.finish();
+
+	writer = new ZipFileWriter(zipFile);
+	for (ZipEntryInfo entry : ZipUtils.readCentralDirectory(otherZipFile))
+	    writer.copyEntry(otherZipFile, entry, ALIGNMENT);
+	writer.finish();
+
+	ZipFile zip = new ZipFile(zipFile);
+	try {
+	    assertEquals(2, zip.size());
+	    assertArrayEquals(stored, readEntry(zip, "stored"));
+	    assertArrayEquals(deflated, readEntry(zip, "deflated"));
+	} finally {
+	    zip.close();
+	}
+	assertEquals(0, ZipUtils.getEntryDataOffset(zipFile, "stored")
+		% ALIGNMENT);
+	assertEquals(0, ZipUtils.getEntryDataOffset(zipFile, "deflated")
+		% ALIGNMENT);
+    }
+
+    private static void writeEntry(OutputStream out, byte data[])
+	    throws IOException {
+	out.write(data);
+	out.close();
+    }
+
+    private static byte[] readEntry(ZipFile zip, String name)
+	    throws IOException {
+	ZipEntry entry = zip.getEntry(name);
+	assertNotNull(name, entry);
+	InputStream in = zip.getInputStream(entry);
+	try {
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    byte buffer[] = new byte[4096];
+	    int count;
+	    while ((count = in.read(buffer)) > 0)
+		out.write(buffer, 0, count);
+	    return out.toByteArray();
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Returns the total number of entries stored in the ZIP64 end of central
+     * directory record, which must be located right before the end of central
+     * directory record.
+     */
+    private static long readZip64EntryCount(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    ByteBuffer locator = ZipUtils.read(channel, channel.size()
+		    - ZipUtils.END_HEADER_SIZE - ZipUtils.ZIP64_LOCATOR_SIZE,
+		    ZipUtils.ZIP64_LOCATOR_SIZE);
+	    assertEquals(ZipUtils.ZIP64_LOCATOR_SIGNATURE, locator.getInt(0));
+	    ByteBuffer end = ZipUtils.read(channel, locator.getLong(8),
+		    ZipUtils.ZIP64_END_HEADER_SIZE);
+	    assertEquals(ZipUtils.ZIP64_END_HEADER_SIGNATURE, end.getInt(0));
+	    return end.getLong(32);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+	byte data[] = new byte[length];
+	new Random(seed).nextBytes(data);
+	return data;
+    }
+
+    private static byte[] compressibleBytes(int length) {
+	byte data[] = new byte[length];
+	for (int i = 0; i < length; i++)
+	    data[i] = (byte) ((i / 7) % 13);
+	return data;
+    }
+
+}